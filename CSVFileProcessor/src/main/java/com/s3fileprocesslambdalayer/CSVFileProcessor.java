@@ -4,35 +4,57 @@ import com.s3fileprocesslambdalayer.SharedLambdaLayer;
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
 import com.amazonaws.services.lambda.runtime.events.S3Event;
+import com.amazonaws.services.lambda.runtime.events.SQSBatchResponse;
+import com.amazonaws.services.lambda.runtime.events.SQSEvent;
 import com.amazonaws.services.lambda.runtime.events.models.s3.S3EventNotification.S3EventNotificationRecord;
 
+import software.amazon.awssdk.core.ResponseInputStream;
 import software.amazon.awssdk.services.s3.S3Client; // Import AWS SDK v2 S3Client
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
 import software.amazon.awssdk.services.s3.model.S3Exception; // For S3-specific errors
 import software.amazon.awssdk.services.s3.model.NoSuchKeyException; // For specific S3 'object not found' error
 
-import java.io.BufferedReader;
-import java.io.File;
 import java.io.IOException;
-import java.net.URLDecoder;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.StandardCharsets; // For specifying UTF-8 encoding
-import java.nio.file.Files; // For Files.newBufferedReader
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.logging.Logger;
 
-public class CSVFileProcessor implements RequestHandler<S3Event, String> {
+public class CSVFileProcessor implements RequestHandler<S3Event, String>, FileTypeProcessor {
 
     private static final Logger logger = Logger.getLogger(CSVFileProcessor.class.getName());
 
+    // Checkpoint values: where the next record starts, and the counts before it
+    private static final String CHECKPOINT_OFFSET = "csv.offset";
+    private static final String CHECKPOINT_ROWS = "csv.rows";
+    private static final String CHECKPOINT_FIELDS = "csv.fields";
+    private static final String CHECKPOINT_STATISTICS = "csv.statistics";
+    // Suspended columnar output: its upload and the row groups written so far
+    private static final String CHECKPOINT_COLUMNAR = "csv.columnar";
+
     // Instantiate S3Client once per container lifecycle (cold start) for efficiency
-    private static final S3Client s3Client = S3Client.builder().build();
+    private static final S3Client s3Client = SharedLambdaLayer.sharedS3Client();
+
+    static {
+        StartupPriming.register("csv", () -> CsvTokenizer.fromEnvironment()
+                .tokenize(ByteBuffer.wrap("id,name\n1,\"primed, quoted\"\n".getBytes(StandardCharsets.UTF_8)), row -> true));
+    }
 
     // Environment variable for the S3 bucket name, initialized once per container
     private final String bucketName;
 
     public CSVFileProcessor() {
-        this.bucketName = System.getenv("BUCKET_NAME");
+        this.bucketName = LayerConfig.get("BUCKET_NAME", null);
         if (this.bucketName == null || this.bucketName.isEmpty()) {
             logger.severe("BUCKET_NAME environment variable is not set. This function may not operate correctly.");
             // Consider throwing a RuntimeException here to fail fast if this variable is critical.
@@ -44,133 +66,885 @@ public class CSVFileProcessor implements RequestHandler<S3Event, String> {
     public String handleRequest(S3Event event, Context context) {
         logger.info("Received S3 event for CSV processing. Request ID: " + context.getAwsRequestId());
         long startTime = System.currentTimeMillis();
+        InvocationMetrics.begin(context.getFunctionName());
+        InvocationDeadline.begin(context);
+        try {
+            if (event == null || event.getRecords() == null || event.getRecords().isEmpty()) {
+                logger.warning("No records found in the S3 event. Exiting.");
+                return "No records to process.";
+            }
+
+            List<RecordBatchRunner.Outcome> outcomes;
+            try (ObjectPrefetcher prefetcher = ObjectPrefetcher.start(event.getRecords())) {
+                outcomes = RecordBatchRunner.run(event.getRecords(),
+                        prefetcher.releasingUnclaimed(EventDeduplicator.skippingDuplicates(
+                                Continuations.resumable(this::processRecord, Continuations.Entry.S3_EVENT), EventDeduplicator::identityOf)),
+                        SharedLambdaLayer::objectKeyOf);
+            }
+            List<String> failedFiles = RecordBatchRunner.keysWith(outcomes, RecordBatchRunner.Status.FAILED);
+            List<String> skippedFiles = RecordBatchRunner.keysWith(outcomes, RecordBatchRunner.Status.SKIPPED); // To track explicitly skipped files
+            List<String> continuedFiles = RecordBatchRunner.keysWith(outcomes, RecordBatchRunner.Status.CONTINUED);
+
+            long endTime = System.currentTimeMillis();
+            logger.info(String.format("CSV processing completed. Total time: %d ms, peak RSS: %d KB",
+                    (endTime - startTime), SharedLambdaLayer.peakRssKb()));
+            logger.info("Object cache: " + ObjectCache.shared().stats());
+
+            StringBuilder result = new StringBuilder("Processing Summary: ");
+            if (failedFiles.isEmpty()) {
+                result.append("All files processed successfully.");
+            } else {
+                result.append("Failed to process ").append(failedFiles.size()).append(" file(s): ").append(String.join(", ", failedFiles));
+            }
+            if (!skippedFiles.isEmpty()) {
+                result.append(". Skipped ").append(skippedFiles.size()).append(" file(s): ").append(String.join(", ", skippedFiles));
+            }
+            if (!continuedFiles.isEmpty()) {
+                result.append(". Continued ").append(continuedFiles.size()).append(" file(s) in a new invocation: ").append(String.join(", ", continuedFiles));
+            }
+
+            return result.toString();
+        } finally {
+            InvocationMetrics.emit();
+        }
+    }
+
+    /**
+     * Entry point for SQS-buffered ingestion: S3 notifications queued in SQS arrive here in batches.
+     * Returns the messages whose records failed, so SQS redelivers only those.
+     */
+    public SQSBatchResponse handleSqsEvent(SQSEvent event, Context context) {
+        logger.info("Received SQS batch for CSV. Request ID: " + context.getAwsRequestId());
+        long startTime = System.currentTimeMillis();
+        InvocationMetrics.begin(context.getFunctionName());
+        InvocationDeadline.begin(context);
+        try {
+            SQSBatchResponse response = SqsBatchProcessor.process(event,
+                    EventDeduplicator.skippingDuplicates(
+                            Continuations.resumable(this::processRecord, Continuations.Entry.SQS), EventDeduplicator::identityOf));
+            logger.info(String.format("SQS batch completed in %d ms", System.currentTimeMillis() - startTime));
+            return response;
+        } finally {
+            InvocationMetrics.emit();
+        }
+    }
+
+    /**
+     * Processes one S3 event record. Safe to call concurrently for different records.
+     */
+    private RecordBatchRunner.Outcome processRecord(S3EventNotificationRecord record) {
+        String rawKey = record.getS3().getObject().getKey();
+        String s3Bucket = record.getS3().getBucket().getName();
+        String s3Key = null; // Initialize s3Key here
+
+        try {
+            // Decode the S3 key, as it can contain URL-encoded characters (e.g., spaces as %20)
+            long decodeStart = System.nanoTime();
+            s3Key = SharedLambdaLayer.objectKeyOf(record);
+            InvocationMetrics.record(InvocationMetrics.Stage.KEY_DECODE, decodeStart);
+            logger.info(String.format("Processing record for S3 object: s3://%s/%s (decoded: %s)", s3Bucket, rawKey, s3Key));
+
+            // Defensive check: Ensure the event is for the configured bucket (though SAM handles this well)
+            if (!s3Bucket.equals(this.bucketName)) {
+                logger.warning(String.format("Event for bucket '%s' but expected '%s'. Skipping file: %s", s3Bucket, this.bucketName, s3Key));
+                return RecordBatchRunner.Outcome.skipped(s3Key);
+            }
+
+            // Defensive check: Ensure it's a CSV file, possibly compressed (though S3 event filter handles this too)
+            if (!CompressedInput.stripSuffix(s3Key).toLowerCase().endsWith(".csv")) {
+                logger.warning("Skipped non-CSV file based on suffix check: " + s3Key);
+                return RecordBatchRunner.Outcome.skipped(s3Key);
+            }
 
-        if (event == null || event.getRecords() == null || event.getRecords().isEmpty()) {
-            logger.warning("No records found in the S3 event. Exiting.");
-            return "No records to process.";
+            return processObject(s3Bucket, s3Key);
+        } catch (Exception e) { // Catch any unexpected errors during key decoding or initial checks
+            logger.severe(String.format("Unhandled exception for raw key %s: %s", rawKey, e.getMessage()));
+            return RecordBatchRunner.Outcome.failed(s3Key != null ? s3Key : rawKey + " (decode_failed)");
         }
+    }
 
-        List<String> failedFiles = new ArrayList<>();
-        List<String> skippedFiles = new ArrayList<>(); // To track explicitly skipped files
+    @Override
+    public String type() {
+        return "csv";
+    }
 
-        for (S3EventNotificationRecord record : event.getRecords()) {
-            String rawKey = record.getS3().getObject().getKey();
-            String s3Bucket = record.getS3().getBucket().getName();
-            String s3Key = null; // Initialize s3Key here
+    @Override
+    public boolean handles(String mediaType) {
+        return ContentSniffer.CSV.equals(mediaType);
+    }
 
+    /**
+     * Streams (or, with CSV_INPUT_MODE=mapped or a prefetch under way, downloads) one CSV object and parses it.
+     * With CSV_SHARDS above 1, an object large enough to split is parsed as parallel ranged reads instead.
+     * Streamed and sharded objects large enough to checkpoint stop at a record boundary when the invocation
+     * nears its deadline and are continued from there by a new invocation. gzip and zstd objects are
+     * decompressed as they are parsed; they cannot be split into byte ranges, so they are never sharded.
+     * With CSV_PROFILE=true every path also converts the rows into typed {@link ColumnBatch}es and writes their
+     * {@link ColumnStatistics} next to the object. With CSV_COLUMNAR_OUTPUT_PREFIX set, the batches are also
+     * written to that prefix + the source key + ".colf" as a {@link ColumnarFileWriter columnar file}.
+     * A {@link CsvQuery} configured for the key runs on S3 Select when S3 supports it, and otherwise filters
+     * the rows on every path as they are tokenized.
+     */
+    @Override
+    public RecordBatchRunner.Outcome processObject(String s3Bucket, String s3Key) {
+        // Statistics sidecars and columnar files are output; routed by content they could pass for CSV
+        if (ColumnStatistics.isSidecarKey(s3Key) || s3Key.endsWith(ColumnarFileWriter.SUFFIX)) {
+            return RecordBatchRunner.Outcome.skipped(s3Key);
+        }
+        // Stream the object straight into the parser; nothing is staged in /tmp unless
+        // CSV_INPUT_MODE=mapped asks for a local file to memory-map, or the object is already being prefetched
+        Path localFilePath = null;
+        try {
+            // --- CSV Specific Processing Logic ---
+            CsvQuery query = CsvQuery.forKey(s3Key);
+            // S3 Select does not read an object already downloading for this record
+            if (query != null && CsvSelect.isEnabled() && !ObjectPrefetcher.isPrefetching(s3Bucket, s3Key)) {
+                RecordBatchRunner.Outcome selected = processSelectedCsv(query, s3Bucket, s3Key);
+                if (selected != null) {
+                    return selected;
+                }
+            }
+            boolean local = "mapped".equalsIgnoreCase(LayerConfig.get("CSV_INPUT_MODE", "stream"))
+                    || ObjectPrefetcher.isPrefetching(s3Bucket, s3Key);
+            CsvShardReader shardReader = CsvShardReader.fromEnvironment(s3Client);
+            // The size decides whether to shard, so the HEAD is only paid for when sharding is on
+            HeadObjectResponse head = !local && shardReader.isEnabled() ? SharedLambdaLayer.headObject(s3Client, s3Bucket, s3Key) : null;
+            if (local) {
+                // The download reports the version it fetched, which the statistics name
+                SharedLambdaLayer.DownloadedObject downloaded = SharedLambdaLayer.downloadObject(s3Client, s3Bucket, s3Key);
+                localFilePath = downloaded.path();
+                processCsvFile(localFilePath, s3Bucket, s3Key, downloaded.eTag());
+            } else if (head != null && shardReader.shardCountFor(head.contentLength()) > 1 && !isCompressed(head, s3Bucket, s3Key)) {
+                return processShardedCsv(shardReader, head, s3Bucket, s3Key);
+            } else {
+                try (ResponseInputStream<GetObjectResponse> csvStream = SharedLambdaLayer.openObjectStream(s3Client, s3Bucket, s3Key)) {
+                    // The GET's own metadata decides on checkpointing, so small objects pay no extra request
+                    if (CheckpointStore.shared().covers(csvStream.response().contentLength())) {
+                        return processResumableCsv(csvStream, s3Bucket, s3Key);
+                    }
+                    processCsvFile(csvStream, s3Bucket, s3Key);
+                }
+            }
+            // --- End CSV Specific Processing Logic ---
+            return RecordBatchRunner.Outcome.processed(s3Key);
+        } catch (NoSuchKeyException e) {
+            logger.severe(String.format("File not found on S3 for key %s in bucket %s: %s", s3Key, s3Bucket, e.getMessage()));
+            return RecordBatchRunner.Outcome.failed(s3Key);
+        } catch (S3Exception e) {
+            logger.severe(String.format("S3 error during download for %s: %s (AWS Request ID: %s)", s3Key, e.getMessage(), e.requestId()));
+            return RecordBatchRunner.Outcome.failed(s3Key);
+        } catch (IOException e) {
+            logger.severe(String.format("I/O error during download or processing for %s: %s", s3Key, e.getMessage()));
+            return RecordBatchRunner.Outcome.failed(s3Key);
+        } finally {
+            // Crucial: Clean up the downloaded file from /tmp to avoid disk space issues
+            if (localFilePath != null) {
+                SharedLambdaLayer.cleanUpFile(localFilePath);
+            }
+        }
+    }
+
+    /**
+     * Runs the key's query with S3 Select and tokenizes only the rows and columns it returns. S3 scans the
+     * object, so neither checkpoints nor shards apply. Returns null when the query fails before returning any
+     * data, for instance because S3 Select is not available, or when the object is zstd, which Select cannot
+     * read, so the caller reads and filters the object itself. One HEAD pins the version whose first bytes
+     * give the codec and the sample schema and whose ETag the statistics name; Select itself takes no version,
+     * so an overwrite in between is picked up by the event for the new version.
+     */
+    private RecordBatchRunner.Outcome processSelectedCsv(CsvQuery query, String s3Bucket, String s3Key) throws IOException {
+        CsvTokenizer tokenizer = CsvTokenizer.fromEnvironment();
+        boolean header = LayerConfig.getBoolean("CSV_HEADER", true);
+        HeadObjectResponse head = SharedLambdaLayer.headObject(s3Client, s3Bucket, s3Key);
+        if (head.contentLength() == 0) {
+            return null;
+        }
+        // Typing the result takes the projected schema, sampled from the object itself
+        boolean typed = isProfiling() || isWritingColumnar();
+        CompressedInput.Codec codec;
+        CsvSchema schema = null;
+        try (ResponseInputStream<GetObjectResponse> in = SharedLambdaLayer.openObjectRange(s3Client, s3Bucket, s3Key, head, 0,
+                typed ? head.contentLength() : Math.min(head.contentLength(), CompressedInput.MAGIC_BYTES))) {
+            PushbackInputStream peekable = new PushbackInputStream(in, CompressedInput.MAGIC_BYTES);
+            codec = CompressedInput.sniff(peekable);
+            if (typed && codec != CompressedInput.Codec.ZSTD) {
+                InputStream content = CompressedInput.decompress(peekable, codec);
+                schema = query.bind(CsvSchema.infer(ByteBuffer.wrap(content.readNBytes(CsvSchema.sampleBytes())),
+                        tokenizer.delimiter())).schema();
+            }
+            // Only the first bytes are needed
+            in.abort();
+        }
+        if (codec == CompressedInput.Codec.ZSTD) {
+            return null;
+        }
+        logger.info(String.format("Starting S3 Select CSV content processing for: %s (%s)", s3Key, query));
+        RowPipeline pipeline = null;
+        try (CsvSelect.Result selected = CsvSelect.open(SharedLambdaLayer.sharedS3AsyncClient(), s3Bucket, s3Key, query, header,
+                tokenizer.delimiter(), codec)) {
+            pipeline = RowPipeline.selected(s3Bucket, s3Key, schema);
             try {
-                // Decode the S3 key, as it can contain URL-encoded characters (e.g., spaces as %20)
-                s3Key = URLDecoder.decode(rawKey, StandardCharsets.UTF_8);
-                logger.info(String.format("Processing record for S3 object: s3://%s/%s (decoded: %s)", s3Bucket, rawKey, s3Key));
-
-                // Defensive check: Ensure the event is for the configured bucket (though SAM handles this well)
-                if (!s3Bucket.equals(this.bucketName)) {
-                    logger.warning(String.format("Event for bucket '%s' but expected '%s'. Skipping file: %s", s3Bucket, this.bucketName, s3Key));
-                    skippedFiles.add(s3Key);
-                    continue;
+                tokenizer.tokenize(Channels.newChannel(selected), pipeline.rows());
+            } catch (IOException e) {
+                if (selected.bytesRead() > 0) {
+                    throw e;
                 }
+                pipeline.abort();
+                if (!CsvSelect.markIfUnsupported(e)) {
+                    logger.warning(String.format("S3 Select failed for %s, filtering it locally instead: %s", s3Key, e.getMessage()));
+                }
+                return null;
+            }
+            InvocationMetrics.add(InvocationMetrics.Counter.BYTES_IN, selected.bytesRead());
+            InvocationMetrics.add(InvocationMetrics.Counter.SELECTED_ROWS, tokenizer.rowCount());
+            if (selected.stats() != null) {
+                logger.info(String.format("S3 Select for %s scanned %d bytes and returned %d", s3Key,
+                        selected.stats().bytesScanned(), selected.stats().bytesReturned()));
+            }
+            pipeline.finish(tokenizer, head.eTag());
+            return RecordBatchRunner.Outcome.processed(s3Key);
+        } catch (IOException | RuntimeException e) {
+            if (pipeline != null) {
+                pipeline.abort();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Tokenizes the whole CSV while it is still arriving from S3.
+     *
+     * @param csvStream The object content as returned by the shared layer.
+     * @param s3Bucket  The bucket, where the statistics sidecar is written.
+     * @param s3Key     The S3 key of the object.
+     * @throws IOException If an I/O error occurs while reading the stream.
+     */
+    private void processCsvFile(ResponseInputStream<GetObjectResponse> csvStream, String s3Bucket, String s3Key) throws IOException {
+        logger.info("Starting CSV content processing for: " + s3Key);
+        PushbackInputStream peekable = new PushbackInputStream(csvStream, CompressedInput.MAGIC_BYTES);
+        CompressedInput.Codec codec = CompressedInput.sniff(peekable);
+        CsvTokenizer tokenizer = CsvTokenizer.fromEnvironment();
+        try (InputStream decompressed = CompressedInput.decompress(peekable, codec)) {
+            processCsvContent(decompressed, tokenizer, s3Bucket, s3Key, csvStream.response().eTag());
+        }
+        // Streamed bytes are only known once parsed; the mapped path counts them at download.
+        // Compressed input is read to the end, and BytesIn stays what was transferred
+        InvocationMetrics.add(InvocationMetrics.Counter.BYTES_IN,
+                codec == CompressedInput.Codec.NONE ? tokenizer.bytesConsumed() : csvStream.response().contentLength());
+    }
+
+    /**
+     * Tokenizes a CSV downloaded to /tmp through a read-only memory mapping.
+     *
+     * @param filePath The local Path to the downloaded CSV file.
+     * @param s3Bucket The bucket, where the statistics sidecar is written.
+     * @param s3Key    The S3 key of the object.
+     * @param eTag     The ETag of the downloaded version, named in the statistics.
+     * @throws IOException If an I/O error occurs during file reading.
+     */
+    private void processCsvFile(Path filePath, String s3Bucket, String s3Key, String eTag) throws IOException {
+        CsvTokenizer tokenizer = CsvTokenizer.fromEnvironment();
+        CsvSchema schema = null;
+        try (PushbackInputStream peekable = new PushbackInputStream(Files.newInputStream(filePath), CompressedInput.MAGIC_BYTES)) {
+            CompressedInput.Codec codec = CompressedInput.sniff(peekable);
+            if (codec != CompressedInput.Codec.NONE) {
+                // Compressed bytes cannot be mapped usefully; decompress from the file instead
+                logger.info("Starting " + codec + " CSV content processing for: " + filePath);
+                try (InputStream decompressed = CompressedInput.decompress(peekable, codec)) {
+                    processCsvContent(decompressed, tokenizer, s3Bucket, s3Key, eTag);
+                }
+                return;
+            }
+            if (needsSchema(s3Key)) {
+                schema = CsvSchema.infer(ByteBuffer.wrap(peekable.readNBytes(CsvSchema.sampleBytes())), tokenizer.delimiter());
+            }
+        }
+        logger.info("Starting mapped CSV content processing for: " + filePath);
+        RowPipeline.open(s3Bucket, s3Key, schema, null, true).run(tokenizer, rows -> tokenizer.tokenize(filePath, rows), eTag);
+    }
 
-                // Defensive check: Ensure it's a CSV file (though S3 event filter handles this too)
-                if (!s3Key.toLowerCase().endsWith(".csv")) {
-                    logger.warning("Skipped non-CSV file based on suffix check: " + s3Key);
-                    skippedFiles.add(s3Key);
-                    continue;
+    /** Tokenizes decompressed content from the start of the object, inferring its schema from the first bytes if needed. */
+    private static void processCsvContent(InputStream content, CsvTokenizer tokenizer, String s3Bucket, String s3Key,
+                                          String eTag) throws IOException {
+        InputStream csv = content;
+        CsvSchema schema = null;
+        if (needsSchema(s3Key)) {
+            PushbackInputStream sampled = new PushbackInputStream(content, CsvSchema.sampleBytes());
+            schema = inferSchema(sampled, tokenizer.delimiter());
+            csv = sampled;
+        }
+        ReadableByteChannel channel = Channels.newChannel(csv);
+        RowPipeline.open(s3Bucket, s3Key, schema, null, true).run(tokenizer, rows -> tokenizer.tokenize(channel, rows), eTag);
+    }
+
+    /**
+     * True when the object is gzip or zstd: by its key suffix, or else by its first bytes, so extensionless
+     * objects routed by content are recognised too.
+     */
+    private static boolean isCompressed(HeadObjectResponse head, String s3Bucket, String s3Key) throws IOException {
+        if (CompressedInput.forKey(s3Key) != CompressedInput.Codec.NONE) {
+            return true;
+        }
+        try (ResponseInputStream<GetObjectResponse> in = SharedLambdaLayer.openObjectRange(s3Client, s3Bucket, s3Key, head, 0,
+                Math.min(head.contentLength(), CompressedInput.MAGIC_BYTES))) {
+            byte[] magic = in.readAllBytes();
+            return CompressedInput.detect(magic, magic.length) != CompressedInput.Codec.NONE;
+        }
+    }
+
+    /**
+     * Tokenizes a large CSV from its checkpoint onwards, stopping at a record boundary once the invocation
+     * nears its deadline. The checkpoint holds the byte offset of the next record and the counts so far; for
+     * compressed input the offset is into the decompressed content. Columnar output, which can only be saved by
+     * suspending its upload, rules out periodic saves: its progress is recorded only when the invocation stops.
+     */
+    private RecordBatchRunner.Outcome processResumableCsv(ResponseInputStream<GetObjectResponse> csvStream,
+                                                          String s3Bucket, String s3Key) throws IOException {
+        GetObjectResponse object = csvStream.response();
+        CheckpointStore checkpoints = CheckpointStore.shared();
+        Checkpoint checkpoint = checkpoints.load(s3Bucket, s3Key, object.eTag());
+        long offset = checkpoint.getLong(CHECKPOINT_OFFSET, 0);
+        PushbackInputStream peekable = new PushbackInputStream(csvStream, CompressedInput.MAGIC_BYTES);
+        CompressedInput.Codec codec = CompressedInput.sniff(peekable);
+        CsvTokenizer tokenizer = CsvTokenizer.fromEnvironment();
+        HeadObjectResponse version = HeadObjectResponse.builder().eTag(object.eTag()).versionId(object.versionId())
+                .contentLength(object.contentLength()).build();
+        if (codec == CompressedInput.Codec.NONE && offset >= object.contentLength()) {
+            // An earlier invocation finished the object but could not remove its checkpoint
+            csvStream.abort();
+            boolean columnarSuspended = checkpoint.get(CHECKPOINT_COLUMNAR + ".writer") != null;
+            if (checkpoint.get(CHECKPOINT_STATISTICS) != null || columnarSuspended) {
+                CsvSchema sampled = sampleSchema(version, s3Bucket, s3Key, tokenizer.delimiter());
+                CsvSchema schema = rowSchema(sampled, bindQuery(s3Key, sampled));
+                if (columnarSuspended) {
+                    closeColumnar(ColumnarFileWriter.resume(schema, s3Client, checkpoints, checkpoint, CHECKPOINT_COLUMNAR,
+                            s3Bucket, columnarKey(s3Key)), s3Bucket, s3Key);
+                }
+                if (checkpoint.get(CHECKPOINT_STATISTICS) != null) {
+                    ColumnStatistics statistics = ColumnStatistics.fromEnvironment(schema);
+                    statistics.restore(checkpoint.get(CHECKPOINT_STATISTICS));
+                    writeStatistics(s3Bucket, s3Key, object.eTag(), statistics);
                 }
+            }
+            checkpoints.delete(checkpoint);
+            return RecordBatchRunner.Outcome.processed(s3Key);
+        }
+        logger.info(String.format("Starting resumable CSV content processing for: %s at byte %d of %d",
+                s3Key, offset, object.contentLength()));
+        ResponseInputStream<GetObjectResponse> in = csvStream;
+        InputStream csv = peekable;
+        CsvSchema schema = null;
+        if (codec != CompressedInput.Codec.NONE) {
+            csv = CompressedInput.decompress(peekable, codec);
+            if (needsSchema(s3Key)) {
+                PushbackInputStream sampled = new PushbackInputStream(csv, CsvSchema.sampleBytes());
+                schema = inferSchema(sampled, tokenizer.delimiter());
+                csv = sampled;
+            }
+            if (offset > 0) {
+                // Compressed data cannot be entered part way: decompress up to the offset again, but parse nothing twice
+                csv.skipNBytes(offset);
+            }
+        } else if (offset > 0) {
+            csvStream.abort();
+            if (needsSchema(s3Key)) {
+                schema = sampleSchema(version, s3Bucket, s3Key, tokenizer.delimiter());
+            }
+            in = SharedLambdaLayer.openObjectRange(s3Client, s3Bucket, s3Key, version, offset, object.contentLength());
+            csv = in;
+        } else if (needsSchema(s3Key)) {
+            PushbackInputStream sampled = new PushbackInputStream(peekable, CsvSchema.sampleBytes());
+            schema = inferSchema(sampled, tokenizer.delimiter());
+            csv = sampled;
+        }
+        RowPipeline pipeline = null;
+        try (ResponseInputStream<GetObjectResponse> body = in; InputStream source = csv) {
+            pipeline = RowPipeline.open(s3Bucket, s3Key, schema, checkpoint, offset == 0);
+            ResumableRows rows = new ResumableRows(pipeline.rows(), checkpoints, checkpoint, offset, pipeline.columnar == null);
+            tokenizer.tokenize(Channels.newChannel(source), rows);
+            if (codec == CompressedInput.Codec.NONE) {
+                InvocationMetrics.add(InvocationMetrics.Counter.BYTES_IN, tokenizer.bytesConsumed());
+            } else if (!rows.yielded) {
+                InvocationMetrics.add(InvocationMetrics.Counter.BYTES_IN, object.contentLength());
+            }
+            if (rows.yielded) {
+                pipeline.rows().logSummary(tokenizer);
+                rows.update(tokenizer.bytesConsumed(), tokenizer.rowCount());
+                pipeline.suspend(checkpoints, checkpoint);
+                checkpoints.suspend(checkpoint);
+                body.abort();
+                logger.info(String.format("Stopped %s at byte %d of %d for a continuation", s3Key,
+                        checkpoint.getLong(CHECKPOINT_OFFSET, 0), object.contentLength()));
+                return RecordBatchRunner.Outcome.continued(s3Key);
+            }
+            pipeline.finish(tokenizer, object.eTag());
+            if (checkpoint.isResumed() || rows.saved) {
+                logger.info(String.format("Finished %s across %d invocation(s): %d rows, %d fields in total", s3Key,
+                        checkpoint.continuations() + 1, checkpoint.getLong(CHECKPOINT_ROWS, 0) + tokenizer.rowCount(),
+                        checkpoint.getLong(CHECKPOINT_FIELDS, 0) + pipeline.rows().fields));
+                checkpoints.delete(checkpoint);
+            }
+            return RecordBatchRunner.Outcome.processed(s3Key);
+        } catch (IOException | RuntimeException e) {
+            if (pipeline != null) {
+                pipeline.abort();
+            }
+            throw e;
+        }
+    }
 
-                Path localFilePath = null;
-                try {
-                    // Download the file using the SharedLambdaLayer's static method
-                    // Using downloadFileAsPath as it returns a Path and throws checked exceptions
-                    File downloadedFile = SharedLambdaLayer.downloadFile(s3Client, s3Bucket, s3Key);
-                    logger.info("Downloaded file location: " + downloadedFile.getAbsolutePath());
-                    localFilePath = downloadedFile.toPath();
-                    File tmpDir = new File("/tmp");
-                    String[] tmpFiles = tmpDir.list();
-                    if (tmpFiles != null && tmpFiles.length > 0) {
-                        logger.info("Files present in /tmp:");
-                        for (String file : tmpFiles) {
-                            logger.info(" - " + file);
-                        }
-                    } else {
-                        logger.info("No files present in /tmp.");
+    /**
+     * Parses the CSV as record-aligned shards in parallel and merges their counts in object order, so the
+     * summary is the same as a sequential parse of the same object. An object large enough to checkpoint is
+     * parsed in windows of CSV_SHARD_WINDOW_MB (default 1024), and may stop between two of them. For columnar
+     * output each shard writes its row groups to a file in /tmp, within its share of the row group budget, and
+     * the files are appended to the upload in object order; as with streamed objects, that output rules out
+     * periodic saves.
+     */
+    private RecordBatchRunner.Outcome processShardedCsv(CsvShardReader shardReader, HeadObjectResponse head,
+                                                        String s3Bucket, String s3Key) throws IOException {
+        long size = head.contentLength();
+        CheckpointStore checkpoints = CheckpointStore.shared();
+        Checkpoint checkpoint = checkpoints.covers(size) ? checkpoints.load(s3Bucket, s3Key, head.eTag()) : null;
+        // Every shard batches with the one schema, read from the start of the object
+        CsvSchema sampled = needsSchema(s3Key) ? sampleSchema(head, s3Bucket, s3Key, CsvTokenizer.fromEnvironment().delimiter()) : null;
+        RowPipeline pipeline = RowPipeline.open(s3Bucket, s3Key, sampled, checkpoint, true);
+        CsvSchema schema = pipeline.schema;
+        CsvQuery.Bound query = pipeline.query;
+        ColumnStatistics statistics = pipeline.statistics;
+        ColumnarFileWriter columnar = pipeline.columnar;
+        long window = checkpoint != null ? LayerConfig.getLong("CSV_SHARD_WINDOW_MB", 1024) * 1024 * 1024 : Long.MAX_VALUE;
+        long resumedFrom = checkpoint != null ? checkpoint.getLong(CHECKPOINT_OFFSET, 0) : 0;
+        logger.info(String.format("Starting sharded CSV content processing for: %s (%d bytes from byte %d, up to %d shards)",
+                s3Key, size, resumedFrom, shardReader.shardCountFor(size)));
+        long shardRowGroupBytes = Math.max(1, ColumnarFileWriter.rowGroupBytesFromEnvironment() / shardReader.shardCountFor(size));
+        // Handlers of every shard parsed, including ones parsed again, whose spill files must not outlive the object
+        List<RowCounter> handlers = new ArrayList<>();
+        long startNanos = System.nanoTime();
+        long offset = resumedFrom;
+        long rows = checkpoint != null ? checkpoint.getLong(CHECKPOINT_ROWS, 0) : 0;
+        long fields = checkpoint != null ? checkpoint.getLong(CHECKPOINT_FIELDS, 0) : 0;
+        long selected = 0;
+        int shardCount = 0;
+        try {
+            while (offset < size) {
+                if (checkpoint != null && offset > resumedFrom && InvocationDeadline.shouldYield()) {
+                    setProgress(checkpoint, offset, rows, fields, statistics);
+                    pipeline.suspend(checkpoints, checkpoint);
+                    checkpoints.suspend(checkpoint);
+                    InvocationMetrics.add(InvocationMetrics.Counter.BYTES_IN, offset - resumedFrom);
+                    logger.info(String.format("Stopped %s at byte %d of %d for a continuation", s3Key, offset, size));
+                    return RecordBatchRunner.Outcome.continued(s3Key);
+                }
+                // Only the first shard logs rows, so the logged rows are the first rows of the object
+                List<CsvShardReader.Shard<RowCounter>> shards = shardReader.read(s3Bucket, s3Key, head, offset, window, start -> {
+                    RowCounter handler = new RowCounter(s3Key, start == 0, schema, start == 0, newStatistics(schema),
+                            columnar != null ? spillColumnar(schema, shardRowGroupBytes) : null, query);
+                    handlers.add(handler);
+                    return handler;
+                });
+                for (CsvShardReader.Shard<RowCounter> shard : shards) {
+                    rows += shard.rows();
+                    fields += shard.handler().fields;
+                    selected += shard.handler().selected;
+                    shard.handler().flushBatch();
+                    if (statistics != null) {
+                        statistics.merge(shard.handler().statistics());
                     }
-                    // --- CSV Specific Processing Logic ---
-                    processCsvFile(localFilePath);
-                    // --- End CSV Specific Processing Logic ---
-
-                } catch (NoSuchKeyException e) {
-                    logger.severe(String.format("File not found on S3 for key %s in bucket %s: %s", s3Key, s3Bucket, e.getMessage()));
-                    failedFiles.add(s3Key);
-                } catch (S3Exception e) {
-                    logger.severe(String.format("S3 error during download for %s: %s (AWS Request ID: %s)", s3Key, e.getMessage(), e.requestId()));
-                    failedFiles.add(s3Key);
-                } catch (IOException e) {
-                    logger.severe(String.format("I/O error during download or processing for %s: %s", s3Key, e.getMessage()));
-                    failedFiles.add(s3Key);
-                } finally {
-                    // Crucial: Clean up the downloaded file from /tmp to avoid disk space issues
-                    if (localFilePath != null) {
-                        SharedLambdaLayer.cleanUpFile(localFilePath);
+                    if (columnar != null) {
+                        columnar.appendSpill(shard.handler().columnar);
                     }
                 }
-            } catch (Exception e) { // Catch any unexpected errors during key decoding or initial checks
-                logger.severe(String.format("Unhandled exception for raw key %s: %s", rawKey, e.getMessage()));
-                failedFiles.add(s3Key != null ? s3Key : rawKey + " (decode_failed)");
+                shardCount += shards.size();
+                offset = shards.get(shards.size() - 1).end();
+                if (checkpoint != null && columnar == null && offset < size && checkpoints.isDue(checkpoint)) {
+                    setProgress(checkpoint, offset, rows, fields, statistics);
+                    checkpoints.save(checkpoint);
+                }
+            }
+            InvocationMetrics.record(InvocationMetrics.Stage.PARSE, startNanos);
+            InvocationMetrics.add(InvocationMetrics.Counter.ROWS, rows);
+            InvocationMetrics.add(InvocationMetrics.Counter.BYTES_IN, size - resumedFrom);
+            if (query != null) {
+                InvocationMetrics.add(InvocationMetrics.Counter.SELECTED_ROWS, selected);
+                logger.info(String.format("Selected %d of the %d rows of %s", selected, rows, s3Key));
             }
+            long elapsedNanos = Math.max(1, System.nanoTime() - startNanos);
+            double mbPerSecond = (size - resumedFrom) / 1_048_576.0 / (elapsedNanos / 1e9);
+            logger.info(String.format("Finished sharded CSV content parsing for %s: %d shards, %d rows, %d fields, %d bytes in %d ms (%.1f MB/s)",
+                    s3Key, shardCount, rows, fields, size - resumedFrom, elapsedNanos / 1_000_000, mbPerSecond));
+            pipeline.complete(head.eTag());
+            if (checkpoint != null && (checkpoint.isResumed() || checkpoint.getLong(CHECKPOINT_OFFSET, 0) > 0)) {
+                checkpoints.delete(checkpoint);
+            }
+            return RecordBatchRunner.Outcome.processed(s3Key);
+        } catch (IOException | RuntimeException e) {
+            pipeline.abort();
+            throw e;
+        } finally {
+            for (RowCounter handler : handlers) {
+                abortColumnar(handler.columnar);
+            }
+        }
+    }
+
+    private static void setProgress(Checkpoint checkpoint, long offset, long rows, long fields,
+                                    ColumnStatistics statistics) throws IOException {
+        checkpoint.set(CHECKPOINT_OFFSET, offset);
+        checkpoint.set(CHECKPOINT_ROWS, rows);
+        checkpoint.set(CHECKPOINT_FIELDS, fields);
+        if (statistics != null) {
+            checkpoint.set(CHECKPOINT_STATISTICS, statistics.encode());
+        }
+    }
+
+    /** True when CSV_PROFILE asks for typed column batches and a statistics sidecar. */
+    private static boolean isProfiling() {
+        return LayerConfig.getBoolean("CSV_PROFILE", false);
+    }
+
+    /** True when CSV_COLUMNAR_OUTPUT_PREFIX asks for a columnar copy of each object. */
+    private static boolean isWritingColumnar() {
+        return !LayerConfig.get("CSV_COLUMNAR_OUTPUT_PREFIX", "").isEmpty();
+    }
+
+    /** True when the object's schema is needed: to type rows for statistics or columnar output, or to apply a query. */
+    private static boolean needsSchema(String s3Key) {
+        return isProfiling() || isWritingColumnar() || CsvQuery.forKey(s3Key) != null;
+    }
+
+    /** The key's query resolved against the object's schema, or null when no query applies. */
+    private static CsvQuery.Bound bindQuery(String s3Key, CsvSchema schema) {
+        CsvQuery query = CsvQuery.forKey(s3Key);
+        return query != null ? query.bind(schema) : null;
+    }
+
+    /** Schema of the rows handled: the query's projection, if there is one. */
+    private static CsvSchema rowSchema(CsvSchema schema, CsvQuery.Bound query) {
+        return query != null ? query.schema() : schema;
+    }
+
+    private static String columnarKey(String s3Key) {
+        return LayerConfig.get("CSV_COLUMNAR_OUTPUT_PREFIX", "") + s3Key + ColumnarFileWriter.SUFFIX;
+    }
+
+    /** Starts the object's columnar file upload, or returns null when there is no schema or no output prefix. */
+    private static ColumnarFileWriter openColumnar(CsvSchema schema, String s3Bucket, String s3Key) throws IOException {
+        if (schema == null || !isWritingColumnar()) {
+            return null;
+        }
+        return ColumnarFileWriter.fromEnvironment(schema, SharedLambdaLayer.openUploadStream(s3Client, s3Bucket,
+                columnarKey(s3Key), ColumnarFileWriter.CONTENT_TYPE));
+    }
+
+    /** A writer for one shard's row groups, spilled to /tmp until they are appended in object order. */
+    private static ColumnarFileWriter spillColumnar(CsvSchema schema, long rowGroupBytes) {
+        try {
+            Path file = Files.createTempFile(Paths.get(SharedLambdaLayer.getTempDir()), "shard-", ColumnarFileWriter.SUFFIX);
+            return ColumnarFileWriter.spill(schema, file, ColumnarFileWriter.codecFromEnvironment(), rowGroupBytes);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
+    }
 
-        long endTime = System.currentTimeMillis();
-        logger.info(String.format("CSV processing completed. Total time: %d ms", (endTime - startTime)));
+    /** Finishes the columnar file, which completes its upload, and logs its size and write throughput. */
+    private static void closeColumnar(ColumnarFileWriter columnar, String s3Bucket, String s3Key) throws IOException {
+        if (columnar == null) {
+            return;
+        }
+        columnar.close();
+        long writeNanos = Math.max(1, columnar.writeNanos());
+        logger.info(String.format("Wrote s3://%s/%s: %d rows in %d row groups, %d bytes, %.1f MB/s written", s3Bucket,
+                columnarKey(s3Key), columnar.rows(), columnar.rowGroupCount(), columnar.bytesWritten(),
+                columnar.bytesWritten() / 1_048_576.0 / (writeNanos / 1e9)));
+    }
 
-        StringBuilder result = new StringBuilder("Processing Summary: ");
-        if (failedFiles.isEmpty()) {
-            result.append("All files processed successfully.");
-        } else {
-            result.append("Failed to process ").append(failedFiles.size()).append(" file(s): ").append(String.join(", ", failedFiles));
+    private static void abortColumnar(ColumnarFileWriter columnar) {
+        if (columnar != null) {
+            columnar.abort();
         }
-        if (!skippedFiles.isEmpty()) {
-            result.append(". Skipped ").append(skippedFiles.size()).append(" file(s): ").append(String.join(", ", skippedFiles));
+    }
+
+    /** Infers the schema from the first bytes of {@code csv}, which are pushed back to be parsed as usual. */
+    private static CsvSchema inferSchema(PushbackInputStream csv, byte delimiter) throws IOException {
+        byte[] sample = csv.readNBytes(CsvSchema.sampleBytes());
+        csv.unread(sample);
+        return CsvSchema.infer(ByteBuffer.wrap(sample), delimiter);
+    }
+
+    /** Infers the schema from the first bytes of the object, for reads that do not start at its beginning. */
+    private static CsvSchema sampleSchema(HeadObjectResponse head, String s3Bucket, String s3Key, byte delimiter) throws IOException {
+        try (ResponseInputStream<GetObjectResponse> in = SharedLambdaLayer.openObjectRange(s3Client, s3Bucket, s3Key, head, 0,
+                Math.min(head.contentLength(), CsvSchema.sampleBytes()))) {
+            return CsvSchema.infer(ByteBuffer.wrap(in.readAllBytes()), delimiter);
         }
+    }
 
-        return result.toString();
+    /** Uploads the statistics as the object's sidecar. */
+    private static void writeStatistics(String s3Bucket, String s3Key, String eTag, ColumnStatistics statistics) {
+        SharedLambdaLayer.uploadBytes(s3Client, s3Bucket, ColumnStatistics.sidecarKey(s3Key),
+                statistics.toJson(s3Key, eTag).getBytes(StandardCharsets.UTF_8), "application/json");
+        logger.info(String.format("Profiled %s: %d rows of %s", s3Key, statistics.rows(), statistics.schema()));
+    }
+
+    /** Empty statistics for rows of {@code schema}, or null when not profiling or the rows are not typed. */
+    private static ColumnStatistics newStatistics(CsvSchema schema) {
+        return schema != null && isProfiling() ? ColumnStatistics.fromEnvironment(schema) : null;
     }
 
     /**
-     * Placeholder for actual CSV content processing.
-     * Reads each line of the CSV file.
-     *
-     * @param filePath The local Path to the downloaded CSV file.
-     * @throws IOException If an I/O error occurs during file reading.
+     * Where one object's rows go: the key's query filters and projects them, and when profiling or writing
+     * columnar output they are typed into the object's statistics and columnar file. Every read path opens
+     * one, tokenizes into {@link #rows()}, and then finishes it, suspends it for a continuation, or aborts it.
+     */
+    private static final class RowPipeline {
+        private final String s3Bucket;
+        private final String s3Key;
+        private final CsvSchema schema;
+        private final CsvQuery.Bound query;
+        private final ColumnStatistics statistics;
+        private final ColumnarFileWriter columnar;
+        private final boolean logRows;
+        private final boolean atStart;
+        private RowCounter counter;
+
+        private RowPipeline(String s3Bucket, String s3Key, CsvSchema schema, CsvQuery.Bound query, ColumnarFileWriter columnar,
+                            boolean logRows, boolean atStart) {
+            this.s3Bucket = s3Bucket;
+            this.s3Key = s3Key;
+            this.schema = schema;
+            this.query = query;
+            this.statistics = newStatistics(schema);
+            this.columnar = columnar;
+            this.logRows = logRows;
+            this.atStart = atStart;
+        }
+
+        /**
+         * Binds the key's query to {@code sampled}, the object's schema or null when rows are not typed, and
+         * starts the columnar file. With a checkpoint, the columnar upload and statistics carry on from it.
+         *
+         * @param atStart True when the rows start at the beginning of the object, with its header.
+         */
+        static RowPipeline open(String s3Bucket, String s3Key, CsvSchema sampled, Checkpoint checkpoint, boolean atStart)
+                throws IOException {
+            CsvQuery.Bound query = sampled != null ? bindQuery(s3Key, sampled) : null;
+            CsvSchema schema = rowSchema(sampled, query);
+            ColumnarFileWriter columnar = schema == null || !isWritingColumnar() ? null
+                    : checkpoint != null ? ColumnarFileWriter.resume(schema, s3Client, CheckpointStore.shared(), checkpoint,
+                            CHECKPOINT_COLUMNAR, s3Bucket, columnarKey(s3Key))
+                    : openColumnar(schema, s3Bucket, s3Key);
+            RowPipeline pipeline = new RowPipeline(s3Bucket, s3Key, schema, query, columnar, atStart, atStart);
+            if (pipeline.statistics != null && checkpoint != null && checkpoint.get(CHECKPOINT_STATISTICS) != null) {
+                pipeline.statistics.restore(checkpoint.get(CHECKPOINT_STATISTICS));
+            }
+            return pipeline;
+        }
+
+        /** For rows S3 Select already filtered and projected to {@code schema}; the result has no header row. */
+        static RowPipeline selected(String s3Bucket, String s3Key, CsvSchema schema) throws IOException {
+            return new RowPipeline(s3Bucket, s3Key, schema, null, openColumnar(schema, s3Bucket, s3Key), true, false);
+        }
+
+        /** The handler to tokenize the rows into. */
+        RowCounter rows() {
+            if (counter == null) {
+                counter = new RowCounter(s3Key, logRows, schema, atStart, statistics, columnar, query);
+            }
+            return counter;
+        }
+
+        /** Reads the rows into {@link #rows()} with {@code read} and finishes, or aborts if anything fails. */
+        void run(CsvTokenizer tokenizer, Read read, String eTag) throws IOException {
+            try {
+                read.into(rows());
+                finish(tokenizer, eTag);
+            } catch (IOException | RuntimeException e) {
+                abort();
+                throw e;
+            }
+        }
+
+        /** Passes on the last batch, logs the parse, and completes the outputs. */
+        void finish(CsvTokenizer tokenizer, String eTag) throws IOException {
+            rows().flushBatch();
+            rows().logSummary(tokenizer);
+            complete(eTag);
+        }
+
+        /** Completes the columnar upload and uploads the statistics, naming the version {@code eTag} they describe. */
+        void complete(String eTag) throws IOException {
+            closeColumnar(columnar, s3Bucket, s3Key);
+            if (statistics != null) {
+                writeStatistics(s3Bucket, s3Key, eTag, statistics);
+            }
+        }
+
+        /** Saves the columnar upload into {@code checkpoint}, to be carried on by a continuation. */
+        void suspend(CheckpointStore checkpoints, Checkpoint checkpoint) throws IOException {
+            if (columnar != null) {
+                columnar.suspend(checkpoints, checkpoint, CHECKPOINT_COLUMNAR);
+            }
+        }
+
+        void abort() {
+            abortColumnar(columnar);
+        }
+
+        /** Tokenizes the object's rows into a handler. */
+        @FunctionalInterface
+        interface Read {
+            void into(CsvTokenizer.RowHandler rows) throws IOException;
+        }
+    }
+
+    /**
+     * Counts rows and fields, and logs the first rows for visibility. With a query, only the rows it selects go
+     * on, projected to its columns. When profiling or writing columnar output, rows are also converted into
+     * typed column batches, which feed the object's statistics and columnar file. In a real-world scenario this
+     * is where rows are validated, transformed and stored (e.g., in DynamoDB, RDS, SQS, Kinesis).
      */
-    private void processCsvFile(Path filePath) throws IOException {
-        logger.info("Starting CSV content processing for: " + filePath.toString());
-
-        // Use Files.newBufferedReader with explicit UTF-8 encoding for robust CSV parsing
-        try (BufferedReader reader = Files.newBufferedReader(filePath, StandardCharsets.UTF_8)) {
-            String line;
-            int lineNumber = 0;
-            while ((line = reader.readLine()) != null) {
-                lineNumber++;
-                // In a real-world scenario, you would parse this 'line' (e.g., using a CSV library),
-                // validate the data, transform it, and then store it (e.g., in DynamoDB, RDS, SQS, Kinesis).
-                logger.info("CSV Line " + lineNumber + ": " + line);
-
-                // Add a log truncation limit to prevent excessive logging for very large files,
-                // which can lead to CloudWatch costs or Lambda timeout issues just from logging.
-                if (lineNumber >= 100) {
-                    logger.info("Truncating CSV line logging after 100 lines for efficiency. Further processing continues silently.");
-                    // In a real scenario, you'd process all lines, just not log them verbosely.
-                    // If you stop here, make sure that's intended for your business logic.
-                    // For demo, we can break to save log space.
-                    // For actual processing, you'd remove this break unless you truly want to stop after 100 lines.
-                    break;
+    private static final class RowCounter implements CsvTokenizer.RowHandler {
+        // Log only the first rows to keep CloudWatch costs down on large files
+        private static final int LOGGED_ROWS = 100;
+
+        private final String s3Key;
+        private final boolean logRows;
+        private final long startNanos = System.nanoTime();
+        private final ColumnStatistics statistics;
+        private final ColumnarFileWriter columnar;
+        private final ColumnBatcher batcher;
+        private final CsvQuery.Bound query;
+        private final boolean atStart;
+        private final CsvRow projected = new CsvRow();
+        private long fields;
+        private long selected;
+
+        /**
+         * @param schema     Schema to batch rows with, or null when rows are not typed.
+         * @param atStart    True when the rows start at the beginning of the object, with its header.
+         * @param statistics Statistics the batches go to, or null when not profiling.
+         * @param columnar   Writer the batches go to, or null for no columnar output.
+         * @param query      Query to filter and project rows with, or null to take them as they are; {@code schema}
+         *                   is then the query's.
+         */
+        RowCounter(String s3Key, boolean logRows, CsvSchema schema, boolean atStart, ColumnStatistics statistics,
+                   ColumnarFileWriter columnar, CsvQuery.Bound query) {
+            this.s3Key = s3Key;
+            this.logRows = logRows;
+            this.query = query;
+            this.atStart = atStart;
+            this.statistics = statistics;
+            this.columnar = columnar;
+            ColumnBatch.Sink sink = statistics == null ? columnar : columnar == null ? statistics : statistics.andThen(columnar);
+            this.batcher = sink != null ? ColumnBatcher.fromEnvironment(schema, atStart, sink) : null;
+        }
+
+        @Override
+        public boolean row(CsvRow row) throws IOException {
+            if (query != null) {
+                // Filtered on the field offsets, before any field is decoded; the header is kept to name the columns
+                boolean header = atStart && row.index() == 0 && query.schema().hasHeader();
+                if (!header) {
+                    if (!query.matches(row)) {
+                        return true;
+                    }
+                    selected++;
                 }
+                row = query.project(row, projected);
             }
-        } // The BufferedReader is automatically closed by try-with-resources
-        logger.info("Finished CSV content parsing for: " + filePath);
+            fields += row.fieldCount();
+            if (batcher != null) {
+                batcher.row(row);
+            }
+            if (!logRows) {
+                return true;
+            }
+            if (row.index() == 0) {
+                logger.info(String.format("Time to first row for %s: %d ms", s3Key, (System.nanoTime() - startNanos) / 1_000_000));
+            }
+            if (row.index() < LOGGED_ROWS) {
+                logger.info("CSV Row " + (row.index() + 1) + ": " + row);
+            }
+            return true;
+        }
+
+        /** Passes on the partly filled batch, at the end of the input or before its progress is saved. */
+        void flushBatch() throws IOException {
+            if (batcher != null) {
+                batcher.flush();
+            }
+        }
+
+        /** Statistics of the rows so far, or null when not profiling. */
+        ColumnStatistics statistics() {
+            return statistics;
+        }
+
+        void logSummary(CsvTokenizer tokenizer) {
+            InvocationMetrics.record(InvocationMetrics.Stage.PARSE, startNanos);
+            InvocationMetrics.add(InvocationMetrics.Counter.ROWS, tokenizer.rowCount());
+            if (query != null) {
+                InvocationMetrics.add(InvocationMetrics.Counter.SELECTED_ROWS, selected);
+                logger.info(String.format("Selected %d of the %d rows of %s", selected, tokenizer.rowCount(), s3Key));
+            }
+            long elapsedNanos = Math.max(1, System.nanoTime() - startNanos);
+            double mbPerSecond = tokenizer.bytesConsumed() / 1_048_576.0 / (elapsedNanos / 1e9);
+            logger.info(String.format("Finished CSV content parsing for %s: %d rows, %d fields, %d bytes in %d ms (%.1f MB/s)",
+                    s3Key, tokenizer.rowCount(), fields, tokenizer.bytesConsumed(), elapsedNanos / 1_000_000, mbPerSecond));
+        }
     }
-}
 
+    /**
+     * Passes rows to a {@link RowCounter} and stops after the row at which the invocation should yield,
+     * checking every {@link #CHECK_EVERY_ROWS} rows. Unless {@code periodicSaves} is off, it also saves the
+     * checkpoint whenever a periodic save is due.
+     */
+    private static final class ResumableRows implements CsvTokenizer.RowHandler {
+        private static final int CHECK_EVERY_ROWS = 4096;
+
+        private final RowCounter counter;
+        private final CheckpointStore checkpoints;
+        private final Checkpoint checkpoint;
+        private final long offset;
+        private final long rowsBefore;
+        private final long fieldsBefore;
+        private final boolean periodicSaves;
+        private boolean yielded;
+        private boolean saved;
 
+        ResumableRows(RowCounter counter, CheckpointStore checkpoints, Checkpoint checkpoint, long offset, boolean periodicSaves) {
+            this.counter = counter;
+            this.checkpoints = checkpoints;
+            this.checkpoint = checkpoint;
+            this.offset = offset;
+            this.periodicSaves = periodicSaves;
+            this.rowsBefore = checkpoint.getLong(CHECKPOINT_ROWS, 0);
+            this.fieldsBefore = checkpoint.getLong(CHECKPOINT_FIELDS, 0);
+        }
 
+        @Override
+        public boolean row(CsvRow row) throws IOException {
+            counter.row(row);
+            if ((row.index() + 1) % CHECK_EVERY_ROWS != 0) {
+                return true;
+            }
+            if (InvocationDeadline.shouldYield()) {
+                yielded = true;
+                return false;
+            }
+            if (periodicSaves && checkpoints.isDue(checkpoint)) {
+                update(row.endByteOffset(), row.index() + 1);
+                checkpoints.save(checkpoint);
+                saved = true;
+            }
+            return true;
+        }
 
+        /** Records progress up to {@code bytes} and {@code rows} past where this invocation started. */
+        void update(long bytes, long rows) throws IOException {
+            counter.flushBatch();
+            setProgress(checkpoint, offset + bytes, rowsBefore + rows, fieldsBefore + counter.fields, counter.statistics());
+        }
+    }
+}
@@ -0,0 +1,453 @@
+package com.s3fileprocesslambdalayer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A block of CSV rows held column by column in primitive arrays: {@code int[]}, {@code long[]} or
+ * {@code double[]} values, or per-batch dictionary codes for strings, each column with a null bitmap. Empty
+ * fields and fields missing from short rows are null; a value that does not parse as its column's type is null
+ * too and counted as invalid. Fields beyond the schema's columns are ignored.
+ *
+ * <p>A batch has a fixed row capacity and also fills once its string dictionaries hold a set number of bytes,
+ * so its memory does not depend on the size of the object. Batches are reused: one passed to a {@link Sink}
+ * is only valid until {@code accept} returns.
+ */
+public final class ColumnBatch {
+
+    /** Receives each filled batch. */
+    @FunctionalInterface
+    public interface Sink {
+        void accept(ColumnBatch batch) throws IOException;
+
+        default Sink andThen(Sink next) {
+            return batch -> {
+                accept(batch);
+                next.accept(batch);
+            };
+        }
+    }
+
+    // Powers of ten a double holds exactly, for the decimal fast path
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+
+    private final CsvSchema schema;
+    private final int capacity;
+    private final int maxStringBytes;
+    private final Column[] columns;
+    private int rowCount;
+
+    ColumnBatch(CsvSchema schema, int capacity, int maxStringBytes) {
+        this.schema = schema;
+        this.capacity = capacity;
+        this.maxStringBytes = maxStringBytes;
+        this.columns = new Column[schema.columnCount()];
+        for (int i = 0; i < columns.length; i++) {
+            switch (schema.type(i)) {
+                case INT:
+                    columns[i] = new IntColumn(capacity);
+                    break;
+                case LONG:
+                    columns[i] = new LongColumn(capacity);
+                    break;
+                case DOUBLE:
+                    columns[i] = new DoubleColumn(capacity);
+                    break;
+                default:
+                    columns[i] = new StringColumn(capacity);
+                    break;
+            }
+        }
+    }
+
+    public CsvSchema schema() {
+        return schema;
+    }
+
+    public int rowCount() {
+        return rowCount;
+    }
+
+    public Column column(int i) {
+        return columns[i];
+    }
+
+    /** True when no further row fits: the row capacity is reached or the dictionaries are at their byte budget. */
+    boolean isFull() {
+        if (rowCount == capacity) {
+            return true;
+        }
+        int stringBytes = 0;
+        for (Column column : columns) {
+            if (column instanceof StringColumn) {
+                stringBytes += ((StringColumn) column).dictionaryBytes;
+            }
+        }
+        return stringBytes >= maxStringBytes;
+    }
+
+    void append(CsvRow row) {
+        int fields = Math.min(row.fieldCount(), columns.length);
+        for (int i = 0; i < fields; i++) {
+            if (row.length(i) == 0) {
+                columns[i].setNull(rowCount);
+            } else {
+                columns[i].set(rowCount, row, i);
+            }
+        }
+        for (int i = fields; i < columns.length; i++) {
+            columns[i].setNull(rowCount);
+        }
+        rowCount++;
+    }
+
+    void clear() {
+        for (Column column : columns) {
+            column.clear(rowCount);
+        }
+        rowCount = 0;
+    }
+
+    /** Values of one column, with a bit per row that is set for nulls. */
+    public abstract static class Column {
+        private final long[] nulls;
+        private int nullCount;
+        private int invalidCount;
+
+        Column(int capacity) {
+            this.nulls = new long[(capacity + 63) / 64];
+        }
+
+        public abstract CsvSchema.ColumnType type();
+
+        public boolean isNull(int row) {
+            return (nulls[row >>> 6] & (1L << row)) != 0;
+        }
+
+        /** The null bitmap, bit {@code row % 64} of word {@code row / 64}. */
+        public long[] nulls() {
+            return nulls;
+        }
+
+        public int nullCount() {
+            return nullCount;
+        }
+
+        /** Nulls that were values not parsing as the column's type, rather than empty fields. */
+        public int invalidCount() {
+            return invalidCount;
+        }
+
+        abstract void set(int row, CsvRow csv, int field);
+
+        void setNull(int row) {
+            nulls[row >>> 6] |= 1L << row;
+            nullCount++;
+        }
+
+        void setInvalid(int row) {
+            setNull(row);
+            invalidCount++;
+        }
+
+        void clear(int rows) {
+            Arrays.fill(nulls, 0, (rows + 63) >>> 6, 0L);
+            nullCount = 0;
+            invalidCount = 0;
+        }
+    }
+
+    public static final class IntColumn extends Column {
+        private final int[] values;
+
+        IntColumn(int capacity) {
+            super(capacity);
+            this.values = new int[capacity];
+        }
+
+        @Override
+        public CsvSchema.ColumnType type() {
+            return CsvSchema.ColumnType.INT;
+        }
+
+        /** Values by row; entries of null rows are meaningless. */
+        public int[] values() {
+            return values;
+        }
+
+        @Override
+        void set(int row, CsvRow csv, int field) {
+            ByteBuffer buffer = csv.buffer();
+            int offset = csv.offset(field);
+            int length = csv.length(field);
+            if (csv.hasEscapedQuotes(field) || !CsvSchema.isInteger(buffer, offset, length)) {
+                setInvalid(row);
+                return;
+            }
+            long value = CsvSchema.parseLong(buffer, offset, length);
+            if (value != (int) value) {
+                setInvalid(row);
+                return;
+            }
+            values[row] = (int) value;
+        }
+    }
+
+    public static final class LongColumn extends Column {
+        private final long[] values;
+
+        LongColumn(int capacity) {
+            super(capacity);
+            this.values = new long[capacity];
+        }
+
+        @Override
+        public CsvSchema.ColumnType type() {
+            return CsvSchema.ColumnType.LONG;
+        }
+
+        /** Values by row; entries of null rows are meaningless. */
+        public long[] values() {
+            return values;
+        }
+
+        @Override
+        void set(int row, CsvRow csv, int field) {
+            ByteBuffer buffer = csv.buffer();
+            int offset = csv.offset(field);
+            int length = csv.length(field);
+            if (csv.hasEscapedQuotes(field) || !CsvSchema.isInteger(buffer, offset, length)) {
+                setInvalid(row);
+                return;
+            }
+            long value = CsvSchema.parseLong(buffer, offset, length);
+            if (value == Long.MIN_VALUE && CsvSchema.narrowestType(csv, field) != CsvSchema.ColumnType.LONG) {
+                setInvalid(row); // out of range
+                return;
+            }
+            values[row] = value;
+        }
+    }
+
+    public static final class DoubleColumn extends Column {
+        private final double[] values;
+
+        DoubleColumn(int capacity) {
+            super(capacity);
+            this.values = new double[capacity];
+        }
+
+        @Override
+        public CsvSchema.ColumnType type() {
+            return CsvSchema.ColumnType.DOUBLE;
+        }
+
+        /** Values by row; entries of null rows are meaningless. */
+        public double[] values() {
+            return values;
+        }
+
+        @Override
+        void set(int row, CsvRow csv, int field) {
+            ByteBuffer buffer = csv.buffer();
+            int offset = csv.offset(field);
+            int length = csv.length(field);
+            if (csv.hasEscapedQuotes(field) || !CsvSchema.isDecimal(buffer, offset, length)) {
+                setInvalid(row);
+                return;
+            }
+            values[row] = parseDouble(buffer, offset, length);
+        }
+
+        /**
+         * Value of an {@link CsvSchema#isDecimal} field. Up to 15 significant digits and 22 decimals without an
+         * exponent, the common case, are computed exactly from the digits; anything else goes through
+         * {@link Double#parseDouble}.
+         */
+        static double parseDouble(ByteBuffer buffer, int offset, int length) {
+            int i = offset;
+            int end = offset + length;
+            boolean negative = buffer.get(i) == '-';
+            if (negative || buffer.get(i) == '+') {
+                i++;
+            }
+            long mantissa = 0;
+            int digits = 0;
+            int decimals = -1;
+            for (; i < end; i++) {
+                byte b = buffer.get(i);
+                if (b == '.') {
+                    decimals = 0;
+                    continue;
+                }
+                if (b < '0' || b > '9' || digits == 15) {
+                    break;
+                }
+                mantissa = mantissa * 10 + (b - '0');
+                if (mantissa != 0) {
+                    digits++;
+                }
+                if (decimals >= 0) {
+                    decimals++;
+                }
+            }
+            if (i == end && decimals < POWERS_OF_TEN.length) {
+                double value = decimals > 0 ? mantissa / POWERS_OF_TEN[decimals] : mantissa;
+                return negative ? -value : value;
+            }
+            byte[] ascii = new byte[length];
+            buffer.get(offset, ascii);
+            return Double.parseDouble(new String(ascii, StandardCharsets.US_ASCII));
+        }
+    }
+
+    /**
+     * Strings as codes into a dictionary of the distinct values in this batch. Entries are stored once, with
+     * escaped quotes collapsed, in one byte array, and each keeps its 64-bit hash.
+     */
+    public static final class StringColumn extends Column {
+        private final int[] codes;
+        private final int[] slots;
+        private int[] entryOffsets;
+        private int[] entryLengths;
+        private long[] entryHashes;
+        private byte[] dictionary = new byte[16 * 1024];
+        private int dictionaryBytes;
+        private int entries;
+        private byte[] scratch = new byte[256];
+        private ByteBuffer scratchView = ByteBuffer.wrap(scratch);
+
+        StringColumn(int capacity) {
+            super(capacity);
+            this.codes = new int[capacity];
+            this.slots = new int[Integer.highestOneBit(Math.max(2, capacity) * 2 - 1) << 1];
+            Arrays.fill(slots, -1);
+            int initial = Math.min(capacity, 1024);
+            this.entryOffsets = new int[initial];
+            this.entryLengths = new int[initial];
+            this.entryHashes = new long[initial];
+        }
+
+        @Override
+        public CsvSchema.ColumnType type() {
+            return CsvSchema.ColumnType.STRING;
+        }
+
+        /** Dictionary codes by row; entries of null rows are meaningless. */
+        public int[] codes() {
+            return codes;
+        }
+
+        /** Distinct values in the batch. */
+        public int dictionarySize() {
+            return entries;
+        }
+
+        /** The dictionary's bytes; entry {@code code} is at {@link #entryOffset} for {@link #entryLength} bytes. */
+        public byte[] dictionary() {
+            return dictionary;
+        }
+
+        public int entryOffset(int code) {
+            return entryOffsets[code];
+        }
+
+        public int entryLength(int code) {
+            return entryLengths[code];
+        }
+
+        long entryHash(int code) {
+            return entryHashes[code];
+        }
+
+        /** Decodes one entry. Allocates. */
+        public String entry(int code) {
+            return new String(dictionary, entryOffsets[code], entryLengths[code], StandardCharsets.UTF_8);
+        }
+
+        @Override
+        void set(int row, CsvRow csv, int field) {
+            ByteBuffer source = csv.buffer();
+            int offset = csv.offset(field);
+            int length = csv.length(field);
+            if (csv.hasEscapedQuotes(field)) {
+                length = collapseQuotes(source, offset, length);
+                source = scratchView;
+                offset = 0;
+            }
+            long hash = HyperLogLog.hash(source, offset, length);
+            int mask = slots.length - 1;
+            int slot = (int) hash & mask;
+            while (slots[slot] >= 0) {
+                int code = slots[slot];
+                if (entryHashes[code] == hash && sameBytes(code, source, offset, length)) {
+                    codes[row] = code;
+                    return;
+                }
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = entries;
+            codes[row] = addEntry(source, offset, length, hash);
+        }
+
+        private int addEntry(ByteBuffer source, int offset, int length, long hash) {
+            if (entries == entryOffsets.length) {
+                int grown = entries * 2;
+                entryOffsets = Arrays.copyOf(entryOffsets, grown);
+                entryLengths = Arrays.copyOf(entryLengths, grown);
+                entryHashes = Arrays.copyOf(entryHashes, grown);
+            }
+            if (dictionaryBytes + length > dictionary.length) {
+                dictionary = Arrays.copyOf(dictionary, Math.max(dictionary.length * 2, dictionaryBytes + length));
+            }
+            source.get(offset, dictionary, dictionaryBytes, length);
+            entryOffsets[entries] = dictionaryBytes;
+            entryLengths[entries] = length;
+            entryHashes[entries] = hash;
+            dictionaryBytes += length;
+            return entries++;
+        }
+
+        private boolean sameBytes(int code, ByteBuffer source, int offset, int length) {
+            if (entryLengths[code] != length) {
+                return false;
+            }
+            int start = entryOffsets[code];
+            for (int k = 0; k < length; k++) {
+                if (dictionary[start + k] != source.get(offset + k)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /** Copies the field into {@link #scratch} with each doubled quote made single; returns the new length. */
+        private int collapseQuotes(ByteBuffer buffer, int offset, int length) {
+            if (scratch.length < length) {
+                scratch = new byte[Math.max(length, scratch.length * 2)];
+                scratchView = ByteBuffer.wrap(scratch);
+            }
+            int n = 0;
+            for (int k = 0; k < length; k++) {
+                byte b = buffer.get(offset + k);
+                if (b == '"') {
+                    k++; // skip the second quote of the pair
+                }
+                scratch[n++] = b;
+            }
+            return n;
+        }
+
+        @Override
+        void clear(int rows) {
+            super.clear(rows);
+            Arrays.fill(slots, -1);
+            entries = 0;
+            dictionaryBytes = 0;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.s3fileprocesslambdalayer;
+
+import java.io.IOException;
+
+/**
+ * Converts tokenized rows into {@link ColumnBatch}es of a fixed schema and hands each full batch to a sink.
+ * Batches hold CSV_BATCH_ROWS rows (default 8192), or fewer once their string dictionaries reach
+ * CSV_BATCH_STRING_KB (default 4096). Call {@link #flush()} after the last row for the final partial batch.
+ */
+final class ColumnBatcher implements CsvTokenizer.RowHandler {
+    private final ColumnBatch batch;
+    private final boolean skipHeader;
+    private final ColumnBatch.Sink sink;
+    private long rows;
+
+    ColumnBatcher(CsvSchema schema, boolean skipHeader, ColumnBatch.Sink sink, int batchRows, int maxStringBytes) {
+        this.batch = new ColumnBatch(schema, batchRows, maxStringBytes);
+        this.skipHeader = skipHeader;
+        this.sink = sink;
+    }
+
+    /** Batcher for rows from the start of the object when {@code atStart}, so its header row is skipped. */
+    static ColumnBatcher fromEnvironment(CsvSchema schema, boolean atStart, ColumnBatch.Sink sink) {
+        return new ColumnBatcher(schema, atStart && schema.hasHeader(), sink,
+                Math.max(1, LayerConfig.getInt("CSV_BATCH_ROWS", 8192)),
+                LayerConfig.getInt("CSV_BATCH_STRING_KB", 4096) * 1024);
+    }
+
+    @Override
+    public boolean row(CsvRow row) throws IOException {
+        if (skipHeader && row.index() == 0) {
+            return true;
+        }
+        batch.append(row);
+        rows++;
+        if (batch.isFull()) {
+            flush();
+        }
+        return true;
+    }
+
+    /** Passes on the rows batched so far, if any. */
+    void flush() throws IOException {
+        if (batch.rowCount() > 0) {
+            sink.accept(batch);
+            batch.clear();
+        }
+    }
+
+    /** Data rows batched, header excluded. */
+    long rows() {
+        return rows;
+    }
+}
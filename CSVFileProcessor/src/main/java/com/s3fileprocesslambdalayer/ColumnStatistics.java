@@ -0,0 +1,355 @@
+package com.s3fileprocesslambdalayer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Per-column statistics gathered from {@link ColumnBatch}es as they are produced: value, null and invalid
+ * counts, minimum and maximum, and an approximate distinct count from a {@link HyperLogLog} of
+ * CSV_STATS_HLL_PRECISION (default 12) bits. Strings compare by their UTF-8 bytes, and each batch's dictionary
+ * is counted once per entry rather than once per row. Statistics of disjoint parts of an object merge.
+ *
+ * <p>The result is written as a compact JSON sidecar, {@code <key>.stats.json}, next to the source object.
+ */
+public final class ColumnStatistics implements ColumnBatch.Sink {
+    public static final String SIDECAR_SUFFIX = ".stats.json";
+
+    // String minimums and maximums are kept whole but written as prefixes of at most this many characters
+    private static final int MAX_STRING_CHARS = 64;
+    private static final int FORMAT_VERSION = 1;
+
+    private final CsvSchema schema;
+    private final ColumnStats[] columns;
+    private long rows;
+
+    public ColumnStatistics(CsvSchema schema, int precision) {
+        this.schema = schema;
+        this.columns = new ColumnStats[schema.columnCount()];
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = new ColumnStats(schema.type(i), precision);
+        }
+    }
+
+    public static ColumnStatistics fromEnvironment(CsvSchema schema) {
+        return new ColumnStatistics(schema, LayerConfig.getInt("CSV_STATS_HLL_PRECISION", 12));
+    }
+
+    /** Key of the statistics sidecar of {@code key}. */
+    public static String sidecarKey(String key) {
+        return key + SIDECAR_SUFFIX;
+    }
+
+    public static boolean isSidecarKey(String key) {
+        return key.endsWith(SIDECAR_SUFFIX);
+    }
+
+    public CsvSchema schema() {
+        return schema;
+    }
+
+    /** Data rows seen. */
+    public long rows() {
+        return rows;
+    }
+
+    @Override
+    public void accept(ColumnBatch batch) {
+        rows += batch.rowCount();
+        for (int i = 0; i < columns.length; i++) {
+            columns[i].add(batch.column(i), batch.rowCount());
+        }
+    }
+
+    /** Adds the statistics of another part of the same object, which must have the same schema. */
+    public void merge(ColumnStatistics other) {
+        if (other.columns.length != columns.length) {
+            throw new IllegalArgumentException("Cannot merge statistics of " + other.columns.length + " columns into " + columns.length);
+        }
+        rows += other.rows;
+        for (int i = 0; i < columns.length; i++) {
+            columns[i].merge(other.columns[i]);
+        }
+    }
+
+    /** The statistics as compact JSON, naming the source object and, when known, the ETag it was read at. */
+    public String toJson(String sourceKey, String eTag) {
+        StringBuilder json = new StringBuilder(256 + 160 * columns.length)
+                .append("{\"source\":").append(S3NotificationMessages.quote(sourceKey));
+        if (eTag != null) {
+            json.append(",\"eTag\":").append(S3NotificationMessages.quote(eTag));
+        }
+        json.append(",\"rows\":").append(rows).append(",\"columns\":[");
+        for (int i = 0; i < columns.length; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            ColumnStats column = columns[i];
+            json.append("{\"name\":").append(S3NotificationMessages.quote(schema.name(i)))
+                    .append(",\"type\":\"").append(column.type).append('"')
+                    .append(",\"count\":").append(rows - column.nulls)
+                    .append(",\"nulls\":").append(column.nulls)
+                    .append(",\"invalid\":").append(column.invalid)
+                    .append(",\"distinct\":").append(column.hasValue ? column.distinct.estimate() : 0);
+            if (column.hasValue) {
+                json.append(",\"min\":");
+                column.appendBound(json, true);
+                json.append(",\"max\":");
+                column.appendBound(json, false);
+            }
+            json.append('}');
+        }
+        return json.append("]}").toString();
+    }
+
+    /** The statistics as a compact string, e.g. for a {@link Checkpoint} value; {@link #restore} reads it back. */
+    public String encode() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes))) {
+            out.writeByte(FORMAT_VERSION);
+            out.writeLong(rows);
+            out.writeInt(columns.length);
+            for (ColumnStats column : columns) {
+                column.writeTo(out);
+            }
+        }
+        return Base64.getEncoder().encodeToString(bytes.toByteArray());
+    }
+
+    /** Replaces these statistics with ones {@link #encode}d for the same schema. */
+    public void restore(String encoded) throws IOException {
+        byte[] bytes = Base64.getDecoder().decode(encoded);
+        try (DataInputStream in = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(bytes)))) {
+            int version = in.readUnsignedByte();
+            if (version != FORMAT_VERSION) {
+                throw new IOException("Unsupported column statistics format " + version);
+            }
+            rows = in.readLong();
+            if (in.readInt() != columns.length) {
+                throw new IOException("Saved column statistics do not match the schema " + schema);
+            }
+            for (ColumnStats column : columns) {
+                column.readFrom(in);
+            }
+        }
+    }
+
+    /** Statistics of one column; which bounds are used depends on its type. */
+    private static final class ColumnStats {
+        private final CsvSchema.ColumnType type;
+        private final HyperLogLog distinct;
+        private long nulls;
+        private long invalid;
+        private boolean hasValue;
+        private long minLong;
+        private long maxLong;
+        private double minDouble;
+        private double maxDouble;
+        private byte[] minBytes;
+        private byte[] maxBytes;
+
+        ColumnStats(CsvSchema.ColumnType type, int precision) {
+            this.type = type;
+            this.distinct = new HyperLogLog(precision);
+        }
+
+        void add(ColumnBatch.Column column, int rowCount) {
+            nulls += column.nullCount();
+            invalid += column.invalidCount();
+            if (column.nullCount() == rowCount) {
+                return;
+            }
+            switch (type) {
+                case INT:
+                    addInts((ColumnBatch.IntColumn) column, rowCount);
+                    break;
+                case LONG:
+                    addLongs((ColumnBatch.LongColumn) column, rowCount);
+                    break;
+                case DOUBLE:
+                    addDoubles((ColumnBatch.DoubleColumn) column, rowCount);
+                    break;
+                default:
+                    addStrings((ColumnBatch.StringColumn) column);
+                    break;
+            }
+        }
+
+        private void addInts(ColumnBatch.IntColumn column, int rowCount) {
+            int[] values = column.values();
+            long min = hasValue ? minLong : Long.MAX_VALUE;
+            long max = hasValue ? maxLong : Long.MIN_VALUE;
+            for (int row = 0; row < rowCount; row++) {
+                if (!column.isNull(row)) {
+                    int value = values[row];
+                    min = Math.min(min, value);
+                    max = Math.max(max, value);
+                    distinct.addHash(HyperLogLog.hash(value));
+                }
+            }
+            setLongBounds(min, max);
+        }
+
+        private void addLongs(ColumnBatch.LongColumn column, int rowCount) {
+            long[] values = column.values();
+            long min = hasValue ? minLong : Long.MAX_VALUE;
+            long max = hasValue ? maxLong : Long.MIN_VALUE;
+            for (int row = 0; row < rowCount; row++) {
+                if (!column.isNull(row)) {
+                    long value = values[row];
+                    min = Math.min(min, value);
+                    max = Math.max(max, value);
+                    distinct.addHash(HyperLogLog.hash(value));
+                }
+            }
+            setLongBounds(min, max);
+        }
+
+        private void addDoubles(ColumnBatch.DoubleColumn column, int rowCount) {
+            double[] values = column.values();
+            double min = hasValue ? minDouble : Double.POSITIVE_INFINITY;
+            double max = hasValue ? maxDouble : Double.NEGATIVE_INFINITY;
+            for (int row = 0; row < rowCount; row++) {
+                if (!column.isNull(row)) {
+                    double value = values[row];
+                    min = Math.min(min, value);
+                    max = Math.max(max, value);
+                    // 0.0 and -0.0 are the same value
+                    distinct.addHash(HyperLogLog.hash(value == 0 ? 0L : Double.doubleToLongBits(value)));
+                }
+            }
+            minDouble = min;
+            maxDouble = max;
+            hasValue = true;
+        }
+
+        private void addStrings(ColumnBatch.StringColumn column) {
+            byte[] dictionary = column.dictionary();
+            for (int code = 0; code < column.dictionarySize(); code++) {
+                distinct.addHash(column.entryHash(code));
+                int offset = column.entryOffset(code);
+                int length = column.entryLength(code);
+                if (minBytes == null || compare(dictionary, offset, length, minBytes) < 0) {
+                    minBytes = Arrays.copyOfRange(dictionary, offset, offset + length);
+                }
+                if (maxBytes == null || compare(dictionary, offset, length, maxBytes) > 0) {
+                    maxBytes = Arrays.copyOfRange(dictionary, offset, offset + length);
+                }
+            }
+            hasValue = true;
+        }
+
+        private void setLongBounds(long min, long max) {
+            minLong = min;
+            maxLong = max;
+            hasValue = true;
+        }
+
+        void merge(ColumnStats other) {
+            nulls += other.nulls;
+            invalid += other.invalid;
+            distinct.merge(other.distinct);
+            if (!other.hasValue) {
+                return;
+            }
+            if (!hasValue) {
+                minLong = other.minLong;
+                maxLong = other.maxLong;
+                minDouble = other.minDouble;
+                maxDouble = other.maxDouble;
+                minBytes = other.minBytes;
+                maxBytes = other.maxBytes;
+                hasValue = true;
+                return;
+            }
+            minLong = Math.min(minLong, other.minLong);
+            maxLong = Math.max(maxLong, other.maxLong);
+            minDouble = Math.min(minDouble, other.minDouble);
+            maxDouble = Math.max(maxDouble, other.maxDouble);
+            if (other.minBytes != null && (minBytes == null || Arrays.compareUnsigned(other.minBytes, minBytes) < 0)) {
+                minBytes = other.minBytes;
+            }
+            if (other.maxBytes != null && (maxBytes == null || Arrays.compareUnsigned(other.maxBytes, maxBytes) > 0)) {
+                maxBytes = other.maxBytes;
+            }
+        }
+
+        void appendBound(StringBuilder json, boolean min) {
+            switch (type) {
+                case INT:
+                case LONG:
+                    json.append(min ? minLong : maxLong);
+                    break;
+                case DOUBLE:
+                    double value = min ? minDouble : maxDouble;
+                    // JSON has no infinities; decimals as large as 1e400 parse to one
+                    json.append(Double.isFinite(value) ? Double.toString(value) : "null");
+                    break;
+                default:
+                    String text = new String(min ? minBytes : maxBytes, StandardCharsets.UTF_8);
+                    if (text.codePointCount(0, text.length()) > MAX_STRING_CHARS) {
+                        text = text.substring(0, text.offsetByCodePoints(0, MAX_STRING_CHARS));
+                    }
+                    json.append(S3NotificationMessages.quote(text));
+                    break;
+            }
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            out.writeLong(nulls);
+            out.writeLong(invalid);
+            out.writeBoolean(hasValue);
+            out.writeLong(minLong);
+            out.writeLong(maxLong);
+            out.writeDouble(minDouble);
+            out.writeDouble(maxDouble);
+            writeBytes(out, minBytes);
+            writeBytes(out, maxBytes);
+            out.writeInt(distinct.registers().length);
+            out.write(distinct.registers());
+        }
+
+        void readFrom(DataInputStream in) throws IOException {
+            nulls = in.readLong();
+            invalid = in.readLong();
+            hasValue = in.readBoolean();
+            minLong = in.readLong();
+            maxLong = in.readLong();
+            minDouble = in.readDouble();
+            maxDouble = in.readDouble();
+            minBytes = readBytes(in);
+            maxBytes = readBytes(in);
+            byte[] registers = new byte[in.readInt()];
+            in.readFully(registers);
+            distinct.restore(registers);
+        }
+
+        private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+            out.writeInt(bytes == null ? -1 : bytes.length);
+            if (bytes != null) {
+                out.write(bytes);
+            }
+        }
+
+        private static byte[] readBytes(DataInputStream in) throws IOException {
+            int length = in.readInt();
+            if (length < 0) {
+                return null;
+            }
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            return bytes;
+        }
+
+        private static int compare(byte[] a, int offset, int length, byte[] b) {
+            return Arrays.compareUnsigned(a, offset, offset + length, b, 0, b.length);
+        }
+    }
+}
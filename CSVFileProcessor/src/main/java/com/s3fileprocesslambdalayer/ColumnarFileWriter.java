@@ -0,0 +1,602 @@
+package com.s3fileprocesslambdalayer;
+
+import io.airlift.compress.zstd.ZstdOutputStream;
+import software.amazon.awssdk.services.s3.S3Client;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Locale;
+import java.util.logging.Logger;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Writes {@link ColumnBatch}es to a stream as a COLF columnar file (see {@code docs/columnar-format.md}).
+ * Each batch becomes one page per column, encoded on its own: fixed-width or delta varints for integers,
+ * plain or dictionary for strings, whichever is smaller for that page. Pages collect in per-column chunks
+ * until their encoded size reaches the row group budget; the row group is then written, each chunk compressed
+ * with the configured codec unless that does not make it smaller. Only one row group is ever held in memory.
+ * The footer that locates the row groups is written by {@link #close()}.
+ *
+ * <p>Bytes written count as {@link InvocationMetrics.Counter#COLUMNAR_BYTES}, and the time spent encoding,
+ * compressing and writing as {@link InvocationMetrics.Stage#COLUMNAR_WRITE}. Not thread-safe.
+ */
+public final class ColumnarFileWriter implements ColumnBatch.Sink, Closeable {
+    private static final Logger logger = Logger.getLogger(ColumnarFileWriter.class.getName());
+
+    /** Suffix of columnar files, after the source key. */
+    public static final String SUFFIX = ".colf";
+    static final String CONTENT_TYPE = "application/octet-stream";
+    static final byte[] MAGIC = {'C', 'O', 'L', 'F'};
+    static final int VERSION = 1;
+
+    /** Chunk compression; the ordinal is the code stored in the file. */
+    public enum Codec { NONE, DEFLATE, ZSTD }
+
+    /** Page encodings; the ordinal is the code stored in the file. */
+    enum Encoding { PLAIN, DELTA, DICTIONARY }
+
+    private final CsvSchema schema;
+    private final OutputStream out;
+    private final Codec codec;
+    private final long rowGroupBytes;
+    private final Path spillFile;
+    private final Chunk[] chunks;
+    private final List<RowGroup> rowGroups = new ArrayList<>();
+    private final Buffer compressed = new Buffer(64 * 1024);
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private long position;
+    private long rows;
+    private int bufferedRows;
+    private long busyNanos;
+    private boolean closed;
+
+    private ColumnarFileWriter(CsvSchema schema, OutputStream out, Codec codec, long rowGroupBytes, Path spillFile) {
+        this.schema = schema;
+        this.out = out;
+        this.codec = codec;
+        this.rowGroupBytes = Math.max(1, rowGroupBytes);
+        this.spillFile = spillFile;
+        this.chunks = new Chunk[schema.columnCount()];
+        for (int i = 0; i < chunks.length; i++) {
+            chunks[i] = new Chunk();
+        }
+    }
+
+    /** Starts a file on {@code out}. */
+    public static ColumnarFileWriter create(CsvSchema schema, OutputStream out, Codec codec, long rowGroupBytes) throws IOException {
+        ColumnarFileWriter writer = new ColumnarFileWriter(schema, out, codec, rowGroupBytes, null);
+        writer.write(MAGIC, 0, MAGIC.length);
+        writer.write(new byte[] {VERSION}, 0, 1);
+        return writer;
+    }
+
+    /** A file with CSV_COLUMNAR_CODEC (zstd, deflate or none; default zstd) and CSV_COLUMNAR_ROW_GROUP_MB (default 64) row groups. */
+    public static ColumnarFileWriter fromEnvironment(CsvSchema schema, OutputStream out) throws IOException {
+        return create(schema, out, codecFromEnvironment(), rowGroupBytesFromEnvironment());
+    }
+
+    static Codec codecFromEnvironment() {
+        return Codec.valueOf(LayerConfig.get("CSV_COLUMNAR_CODEC", "zstd").toUpperCase(Locale.ROOT));
+    }
+
+    static long rowGroupBytesFromEnvironment() {
+        return LayerConfig.getLong("CSV_COLUMNAR_ROW_GROUP_MB", 64) * 1024 * 1024;
+    }
+
+    /**
+     * Row groups of one part of the input, such as a shard parsed in parallel with others, written to a local
+     * file without header or footer. {@link #appendSpill} later moves them into the file in input order.
+     */
+    static ColumnarFileWriter spill(CsvSchema schema, Path file, Codec codec, long rowGroupBytes) throws IOException {
+        return new ColumnarFileWriter(schema, new BufferedOutputStream(Files.newOutputStream(file), 64 * 1024), codec, rowGroupBytes, file);
+    }
+
+    /**
+     * Carries on with a file suspended under {@code name} in {@code checkpoint} by {@link #suspend}, or starts
+     * a new one with the environment's settings if there is none.
+     */
+    static ColumnarFileWriter resume(CsvSchema schema, S3Client s3, CheckpointStore checkpoints, Checkpoint checkpoint,
+                                     String name, String bucketName, String key) throws IOException {
+        S3MultipartOutputStream out = S3MultipartOutputStream.resume(s3, checkpoints, checkpoint, name, bucketName, key, CONTENT_TYPE);
+        String state = checkpoint.get(name + ".writer");
+        if (state == null) {
+            return fromEnvironment(schema, out);
+        }
+        try (DataInputStream in = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(Base64.getDecoder().decode(state))))) {
+            ColumnarFileWriter writer = new ColumnarFileWriter(schema, out, Codec.values()[in.readUnsignedByte()], in.readLong(), null);
+            writer.position = in.readLong();
+            writer.rows = in.readLong();
+            int groups = in.readInt();
+            for (int g = 0; g < groups; g++) {
+                writer.rowGroups.add(RowGroup.readFrom(in, writer.chunks.length));
+            }
+            return writer;
+        } catch (IOException | RuntimeException e) {
+            out.abort();
+            throw e;
+        }
+    }
+
+    /** Rows written or buffered so far. */
+    public long rows() {
+        return rows;
+    }
+
+    /** Bytes of the file written so far, footer included once closed. */
+    public long bytesWritten() {
+        return position;
+    }
+
+    public int rowGroupCount() {
+        return rowGroups.size();
+    }
+
+    /** Nanoseconds spent encoding, compressing and writing, including appended spills. */
+    public long writeNanos() {
+        return busyNanos;
+    }
+
+    @Override
+    public void accept(ColumnBatch batch) throws IOException {
+        long start = System.nanoTime();
+        int rowCount = batch.rowCount();
+        long buffered = 0;
+        for (int i = 0; i < chunks.length; i++) {
+            chunks[i].addPage(batch.column(i), rowCount);
+            buffered += chunks[i].data.size;
+        }
+        bufferedRows += rowCount;
+        rows += rowCount;
+        busyNanos += System.nanoTime() - start;
+        if (buffered >= rowGroupBytes) {
+            flushRowGroup();
+        }
+    }
+
+    /** Writes the buffered pages as a row group, e.g. before the output is suspended. */
+    public void flushRowGroup() throws IOException {
+        if (bufferedRows == 0) {
+            return;
+        }
+        long start = System.nanoTime();
+        RowGroup group = new RowGroup(bufferedRows, chunks.length);
+        for (int i = 0; i < chunks.length; i++) {
+            Chunk chunk = chunks[i];
+            Codec used = compress(chunk.data) ? codec : Codec.NONE;
+            Buffer stored = used == Codec.NONE ? chunk.data : compressed;
+            group.offsets[i] = position;
+            group.lengths[i] = stored.size;
+            group.rawLengths[i] = chunk.data.size;
+            group.codecs[i] = (byte) used.ordinal();
+            group.nulls[i] = chunk.nulls;
+            write(stored.bytes, 0, stored.size);
+            chunk.reset();
+        }
+        rowGroups.add(group);
+        bufferedRows = 0;
+        busyNanos += System.nanoTime() - start;
+    }
+
+    /**
+     * Stops writing without finishing the file, so a later invocation can carry on with {@link #resume}: writes
+     * the buffered rows as a row group, records the row groups so far in {@code checkpoint} under {@code name}
+     * and suspends the upload there too. The caller saves the checkpoint.
+     */
+    void suspend(CheckpointStore checkpoints, Checkpoint checkpoint, String name) throws IOException {
+        flushRowGroup();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream state = new DataOutputStream(new DeflaterOutputStream(bytes))) {
+            state.writeByte(codec.ordinal());
+            state.writeLong(rowGroupBytes);
+            state.writeLong(position);
+            state.writeLong(rows);
+            state.writeInt(rowGroups.size());
+            for (RowGroup group : rowGroups) {
+                group.writeTo(state);
+            }
+        }
+        checkpoint.set(name + ".writer", Base64.getEncoder().encodeToString(bytes.toByteArray()));
+        closed = true;
+        deflater.end();
+        recordMetrics();
+        ((S3MultipartOutputStream) out).suspend(checkpoints, checkpoint, name);
+    }
+
+    /**
+     * Moves the row groups of a {@link #spill} writer, whose rows follow the ones written so far, to the end of
+     * this file and deletes the spill file.
+     */
+    void appendSpill(ColumnarFileWriter spill) throws IOException {
+        spill.flushRowGroup();
+        spill.closed = true;
+        spill.out.close();
+        spill.deflater.end();
+        flushRowGroup();
+        long start = System.nanoTime();
+        long base = position;
+        try (java.io.InputStream in = Files.newInputStream(spill.spillFile)) {
+            byte[] copy = compressed.bytes;
+            int n;
+            while ((n = in.read(copy, 0, copy.length)) != -1) {
+                write(copy, 0, n);
+            }
+        } finally {
+            Files.deleteIfExists(spill.spillFile);
+        }
+        for (RowGroup group : spill.rowGroups) {
+            for (int i = 0; i < group.offsets.length; i++) {
+                group.offsets[i] += base;
+            }
+            rowGroups.add(group);
+        }
+        rows += spill.rows;
+        busyNanos += spill.busyNanos + System.nanoTime() - start;
+    }
+
+    /**
+     * Abandons the file: an upload is aborted, a {@link #spill} file deleted, e.g. after a failure or for a
+     * shard that was parsed again. Does nothing once the file is closed or suspended.
+     */
+    void abort() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        deflater.end();
+        if (out instanceof S3MultipartOutputStream) {
+            ((S3MultipartOutputStream) out).abort();
+            return;
+        }
+        try {
+            out.close();
+            if (spillFile != null) {
+                Files.deleteIfExists(spillFile);
+            }
+        } catch (IOException e) {
+            logger.warning("Could not remove columnar spill file " + spillFile + ": " + e.getMessage());
+        }
+    }
+
+    /** Writes the last row group and the footer, then closes the output, which completes an S3 upload. */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        flushRowGroup();
+        long start = System.nanoTime();
+        Buffer footer = new Buffer(1024 + rowGroups.size() * chunks.length * 16);
+        footer.writeVarLong(chunks.length);
+        for (int i = 0; i < chunks.length; i++) {
+            byte[] name = schema.name(i).getBytes(StandardCharsets.UTF_8);
+            footer.writeVarLong(name.length);
+            footer.write(name, 0, name.length);
+            footer.write(schema.type(i).ordinal());
+        }
+        footer.writeVarLong(rows);
+        footer.writeVarLong(rowGroups.size());
+        for (RowGroup group : rowGroups) {
+            group.writeTo(footer);
+        }
+        write(footer.bytes, 0, footer.size);
+        Buffer trailer = new Buffer(8);
+        trailer.writeIntLE(footer.size);
+        trailer.write(MAGIC, 0, MAGIC.length);
+        write(trailer.bytes, 0, trailer.size);
+        closed = true;
+        deflater.end();
+        busyNanos += System.nanoTime() - start;
+        recordMetrics();
+        out.close();
+    }
+
+    private void recordMetrics() {
+        InvocationMetrics.recordDuration(InvocationMetrics.Stage.COLUMNAR_WRITE, busyNanos);
+    }
+
+    private void write(byte[] bytes, int offset, int length) throws IOException {
+        out.write(bytes, offset, length);
+        position += length;
+        if (spillFile == null) {
+            InvocationMetrics.add(InvocationMetrics.Counter.COLUMNAR_BYTES, length);
+        }
+    }
+
+    /** Compresses {@code raw} into {@link #compressed}; false when that is not smaller, or there is no codec. */
+    private boolean compress(Buffer raw) throws IOException {
+        if (codec == Codec.NONE || raw.size == 0) {
+            return false;
+        }
+        compressed.reset();
+        if (codec == Codec.ZSTD) {
+            try (ZstdOutputStream zstd = new ZstdOutputStream(compressed)) {
+                zstd.write(raw.bytes, 0, raw.size);
+            }
+        } else {
+            deflater.reset();
+            deflater.setInput(raw.bytes, 0, raw.size);
+            deflater.finish();
+            while (!deflater.finished()) {
+                compressed.ensure(64 * 1024);
+                compressed.size += deflater.deflate(compressed.bytes, compressed.size, compressed.bytes.length - compressed.size);
+            }
+        }
+        return compressed.size < raw.size;
+    }
+
+    /** Locations and sizes of one row group's column chunks. */
+    private static final class RowGroup {
+        private final long rowCount;
+        private final long[] offsets;
+        private final long[] lengths;
+        private final long[] rawLengths;
+        private final byte[] codecs;
+        private final long[] nulls;
+
+        RowGroup(long rowCount, int columns) {
+            this.rowCount = rowCount;
+            this.offsets = new long[columns];
+            this.lengths = new long[columns];
+            this.rawLengths = new long[columns];
+            this.codecs = new byte[columns];
+            this.nulls = new long[columns];
+        }
+
+        void writeTo(Buffer footer) {
+            footer.writeVarLong(rowCount);
+            for (int i = 0; i < offsets.length; i++) {
+                footer.writeVarLong(offsets[i]);
+                footer.writeVarLong(lengths[i]);
+                footer.writeVarLong(rawLengths[i]);
+                footer.write(codecs[i]);
+                footer.writeVarLong(nulls[i]);
+            }
+        }
+
+        void writeTo(DataOutputStream state) throws IOException {
+            state.writeLong(rowCount);
+            for (int i = 0; i < offsets.length; i++) {
+                state.writeLong(offsets[i]);
+                state.writeLong(lengths[i]);
+                state.writeLong(rawLengths[i]);
+                state.writeByte(codecs[i]);
+                state.writeLong(nulls[i]);
+            }
+        }
+
+        static RowGroup readFrom(DataInputStream state, int columns) throws IOException {
+            RowGroup group = new RowGroup(state.readLong(), columns);
+            for (int i = 0; i < columns; i++) {
+                group.offsets[i] = state.readLong();
+                group.lengths[i] = state.readLong();
+                group.rawLengths[i] = state.readLong();
+                group.codecs[i] = state.readByte();
+                group.nulls[i] = state.readLong();
+            }
+            return group;
+        }
+    }
+
+    /** The pages of one column in the current row group. */
+    private static final class Chunk {
+        private final Buffer data = new Buffer(64 * 1024);
+        private long nulls;
+
+        void addPage(ColumnBatch.Column column, int rowCount) {
+            int values = rowCount - column.nullCount();
+            nulls += column.nullCount();
+            switch (column.type()) {
+                case INT:
+                case LONG:
+                    addIntegerPage(column, rowCount, values);
+                    break;
+                case DOUBLE:
+                    double[] doubles = ((ColumnBatch.DoubleColumn) column).values();
+                    pageHeader(column, rowCount, Encoding.PLAIN, 8L * values);
+                    for (int row = 0; row < rowCount; row++) {
+                        if (!column.isNull(row)) {
+                            data.writeLongLE(Double.doubleToRawLongBits(doubles[row]));
+                        }
+                    }
+                    break;
+                default:
+                    addStringPage((ColumnBatch.StringColumn) column, rowCount, values);
+                    break;
+            }
+        }
+
+        /** Fixed width, or zigzag varint deltas from the previous value when those are smaller, as for sorted keys. */
+        private void addIntegerPage(ColumnBatch.Column column, int rowCount, int values) {
+            boolean ints = column.type() == CsvSchema.ColumnType.INT;
+            int[] intValues = ints ? ((ColumnBatch.IntColumn) column).values() : null;
+            long[] longValues = ints ? null : ((ColumnBatch.LongColumn) column).values();
+            long deltaBytes = 0;
+            long previous = 0;
+            for (int row = 0; row < rowCount; row++) {
+                if (!column.isNull(row)) {
+                    long value = ints ? intValues[row] : longValues[row];
+                    deltaBytes += varLongSize(zigzag(value - previous));
+                    previous = value;
+                }
+            }
+            long plainBytes = (ints ? 4L : 8L) * values;
+            boolean delta = deltaBytes < plainBytes;
+            pageHeader(column, rowCount, delta ? Encoding.DELTA : Encoding.PLAIN, delta ? deltaBytes : plainBytes);
+            previous = 0;
+            for (int row = 0; row < rowCount; row++) {
+                if (column.isNull(row)) {
+                    continue;
+                }
+                long value = ints ? intValues[row] : longValues[row];
+                if (delta) {
+                    data.writeVarLong(zigzag(value - previous));
+                    previous = value;
+                } else if (ints) {
+                    data.writeIntLE((int) value);
+                } else {
+                    data.writeLongLE(value);
+                }
+            }
+        }
+
+        /** The batch's dictionary and bit-packed codes, or length-prefixed values when that is smaller. */
+        private void addStringPage(ColumnBatch.StringColumn column, int rowCount, int values) {
+            int[] codes = column.codes();
+            int entries = column.dictionarySize();
+            int bitWidth = entries <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(entries - 1);
+            long plainBytes = 0;
+            for (int row = 0; row < rowCount; row++) {
+                if (!column.isNull(row)) {
+                    int length = column.entryLength(codes[row]);
+                    plainBytes += varLongSize(length) + length;
+                }
+            }
+            long dictionaryBytes = varLongSize(entries) + 1 + ((long) values * bitWidth + 7) / 8;
+            for (int code = 0; code < entries; code++) {
+                dictionaryBytes += varLongSize(column.entryLength(code)) + column.entryLength(code);
+            }
+            byte[] dictionary = column.dictionary();
+            if (plainBytes <= dictionaryBytes) {
+                pageHeader(column, rowCount, Encoding.PLAIN, plainBytes);
+                for (int row = 0; row < rowCount; row++) {
+                    if (!column.isNull(row)) {
+                        writeEntry(column, dictionary, codes[row]);
+                    }
+                }
+                return;
+            }
+            pageHeader(column, rowCount, Encoding.DICTIONARY, dictionaryBytes);
+            data.writeVarLong(entries);
+            for (int code = 0; code < entries; code++) {
+                writeEntry(column, dictionary, code);
+            }
+            data.write(bitWidth);
+            long bits = 0;
+            int pending = 0;
+            for (int row = 0; row < rowCount; row++) {
+                if (column.isNull(row)) {
+                    continue;
+                }
+                bits |= (long) codes[row] << pending;
+                pending += bitWidth;
+                while (pending >= 8) {
+                    data.write((int) bits);
+                    bits >>>= 8;
+                    pending -= 8;
+                }
+            }
+            if (pending > 0) {
+                data.write((int) bits);
+            }
+        }
+
+        private void writeEntry(ColumnBatch.StringColumn column, byte[] dictionary, int code) {
+            int length = column.entryLength(code);
+            data.writeVarLong(length);
+            data.write(dictionary, column.entryOffset(code), length);
+        }
+
+        /** Row count, encoding, the null bitmap when there are nulls, and the length of the values that follow. */
+        private void pageHeader(ColumnBatch.Column column, int rowCount, Encoding encoding, long valueBytes) {
+            data.writeVarLong(rowCount);
+            data.write(encoding.ordinal());
+            boolean hasNulls = column.nullCount() > 0;
+            data.write(hasNulls ? 1 : 0);
+            if (hasNulls) {
+                long[] nulls = column.nulls();
+                int bytes = (rowCount + 7) / 8;
+                for (int i = 0; i < bytes; i++) {
+                    int bits = (int) (nulls[i >>> 3] >>> ((i & 7) * 8)) & 0xFF;
+                    int valid = rowCount - i * 8;
+                    data.write(valid >= 8 ? bits : bits & ((1 << valid) - 1));
+                }
+            }
+            data.writeVarLong(valueBytes);
+        }
+
+        void reset() {
+            data.reset();
+            nulls = 0;
+        }
+
+        private static long zigzag(long value) {
+            return (value << 1) ^ (value >> 63);
+        }
+
+        private static int varLongSize(long value) {
+            return value == 0 ? 1 : (63 - Long.numberOfLeadingZeros(value)) / 7 + 1;
+        }
+    }
+
+    /** Growable byte array with the little-endian and varint writes of the format. */
+    static final class Buffer extends OutputStream {
+        private byte[] bytes;
+        private int size;
+
+        Buffer(int initialCapacity) {
+            this.bytes = new byte[Math.max(16, initialCapacity)];
+        }
+
+        void ensure(int extra) {
+            if (size + extra > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + extra));
+            }
+        }
+
+        @Override
+        public void write(int b) {
+            ensure(1);
+            bytes[size++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] source, int offset, int length) {
+            ensure(length);
+            System.arraycopy(source, offset, bytes, size, length);
+            size += length;
+        }
+
+        /** Unsigned LEB128: seven bits per byte, low bits first, high bit set on all but the last byte. */
+        void writeVarLong(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                bytes[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            bytes[size++] = (byte) value;
+        }
+
+        void writeIntLE(int value) {
+            ensure(4);
+            for (int i = 0; i < 4; i++) {
+                bytes[size++] = (byte) (value >>> (8 * i));
+            }
+        }
+
+        void writeLongLE(long value) {
+            ensure(8);
+            for (int i = 0; i < 8; i++) {
+                bytes[size++] = (byte) (value >>> (8 * i));
+            }
+        }
+
+        void reset() {
+            size = 0;
+        }
+    }
+}
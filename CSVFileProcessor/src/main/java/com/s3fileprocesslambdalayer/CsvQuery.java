@@ -0,0 +1,436 @@
+package com.s3fileprocesslambdalayer;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The columns and rows of a CSV that its consumers need: a column list and comparison predicates, all of
+ * which a row must pass. Queries are configured per key prefix in CSV_QUERIES, as {@code prefix=query}
+ * entries separated by semicolons; the longest matching prefix applies, and an empty prefix matches every key:
+ *
+ * <pre>
+ * CSV_QUERIES=sales/=region,amount WHERE amount &gt;= 100 AND region != 'TEST'; logs/=* WHERE status = 500
+ * </pre>
+ *
+ * Columns are named as in the header, or {@code c0}, {@code c1}, ... without one (CSV_HEADER=false).
+ * Operators are {@code = != < <= > >=}. A number literal compares numerically and matches only fields that
+ * are numbers; a quoted literal ({@code ''} for a quote) compares UTF-8 bytes. Empty fields match nothing.
+ */
+public final class CsvQuery {
+
+    public enum Operator {
+        EQ("=", "="), NE("!=", "<>"), LT("<", "<"), LE("<=", "<="), GT(">", ">"), GE(">=", ">=");
+
+        private final String symbol;
+        private final String sql;
+
+        Operator(String symbol, String sql) {
+            this.symbol = symbol;
+            this.sql = sql;
+        }
+
+        boolean test(int comparison) {
+            switch (this) {
+                case EQ:
+                    return comparison == 0;
+                case NE:
+                    return comparison != 0;
+                case LT:
+                    return comparison < 0;
+                case LE:
+                    return comparison <= 0;
+                case GT:
+                    return comparison > 0;
+                default:
+                    return comparison >= 0;
+            }
+        }
+    }
+
+    /** One comparison of a column with a literal. */
+    public static final class Predicate {
+        private final String column;
+        private final Operator operator;
+        private final String literal;
+        private final boolean numeric;
+
+        Predicate(String column, Operator operator, String literal, boolean numeric) {
+            this.column = column;
+            this.operator = operator;
+            this.literal = literal;
+            this.numeric = numeric;
+        }
+
+        @Override
+        public String toString() {
+            return column + " " + operator.symbol + " " + (numeric ? literal : "'" + literal.replace("'", "''") + "'");
+        }
+    }
+
+    // CSV_QUERIES as last parsed: the text, and the query of each prefix
+    private static volatile String parsedConfig;
+    private static volatile Map<String, CsvQuery> queriesByPrefix = Map.of();
+
+    private final List<String> columns;
+    private final List<Predicate> predicates;
+
+    private CsvQuery(List<String> columns, List<Predicate> predicates) {
+        this.columns = List.copyOf(columns);
+        this.predicates = List.copyOf(predicates);
+    }
+
+    /** The query for {@code key} from CSV_QUERIES, or null when no prefix matches. */
+    public static CsvQuery forKey(String key) {
+        String config = LayerConfig.get("CSV_QUERIES", "");
+        if (!config.equals(parsedConfig)) {
+            Map<String, CsvQuery> queries = new LinkedHashMap<>();
+            for (String entry : splitOutsideQuotes(config, ';')) {
+                int separator = entry.indexOf('=');
+                if (separator < 0) {
+                    throw new IllegalArgumentException("CSV_QUERIES entry without prefix=query: " + entry.trim());
+                }
+                queries.put(entry.substring(0, separator).trim(), parse(entry.substring(separator + 1)));
+            }
+            queriesByPrefix = queries;
+            parsedConfig = config;
+        }
+        String best = null;
+        for (String prefix : queriesByPrefix.keySet()) {
+            if (key.startsWith(prefix) && (best == null || prefix.length() > best.length())) {
+                best = prefix;
+            }
+        }
+        return best != null ? queriesByPrefix.get(best) : null;
+    }
+
+    /** Parses {@code columns [WHERE column op literal [AND ...]]}, where columns is {@code *} or a comma-separated list. */
+    public static CsvQuery parse(String text) {
+        List<String> tokens = tokenize(text);
+        int where = -1;
+        for (int i = 0; i < tokens.size(); i++) {
+            if ("WHERE".equalsIgnoreCase(tokens.get(i))) {
+                where = i;
+                break;
+            }
+        }
+        List<String> columns = new ArrayList<>();
+        List<String> projection = tokens.subList(0, where < 0 ? tokens.size() : where);
+        if (!(projection.size() == 1 && "*".equals(projection.get(0)))) {
+            for (int i = 0; i < projection.size(); i += 2) {
+                if (isSymbol(projection.get(i)) || (i + 1 < projection.size() && !",".equals(projection.get(i + 1)))) {
+                    throw new IllegalArgumentException("Expected a comma-separated column list in: " + text);
+                }
+                columns.add(unquote(projection.get(i)));
+            }
+            if (columns.isEmpty()) {
+                throw new IllegalArgumentException("No columns in: " + text);
+            }
+        }
+        List<Predicate> predicates = new ArrayList<>();
+        if (where >= 0) {
+            int i = where + 1;
+            while (true) {
+                if (i + 3 > tokens.size() || isSymbol(tokens.get(i))) {
+                    throw new IllegalArgumentException("Expected column, operator and literal in: " + text);
+                }
+                Operator operator = null;
+                for (Operator candidate : Operator.values()) {
+                    if (candidate.symbol.equals(tokens.get(i + 1))) {
+                        operator = candidate;
+                    }
+                }
+                String literal = tokens.get(i + 2);
+                boolean quoted = literal.startsWith("'");
+                ByteBuffer bytes = ByteBuffer.wrap(literal.getBytes(StandardCharsets.UTF_8));
+                if (operator == null || (!quoted && !CsvSchema.isDecimal(bytes, 0, bytes.limit()))) {
+                    throw new IllegalArgumentException("Expected an operator and a number or 'text' after "
+                            + tokens.get(i) + " in: " + text);
+                }
+                predicates.add(new Predicate(unquote(tokens.get(i)), operator,
+                        quoted ? literal.substring(1, literal.length() - 1).replace("''", "'") : literal, !quoted));
+                i += 3;
+                if (i == tokens.size()) {
+                    break;
+                }
+                if (!"AND".equalsIgnoreCase(tokens.get(i))) {
+                    throw new IllegalArgumentException("Expected AND at '" + tokens.get(i) + "' in: " + text);
+                }
+                i++;
+            }
+        }
+        return new CsvQuery(columns, predicates);
+    }
+
+    /** Projected column names, empty for all columns. */
+    public List<String> columns() {
+        return columns;
+    }
+
+    public List<Predicate> predicates() {
+        return predicates;
+    }
+
+    /**
+     * The query as an S3 Select SQL expression. Columns are referred to by header name, or by position
+     * without a header. Numeric comparisons cast the field, and S3 Select fails the query on a field that
+     * does not cast.
+     */
+    public String toSelectExpression(boolean header) {
+        StringBuilder sql = new StringBuilder("SELECT ");
+        if (columns.isEmpty()) {
+            sql.append('*');
+        }
+        for (int i = 0; i < columns.size(); i++) {
+            sql.append(i > 0 ? ", " : "").append(selectColumn(columns.get(i), header));
+        }
+        sql.append(" FROM S3Object s");
+        for (int i = 0; i < predicates.size(); i++) {
+            Predicate predicate = predicates.get(i);
+            String column = selectColumn(predicate.column, header);
+            sql.append(i == 0 ? " WHERE " : " AND ");
+            if (predicate.numeric) {
+                sql.append("CAST(").append(column).append(" AS FLOAT) ").append(predicate.operator.sql).append(' ').append(predicate.literal);
+            } else {
+                // Empty fields match nothing, as when filtering locally
+                sql.append(column).append(" <> '' AND ").append(column).append(' ').append(predicate.operator.sql)
+                        .append(" '").append(predicate.literal.replace("'", "''")).append('\'');
+            }
+        }
+        return sql.toString();
+    }
+
+    private static String selectColumn(String name, boolean header) {
+        if (header) {
+            return "s.\"" + name.replace("\"", "\"\"") + "\"";
+        }
+        return "s._" + (columnIndex(name) + 1);
+    }
+
+    /** Resolves the query's columns against the object's schema, for filtering rows as they are tokenized. */
+    public Bound bind(CsvSchema schema) {
+        int[] projection = new int[columns.isEmpty() ? schema.columnCount() : columns.size()];
+        List<String> names = new ArrayList<>(projection.length);
+        List<CsvSchema.ColumnType> types = new ArrayList<>(projection.length);
+        for (int i = 0; i < projection.length; i++) {
+            projection[i] = columns.isEmpty() ? i : indexOf(schema, columns.get(i));
+            names.add(schema.name(projection[i]));
+            types.add(schema.type(projection[i]));
+        }
+        Check[] checks = new Check[predicates.size()];
+        for (int i = 0; i < checks.length; i++) {
+            checks[i] = new Check(indexOf(schema, predicates.get(i).column), predicates.get(i));
+        }
+        return new Bound(projection, checks, new CsvSchema(names, types, schema.hasHeader()));
+    }
+
+    private static int indexOf(CsvSchema schema, String name) {
+        for (int i = 0; i < schema.columnCount(); i++) {
+            if (schema.name(i).equals(name)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Unknown CSV column '" + name + "'; columns are " + schema);
+    }
+
+    private static int columnIndex(String name) {
+        if (name.length() > 1 && name.charAt(0) == 'c') {
+            try {
+                return Integer.parseInt(name.substring(1));
+            } catch (NumberFormatException e) {
+                // fall through
+            }
+        }
+        throw new IllegalArgumentException("Without a header, columns are named c0, c1, ...: " + name);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder(columns.isEmpty() ? "*" : String.join(",", columns));
+        for (int i = 0; i < predicates.size(); i++) {
+            text.append(i == 0 ? " WHERE " : " AND ").append(predicates.get(i));
+        }
+        return text.toString();
+    }
+
+    /**
+     * A query resolved against a schema. It is immutable, so the shards of one object can share it; each
+     * caller projects into a {@link CsvRow} of its own.
+     */
+    public static final class Bound {
+        private final int[] projection;
+        private final Check[] checks;
+        private final CsvSchema schema;
+
+        private Bound(int[] projection, Check[] checks, CsvSchema schema) {
+            this.projection = projection;
+            this.checks = checks;
+            this.schema = schema;
+        }
+
+        /** Schema of the projected rows. */
+        public CsvSchema schema() {
+            return schema;
+        }
+
+        /** True when the row passes every predicate, judged from its bytes without decoding any field. */
+        public boolean matches(CsvRow row) {
+            for (Check check : checks) {
+                if (!check.test(row)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /** Points {@code target} at the projected fields of {@code row}; a missing field is empty. */
+        public CsvRow project(CsvRow row, CsvRow target) {
+            target.project(row, projection);
+            return target;
+        }
+    }
+
+    /** A predicate resolved to a column index, with its literal parsed once. */
+    private static final class Check {
+        private final int column;
+        private final Operator operator;
+        private final boolean numeric;
+        private final boolean integral;
+        private final long longValue;
+        private final double doubleValue;
+        private final byte[] bytes;
+
+        Check(int column, Predicate predicate) {
+            this.column = column;
+            this.operator = predicate.operator;
+            this.numeric = predicate.numeric;
+            this.bytes = predicate.literal.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer literal = ByteBuffer.wrap(bytes);
+            long parsed = numeric && CsvSchema.isInteger(literal, 0, bytes.length) ? CsvSchema.parseLong(literal, 0, bytes.length) : 0;
+            this.integral = numeric && CsvSchema.isInteger(literal, 0, bytes.length) && parsed != Long.MIN_VALUE;
+            this.longValue = parsed;
+            this.doubleValue = numeric ? Double.parseDouble(predicate.literal) : 0;
+        }
+
+        boolean test(CsvRow row) {
+            if (column >= row.fieldCount() || row.length(column) == 0) {
+                return false;
+            }
+            ByteBuffer buffer = row.buffer();
+            int offset = row.offset(column);
+            int length = row.length(column);
+            if (!numeric) {
+                return operator.test(row.hasEscapedQuotes(column) ? compareUnescaped(row) : compare(buffer, offset, length));
+            }
+            if (row.hasEscapedQuotes(column)) {
+                return false;
+            }
+            if (CsvSchema.isInteger(buffer, offset, length)) {
+                long value = CsvSchema.parseLong(buffer, offset, length);
+                if (integral && value != Long.MIN_VALUE) {
+                    return operator.test(Long.compare(value, longValue));
+                }
+            } else if (!CsvSchema.isDecimal(buffer, offset, length)) {
+                return false;
+            }
+            return operator.test(Double.compare(ColumnBatch.DoubleColumn.parseDouble(buffer, offset, length), doubleValue));
+        }
+
+        /** Unsigned byte order of the field against the literal. */
+        private int compare(ByteBuffer buffer, int offset, int length) {
+            int common = Math.min(length, bytes.length);
+            for (int k = 0; k < common; k++) {
+                int difference = (buffer.get(offset + k) & 0xFF) - (bytes[k] & 0xFF);
+                if (difference != 0) {
+                    return difference;
+                }
+            }
+            return length - bytes.length;
+        }
+
+        private int compareUnescaped(CsvRow row) {
+            return Arrays.compareUnsigned(row.fieldAsString(column).getBytes(StandardCharsets.UTF_8), bytes);
+        }
+    }
+
+    /** Words, quoted names and literals, commas and operators; whitespace separates. */
+    private static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        int i = 0;
+        while (i < text.length()) {
+            char c = text.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (c == '\'' || c == '"') {
+                int end = i + 1;
+                while (true) {
+                    if (end >= text.length()) {
+                        throw new IllegalArgumentException("Unterminated " + c + " in: " + text);
+                    }
+                    if (text.charAt(end) == c) {
+                        if (end + 1 < text.length() && text.charAt(end + 1) == c) {
+                            end += 2;
+                            continue;
+                        }
+                        break;
+                    }
+                    end++;
+                }
+                tokens.add(text.substring(i, end + 1));
+                i = end + 1;
+            } else if (c == ',') {
+                tokens.add(",");
+                i++;
+            } else if ("=!<>".indexOf(c) >= 0) {
+                int end = i + 1 < text.length() && text.charAt(i + 1) == '=' ? i + 2 : i + 1;
+                tokens.add(text.substring(i, end));
+                i = end;
+            } else {
+                int end = i;
+                while (end < text.length() && !Character.isWhitespace(text.charAt(end)) && ",=!<>'\"".indexOf(text.charAt(end)) < 0) {
+                    end++;
+                }
+                tokens.add(text.substring(i, end));
+                i = end;
+            }
+        }
+        return tokens;
+    }
+
+    private static boolean isSymbol(String token) {
+        return token.equals(",") || "=!<>".indexOf(token.charAt(0)) >= 0 || token.startsWith("'")
+                || "WHERE".equals(token.toUpperCase(Locale.ROOT)) || "AND".equals(token.toUpperCase(Locale.ROOT));
+    }
+
+    /** A column name, with the double quotes that allow spaces or symbols in it removed. */
+    private static String unquote(String name) {
+        return name.startsWith("\"") ? name.substring(1, name.length() - 1).replace("\"\"", "\"") : name;
+    }
+
+    private static List<String> splitOutsideQuotes(String text, char separator) {
+        List<String> parts = new ArrayList<>();
+        int start = 0;
+        char quote = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+            } else if (c == '\'' || c == '"') {
+                quote = c;
+            } else if (c == separator) {
+                parts.add(text.substring(start, i));
+                start = i + 1;
+            }
+        }
+        parts.add(text.substring(start));
+        parts.removeIf(part -> part.trim().isEmpty());
+        return parts;
+    }
+}
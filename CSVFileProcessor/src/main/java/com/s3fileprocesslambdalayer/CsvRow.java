@@ -0,0 +1,140 @@
+package com.s3fileprocesslambdalayer;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reusable view of one CSV record produced by {@link CsvTokenizer}.
+ * Fields are exposed as offsets and lengths into the tokenizer's buffer, so nothing is allocated
+ * per row. The view, and the buffer behind it, are only valid inside the row callback.
+ */
+public final class CsvRow {
+    private ByteBuffer buffer;
+    private int[] offsets = new int[16];
+    private int[] lengths = new int[16];
+    private boolean[] escaped = new boolean[16];
+    private int count;
+    private long index;
+    private long byteOffset;
+    private long endByteOffset;
+
+    CsvRow() {
+    }
+
+    void reset(ByteBuffer buffer, long index, long byteOffset) {
+        this.buffer = buffer;
+        this.index = index;
+        this.byteOffset = byteOffset;
+        this.count = 0;
+    }
+
+    void add(int offset, int length, boolean hasEscapedQuotes) {
+        if (count == offsets.length) {
+            int grown = count * 2;
+            offsets = Arrays.copyOf(offsets, grown);
+            lengths = Arrays.copyOf(lengths, grown);
+            escaped = Arrays.copyOf(escaped, grown);
+        }
+        offsets[count] = offset;
+        lengths[count] = length;
+        escaped[count] = hasEscapedQuotes;
+        count++;
+    }
+
+    void end(long endByteOffset) {
+        this.endByteOffset = endByteOffset;
+    }
+
+    /** Makes this a view of the given fields of {@code source}, in that order; a field it lacks is empty. */
+    void project(CsvRow source, int[] fields) {
+        reset(source.buffer, source.index, source.byteOffset);
+        for (int field : fields) {
+            if (field < source.count) {
+                add(source.offsets[field], source.lengths[field], source.escaped[field]);
+            } else {
+                add(0, 0, false);
+            }
+        }
+        end(source.endByteOffset);
+    }
+
+    /** Buffer the offsets refer to; use absolute gets only. */
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    public int fieldCount() {
+        return count;
+    }
+
+    /** Absolute buffer index of the first content byte of field {@code i} (inside the quotes for quoted fields). */
+    public int offset(int i) {
+        return offsets[i];
+    }
+
+    public int length(int i) {
+        return lengths[i];
+    }
+
+    /** True when the field contains doubled quotes ({@code ""}) that must be collapsed to read its value. */
+    public boolean hasEscapedQuotes(int i) {
+        return escaped[i];
+    }
+
+    /** Zero-based record number within the object. */
+    public long index() {
+        return index;
+    }
+
+    /** Byte position of the record's first byte within the whole input. */
+    public long byteOffset() {
+        return byteOffset;
+    }
+
+    /** Byte position just past the record terminator; resuming here starts at the next record. */
+    public long endByteOffset() {
+        return endByteOffset;
+    }
+
+    /** True when field {@code i} equals the given ASCII bytes. Does not allocate. */
+    public boolean fieldEquals(int i, byte[] value) {
+        if (escaped[i] || lengths[i] != value.length) {
+            return false;
+        }
+        int offset = offsets[i];
+        for (int k = 0; k < value.length; k++) {
+            if (buffer.get(offset + k) != value[k]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Decodes field {@code i} as UTF-8, collapsing escaped quotes. Allocates; meant for logging and tests. */
+    public String fieldAsString(int i) {
+        byte[] bytes = new byte[lengths[i]];
+        int offset = offsets[i];
+        int n = 0;
+        for (int k = 0; k < bytes.length; k++) {
+            byte b = buffer.get(offset + k);
+            if (escaped[i] && b == '"') {
+                k++; // skip the second quote of the pair
+            }
+            bytes[n++] = b;
+        }
+        return new String(bytes, 0, n, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                sb.append(" | ");
+            }
+            sb.append(fieldAsString(i));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,230 @@
+package com.s3fileprocesslambdalayer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Column names and types of a CSV object, inferred from a sample of its first rows. A column takes the
+ * narrowest of INT, LONG, DOUBLE and STRING that holds every non-empty sampled value; empty fields are nulls
+ * and do not vote, and a column with no values in the sample is STRING.
+ *
+ * <p>The sample is the rows that end within the first CSV_SCHEMA_SAMPLE_KB (default 1024) of the content, at
+ * most CSV_SCHEMA_SAMPLE_ROWS (default 10000) of them. Because it depends only on those bytes, a continuation
+ * reading them again infers the same schema. With CSV_HEADER=true (the default) the first row names the
+ * columns and is not data; otherwise they are named {@code c0}, {@code c1}, ...
+ */
+public final class CsvSchema {
+
+    public enum ColumnType { INT, LONG, DOUBLE, STRING }
+
+    private final List<String> names;
+    private final List<ColumnType> types;
+    private final boolean header;
+
+    public CsvSchema(List<String> names, List<ColumnType> types, boolean header) {
+        if (names.size() != types.size()) {
+            throw new IllegalArgumentException(names.size() + " column names for " + types.size() + " types");
+        }
+        this.names = List.copyOf(names);
+        this.types = List.copyOf(types);
+        this.header = header;
+    }
+
+    public int columnCount() {
+        return names.size();
+    }
+
+    public String name(int column) {
+        return names.get(column);
+    }
+
+    public ColumnType type(int column) {
+        return types.get(column);
+    }
+
+    /** True when the object's first row is a header rather than data. */
+    public boolean hasHeader() {
+        return header;
+    }
+
+    /** Bytes of content to read for {@link #infer}: the sample size plus one, which tells a cut row from a whole one. */
+    public static int sampleBytes() {
+        return LayerConfig.getInt("CSV_SCHEMA_SAMPLE_KB", 1024) * 1024 + 1;
+    }
+
+    /**
+     * Infers the schema from the start of the content, {@code head} from its position to its limit, which
+     * should be the first {@link #sampleBytes()} bytes or the whole content if it is shorter.
+     */
+    public static CsvSchema infer(ByteBuffer head, byte delimiter) throws IOException {
+        long sampleEnd = sampleBytes() - 1L;
+        int maxRows = LayerConfig.getInt("CSV_SCHEMA_SAMPLE_ROWS", 10_000);
+        boolean header = LayerConfig.getBoolean("CSV_HEADER", true);
+        List<String> names = new ArrayList<>();
+        List<Integer> widest = new ArrayList<>();
+        long lastRow = header ? maxRows : maxRows - 1L;
+        new CsvTokenizer(delimiter, 64 * 1024).tokenize(head.slice(), row -> {
+            if (row.endByteOffset() > sampleEnd || row.index() > lastRow) {
+                return false;
+            }
+            if (row.index() == 0 && header) {
+                for (int i = 0; i < row.fieldCount(); i++) {
+                    names.add(row.fieldAsString(i));
+                }
+                return true;
+            }
+            for (int i = 0; i < row.fieldCount(); i++) {
+                if (i == widest.size()) {
+                    widest.add(-1);
+                }
+                if (row.length(i) > 0) {
+                    widest.set(i, Math.max(widest.get(i), narrowestType(row, i).ordinal()));
+                }
+            }
+            return true;
+        });
+        int columns = Math.max(names.size(), widest.size());
+        List<ColumnType> types = new ArrayList<>(columns);
+        for (int i = 0; i < columns; i++) {
+            int ordinal = i < widest.size() ? widest.get(i) : -1;
+            types.add(ordinal < 0 ? ColumnType.STRING : ColumnType.values()[ordinal]);
+            if (i == names.size()) {
+                names.add("c" + i);
+            }
+        }
+        return new CsvSchema(names, types, header);
+    }
+
+    /** The narrowest type that holds field {@code i} of {@code row}, which is not empty. */
+    static ColumnType narrowestType(CsvRow row, int i) {
+        if (row.hasEscapedQuotes(i)) {
+            return ColumnType.STRING;
+        }
+        ByteBuffer buffer = row.buffer();
+        int offset = row.offset(i);
+        int length = row.length(i);
+        if (isInteger(buffer, offset, length)) {
+            long value = parseLong(buffer, offset, length);
+            if (value != Long.MIN_VALUE || isLongMin(buffer, offset, length)) {
+                return value == (int) value ? ColumnType.INT : ColumnType.LONG;
+            }
+            return ColumnType.DOUBLE;
+        }
+        return isDecimal(buffer, offset, length) ? ColumnType.DOUBLE : ColumnType.STRING;
+    }
+
+    /** An optional sign followed by 1 to 19 digits. */
+    static boolean isInteger(ByteBuffer buffer, int offset, int length) {
+        int i = offset;
+        int end = offset + length;
+        if (i < end && (buffer.get(i) == '-' || buffer.get(i) == '+')) {
+            i++;
+        }
+        if (i == end || end - i > 19) {
+            return false;
+        }
+        for (; i < end; i++) {
+            byte b = buffer.get(i);
+            if (b < '0' || b > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Value of an {@link #isInteger} field, or {@link Long#MIN_VALUE} when it does not fit in a long, which
+     * only {@link #isLongMin} tells apart from that value itself.
+     */
+    static long parseLong(ByteBuffer buffer, int offset, int length) {
+        int i = offset;
+        int end = offset + length;
+        boolean negative = buffer.get(i) == '-';
+        if (negative || buffer.get(i) == '+') {
+            i++;
+        }
+        // Accumulate negatively, which has room for Long.MIN_VALUE
+        long value = 0;
+        for (; i < end; i++) {
+            int digit = buffer.get(i) - '0';
+            if (value < Long.MIN_VALUE / 10) {
+                return Long.MIN_VALUE;
+            }
+            value *= 10;
+            if (value < Long.MIN_VALUE + digit) {
+                return Long.MIN_VALUE;
+            }
+            value -= digit;
+        }
+        if (negative) {
+            return value;
+        }
+        return value == Long.MIN_VALUE ? Long.MIN_VALUE : -value;
+    }
+
+    private static boolean isLongMin(ByteBuffer buffer, int offset, int length) {
+        String min = Long.toString(Long.MIN_VALUE);
+        if (length != min.length()) {
+            return false;
+        }
+        for (int k = 0; k < length; k++) {
+            if (buffer.get(offset + k) != min.charAt(k)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * A plain decimal number: optional sign, digits with at most one decimal point and at least one digit,
+     * then an optional exponent. Unlike {@link Double#parseDouble} it takes no NaN, Infinity, hex, type
+     * suffixes or surrounding whitespace.
+     */
+    static boolean isDecimal(ByteBuffer buffer, int offset, int length) {
+        int i = offset;
+        int end = offset + length;
+        if (i < end && (buffer.get(i) == '-' || buffer.get(i) == '+')) {
+            i++;
+        }
+        int digits = 0;
+        boolean point = false;
+        for (; i < end; i++) {
+            byte b = buffer.get(i);
+            if (b >= '0' && b <= '9') {
+                digits++;
+            } else if (b == '.' && !point) {
+                point = true;
+            } else {
+                break;
+            }
+        }
+        if (digits == 0) {
+            return false;
+        }
+        if (i < end && (buffer.get(i) == 'e' || buffer.get(i) == 'E')) {
+            i++;
+            if (i < end && (buffer.get(i) == '-' || buffer.get(i) == '+')) {
+                i++;
+            }
+            int exponentStart = i;
+            while (i < end && buffer.get(i) >= '0' && buffer.get(i) <= '9') {
+                i++;
+            }
+            if (i == exponentStart) {
+                return false;
+            }
+        }
+        return i == end;
+    }
+
+    @Override
+    public String toString() {
+        List<String> columns = new ArrayList<>(names.size());
+        for (int i = 0; i < names.size(); i++) {
+            columns.add(names.get(i) + ":" + types.get(i));
+        }
+        return String.join(", ", columns);
+    }
+}
@@ -0,0 +1,204 @@
+package com.s3fileprocesslambdalayer;
+
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import software.amazon.awssdk.awscore.exception.AwsServiceException;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.CSVInput;
+import software.amazon.awssdk.services.s3.model.CSVOutput;
+import software.amazon.awssdk.services.s3.model.CompressionType;
+import software.amazon.awssdk.services.s3.model.ExpressionType;
+import software.amazon.awssdk.services.s3.model.FileHeaderInfo;
+import software.amazon.awssdk.services.s3.model.QuoteFields;
+import software.amazon.awssdk.services.s3.model.RecordsEvent;
+import software.amazon.awssdk.services.s3.model.SelectObjectContentEventStream;
+import software.amazon.awssdk.services.s3.model.SelectObjectContentRequest;
+import software.amazon.awssdk.services.s3.model.SelectObjectContentResponseHandler;
+import software.amazon.awssdk.services.s3.model.Stats;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.logging.Logger;
+
+/**
+ * Runs a {@link CsvQuery} on S3 with SelectObjectContent, so only the selected columns of the matching rows
+ * leave S3. The result arrives as an event stream on the {@link S3AsyncClient} and is read back as a plain
+ * CSV stream, without a header, in the object's delimiter. At most {@link #EVENTS_AHEAD} events are requested
+ * ahead of the reader, so a slow parser holds the stream back instead of buffering it.
+ *
+ * <p>Select is used while CSV_QUERY_SELECT is true (the default). Once S3 answers that it does not
+ * support the request (HTTP 405 or 501, as for accounts without S3 Select or the local stand-in), it is not
+ * tried again in this container.
+ */
+final class CsvSelect {
+    private static final Logger logger = Logger.getLogger(CsvSelect.class.getName());
+
+    private static final int EVENTS_AHEAD = 8;
+    private static final Object END = new Object();
+
+    private static volatile boolean unsupported;
+
+    private CsvSelect() {
+    }
+
+    /** True when queries should be tried on S3 before being applied locally. */
+    static boolean isEnabled() {
+        return !unsupported && LayerConfig.getBoolean("CSV_QUERY_SELECT", true);
+    }
+
+    /** Forgets that S3 refused Select, so the next query tries it again. */
+    static void resetSupport() {
+        unsupported = false;
+    }
+
+    /**
+     * Starts the query on the object. Its failure, including S3 refusing the request, surfaces as an
+     * IOException from the returned stream's first read.
+     */
+    static Result open(S3AsyncClient s3, String bucketName, String key, CsvQuery query, boolean header, byte delimiter,
+                       CompressedInput.Codec codec) {
+        String field = String.valueOf((char) delimiter);
+        SelectObjectContentRequest request = SelectObjectContentRequest.builder()
+                .bucket(bucketName)
+                .key(key)
+                .expressionType(ExpressionType.SQL)
+                .expression(query.toSelectExpression(header))
+                .inputSerialization(input -> input
+                        .csv(CSVInput.builder().fileHeaderInfo(header ? FileHeaderInfo.USE : FileHeaderInfo.NONE)
+                                .fieldDelimiter(field).quoteCharacter("\"").quoteEscapeCharacter("\"").recordDelimiter("\n")
+                                .allowQuotedRecordDelimiter(true).build())
+                        .compressionType(codec == CompressedInput.Codec.GZIP ? CompressionType.GZIP : CompressionType.NONE))
+                .outputSerialization(output -> output
+                        .csv(CSVOutput.builder().fieldDelimiter(field).quoteCharacter("\"").quoteEscapeCharacter("\"")
+                                .recordDelimiter("\n").quoteFields(QuoteFields.ASNEEDED).build()))
+                .build();
+        Result result = new Result();
+        s3.selectObjectContent(request, SelectObjectContentResponseHandler.builder()
+                        .subscriber(() -> result)
+                        .build())
+                .whenComplete((done, failure) -> {
+                    if (failure != null) {
+                        result.fail(failure);
+                    }
+                });
+        return result;
+    }
+
+    /**
+     * True when {@code failure} says S3 will not run Select requests at all, rather than that this one failed;
+     * Select is then turned off for the container.
+     */
+    static boolean markIfUnsupported(IOException failure) {
+        Throwable cause = failure.getCause() instanceof CompletionException ? failure.getCause().getCause() : failure.getCause();
+        if (cause instanceof AwsServiceException
+                && (((AwsServiceException) cause).statusCode() == 405 || ((AwsServiceException) cause).statusCode() == 501)) {
+            unsupported = true;
+            logger.warning("S3 Select is not supported here; CSV queries are applied locally from now on: " + cause.getMessage());
+            return true;
+        }
+        return false;
+    }
+
+    /** The selected rows as a stream, plus the scan statistics S3 reports at the end. */
+    static final class Result extends InputStream implements Subscriber<SelectObjectContentEventStream> {
+        private final BlockingQueue<Object> events = new LinkedBlockingQueue<>();
+        private final SelectObjectContentResponseHandler.Visitor visitor = SelectObjectContentResponseHandler.Visitor.builder()
+                .onRecords(records -> events.add(records.payload().asByteBuffer()))
+                .onStats(stats -> this.stats = stats.details())
+                .onDefault(event -> { })
+                .build();
+        private volatile Subscription subscription;
+        private volatile Stats stats;
+        private ByteBuffer current;
+        private boolean ended;
+        private long bytesRead;
+
+        @Override
+        public void onSubscribe(Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(EVENTS_AHEAD);
+        }
+
+        @Override
+        public void onNext(SelectObjectContentEventStream event) {
+            event.accept(visitor);
+            if (!(event instanceof RecordsEvent)) {
+                // Only record events wait for the reader; the rest are consumed on arrival
+                subscription.request(1);
+            }
+        }
+
+        @Override
+        public void onError(Throwable failure) {
+            fail(failure);
+        }
+
+        @Override
+        public void onComplete() {
+            events.add(END);
+        }
+
+        void fail(Throwable failure) {
+            events.add(failure);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            while (current == null || !current.hasRemaining()) {
+                if (ended) {
+                    return -1;
+                }
+                Object next;
+                try {
+                    next = events.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for S3 Select results");
+                }
+                if (next == END) {
+                    ended = true;
+                } else if (next instanceof Throwable) {
+                    ended = true;
+                    throw new IOException("S3 Select failed: " + ((Throwable) next).getMessage(), (Throwable) next);
+                } else {
+                    current = (ByteBuffer) next;
+                    subscription.request(1);
+                }
+            }
+            int n = Math.min(length, current.remaining());
+            current.get(bytes, offset, n);
+            bytesRead += n;
+            return n;
+        }
+
+        /** Bytes of selected rows read so far. */
+        long bytesRead() {
+            return bytesRead;
+        }
+
+        /** Scanned, processed and returned bytes, once the query has ended; may be null. */
+        Stats stats() {
+            return stats;
+        }
+
+        @Override
+        public void close() {
+            Subscription active = subscription;
+            if (!ended && active != null) {
+                active.cancel();
+            }
+            ended = true;
+        }
+    }
+}
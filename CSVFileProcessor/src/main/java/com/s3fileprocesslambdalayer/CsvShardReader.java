@@ -0,0 +1,390 @@
+package com.s3fileprocesslambdalayer;
+
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.LongFunction;
+import java.util.logging.Logger;
+
+/**
+ * Parses one large CSV object as several byte ranges at once, each streamed with its own ranged GET and
+ * tokenized on its own thread. Shards start and end on record boundaries, so every record is parsed by
+ * exactly one shard, and results come back in object order.
+ *
+ * <p>A byte offset alone does not tell whether it lies inside a quoted field, where a newline is data. The
+ * reader moves each nominal split point to the first newline after it assuming the split is outside quotes,
+ * which is almost always right, and parses speculatively. Every shard counts the quote bytes it reads, which
+ * gives the exact quote parity at every split point once all shards are done; a split that turns out to be
+ * inside a quoted field is moved to the first newline outside it and only the shards touching it are parsed
+ * again. This relies on quotes appearing only around quoted fields, as RFC 4180 requires; files with stray
+ * quotes inside unquoted fields should not be sharded. A split with no record boundary before the next one is
+ * dropped, merging its neighbours.
+ *
+ * <p>An object can be read in windows, each a separate call that starts where the previous one ended, so a
+ * caller can stop between windows and resume later, e.g. from a {@link Checkpoint}.
+ *
+ * <p>Row indexes and byte offsets reported to a shard's handler are relative to the shard's start.
+ */
+final class CsvShardReader {
+    private static final Logger logger = Logger.getLogger(CsvShardReader.class.getName());
+
+    private static final byte QUOTE = '"';
+    private static final byte LF = '\n';
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final long MB = 1024L * 1024L;
+
+    /** One record-aligned byte range of the object and what parsing it found. */
+    static final class Shard<H extends CsvTokenizer.RowHandler> {
+        private final long start;
+        private final long end;
+        private final H handler;
+        private long rows;
+        private boolean oddQuotes;
+        // Quote parity of [start, offset) for the nominal split points inside the shard
+        private final Map<Long, Boolean> oddQuotesBefore = new HashMap<>();
+
+        Shard(long start, long end, H handler) {
+            this.start = start;
+            this.end = end;
+            this.handler = handler;
+        }
+
+        long start() {
+            return start;
+        }
+
+        long end() {
+            return end;
+        }
+
+        H handler() {
+            return handler;
+        }
+
+        long rows() {
+            return rows;
+        }
+
+        long bytes() {
+            return end - start;
+        }
+    }
+
+    private final S3Client s3;
+    private final int maxShards;
+    private final long minShardBytes;
+
+    CsvShardReader(S3Client s3, int maxShards, long minShardBytes) {
+        this.s3 = s3;
+        this.maxShards = Math.max(1, maxShards);
+        this.minShardBytes = Math.max(1, minShardBytes);
+    }
+
+    /**
+     * Reader for CSV_SHARDS shards at most (default 1, i.e. no sharding) of at least CSV_SHARD_MIN_MB
+     * (default 32) each.
+     */
+    static CsvShardReader fromEnvironment(S3Client s3) {
+        return new CsvShardReader(s3, LayerConfig.getInt("CSV_SHARDS", 1), LayerConfig.getLong("CSV_SHARD_MIN_MB", 32) * MB);
+    }
+
+    boolean isEnabled() {
+        return maxShards > 1;
+    }
+
+    /** Number of shards an object of this size is split into; 1 means it is not worth sharding. */
+    int shardCountFor(long size) {
+        return (int) Math.max(1, Math.min(maxShards, size / minShardBytes));
+    }
+
+    /**
+     * Parses the object version described by {@code head} in shards, from the record boundary {@code from}
+     * to the first record boundary at or after {@code from + window} (or the end of the object).
+     * {@code newHandler} creates the row handler of the shard starting at the given byte; a shard parsed
+     * again gets a fresh handler, and only the shards returned, in object order, hold the final results. The
+     * last shard's end is where the next window starts.
+     */
+    <H extends CsvTokenizer.RowHandler> List<Shard<H>> read(String bucketName, String key, HeadObjectResponse head,
+                                                            long from, long window, LongFunction<H> newHandler) throws IOException {
+        long size = head.contentLength();
+        long to = size - from > window ? from + window : size;
+        int count = shardCountFor(to - from);
+        // A window ending before the object does has its end aligned like any other split, against the rest
+        long[] splits = new long[to < size ? count + 2 : count + 1];
+        for (int i = 0; i <= count; i++) {
+            splits[i] = from + (to - from) * i / count;
+        }
+        splits[splits.length - 1] = size;
+
+        ExecutorService pool = Executors.newFixedThreadPool(count, runnable -> {
+            Thread thread = new Thread(runnable, "csv-shard");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            long[] boundaries = alignSplits(pool, bucketName, key, head, splits, new boolean[splits.length], null);
+            List<Shard<H>> shards = parse(pool, bucketName, key, head, windowOf(boundaries, count, size), splits, newHandler, new HashMap<>());
+
+            boolean[] insideQuotes = new boolean[splits.length];
+            int realigned = 0;
+            for (int i = 1; i < splits.length - 1; i++) {
+                insideQuotes[i] = insideQuotesAt(splits[i], shards);
+                if (insideQuotes[i]) {
+                    realigned++;
+                }
+            }
+            if (realigned > 0) {
+                logger.warning(String.format("%d of %d split point(s) of %s fell inside quoted fields; parsing the shards around them again",
+                        realigned, splits.length - 2, key));
+                long[] corrected = alignSplits(pool, bucketName, key, head, splits, insideQuotes, boundaries);
+                Map<Long, Shard<H>> parsed = new HashMap<>();
+                for (Shard<H> shard : shards) {
+                    parsed.put(shard.start, shard);
+                }
+                shards = parse(pool, bucketName, key, head, windowOf(corrected, count, size), splits, newHandler, parsed);
+            }
+            InvocationMetrics.add(InvocationMetrics.Counter.SHARDS, shards.size());
+            return shards;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /** The boundaries up to the window's end; an end without a record boundary after it extends to the object's end. */
+    private static long[] windowOf(long[] boundaries, int count, long size) {
+        long[] window = Arrays.copyOf(boundaries, count + 1);
+        if (window[count] == -1) {
+            window[count] = size;
+        }
+        return window;
+    }
+
+    /**
+     * Moves each split point to the record boundary after it, given whether the split lies inside quotes.
+     * The first element, a record boundary already, and the last, the object size, stay; a split without a boundary before the next
+     * split becomes -1. Splits outside quotes keep their boundary from {@code previous} when it is given.
+     */
+    private long[] alignSplits(ExecutorService pool, String bucketName, String key, HeadObjectResponse head,
+                               long[] splits, boolean[] insideQuotes, long[] previous) throws IOException {
+        List<Integer> probed = new ArrayList<>();
+        List<Callable<Long>> probes = new ArrayList<>();
+        for (int i = 1; i + 1 < splits.length; i++) {
+            if (previous != null && !insideQuotes[i]) {
+                continue;
+            }
+            probed.add(i);
+            long from = splits[i];
+            long to = splits[i + 1];
+            boolean inside = insideQuotes[i];
+            probes.add(() -> probe(bucketName, key, head, from, to, inside));
+        }
+        List<Long> found = awaitAll(pool, probes, key);
+        long[] boundaries = previous != null ? previous.clone() : splits.clone();
+        for (int i = 0; i < probed.size(); i++) {
+            boundaries[probed.get(i)] = found.get(i);
+        }
+        return boundaries;
+    }
+
+    /**
+     * Scans [from, to) for the first record boundary, i.e. the byte after a newline that is outside quotes,
+     * given the quote state at {@code from}. Returns -1 if there is none before {@code to}.
+     */
+    private long probe(String bucketName, String key, HeadObjectResponse head, long from, long to, boolean inside) throws IOException {
+        boolean quoted = inside;
+        long position = from;
+        byte[] chunk = new byte[CHUNK_SIZE];
+        try (ResponseInputStream<GetObjectResponse> in = SharedLambdaLayer.openObjectRange(s3, bucketName, key, head, from, to)) {
+            int read;
+            while ((read = in.read(chunk)) != -1) {
+                for (int i = 0; i < read; i++) {
+                    byte b = chunk[i];
+                    if (b == QUOTE) {
+                        quoted = !quoted;
+                    } else if (b == LF && !quoted) {
+                        if (position + i + 1 < to) {
+                            // Found early: drop the connection instead of reading the rest of the range
+                            in.abort();
+                        }
+                        return position + i + 1;
+                    }
+                }
+                position += read;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Parses the ranges between consecutive boundaries, skipping dropped (-1) or empty ones and reusing
+     * shards in {@code parsed} with the same range.
+     */
+    private <H extends CsvTokenizer.RowHandler> List<Shard<H>> parse(ExecutorService pool, String bucketName, String key,
+                                                                     HeadObjectResponse head, long[] boundaries, long[] splits,
+                                                                     LongFunction<H> newHandler, Map<Long, Shard<H>> parsed) throws IOException {
+        long size = boundaries[boundaries.length - 1];
+        List<Long> starts = new ArrayList<>();
+        starts.add(boundaries[0]);
+        for (int i = 1; i + 1 < boundaries.length; i++) {
+            if (boundaries[i] > starts.get(starts.size() - 1) && boundaries[i] < size) {
+                starts.add(boundaries[i]);
+            }
+        }
+        List<Shard<H>> shards = new ArrayList<>();
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int i = 0; i < starts.size(); i++) {
+            long start = starts.get(i);
+            long end = i + 1 < starts.size() ? starts.get(i + 1) : size;
+            Shard<H> previous = parsed.get(start);
+            if (previous != null && previous.end == end) {
+                shards.add(previous);
+                continue;
+            }
+            Shard<H> shard = new Shard<>(start, end, newHandler.apply(start));
+            shards.add(shard);
+            tasks.add(() -> {
+                parseShard(bucketName, key, head, shard, splits);
+                return null;
+            });
+        }
+        awaitAll(pool, tasks, key);
+        return shards;
+    }
+
+    private void parseShard(String bucketName, String key, HeadObjectResponse head, Shard<?> shard, long[] splits) throws IOException {
+        CsvTokenizer tokenizer = CsvTokenizer.fromEnvironment();
+        try (ResponseInputStream<GetObjectResponse> in = SharedLambdaLayer.openObjectRange(s3, bucketName, key, head, shard.start, shard.end)) {
+            QuoteCountingChannel channel = new QuoteCountingChannel(in, shard, splits);
+            tokenizer.tokenize(channel, shard.handler);
+            // A handler that stopped early still needs the quote count of the whole range
+            channel.drain();
+            shard.oddQuotes = channel.odd;
+        }
+        shard.rows = tokenizer.rowCount();
+        logger.fine(String.format("Shard %d-%d of %s: %d rows", shard.start, shard.end, key, shard.rows));
+    }
+
+    /**
+     * Exact quote state at {@code offset}, from the quote counts of the shards that tile the window. The
+     * window starts on a record boundary, so outside quotes.
+     */
+    private static boolean insideQuotesAt(long offset, List<? extends Shard<?>> shards) {
+        boolean odd = false;
+        for (Shard<?> shard : shards) {
+            if (shard.end <= offset) {
+                odd ^= shard.oddQuotes;
+            } else {
+                odd ^= shard.start == offset ? false : shard.oddQuotesBefore.get(offset);
+                break;
+            }
+        }
+        return odd;
+    }
+
+    private static <T> List<T> awaitAll(ExecutorService pool, List<Callable<T>> tasks, String key) throws IOException {
+        List<Future<T>> futures = new ArrayList<>();
+        for (Callable<T> task : tasks) {
+            futures.add(pool.submit(task));
+        }
+        List<T> results = new ArrayList<>();
+        try {
+            for (Future<T> future : futures) {
+                results.add(future.get());
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException("Sharded parse failed for " + key, cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Sharded parse interrupted for " + key, e);
+        }
+        return results;
+    }
+
+    /**
+     * Feeds the tokenizer from a ranged GET while tracking the parity of the quote bytes read, overall and
+     * at each nominal split point inside the range.
+     */
+    private static final class QuoteCountingChannel implements ReadableByteChannel {
+        private final InputStream in;
+        private final Shard<?> shard;
+        private final long[] splits;
+        private final byte[] chunk = new byte[CHUNK_SIZE];
+        private long position;
+        private boolean odd;
+        private boolean open = true;
+
+        QuoteCountingChannel(InputStream in, Shard<?> shard, long[] splits) {
+            this.in = in;
+            this.shard = shard;
+            this.splits = splits;
+            this.position = shard.start;
+        }
+
+        @Override
+        public int read(ByteBuffer target) throws IOException {
+            int read = in.read(chunk, 0, Math.min(chunk.length, target.remaining()));
+            if (read == -1) {
+                return -1;
+            }
+            count(read);
+            target.put(chunk, 0, read);
+            return read;
+        }
+
+        void drain() throws IOException {
+            int read;
+            while ((read = in.read(chunk)) != -1) {
+                count(read);
+            }
+        }
+
+        private void count(int read) {
+            for (int i = 0; i < read; i++) {
+                if (chunk[i] == QUOTE) {
+                    odd = !odd;
+                }
+            }
+            long end = position + read;
+            for (long split : splits) {
+                if (split > position && split <= end && split < shard.end) {
+                    // Parity of [shard.start, split): recount the tail of this chunk past the split
+                    boolean before = odd;
+                    for (int i = (int) (split - position); i < read; i++) {
+                        if (chunk[i] == QUOTE) {
+                            before = !before;
+                        }
+                    }
+                    shard.oddQuotesBefore.put(split, before);
+                }
+            }
+            position = end;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            open = false;
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package com.s3fileprocesslambdalayer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * RFC 4180 tokenizer working directly on bytes: quoted fields, doubled quotes, embedded
+ * delimiters and newlines, CRLF or LF terminators, and a configurable delimiter.
+ * Rows are reported through a reused {@link CsvRow} view, so steady-state parsing allocates nothing.
+ * Blank lines are skipped. An unterminated quote at end of input ends the field at end of input.
+ */
+public final class CsvTokenizer {
+
+    /** Receives each record; return {@code false} to stop tokenizing after this row. */
+    @FunctionalInterface
+    public interface RowHandler {
+        boolean row(CsvRow row) throws IOException;
+    }
+
+    private static final byte QUOTE = '"';
+    private static final byte CR = '\r';
+    private static final byte LF = '\n';
+    private static final int INCOMPLETE = -1;
+    private static final long MAX_MAP_WINDOW = 1L << 30;
+
+    private final byte delimiter;
+    private final int bufferSize;
+    private final CsvRow row = new CsvRow();
+
+    private long rowCount;
+    private long bytesConsumed;
+    private boolean stopped;
+
+    public CsvTokenizer(byte delimiter, int bufferSize) {
+        if (delimiter == QUOTE || delimiter == CR || delimiter == LF) {
+            throw new IllegalArgumentException("Delimiter cannot be a quote or a line terminator");
+        }
+        this.delimiter = delimiter;
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Tokenizer configured from CSV_DELIMITER (a single character, or {@code \t}/{@code tab})
+     * and CSV_BUFFER_KB (streaming buffer size, default 1024).
+     */
+    public static CsvTokenizer fromEnvironment() {
+        String configured = LayerConfig.get("CSV_DELIMITER", ",");
+        byte delimiter = "\\t".equals(configured) || "tab".equalsIgnoreCase(configured) ? (byte) '\t' : (byte) configured.charAt(0);
+        return new CsvTokenizer(delimiter, LayerConfig.getInt("CSV_BUFFER_KB", 1024) * 1024);
+    }
+
+    public byte delimiter() {
+        return delimiter;
+    }
+
+    /** Rows reported so far. */
+    public long rowCount() {
+        return rowCount;
+    }
+
+    /** Bytes of input covered by the rows reported so far, terminators included. */
+    public long bytesConsumed() {
+        return bytesConsumed;
+    }
+
+    /** True when a handler returned {@code false}. */
+    public boolean isStopped() {
+        return stopped;
+    }
+
+    /**
+     * Tokenizes the remaining bytes of {@code buffer} as a complete input, e.g. a mapped file or a
+     * fully received body. Returns the number of rows reported.
+     */
+    public long tokenize(ByteBuffer buffer, RowHandler handler) throws IOException {
+        long before = rowCount;
+        int consumed = scan(buffer, buffer.position(), buffer.limit(), true, -buffer.position(), handler);
+        bytesConsumed += consumed - buffer.position();
+        return rowCount - before;
+    }
+
+    /**
+     * Memory-maps a local file window by window (1 GB at most) and tokenizes it. Each window
+     * after the first starts at a record boundary, so rows never straddle two mappings.
+     */
+    public long tokenize(Path file, RowHandler handler) throws IOException {
+        long before = rowCount;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long position = 0;
+            while (position < size && !stopped) {
+                long length = Math.min(MAX_MAP_WINDOW, size - position);
+                boolean last = position + length == size;
+                MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                int consumed = scan(mapped, 0, (int) length, last, position, handler);
+                if (consumed == 0 && !last && !stopped) {
+                    throw new IOException("CSV record at byte " + position + " exceeds the maximum mapping window");
+                }
+                position += consumed;
+                bytesConsumed += consumed;
+            }
+        }
+        return rowCount - before;
+    }
+
+    /**
+     * Tokenizes a stream through one reusable direct buffer. Partial records at the end of a read are
+     * carried over to the next read; the buffer doubles only if a single record does not fit.
+     */
+    public long tokenize(ReadableByteChannel channel, RowHandler handler) throws IOException {
+        long before = rowCount;
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bufferSize);
+        long base = 0;
+        boolean eof = false;
+        while (!eof && !stopped) {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) == -1) {
+                    eof = true;
+                    break;
+                }
+            }
+            buffer.flip();
+            int consumed = scan(buffer, 0, buffer.limit(), eof, base, handler);
+            base += consumed;
+            bytesConsumed += consumed;
+            buffer.position(consumed);
+            if (consumed == 0 && buffer.limit() == buffer.capacity() && !eof && !stopped) {
+                ByteBuffer grown = ByteBuffer.allocateDirect(buffer.capacity() * 2);
+                grown.put(buffer);
+                buffer = grown;
+            } else {
+                buffer.compact();
+            }
+        }
+        return rowCount - before;
+    }
+
+    /**
+     * Scans complete records in [start, limit) and returns the index just past the last record
+     * reported. When {@code eof} is false a trailing partial record is left unconsumed.
+     */
+    private int scan(ByteBuffer buf, int start, int limit, boolean eof, long base, RowHandler handler) throws IOException {
+        int recordStart = start;
+        while (recordStart < limit && !stopped) {
+            byte first = buf.get(recordStart);
+            if (first == LF || first == CR) {
+                recordStart++;
+                continue;
+            }
+            int end = parseRecord(buf, recordStart, limit, eof, base);
+            if (end == INCOMPLETE) {
+                break;
+            }
+            rowCount++;
+            row.end(base + end);
+            if (!handler.row(row)) {
+                stopped = true;
+            }
+            recordStart = end;
+        }
+        return recordStart;
+    }
+
+    /**
+     * Parses one record starting at {@code p} into {@link #row}. Returns the index after its
+     * terminator, or {@link #INCOMPLETE} when more input is needed.
+     */
+    private int parseRecord(ByteBuffer buf, int p, int limit, boolean eof, long base) {
+        row.reset(buf, rowCount, base + p);
+        while (true) {
+            if (p >= limit) {
+                if (!eof) {
+                    return INCOMPLETE;
+                }
+                row.add(p, 0, false); // trailing delimiter at end of input
+                return p;
+            }
+
+            if (buf.get(p) == QUOTE) {
+                int contentStart = ++p;
+                boolean escapedQuotes = false;
+                int contentEnd;
+                while (true) {
+                    if (p >= limit) {
+                        if (!eof) {
+                            return INCOMPLETE;
+                        }
+                        contentEnd = limit; // unterminated quote: take the rest of the input
+                        break;
+                    }
+                    if (buf.get(p) == QUOTE) {
+                        if (p + 1 < limit && buf.get(p + 1) == QUOTE) {
+                            escapedQuotes = true;
+                            p += 2;
+                            continue;
+                        }
+                        if (p + 1 >= limit && !eof) {
+                            return INCOMPLETE;
+                        }
+                        contentEnd = p++;
+                        break;
+                    }
+                    p++;
+                }
+                row.add(contentStart, contentEnd - contentStart, escapedQuotes);
+                // Lenient: ignore stray bytes between the closing quote and the next separator
+                while (p < limit) {
+                    byte b = buf.get(p);
+                    if (b == delimiter || b == LF || b == CR) {
+                        break;
+                    }
+                    p++;
+                }
+            } else {
+                int fieldStart = p;
+                while (p < limit) {
+                    byte b = buf.get(p);
+                    if (b == delimiter || b == LF || b == CR) {
+                        break;
+                    }
+                    p++;
+                }
+                row.add(fieldStart, p - fieldStart, false);
+            }
+
+            if (p >= limit) {
+                return eof ? p : INCOMPLETE;
+            }
+            byte separator = buf.get(p++);
+            if (separator == delimiter) {
+                continue;
+            }
+            if (separator == CR) {
+                if (p < limit) {
+                    if (buf.get(p) == LF) {
+                        p++;
+                    }
+                } else if (!eof) {
+                    return INCOMPLETE; // cannot tell CRLF from a lone CR yet
+                }
+            }
+            return p;
+        }
+    }
+}
@@ -0,0 +1,298 @@
+package com.s3fileprocesslambdalayer;
+
+import io.airlift.compress.zstd.ZstdInputStream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.InflaterInputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/** Writes CSV rows as COLF files and reads them back with a decoder written from {@code docs/columnar-format.md}. */
+class ColumnarFileWriterTest {
+    private static final CsvSchema SCHEMA = new CsvSchema(List.of("id", "big", "score", "city", "note"),
+            List.of(CsvSchema.ColumnType.INT, CsvSchema.ColumnType.LONG, CsvSchema.ColumnType.DOUBLE,
+                    CsvSchema.ColumnType.STRING, CsvSchema.ColumnType.STRING), true);
+
+    @TempDir
+    Path dir;
+
+    @ParameterizedTest
+    @EnumSource(ColumnarFileWriter.Codec.class)
+    void rowsReadBackWithEveryCodec(ColumnarFileWriter.Codec codec) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ColumnarFileWriter writer = ColumnarFileWriter.create(SCHEMA, out, codec, 8 * 1024);
+        write(writer, 0, 3000, true);
+        writer.close();
+
+        Colf file = Colf.read(out.toByteArray());
+
+        assertEquals(SCHEMA.toString(), file.schema.toString());
+        assertEquals(3000, file.rows);
+        assertEquals(writer.rowGroupCount(), file.rowGroups);
+        assertTrue(file.rowGroups > 1);
+        assertEquals(expected(0, 3000), file.values);
+        assertEquals(out.size(), writer.bytesWritten());
+        if (codec != ColumnarFileWriter.Codec.NONE) {
+            assertTrue(file.codecs.contains(codec), "no chunk was compressed with " + codec);
+        }
+    }
+
+    @Test
+    void eachPageUsesTheSmallerEncoding() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ColumnarFileWriter writer = ColumnarFileWriter.create(SCHEMA, out, ColumnarFileWriter.Codec.NONE, 1 << 20);
+        write(writer, 0, 1000, true);
+        writer.close();
+
+        Colf file = Colf.read(out.toByteArray());
+
+        // Sorted ids as deltas, a handful of cities as a dictionary, unique notes as they are
+        assertEquals(EnumSet.of(ColumnarFileWriter.Encoding.DELTA), file.encodings.get(0));
+        assertEquals(EnumSet.of(ColumnarFileWriter.Encoding.PLAIN), file.encodings.get(1));
+        assertEquals(EnumSet.of(ColumnarFileWriter.Encoding.DICTIONARY), file.encodings.get(3));
+        assertEquals(EnumSet.of(ColumnarFileWriter.Encoding.PLAIN), file.encodings.get(4));
+    }
+
+    @Test
+    void spilledShardsAreAppendedInOrder() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ColumnarFileWriter writer = ColumnarFileWriter.create(SCHEMA, out, ColumnarFileWriter.Codec.ZSTD, 4 * 1024);
+        write(writer, 0, 700, true);
+        Path spillFile = dir.resolve("shard-1.colf");
+        ColumnarFileWriter spill = ColumnarFileWriter.spill(SCHEMA, spillFile, ColumnarFileWriter.Codec.ZSTD, 4 * 1024);
+        write(spill, 700, 1500, false);
+
+        writer.appendSpill(spill);
+        writer.close();
+
+        assertFalse(Files.exists(spillFile));
+        Colf file = Colf.read(out.toByteArray());
+        assertEquals(1500, file.rows);
+        assertEquals(expected(0, 1500), file.values);
+    }
+
+    @Test
+    void emptyFileHasAFooterAndNoRowGroups() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ColumnarFileWriter.create(SCHEMA, out, ColumnarFileWriter.Codec.ZSTD, 1 << 20).close();
+
+        Colf file = Colf.read(out.toByteArray());
+
+        assertEquals(0, file.rows);
+        assertEquals(0, file.rowGroups);
+        assertEquals(SCHEMA.toString(), file.schema.toString());
+    }
+
+    /** Tokenizes rows {@code from} to {@code to} of {@link #csv(int)} into {@code writer} in batches of 128. */
+    private static void write(ColumnarFileWriter writer, int from, int to, boolean header) throws IOException {
+        StringBuilder csv = new StringBuilder(header ? "id,big,score,city,note\n" : "");
+        for (int i = from; i < to; i++) {
+            csv.append(csv(i)).append('\n');
+        }
+        ColumnBatcher batcher = new ColumnBatcher(SCHEMA, header, writer, 128, 1 << 16);
+        new CsvTokenizer((byte) ',', 1024).tokenize(ByteBuffer.wrap(csv.toString().getBytes(StandardCharsets.UTF_8)), batcher);
+        batcher.flush();
+    }
+
+    /** Row {@code i}: big values spread over the whole long range, every 17th score empty, every 23rd id unparsable. */
+    private static String csv(int i) {
+        return (i % 23 == 5 ? "n/a" : Integer.toString(i)) + ','
+                + (i * 0x9E3779B97F4A7C15L) + ','
+                + (i % 17 == 3 ? "" : Double.toString(i / 8.0)) + ','
+                + "city-" + (i % 5) + ','
+                + "\"note " + i + ", with \"\"quotes\"\"\"";
+    }
+
+    private static List<List<Object>> expected(int from, int to) {
+        List<List<Object>> rows = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            rows.add(Arrays.asList(i % 23 == 5 ? null : i, i * 0x9E3779B97F4A7C15L, i % 17 == 3 ? null : i / 8.0,
+                    "city-" + (i % 5), "note " + i + ", with \"quotes\""));
+        }
+        return rows;
+    }
+
+    /** A COLF file decoded whole: its schema, rows, and which codecs and encodings it used. */
+    private static final class Colf {
+        CsvSchema schema;
+        long rows;
+        int rowGroups;
+        final List<List<Object>> values = new ArrayList<>();
+        final Set<ColumnarFileWriter.Codec> codecs = EnumSet.noneOf(ColumnarFileWriter.Codec.class);
+        final List<Set<ColumnarFileWriter.Encoding>> encodings = new ArrayList<>();
+
+        static Colf read(byte[] bytes) throws IOException {
+            ByteBuffer data = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+            assertEquals("COLF", new String(bytes, 0, 4, StandardCharsets.US_ASCII));
+            assertEquals(1, bytes[4]);
+            assertEquals("COLF", new String(bytes, bytes.length - 4, 4, StandardCharsets.US_ASCII));
+            int footerLength = data.getInt(bytes.length - 8);
+            ByteBuffer footer = ByteBuffer.wrap(bytes, bytes.length - 8 - footerLength, footerLength);
+
+            Colf file = new Colf();
+            int columns = (int) varint(footer);
+            List<String> names = new ArrayList<>();
+            List<CsvSchema.ColumnType> types = new ArrayList<>();
+            for (int c = 0; c < columns; c++) {
+                byte[] name = new byte[(int) varint(footer)];
+                footer.get(name);
+                names.add(new String(name, StandardCharsets.UTF_8));
+                types.add(CsvSchema.ColumnType.values()[footer.get()]);
+                file.encodings.add(EnumSet.noneOf(ColumnarFileWriter.Encoding.class));
+            }
+            file.schema = new CsvSchema(names, types, true);
+            file.rows = varint(footer);
+            file.rowGroups = (int) varint(footer);
+            for (int g = 0; g < file.rowGroups; g++) {
+                int groupRows = (int) varint(footer);
+                List<List<Object>> columnValues = new ArrayList<>();
+                for (int c = 0; c < columns; c++) {
+                    int offset = (int) varint(footer);
+                    int length = (int) varint(footer);
+                    int rawLength = (int) varint(footer);
+                    ColumnarFileWriter.Codec codec = ColumnarFileWriter.Codec.values()[footer.get()];
+                    long nulls = varint(footer);
+                    file.codecs.add(codec);
+                    byte[] chunk = decompress(codec, bytes, offset, length, rawLength);
+                    List<Object> decoded = decodeChunk(ByteBuffer.wrap(chunk).order(ByteOrder.LITTLE_ENDIAN), types.get(c),
+                            file.encodings.get(c));
+                    assertEquals(groupRows, decoded.size());
+                    assertEquals(nulls, decoded.stream().filter(v -> v == null).count());
+                    columnValues.add(decoded);
+                }
+                for (int r = 0; r < groupRows; r++) {
+                    List<Object> row = new ArrayList<>();
+                    for (List<Object> column : columnValues) {
+                        row.add(column.get(r));
+                    }
+                    file.values.add(row);
+                }
+            }
+            assertFalse(footer.hasRemaining());
+            return file;
+        }
+
+        private static byte[] decompress(ColumnarFileWriter.Codec codec, byte[] bytes, int offset, int length, int rawLength)
+                throws IOException {
+            InputStream stored = new ByteArrayInputStream(bytes, offset, length);
+            InputStream in = codec == ColumnarFileWriter.Codec.ZSTD ? new ZstdInputStream(stored)
+                    : codec == ColumnarFileWriter.Codec.DEFLATE ? new InflaterInputStream(stored) : stored;
+            byte[] chunk = in.readAllBytes();
+            assertEquals(rawLength, chunk.length);
+            return chunk;
+        }
+
+        private static List<Object> decodeChunk(ByteBuffer chunk, CsvSchema.ColumnType type, Set<ColumnarFileWriter.Encoding> used) {
+            List<Object> values = new ArrayList<>();
+            while (chunk.hasRemaining()) {
+                int rows = (int) varint(chunk);
+                ColumnarFileWriter.Encoding encoding = ColumnarFileWriter.Encoding.values()[chunk.get()];
+                used.add(encoding);
+                byte[] bitmap = new byte[chunk.get() == 1 ? (rows + 7) / 8 : 0];
+                chunk.get(bitmap);
+                int valuesEnd = (int) varint(chunk) + chunk.position();
+                int[] codes = null;
+                List<String> dictionary = new ArrayList<>();
+                if (encoding == ColumnarFileWriter.Encoding.DICTIONARY) {
+                    long entries = varint(chunk);
+                    for (long e = 0; e < entries; e++) {
+                        dictionary.add(string(chunk));
+                    }
+                    int width = chunk.get();
+                    int present = 0;
+                    for (int r = 0; r < rows; r++) {
+                        present += isNull(bitmap, r) ? 0 : 1;
+                    }
+                    codes = unpack(chunk, width, present);
+                }
+                long previous = 0;
+                int next = 0;
+                for (int r = 0; r < rows; r++) {
+                    if (isNull(bitmap, r)) {
+                        values.add(null);
+                    } else if (encoding == ColumnarFileWriter.Encoding.DICTIONARY) {
+                        values.add(dictionary.get(codes[next++]));
+                    } else if (encoding == ColumnarFileWriter.Encoding.DELTA) {
+                        long zigzag = varint(chunk);
+                        previous += (zigzag >>> 1) ^ -(zigzag & 1);
+                        values.add(type == CsvSchema.ColumnType.INT ? (Object) (int) previous : (Object) previous);
+                    } else {
+                        switch (type) {
+                            case INT:
+                                values.add(chunk.getInt());
+                                break;
+                            case LONG:
+                                values.add(chunk.getLong());
+                                break;
+                            case DOUBLE:
+                                values.add(Double.longBitsToDouble(chunk.getLong()));
+                                break;
+                            default:
+                                values.add(string(chunk));
+                                break;
+                        }
+                    }
+                }
+                assertEquals(valuesEnd, chunk.position(), "page values length");
+            }
+            return values;
+        }
+
+        private static int[] unpack(ByteBuffer chunk, int width, int count) {
+            int[] codes = new int[count];
+            long bits = 0;
+            int pending = 0;
+            for (int i = 0; i < count; i++) {
+                while (pending < width) {
+                    bits |= (long) (chunk.get() & 0xFF) << pending;
+                    pending += 8;
+                }
+                codes[i] = (int) (bits & ((1L << width) - 1));
+                bits >>>= width;
+                pending -= width;
+            }
+            return codes;
+        }
+
+        private static boolean isNull(byte[] bitmap, int row) {
+            return bitmap.length > 0 && (bitmap[row / 8] & (1 << (row % 8))) != 0;
+        }
+
+        private static String string(ByteBuffer buffer) {
+            byte[] bytes = new byte[(int) varint(buffer)];
+            buffer.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        private static long varint(ByteBuffer buffer) {
+            long value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = buffer.get();
+                value |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            return value;
+        }
+    }
+}
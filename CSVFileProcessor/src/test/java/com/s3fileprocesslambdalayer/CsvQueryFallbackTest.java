@@ -0,0 +1,115 @@
+package com.s3fileprocesslambdalayer;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/** CSV queries against a store without S3 Select, which LocalS3Server answers with 501 like S3-compatible stores do. */
+class CsvQueryFallbackTest {
+    private static final String BUCKET = "bucket";
+
+    @TempDir
+    static Path tempDir;
+    private static LocalS3Server server;
+    private static final S3EventFactory events = new S3EventFactory("us-east-1");
+
+    // System properties set for the handler, with the values they had before
+    private static final Map<String, String> previous = new HashMap<>();
+
+    @BeforeAll
+    static void startServer() throws IOException {
+        server = LocalS3Server.start();
+        setProperty("S3_ENDPOINT_URL", server.endpoint().toString());
+        setProperty("BUCKET_NAME", BUCKET);
+        setProperty("TEMP_DIR", tempDir.toString());
+        setProperty("aws.region", "us-east-1");
+        setProperty("aws.accessKeyId", "local");
+        setProperty("aws.secretAccessKey", "local");
+        setProperty("CSV_PROFILE", "true");
+        setProperty("CSV_QUERIES", "sales/=id,amount WHERE amount >= 100 AND region != 'eu'");
+    }
+
+    @BeforeEach
+    void trySelectAgain() {
+        CsvSelect.resetSupport();
+    }
+
+    @AfterAll
+    static void stopServer() {
+        server.close();
+        previous.forEach((name, value) -> {
+            if (value == null) {
+                System.clearProperty(name);
+            } else {
+                System.setProperty(name, value);
+            }
+        });
+        CsvSelect.resetSupport();
+    }
+
+    private static void setProperty(String name, String value) {
+        previous.put(name, System.getProperty(name));
+        System.setProperty(name, value);
+    }
+
+    @Test
+    void queryIsAppliedLocallyOnceSelectIsRejected() {
+        long selectsBefore = server.selectRequests();
+        String summary = process("sales/2024.csv", sales(50));
+
+        assertTrue(summary.contains("All files processed successfully"), summary);
+        assertEquals(1, server.selectRequests() - selectsBefore);
+        String statistics = statistics("sales/2024.csv");
+        // amount = 10 * i, and every third row is in 'eu': rows 10..49 less the 13 'eu' ones among them
+        assertTrue(statistics.contains("\"rows\":27,"), statistics);
+        assertTrue(statistics.contains("\"name\":\"id\"") && statistics.contains("\"name\":\"amount\""), statistics);
+        assertFalse(statistics.contains("\"name\":\"region\""), statistics);
+
+        // Select is not tried again for the next object
+        long selects = server.selectRequests();
+        process("sales/2025.csv", sales(20));
+        assertEquals(selects, server.selectRequests());
+        assertTrue(statistics("sales/2025.csv").contains("\"rows\":7,"), statistics("sales/2025.csv"));
+    }
+
+    @Test
+    void keysWithoutAQueryKeepEveryRowAndColumn() {
+        process("other/2024.csv", sales(30));
+
+        String statistics = statistics("other/2024.csv");
+        assertTrue(statistics.contains("\"rows\":30,"), statistics);
+        assertTrue(statistics.contains("\"name\":\"region\""), statistics);
+    }
+
+    private static String process(String key, byte[] content) {
+        LocalS3Server.StoredObject stored = server.put(BUCKET, key, content);
+        return new CSVFileProcessor().handleRequest(events.event(List.of(
+                        events.objectCreated(BUCKET, key, content.length, stored.eTag(), stored.versionId()))),
+                new FakeContext("csv-file-processor", 1024, 60_000));
+    }
+
+    private static String statistics(String key) {
+        return new String(server.get(BUCKET, ColumnStatistics.sidecarKey(key)).content(), StandardCharsets.UTF_8);
+    }
+
+    private static byte[] sales(int rows) {
+        StringBuilder csv = new StringBuilder("id,region,amount\n");
+        for (int i = 0; i < rows; i++) {
+            csv.append(i).append(',').append(i % 3 == 0 ? "eu" : "us").append(',').append(i * 10).append('\n');
+        }
+        return csv.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
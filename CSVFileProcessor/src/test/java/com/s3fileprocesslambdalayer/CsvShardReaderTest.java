@@ -0,0 +1,141 @@
+package com.s3fileprocesslambdalayer;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CsvShardReaderTest {
+    private static LocalS3Server server;
+    private static S3Client s3;
+
+    @BeforeAll
+    static void startServer() throws IOException {
+        server = LocalS3Server.start();
+        s3 = server.client();
+    }
+
+    @AfterAll
+    static void stopServer() {
+        s3.close();
+        server.close();
+    }
+
+    @Test
+    void splitInsideAQuotedFieldIsMovedToTheNextRecord() throws IOException {
+        // Nearly all bytes are inside quoted fields full of newlines, so the nominal splits land inside them
+        byte[] csv = quotedCsv(40);
+        HeadObjectResponse head = put("quoted.csv", csv);
+        CsvShardReader reader = new CsvShardReader(s3, 4, 1);
+        assertTrue(anySplitInsideQuotes(csv, 4), "the fixture must put a split inside a quoted field");
+
+        List<CsvShardReader.Shard<Rows>> shards = reader.read("bucket", "quoted.csv", head, 0, Long.MAX_VALUE, start -> new Rows());
+
+        assertEquals(tokenize(csv), rowsOf(shards));
+        assertEquals(csv.length, shards.get(shards.size() - 1).end());
+        for (CsvShardReader.Shard<Rows> shard : shards) {
+            assertEquals(shard.rows(), shard.handler().rows.size());
+        }
+    }
+
+    @Test
+    void windowsResumeWhereThePreviousOneEnded() throws IOException {
+        byte[] csv = quotedCsv(40);
+        HeadObjectResponse head = put("windows.csv", csv);
+        CsvShardReader reader = new CsvShardReader(s3, 3, 1);
+
+        List<List<String>> rows = new ArrayList<>();
+        long from = 0;
+        int windows = 0;
+        while (from < csv.length) {
+            List<CsvShardReader.Shard<Rows>> shards = reader.read("bucket", "windows.csv", head, from, csv.length / 3, start -> new Rows());
+            rows.addAll(rowsOf(shards));
+            from = shards.get(shards.size() - 1).end();
+            windows++;
+        }
+
+        assertEquals(tokenize(csv), rows);
+        assertTrue(windows > 1);
+    }
+
+    @Test
+    void rangeWithoutARecordBoundaryMergesIntoItsNeighbour() throws IOException {
+        // One record far longer than the shards the object would otherwise be split into
+        String csv = "id,text\n1,\"" + "a\n".repeat(500) + "\"\n2,short\n";
+        byte[] bytes = csv.getBytes(StandardCharsets.UTF_8);
+        HeadObjectResponse head = put("long.csv", bytes);
+
+        List<CsvShardReader.Shard<Rows>> shards = new CsvShardReader(s3, 8, 1)
+                .read("bucket", "long.csv", head, 0, Long.MAX_VALUE, start -> new Rows());
+
+        assertEquals(tokenize(bytes), rowsOf(shards));
+        assertTrue(shards.size() < 8);
+    }
+
+    private static HeadObjectResponse put(String key, byte[] content) {
+        server.put("bucket", key, content);
+        return SharedLambdaLayer.headObject(s3, "bucket", key);
+    }
+
+    private static byte[] quotedCsv(int rows) {
+        StringBuilder csv = new StringBuilder("id,text,flag\n");
+        for (int i = 0; i < rows; i++) {
+            csv.append(i).append(",\"").append(("row " + i + " says \"\"hi\"\"\n").repeat(8)).append("\",").append(i % 2).append('\n');
+        }
+        return csv.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static boolean anySplitInsideQuotes(byte[] csv, int count) {
+        for (int i = 1; i < count; i++) {
+            long split = (long) csv.length * i / count;
+            boolean inside = false;
+            for (int b = 0; b < split; b++) {
+                if (csv[b] == '"') {
+                    inside = !inside;
+                }
+            }
+            if (inside) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static List<List<String>> tokenize(byte[] csv) throws IOException {
+        Rows rows = new Rows();
+        new CsvTokenizer((byte) ',', 1024).tokenize(ByteBuffer.wrap(csv), rows);
+        return rows.rows;
+    }
+
+    private static List<List<String>> rowsOf(List<CsvShardReader.Shard<Rows>> shards) {
+        List<List<String>> rows = new ArrayList<>();
+        for (CsvShardReader.Shard<Rows> shard : shards) {
+            rows.addAll(shard.handler().rows);
+        }
+        return rows;
+    }
+
+    private static final class Rows implements CsvTokenizer.RowHandler {
+        final List<List<String>> rows = new ArrayList<>();
+
+        @Override
+        public boolean row(CsvRow row) {
+            List<String> fields = new ArrayList<>();
+            for (int i = 0; i < row.fieldCount(); i++) {
+                fields.add(row.fieldAsString(i));
+            }
+            rows.add(fields);
+            return true;
+        }
+    }
+}
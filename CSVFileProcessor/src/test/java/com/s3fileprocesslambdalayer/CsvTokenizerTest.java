@@ -0,0 +1,134 @@
+package com.s3fileprocesslambdalayer;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class CsvTokenizerTest {
+
+    @Test
+    void quotedFieldsKeepEmbeddedNewlinesAndDelimiters() throws IOException {
+        List<List<String>> rows = tokenize("id,note\n1,\"two\nlines, one comma\"\r\n2,plain\n", 1024, 1024);
+
+        assertEquals(List.of(List.of("id", "note"), List.of("1", "two\nlines, one comma"), List.of("2", "plain")), rows);
+    }
+
+    @Test
+    void doubledQuotesCollapseToOne() throws IOException {
+        List<List<String>> rows = tokenize("a,\"say \"\"hi\"\"\",\"\"\"\"\n", 1024, 1024);
+
+        assertEquals(List.of(List.of("a", "say \"hi\"", "\"")), rows);
+    }
+
+    @Test
+    void blankLinesAreSkippedAndMissingTerminatorEndsTheLastRow() throws IOException {
+        List<List<String>> rows = tokenize("a,b\n\n\r\nc,\n", 1024, 1024);
+
+        assertEquals(List.of(List.of("a", "b"), List.of("c", "")), rows);
+        assertEquals(List.of(List.of("x", "y")), tokenize("x,y", 1024, 1024));
+    }
+
+    @Test
+    void unterminatedQuoteRunsToEndOfInput() throws IOException {
+        assertEquals(List.of(List.of("a", "open\nfield")), tokenize("a,\"open\nfield", 1024, 1024));
+    }
+
+    @Test
+    void recordsSpanningReadsAndBufferBoundariesParseTheSame() throws IOException {
+        StringBuilder csv = new StringBuilder("id,text\n");
+        for (int i = 0; i < 200; i++) {
+            csv.append(i).append(",\"quoted ").append(i).append(" with \"\" and\r\nbreak\"\r\n");
+        }
+        List<List<String>> whole = tokenize(csv.toString(), 1 << 16, 1 << 16);
+
+        assertEquals(201, whole.size());
+        assertEquals(List.of("7", "quoted 7 with \" and\r\nbreak"), whole.get(8));
+        // Every split point of a record falls on a read boundary somewhere, including between "" and CR LF
+        for (int chunk = 1; chunk <= 7; chunk++) {
+            assertEquals(whole, tokenize(csv.toString(), 16, chunk), "chunk " + chunk);
+        }
+    }
+
+    @Test
+    void bufferGrowsForARecordLargerThanIt() throws IOException {
+        String wide = "x".repeat(1000);
+        CsvTokenizer tokenizer = new CsvTokenizer((byte) ',', 8);
+        List<List<String>> rows = new ArrayList<>();
+        tokenizer.tokenize(new ChunkedChannel(("a," + wide + "\nb,c\n").getBytes(StandardCharsets.UTF_8), 5), collect(rows));
+
+        assertEquals(List.of(List.of("a", wide), List.of("b", "c")), rows);
+        assertEquals(wide.length() + 7, tokenizer.bytesConsumed());
+    }
+
+    @Test
+    void handlerCanStopAfterARow() throws IOException {
+        CsvTokenizer tokenizer = new CsvTokenizer((byte) ';', 1024);
+        List<Long> ends = new ArrayList<>();
+        tokenizer.tokenize(ByteBuffer.wrap("a;b\nc;d\ne;f\n".getBytes(StandardCharsets.UTF_8)), row -> {
+            ends.add(row.endByteOffset());
+            return row.index() < 1;
+        });
+
+        assertEquals(List.of(4L, 8L), ends);
+        assertEquals(2, tokenizer.rowCount());
+        assertEquals(true, tokenizer.isStopped());
+    }
+
+    private static List<List<String>> tokenize(String csv, int bufferSize, int chunk) throws IOException {
+        List<List<String>> rows = new ArrayList<>();
+        new CsvTokenizer((byte) ',', bufferSize).tokenize(new ChunkedChannel(csv.getBytes(StandardCharsets.UTF_8), chunk),
+                collect(rows));
+        return rows;
+    }
+
+    private static CsvTokenizer.RowHandler collect(List<List<String>> rows) {
+        return row -> {
+            List<String> fields = new ArrayList<>();
+            for (int i = 0; i < row.fieldCount(); i++) {
+                fields.add(row.fieldAsString(i));
+            }
+            rows.add(fields);
+            return true;
+        };
+    }
+
+    /** Hands out at most {@code chunk} bytes per read, as a slow network body does. */
+    private static final class ChunkedChannel implements ReadableByteChannel {
+        private final ByteBuffer data;
+        private final int chunk;
+
+        ChunkedChannel(byte[] bytes, int chunk) {
+            this.data = ByteBuffer.wrap(bytes);
+            this.chunk = chunk;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            if (!data.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(chunk, Math.min(dst.remaining(), data.remaining()));
+            ByteBuffer slice = data.slice();
+            slice.limit(n);
+            dst.put(slice);
+            data.position(data.position() + n);
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package com.s3fileprocesslambdalayer;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+import com.amazonaws.services.lambda.runtime.events.S3Event;
+import com.amazonaws.services.lambda.runtime.events.SQSBatchResponse;
+import com.amazonaws.services.lambda.runtime.events.SQSEvent;
+import com.amazonaws.services.lambda.runtime.events.models.s3.S3EventNotification.S3EventNotificationRecord;
+
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.ServiceLoader;
+import java.util.logging.Logger;
+
+/**
+ * Single entry point for every object type. Each record's type is decided by sniffing the first bytes of
+ * the object ({@link ContentSniffer}), not by its key suffix, and the record is then processed in-process
+ * by the matching {@link FileTypeProcessor}. The processors are discovered with ServiceLoader, so one warm
+ * container serves CSV, PDF and images alike.
+ */
+public class FileRouter implements RequestHandler<S3Event, String> {
+
+    private static final Logger logger = Logger.getLogger(FileRouter.class.getName());
+    private static final S3Client s3Client = SharedLambdaLayer.sharedS3Client();
+    private static final List<FileTypeProcessor> processors = loadProcessors();
+
+    private final String bucketName;
+
+    public FileRouter() {
+        this.bucketName = LayerConfig.get("BUCKET_NAME", null);
+        if (this.bucketName == null || this.bucketName.isEmpty()) {
+            logger.severe("BUCKET_NAME environment variable is not set. This function may not operate correctly.");
+        }
+        logger.info("FileRouter initialized. Target Bucket: " + bucketName);
+    }
+
+    @Override
+    public String handleRequest(S3Event event, Context context) {
+        logger.info("Received S3 event for routing. Request ID: " + context.getAwsRequestId());
+        long startTime = System.currentTimeMillis();
+        InvocationMetrics.begin(context.getFunctionName());
+        InvocationDeadline.begin(context);
+        try {
+            if (event == null || event.getRecords() == null || event.getRecords().isEmpty()) {
+                logger.warning("No records found in the S3 event.");
+                return "No records to process.";
+            }
+
+            List<RecordBatchRunner.Outcome> outcomes;
+            try (ObjectPrefetcher prefetcher = ObjectPrefetcher.start(event.getRecords())) {
+                outcomes = RecordBatchRunner.run(event.getRecords(),
+                        prefetcher.releasingUnclaimed(EventDeduplicator.skippingDuplicates(
+                                Continuations.resumable(this::routeRecord, Continuations.Entry.S3_EVENT), EventDeduplicator::identityOf)),
+                        SharedLambdaLayer::objectKeyOf);
+            }
+            List<String> failedFiles = RecordBatchRunner.keysWith(outcomes, RecordBatchRunner.Status.FAILED);
+            List<String> skippedFiles = RecordBatchRunner.keysWith(outcomes, RecordBatchRunner.Status.SKIPPED);
+            List<String> continuedFiles = RecordBatchRunner.keysWith(outcomes, RecordBatchRunner.Status.CONTINUED);
+
+            long endTime = System.currentTimeMillis();
+            logger.info(String.format("Routing completed in %d ms", (endTime - startTime)));
+            logger.info("Object cache: " + ObjectCache.shared().stats());
+
+            StringBuilder result = new StringBuilder("Processing Summary: ");
+            if (failedFiles.isEmpty()) {
+                result.append("All files processed successfully.");
+            } else {
+                result.append("Failed to process ").append(failedFiles.size()).append(" file(s): ").append(String.join(", ", failedFiles));
+            }
+            if (!skippedFiles.isEmpty()) {
+                result.append(". Skipped ").append(skippedFiles.size()).append(" file(s): ").append(String.join(", ", skippedFiles));
+            }
+            if (!continuedFiles.isEmpty()) {
+                result.append(". Continued ").append(continuedFiles.size()).append(" file(s) in a new invocation: ").append(String.join(", ", continuedFiles));
+            }
+
+            return result.toString();
+        } finally {
+            InvocationMetrics.emit();
+        }
+    }
+
+    /**
+     * Entry point for SQS-buffered ingestion: S3 notifications queued in SQS arrive here in batches.
+     * Returns the messages whose records failed, so SQS redelivers only those.
+     */
+    public SQSBatchResponse handleSqsEvent(SQSEvent event, Context context) {
+        logger.info("Received SQS batch for routing. Request ID: " + context.getAwsRequestId());
+        long startTime = System.currentTimeMillis();
+        InvocationMetrics.begin(context.getFunctionName());
+        InvocationDeadline.begin(context);
+        try {
+            SQSBatchResponse response = SqsBatchProcessor.process(event,
+                    EventDeduplicator.skippingDuplicates(
+                            Continuations.resumable(this::routeRecord, Continuations.Entry.SQS), EventDeduplicator::identityOf));
+            logger.info(String.format("SQS batch completed in %d ms", System.currentTimeMillis() - startTime));
+            return response;
+        } finally {
+            InvocationMetrics.emit();
+        }
+    }
+
+    /**
+     * Sniffs one record's object and hands it to the processor for its content type. Safe to call
+     * concurrently for different records.
+     */
+    private RecordBatchRunner.Outcome routeRecord(S3EventNotificationRecord record) {
+        String rawKey = record.getS3().getObject().getKey();
+        String s3Bucket = record.getS3().getBucket().getName();
+        String s3Key = null;
+
+        try {
+            long decodeStart = System.nanoTime();
+            s3Key = SharedLambdaLayer.objectKeyOf(record);
+            InvocationMetrics.record(InvocationMetrics.Stage.KEY_DECODE, decodeStart);
+
+            if (!s3Bucket.equals(this.bucketName)) {
+                logger.warning(String.format("Event bucket '%s' doesn't match expected bucket '%s'. Skipping: %s", s3Bucket, bucketName, s3Key));
+                return RecordBatchRunner.Outcome.skipped(s3Key);
+            }
+
+            // Checkpoints live in the same bucket; they are state, not input
+            if (CheckpointStore.isCheckpointKey(s3Key)) {
+                return RecordBatchRunner.Outcome.skipped(s3Key);
+            }
+
+            String mediaType = ContentSniffer.sniff(s3Client, s3Bucket, s3Key);
+            for (FileTypeProcessor processor : processors) {
+                if (processor.handles(mediaType)) {
+                    logger.info(String.format("Routing s3://%s/%s (%s) to the %s processor", s3Bucket, s3Key, mediaType, processor.type()));
+                    return processor.processObject(s3Bucket, s3Key);
+                }
+            }
+            logger.warning("No processor for content of " + s3Key + " (sniffed type: " + mediaType + ")");
+            return RecordBatchRunner.Outcome.skipped(s3Key);
+        } catch (NoSuchKeyException e) {
+            logger.severe(String.format("File not found on S3: %s/%s - %s", s3Bucket, s3Key, e.getMessage()));
+            return RecordBatchRunner.Outcome.failed(s3Key);
+        } catch (S3Exception e) {
+            logger.severe(String.format("S3 error while sniffing: %s - %s", s3Key, e.getMessage()));
+            return RecordBatchRunner.Outcome.failed(s3Key);
+        } catch (Exception e) {
+            logger.severe(String.format("Unhandled exception for key %s: %s", rawKey, e.getMessage()));
+            return RecordBatchRunner.Outcome.failed(s3Key != null ? s3Key : rawKey + " (decode_failed)");
+        }
+    }
+
+    private static List<FileTypeProcessor> loadProcessors() {
+        List<FileTypeProcessor> loaded = new ArrayList<>();
+        for (FileTypeProcessor processor : ServiceLoader.load(FileTypeProcessor.class)) {
+            loaded.add(processor);
+            logger.info("Registered " + processor.type() + " processor: " + processor.getClass().getName());
+        }
+        if (loaded.isEmpty()) {
+            logger.severe("No FileTypeProcessor found on the classpath; every record will be skipped.");
+        }
+        return loaded;
+    }
+}
@@ -0,0 +1,266 @@
+package com.s3fileprocesslambdalayer;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+/**
+ * Produces a configurable set of resized derivatives of an image from a single decode. The source is
+ * decoded once, at the coarsest {@link ImageProbe#subsamplingFor subsampling} that still covers the
+ * largest target, and every derivative is scaled and encoded from that raster in parallel.
+ *
+ * <p>DERIVATIVE_SPECS lists the outputs as {@code name:WIDTHxHEIGHT:format}, comma separated (default
+ * {@value #DEFAULT_SPECS}); each is fitted inside its box without upscaling. Outputs are written to
+ * {@code DERIVATIVE_PREFIX + name + "/" + source key}, with the extension of the output format, and keys
+ * under DERIVATIVE_PREFIX (default "derived/") are never derived again. DERIVATIVE_ENCODE_THREADS
+ * (default: available processors) bounds the parallel encodes, DERIVATIVE_JPEG_QUALITY (default 0.85)
+ * sets the JPEG quality.
+ */
+public class DerivativePipeline {
+    private static final Logger logger = Logger.getLogger(DerivativePipeline.class.getName());
+    static final String DEFAULT_SPECS = "thumb:200x200:jpg,medium:800x800:jpg,large:1600x1600:jpg";
+
+    /** One output size and format. */
+    public static final class Spec {
+        private final String name;
+        private final int width;
+        private final int height;
+        private final String format;
+
+        public Spec(String name, int width, int height, String format) {
+            if (width <= 0 || height <= 0) {
+                throw new IllegalArgumentException("Derivative " + name + " needs a positive size, got " + width + "x" + height);
+            }
+            this.name = name;
+            this.width = width;
+            this.height = height;
+            this.format = format.toLowerCase(Locale.ROOT);
+        }
+
+        /** Parses {@code name:WIDTHxHEIGHT:format}. */
+        public static Spec parse(String spec) {
+            String[] parts = spec.trim().split(":");
+            String[] size = parts.length == 3 ? parts[1].toLowerCase(Locale.ROOT).split("x") : new String[0];
+            if (size.length != 2) {
+                throw new IllegalArgumentException("Expected name:WIDTHxHEIGHT:format, got '" + spec + "'");
+            }
+            return new Spec(parts[0], Integer.parseInt(size[0]), Integer.parseInt(size[1]), parts[2]);
+        }
+
+        /** Parses a comma-separated list of specs; blank entries are ignored. */
+        public static List<Spec> parseAll(String specs) {
+            List<Spec> parsed = new ArrayList<>();
+            for (String spec : specs.split(",")) {
+                if (!spec.isBlank()) {
+                    parsed.add(parse(spec));
+                }
+            }
+            return parsed;
+        }
+
+        public String name() {
+            return name;
+        }
+
+        public String format() {
+            return format;
+        }
+
+        @Override
+        public String toString() {
+            return name + ":" + width + "x" + height + ":" + format;
+        }
+    }
+
+    /** Stores an encoded derivative; the S3 implementation is {@link SharedLambdaLayer#uploadBytes}. */
+    @FunctionalInterface
+    public interface Uploader {
+        void upload(String key, byte[] content, String contentType) throws IOException;
+    }
+
+    private final List<Spec> specs;
+    private final String prefix;
+    private final float jpegQuality;
+    private final ExecutorService encoders;
+
+    public DerivativePipeline(List<Spec> specs, String prefix, int encodeThreads, float jpegQuality) {
+        this.specs = Collections.unmodifiableList(new ArrayList<>(specs));
+        this.prefix = prefix;
+        this.jpegQuality = jpegQuality;
+        this.encoders = Executors.newFixedThreadPool(Math.max(1, encodeThreads), runnable -> {
+            Thread thread = new Thread(runnable, "derivative-encoder");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public static DerivativePipeline fromEnvironment() {
+        DerivativePipeline pipeline = new DerivativePipeline(
+                Spec.parseAll(LayerConfig.get("DERIVATIVE_SPECS", DEFAULT_SPECS)),
+                LayerConfig.get("DERIVATIVE_PREFIX", "derived/"),
+                LayerConfig.getInt("DERIVATIVE_ENCODE_THREADS", Runtime.getRuntime().availableProcessors()),
+                Float.parseFloat(LayerConfig.get("DERIVATIVE_JPEG_QUALITY", "0.85")));
+        logger.info("Derivatives " + pipeline.specs + " under prefix '" + pipeline.prefix + "'");
+        return pipeline;
+    }
+
+    public List<Spec> specs() {
+        return specs;
+    }
+
+    /** Whether {@code key} is one of our outputs, which must not be derived again. */
+    public boolean isDerivedKey(String key) {
+        return !prefix.isEmpty() && key.startsWith(prefix);
+    }
+
+    /** Output key of {@code spec} for {@code sourceKey}: the prefix, the spec name, then the key with the format's extension. */
+    public String outputKey(Spec spec, String sourceKey) {
+        int dot = sourceKey.lastIndexOf('.');
+        String base = dot > sourceKey.lastIndexOf('/') ? sourceKey.substring(0, dot) : sourceKey;
+        return prefix + spec.name + "/" + base + "." + spec.format;
+    }
+
+    /**
+     * Decodes {@code source} once and uploads every derivative through {@code uploader}. Returns the
+     * output keys in spec order; the first failing encode or upload fails the whole call.
+     */
+    public List<String> derive(Path source, String sourceKey, Uploader uploader) throws IOException {
+        if (specs.isEmpty()) {
+            return Collections.emptyList();
+        }
+        BufferedImage decoded = decodeOnce(source);
+
+        List<Future<String>> futures = new ArrayList<>(specs.size());
+        for (Spec spec : specs) {
+            futures.add(encoders.submit(() -> {
+                byte[] encoded = encode(scale(decoded, spec), spec.format);
+                String key = outputKey(spec, sourceKey);
+                uploader.upload(key, encoded, contentType(spec.format));
+                InvocationMetrics.add(InvocationMetrics.Counter.DERIVATIVES, 1);
+                return key;
+            }));
+        }
+
+        List<String> keys = new ArrayList<>(futures.size());
+        try {
+            for (Future<String> future : futures) {
+                keys.add(future.get());
+            }
+        } catch (ExecutionException e) {
+            futures.forEach(future -> future.cancel(true));
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Derivative generation failed for " + sourceKey, cause);
+        } catch (InterruptedException e) {
+            futures.forEach(future -> future.cancel(true));
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while generating derivatives for " + sourceKey, e);
+        }
+        return keys;
+    }
+
+    /** Decodes at the coarsest subsampling that still leaves enough pixels for the largest spec. */
+    BufferedImage decodeOnce(Path source) throws IOException {
+        ImageProbe.ImageInfo info = ImageProbe.probe(source);
+        int subsampling = Integer.MAX_VALUE;
+        for (Spec spec : specs) {
+            subsampling = Math.min(subsampling,
+                    ImageProbe.subsamplingFor(info.width(), info.height(), spec.width, spec.height));
+        }
+        BufferedImage decoded = ImageProbe.decode(source, subsampling, null);
+        if (decoded == null) {
+            throw new IOException("Unsupported or corrupt image format.");
+        }
+        logger.info("Decoded " + info + " once at 1/" + subsampling + " scale for " + specs.size() + " derivative(s)");
+        return decoded;
+    }
+
+    /**
+     * Fits the image inside the spec's box, keeping the aspect ratio and never upscaling. Large reductions
+     * are done in halving steps, so bilinear filtering does not alias.
+     */
+    static BufferedImage scale(BufferedImage source, Spec spec) {
+        double ratio = Math.min(1.0, Math.min((double) spec.width / source.getWidth(), (double) spec.height / source.getHeight()));
+        int targetWidth = Math.max(1, (int) Math.round(source.getWidth() * ratio));
+        int targetHeight = Math.max(1, (int) Math.round(source.getHeight() * ratio));
+        boolean alpha = source.getColorModel().hasAlpha() && !"jpg".equals(spec.format) && !"jpeg".equals(spec.format);
+        int type = alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+
+        BufferedImage current = source;
+        int width = source.getWidth();
+        int height = source.getHeight();
+        do {
+            width = Math.max(targetWidth, width / 2);
+            height = Math.max(targetHeight, height / 2);
+            current = redraw(current, width, height, type);
+        } while (width != targetWidth || height != targetHeight);
+        return current;
+    }
+
+    private static BufferedImage redraw(BufferedImage source, int width, int height, int type) {
+        BufferedImage target = new BufferedImage(width, height, type);
+        Graphics2D graphics = target.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.drawImage(source, 0, 0, width, height, null);
+        } finally {
+            graphics.dispose();
+        }
+        return target;
+    }
+
+    byte[] encode(BufferedImage image, String format) throws IOException {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(format);
+        if (!writers.hasNext()) {
+            throw new IOException("No ImageIO writer for derivative format " + format);
+        }
+        ImageWriter writer = writers.next();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ImageOutputStream output = ImageIO.createImageOutputStream(bytes)) {
+            writer.setOutput(output);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            if (param.canWriteCompressed() && ("jpg".equals(format) || "jpeg".equals(format))) {
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(jpegQuality);
+            }
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return bytes.toByteArray();
+    }
+
+    static String contentType(String format) {
+        switch (format) {
+            case "jpg":
+            case "jpeg":
+                return "image/jpeg";
+            case "png":
+                return "image/png";
+            case "gif":
+                return "image/gif";
+            default:
+                return "image/" + format;
+        }
+    }
+}
@@ -3,30 +3,43 @@ package com.s3fileprocesslambdalayer;
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
 import com.amazonaws.services.lambda.runtime.events.S3Event;
+import com.amazonaws.services.lambda.runtime.events.SQSBatchResponse;
+import com.amazonaws.services.lambda.runtime.events.SQSEvent;
 import com.amazonaws.services.lambda.runtime.events.models.s3.S3EventNotification.S3EventNotificationRecord;
 import software.amazon.awssdk.services.s3.S3Client;
 import software.amazon.awssdk.services.s3.model.S3Exception;
 import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
 
 import javax.imageio.ImageIO;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
-import java.net.URLDecoder;
-import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-public class ImageFileProcessor implements RequestHandler<S3Event, String> {
+public class ImageFileProcessor implements RequestHandler<S3Event, String>, FileTypeProcessor {
 
     private static final Logger logger = Logger.getLogger(ImageFileProcessor.class.getName());
-    private static final S3Client s3Client = S3Client.builder().build();
+    private static final S3Client s3Client = SharedLambdaLayer.sharedS3Client();
+    private static final List<String> allowedSuffixes = Arrays.asList(".jpg", ".jpeg", ".png", ".gif");
+    private static final String processingMode = LayerConfig.get("IMAGE_PROCESSING_MODE", "header");
+    private static final int decodeMaxDim = Math.max(1, LayerConfig.getInt("IMAGE_DECODE_MAX_DIM", 2048));
+    private static final Rectangle decodeRegion = parseRegion(LayerConfig.get("IMAGE_DECODE_REGION", null));
+    private static final DerivativePipeline derivatives = DerivativePipeline.fromEnvironment();
+
+    static {
+        StartupPriming.register("image", ImageFileProcessor::prime);
+    }
+
     private final String bucketName;
 
     public ImageFileProcessor() {
-        this.bucketName = System.getenv("BUCKET_NAME");
+        this.bucketName = LayerConfig.get("BUCKET_NAME", null);
         if (this.bucketName == null || this.bucketName.isEmpty()) {
             logger.severe("BUCKET_NAME environment variable is not set.");
         }
@@ -37,109 +50,238 @@ public class ImageFileProcessor implements RequestHandler<S3Event, String> {
     public String handleRequest(S3Event event, Context context) {
         logger.info("Received S3 event. Request ID: " + context.getAwsRequestId());
         long start = System.currentTimeMillis();
+        InvocationMetrics.begin(context.getFunctionName());
+        InvocationDeadline.begin(context);
+        try {
+            if (event == null || event.getRecords() == null || event.getRecords().isEmpty()) {
+                return "No S3 event records found.";
+            }
+
+            List<RecordBatchRunner.Outcome> outcomes;
+            try (ObjectPrefetcher prefetcher = ObjectPrefetcher.start(event.getRecords())) {
+                outcomes = RecordBatchRunner.run(event.getRecords(),
+                        prefetcher.releasingUnclaimed(EventDeduplicator.skippingDuplicates(
+                                Continuations.resumable(this::processRecord, Continuations.Entry.S3_EVENT), EventDeduplicator::identityOf)),
+                        SharedLambdaLayer::objectKeyOf);
+            }
+            List<String> failedFiles = RecordBatchRunner.keysWith(outcomes, RecordBatchRunner.Status.FAILED);
+            List<String> skippedFiles = RecordBatchRunner.keysWith(outcomes, RecordBatchRunner.Status.SKIPPED);
+            List<String> continuedFiles = RecordBatchRunner.keysWith(outcomes, RecordBatchRunner.Status.CONTINUED);
 
-        if (event == null || event.getRecords() == null || event.getRecords().isEmpty()) {
-            return "No S3 event records found.";
+            long duration = System.currentTimeMillis() - start;
+            logger.info("Image processing completed in " + duration + " ms");
+            logger.info("Object cache: " + ObjectCache.shared().stats());
+
+            StringBuilder result = new StringBuilder("Summary: ");
+            if (failedFiles.isEmpty()) {
+                result.append("All images processed successfully.");
+            } else {
+                result.append("Failed: ").append(String.join(", ", failedFiles));
+            }
+            if (!skippedFiles.isEmpty()) {
+                result.append(" | Skipped: ").append(String.join(", ", skippedFiles));
+            }
+            if (!continuedFiles.isEmpty()) {
+                result.append(" | Continued: ").append(String.join(", ", continuedFiles));
+            }
+            return result.toString();
+        } finally {
+            InvocationMetrics.emit();
         }
+    }
 
-        List<String> failedFiles = new ArrayList<>();
-        List<String> skippedFiles = new ArrayList<>();
-        final List<String> allowedSuffixes = Arrays.asList(".jpg", ".jpeg", ".png", ".gif");
+    /**
+     * Entry point for SQS-buffered ingestion: S3 notifications queued in SQS arrive here in batches.
+     * Returns the messages whose records failed, so SQS redelivers only those.
+     */
+    public SQSBatchResponse handleSqsEvent(SQSEvent event, Context context) {
+        logger.info("Received SQS batch for image. Request ID: " + context.getAwsRequestId());
+        long startTime = System.currentTimeMillis();
+        InvocationMetrics.begin(context.getFunctionName());
+        InvocationDeadline.begin(context);
+        try {
+            SQSBatchResponse response = SqsBatchProcessor.process(event,
+                    EventDeduplicator.skippingDuplicates(
+                            Continuations.resumable(this::processRecord, Continuations.Entry.SQS), EventDeduplicator::identityOf));
+            logger.info(String.format("SQS batch completed in %d ms", System.currentTimeMillis() - startTime));
+            return response;
+        } finally {
+            InvocationMetrics.emit();
+        }
+    }
 
-        for (S3EventNotificationRecord record : event.getRecords()) {
-            String rawKey = record.getS3().getObject().getKey();
-            String s3Bucket = record.getS3().getBucket().getName();
-            // IMPORTANT: Initialize s3Key with rawKey in case decoding fails
-            String s3Key = rawKey;
+    /**
+     * Processes one S3 event record. Safe to call concurrently for different records.
+     */
+    private RecordBatchRunner.Outcome processRecord(S3EventNotificationRecord record) {
+        String rawKey = record.getS3().getObject().getKey();
+        String s3Bucket = record.getS3().getBucket().getName();
+        // IMPORTANT: Initialize s3Key with rawKey in case decoding fails
+        String s3Key = rawKey;
 
-            // <--- ADD START OF OUTER TRY BLOCK HERE
-            try {
-                // Decode the S3 key, as it can contain URL-encoded characters
-                s3Key = URLDecoder.decode(rawKey, StandardCharsets.UTF_8);
-                logger.info(String.format("Processing record for S3 object: s3://%s/%s (decoded: %s)", s3Bucket, rawKey, s3Key));
-
-                // Defensive checks: Validate bucket and file type
-                if (!s3Bucket.equals(this.bucketName)) {
-                    logger.warning("Mismatched bucket. Expected: " + this.bucketName + ", got: " + s3Bucket);
-                    skippedFiles.add(s3Key);
-                    continue;
-                }
+        // <--- ADD START OF OUTER TRY BLOCK HERE
+        try {
+            // Decode the S3 key, as it can contain URL-encoded characters
+            long decodeStart = System.nanoTime();
+            s3Key = SharedLambdaLayer.objectKeyOf(record);
+            InvocationMetrics.record(InvocationMetrics.Stage.KEY_DECODE, decodeStart);
+            logger.info(String.format("Processing record for S3 object: s3://%s/%s (decoded: %s)", s3Bucket, rawKey, s3Key));
 
-                boolean isImage = allowedSuffixes.stream().anyMatch(s3Key.toLowerCase()::endsWith);
-                if (!isImage) {
-                    logger.warning("Unsupported image format: " + s3Key);
-                    skippedFiles.add(s3Key);
-                    continue;
-                }
+            // Defensive checks: Validate bucket and file type
+            if (!s3Bucket.equals(this.bucketName)) {
+                logger.warning("Mismatched bucket. Expected: " + this.bucketName + ", got: " + s3Bucket);
+                return RecordBatchRunner.Outcome.skipped(s3Key);
+            }
 
-                Path localPath = null;
-                try {
-                    localPath = SharedLambdaLayer.downloadFileAsPath(s3Client, s3Bucket, s3Key);
-                    // ✅ Log files in /tmp after download
-                    File tmpDir = new File("/tmp");
-                    String[] tmpFiles = tmpDir.list();
-                    if (tmpFiles != null && tmpFiles.length > 0) {
-                        logger.info("Files present in /tmp:");
-                        for (String file : tmpFiles) {
-                            logger.info(" - " + file);
-                        }
-                    } else {
-                        logger.info("No files present in /tmp.");
-                    }
-                    processImageFile(localPath);
-
-                } catch (NoSuchKeyException e) {
-                    // Handle the specific case where the file was not found
-                    logger.warning("File not found on S3: " + s3Key);
-                    failedFiles.add(s3Key);
-                } catch (S3Exception e) {
-                    // Handle other S3-related errors (e.g., permissions, service issues)
-                    logger.log(Level.SEVERE, "S3 error processing " + s3Key, e);
-                    failedFiles.add(s3Key);
-                } catch (IOException e) {
-                    // Handle local I/O errors during download or processing
-                    logger.log(Level.SEVERE, "I/O error processing " + s3Key, e);
-                    failedFiles.add(s3Key);
-                } finally {
-                    if (localPath != null) {
-                        SharedLambdaLayer.cleanUpFile(localPath);
-                    }
-                }
-                // <--- ADD END OF TRY BLOCK HERE
-            } catch (Exception e) {
-                // This catch block handles any unexpected exceptions during initial processing
-                // like a malformed URL-encoded key.
-                logger.log(Level.SEVERE, "Unhandled exception processing record for raw key: " + rawKey, e);
-                // Use the decoded key if available, otherwise the raw key
-                failedFiles.add(s3Key);
+            boolean isImage = allowedSuffixes.stream().anyMatch(s3Key.toLowerCase()::endsWith);
+            if (!isImage) {
+                logger.warning("Unsupported image format: " + s3Key);
+                return RecordBatchRunner.Outcome.skipped(s3Key);
             }
-            // <--- ADD END OF CATCH BLOCK HERE
+
+            return processObject(s3Bucket, s3Key);
+            // <--- ADD END OF TRY BLOCK HERE
+        } catch (Exception e) {
+            // This catch block handles any unexpected exceptions during initial processing
+            // like a malformed URL-encoded key.
+            logger.log(Level.SEVERE, "Unhandled exception processing record for raw key: " + rawKey, e);
+            // Use the decoded key if available, otherwise the raw key
+            return RecordBatchRunner.Outcome.failed(s3Key);
         }
+    }
+
+    @Override
+    public String type() {
+        return "image";
+    }
 
-        long duration = System.currentTimeMillis() - start;
-        logger.info("Image processing completed in " + duration + " ms");
+    @Override
+    public boolean handles(String mediaType) {
+        return mediaType != null && mediaType.startsWith("image/");
+    }
 
-        StringBuilder result = new StringBuilder("Summary: ");
-        if (failedFiles.isEmpty()) {
-            result.append("All images processed successfully.");
-        } else {
-            result.append("Failed: ").append(String.join(", ", failedFiles));
+    /**
+     * Downloads one image and reads, decodes or derives from it according to IMAGE_PROCESSING_MODE.
+     */
+    @Override
+    public RecordBatchRunner.Outcome processObject(String s3Bucket, String s3Key) {
+        // Our own derivatives land in the same bucket; deriving from them again would loop forever
+        if (derivatives.isDerivedKey(s3Key)) {
+            logger.info("Skipping derived object: " + s3Key);
+            return RecordBatchRunner.Outcome.skipped(s3Key);
         }
-        if (!skippedFiles.isEmpty()) {
-            result.append(" | Skipped: ").append(String.join(", ", skippedFiles));
+
+        Path localPath = null;
+        try {
+            localPath = SharedLambdaLayer.downloadFileAsPath(s3Client, s3Bucket, s3Key);
+            // ✅ Log files in /tmp after download
+            File tmpDir = new File("/tmp");
+            String[] tmpFiles = tmpDir.list();
+            if (tmpFiles != null && tmpFiles.length > 0) {
+                logger.info("Files present in /tmp:");
+                for (String file : tmpFiles) {
+                    logger.info(" - " + file);
+                }
+            } else {
+                logger.info("No files present in /tmp.");
+            }
+            processImageFile(localPath, s3Bucket, s3Key);
+            return RecordBatchRunner.Outcome.processed(s3Key);
+
+        } catch (NoSuchKeyException e) {
+            // Handle the specific case where the file was not found
+            logger.warning("File not found on S3: " + s3Key);
+            return RecordBatchRunner.Outcome.failed(s3Key);
+        } catch (S3Exception e) {
+            // Handle other S3-related errors (e.g., permissions, service issues)
+            logger.log(Level.SEVERE, "S3 error processing " + s3Key, e);
+            return RecordBatchRunner.Outcome.failed(s3Key);
+        } catch (IOException e) {
+            // Handle local I/O errors during download or processing
+            logger.log(Level.SEVERE, "I/O error processing " + s3Key, e);
+            return RecordBatchRunner.Outcome.failed(s3Key);
+        } finally {
+            if (localPath != null) {
+                SharedLambdaLayer.cleanUpFile(localPath);
+            }
         }
-        return result.toString();
     }
 
-    private void processImageFile(Path path) throws IOException {
+    /**
+     * By default only the image header is read (IMAGE_PROCESSING_MODE=header), which yields dimensions,
+     * format and color model without allocating a raster. IMAGE_PROCESSING_MODE=decode decodes pixels,
+     * subsampled so neither side exceeds IMAGE_DECODE_MAX_DIM and limited to IMAGE_DECODE_REGION if set.
+     * IMAGE_PROCESSING_MODE=derive generates and uploads the {@link DerivativePipeline} outputs.
+     */
+    private void processImageFile(Path path, String bucket, String key) throws IOException {
         logger.info("Reading image from path: " + path);
-        BufferedImage image = ImageIO.read(path.toFile());
+        long start = System.nanoTime();
+        ImageProbe.ImageInfo info = ImageProbe.probe(path);
+        logger.info("Image header read successfully: " + info);
 
-        if (image != null) {
-            logger.info("Image read successfully. Dimensions: " +
+        if ("derive".equalsIgnoreCase(processingMode)) {
+            List<String> outputs = derivatives.derive(path, key,
+                    (outputKey, content, contentType) -> SharedLambdaLayer.uploadBytes(s3Client, bucket, outputKey, content, contentType));
+            logger.info("Derivatives written: " + String.join(", ", outputs));
+        } else if ("decode".equalsIgnoreCase(processingMode)) {
+            Rectangle region = decodeRegion != null ? decodeRegion.intersection(
+                    new Rectangle(0, 0, info.width(), info.height())) : null;
+            if (region != null && region.isEmpty()) {
+                throw new IOException("IMAGE_DECODE_REGION " + decodeRegion + " lies outside the "
+                        + info.width() + "x" + info.height() + " image.");
+            }
+            int sourceWidth = region != null ? region.width : info.width();
+            int sourceHeight = region != null ? region.height : info.height();
+            // Smallest step that keeps both sides within IMAGE_DECODE_MAX_DIM
+            int subsampling = Math.max(1, (int) Math.ceil(
+                    Math.max((double) sourceWidth / decodeMaxDim, (double) sourceHeight / decodeMaxDim)));
+            BufferedImage image = ImageProbe.decode(path, subsampling, region);
+            if (image == null) {
+                throw new IOException("Unsupported or corrupt image format.");
+            }
+            logger.info("Image decoded at 1/" + subsampling + " scale. Dimensions: " +
                     image.getWidth() + "x" + image.getHeight());
-        } else {
-            throw new IOException("Unsupported or corrupt image format.");
         }
+        InvocationMetrics.record(InvocationMetrics.Stage.PARSE, start);
+        InvocationMetrics.add(InvocationMetrics.Counter.PIXELS, info.pixels());
+    }
+
+    /**
+     * Round-trips a small image through every supported format and the derivative scale and encode paths,
+     * so the ImageIO plugin registry and codecs are initialised before the first real image.
+     */
+    private static void prime() throws IOException {
+        BufferedImage sample = new BufferedImage(64, 48, BufferedImage.TYPE_INT_RGB);
+        for (String format : new String[]{"png", "jpg", "gif"}) {
+            Path file = Files.createTempFile(Paths.get(SharedLambdaLayer.getTempDir()), "prime-", "." + format);
+            try {
+                ImageIO.write(sample, format, file.toFile());
+                ImageProbe.probe(file);
+                ImageProbe.decode(file, 2, null);
+            } finally {
+                Files.deleteIfExists(file);
+            }
+        }
+        for (DerivativePipeline.Spec spec : derivatives.specs()) {
+            derivatives.encode(DerivativePipeline.scale(sample, spec), spec.format());
+        }
+    }
+
+    /** Parses IMAGE_DECODE_REGION ("x,y,width,height"); returns null when unset or malformed. */
+    private static Rectangle parseRegion(String spec) {
+        if (spec == null || spec.isBlank()) {
+            return null;
+        }
+        String[] parts = spec.split(",");
+        try {
+            if (parts.length == 4) {
+                return new Rectangle(Integer.parseInt(parts[0].trim()), Integer.parseInt(parts[1].trim()),
+                        Integer.parseInt(parts[2].trim()), Integer.parseInt(parts[3].trim()));
+            }
+        } catch (NumberFormatException e) {
+            // fall through to the warning below
+        }
+        logger.warning("Ignoring malformed IMAGE_DECODE_REGION '" + spec + "', expected x,y,width,height");
+        return null;
     }
-}
\ No newline at end of file
+}
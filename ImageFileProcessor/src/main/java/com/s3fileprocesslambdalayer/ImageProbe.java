@@ -0,0 +1,157 @@
+package com.s3fileprocesslambdalayer;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Rectangle;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Iterator;
+
+/**
+ * {@link ImageReader}-based access to images that avoids decoding the full raster. {@link #probe} reads
+ * dimensions, format and color model from the header alone; {@link #decode} decodes only every n-th
+ * pixel and optionally only a region, so heap use scales with the output instead of the source.
+ */
+public final class ImageProbe {
+
+    /** What the image header says about the image. */
+    public static final class ImageInfo {
+        private final String format;
+        private final int width;
+        private final int height;
+        private final String colorModel;
+
+        ImageInfo(String format, int width, int height, String colorModel) {
+            this.format = format;
+            this.width = width;
+            this.height = height;
+            this.colorModel = colorModel;
+        }
+
+        public String format() {
+            return format;
+        }
+
+        public int width() {
+            return width;
+        }
+
+        public int height() {
+            return height;
+        }
+
+        public long pixels() {
+            return (long) width * height;
+        }
+
+        public String colorModel() {
+            return colorModel;
+        }
+
+        @Override
+        public String toString() {
+            return format + " " + width + "x" + height + " (" + colorModel + ")";
+        }
+    }
+
+    private ImageProbe() {
+    }
+
+    /**
+     * Reads format, dimensions and color model of the first image without decoding any pixels.
+     *
+     * @throws IOException if no ImageIO reader recognises the file or the header is corrupt.
+     */
+    public static ImageInfo probe(Path file) throws IOException {
+        try (ImageInputStream input = open(file)) {
+            ImageReader reader = readerFor(input, file);
+            try {
+                reader.setInput(input, true, true);
+                return new ImageInfo(reader.getFormatName().toLowerCase(), reader.getWidth(0), reader.getHeight(0),
+                        describe(reader.getRawImageType(0)));
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Decodes the first image, keeping every {@code subsampling}-th pixel in both directions and, if
+     * {@code region} is not null, only that region of the source (in source pixel coordinates).
+     */
+    public static BufferedImage decode(Path file, int subsampling, Rectangle region) throws IOException {
+        try (ImageInputStream input = open(file)) {
+            ImageReader reader = readerFor(input, file);
+            try {
+                reader.setInput(input, true, true);
+                ImageReadParam param = reader.getDefaultReadParam();
+                int step = Math.max(1, subsampling);
+                param.setSourceSubsampling(step, step, 0, 0);
+                if (region != null) {
+                    param.setSourceRegion(region);
+                }
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * The coarsest subsampling whose output is still at least as large as the image scaled to fit inside
+     * {@code targetWidth} x {@code targetHeight}, i.e. the cheapest decode that can be downscaled into that
+     * box without upscaling.
+     */
+    public static int subsamplingFor(int width, int height, int targetWidth, int targetHeight) {
+        int byWidth = width / Math.max(1, targetWidth);
+        int byHeight = height / Math.max(1, targetHeight);
+        return Math.max(1, Math.max(byWidth, byHeight));
+    }
+
+    private static ImageInputStream open(Path file) throws IOException {
+        ImageInputStream input = ImageIO.createImageInputStream(file.toFile());
+        if (input == null) {
+            throw new IOException("Cannot open image stream for " + file);
+        }
+        return input;
+    }
+
+    private static ImageReader readerFor(ImageInputStream input, Path file) throws IOException {
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+        if (!readers.hasNext()) {
+            input.close();
+            throw new IOException("Unsupported or corrupt image format: " + file.getFileName());
+        }
+        return readers.next();
+    }
+
+    private static String describe(ImageTypeSpecifier type) {
+        ColorModel model = type != null ? type.getColorModel() : null;
+        if (model == null) {
+            return "unknown color model";
+        }
+        return colorSpaceName(model.getColorSpace().getType()) + ", " + model.getNumComponents() + " components, "
+                + model.getPixelSize() + " bpp" + (model.hasAlpha() ? ", alpha" : "");
+    }
+
+    private static String colorSpaceName(int type) {
+        switch (type) {
+            case ColorSpace.TYPE_RGB:
+                return "RGB";
+            case ColorSpace.TYPE_GRAY:
+                return "Gray";
+            case ColorSpace.TYPE_CMYK:
+                return "CMYK";
+            case ColorSpace.TYPE_YCbCr:
+                return "YCbCr";
+            default:
+                return "color space type " + type;
+        }
+    }
+}
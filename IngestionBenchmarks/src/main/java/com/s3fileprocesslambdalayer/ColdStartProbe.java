@@ -0,0 +1,66 @@
+package com.s3fileprocesslambdalayer;
+
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+import com.amazonaws.services.lambda.runtime.events.S3Event;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * One cold start, run in a fresh JVM by {@link LoadHarness} --cold-starts. Times each startup phase of a
+ * handler against an object the parent already stored in its {@link LocalS3Server}; the endpoint, bucket
+ * and credentials arrive as -D properties. Prints a single line of phase=nanos pairs on stdout.
+ *
+ * <pre>
+ * java -cp benchmarks.jar -DS3_ENDPOINT_URL=... com.s3fileprocesslambdalayer.ColdStartProbe \
+ *     com.s3fileprocesslambdalayer.PDFFileProcessor "incoming/cold.pdf" 52311 &lt;etag&gt; &lt;version&gt; true
+ * </pre>
+ */
+public class ColdStartProbe {
+    static final String PREFIX = "COLD ";
+
+    public static void main(String[] args) throws Exception {
+        Instant mainEntered = Instant.now();
+        String handlerClass = args[0];
+        String key = args[1];
+        long size = Long.parseLong(args[2]);
+        String eTag = args[3];
+        String versionId = args[4];
+        boolean prime = args.length > 5 && Boolean.parseBoolean(args[5]);
+        Map<String, Long> phases = new LinkedHashMap<>();
+
+        ProcessHandle.current().info().startInstant().ifPresent(
+                started -> phases.put("jvm", Duration.between(started, mainEntered).toNanos()));
+
+        long start = System.nanoTime();
+        Class<?> type = Class.forName(handlerClass);
+        phases.put("classInit", System.nanoTime() - start);
+
+        start = System.nanoTime();
+        @SuppressWarnings("unchecked")
+        RequestHandler<S3Event, String> handler = (RequestHandler<S3Event, String>) type.getDeclaredConstructor().newInstance();
+        phases.put("construct", System.nanoTime() - start);
+
+        if (prime) {
+            start = System.nanoTime();
+            StartupPriming.primeAll();
+            phases.put("prime", System.nanoTime() - start);
+        }
+
+        S3EventFactory events = new S3EventFactory("us-east-1");
+        String bucket = System.getProperty("BUCKET_NAME");
+        for (String phase : new String[]{"firstInvoke", "secondInvoke"}) {
+            S3Event event = events.event(Collections.singletonList(events.objectCreated(bucket, key, size, eTag, versionId)));
+            start = System.nanoTime();
+            handler.handleRequest(event, new FakeContext("cold-start-probe", 512, 60_000));
+            phases.put(phase, System.nanoTime() - start);
+        }
+
+        StringBuilder line = new StringBuilder(PREFIX);
+        phases.forEach((phase, nanos) -> line.append(phase).append('=').append(nanos).append(' '));
+        System.out.println(line.toString().trim());
+    }
+}
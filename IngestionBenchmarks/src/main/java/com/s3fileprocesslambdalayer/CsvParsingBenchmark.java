@@ -0,0 +1,92 @@
+package com.s3fileprocesslambdalayer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CSV tokenizer throughput by input size and column count, over a direct buffer, over a stream and over a
+ * gzip or zstd stream decompressed on the fly.
+ * Divide the input size by the reported time to get MB/s.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class CsvParsingBenchmark {
+
+    @Param({"1", "16", "64"})
+    public int sizeMb;
+
+    @Param({"4", "16", "64"})
+    public int columns;
+
+    private byte[] content;
+    private byte[] gzip;
+    private byte[] zstd;
+    private ByteBuffer direct;
+    private CsvSchema schema;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        content = SyntheticData.csv(sizeMb * 1024L * 1024L, columns, 7);
+        direct = ByteBuffer.allocateDirect(content.length);
+        direct.put(content).flip();
+        gzip = SyntheticData.compress(content, CompressedInput.Codec.GZIP, 4);
+        zstd = SyntheticData.compress(content, CompressedInput.Codec.ZSTD, 1);
+        schema = CsvSchema.infer(ByteBuffer.wrap(content, 0, Math.min(content.length, CsvSchema.sampleBytes())), (byte) ',');
+    }
+
+    @Benchmark
+    public long tokenizeDirectBuffer() throws IOException {
+        CsvTokenizer tokenizer = new CsvTokenizer((byte) ',', 1024 * 1024);
+        return tokenizer.tokenize(direct.duplicate(), row -> true);
+    }
+
+    @Benchmark
+    public long tokenizeStream() throws IOException {
+        CsvTokenizer tokenizer = new CsvTokenizer((byte) ',', 1024 * 1024);
+        return tokenizer.tokenize(Channels.newChannel(new ByteArrayInputStream(content)), row -> true);
+    }
+
+    /** Same content as gzip (four members); MB/s is still of the uncompressed size. */
+    @Benchmark
+    public long tokenizeGzipStream() throws IOException {
+        CsvTokenizer tokenizer = new CsvTokenizer((byte) ',', 1024 * 1024);
+        return tokenizer.tokenize(Channels.newChannel(CompressedInput.open(new ByteArrayInputStream(gzip))), row -> true);
+    }
+
+    @Benchmark
+    public long tokenizeZstdStream() throws IOException {
+        CsvTokenizer tokenizer = new CsvTokenizer((byte) ',', 1024 * 1024);
+        return tokenizer.tokenize(Channels.newChannel(CompressedInput.open(new ByteArrayInputStream(zstd))), row -> true);
+    }
+
+    /** Tokenizing plus conversion to typed column batches and their statistics, as with CSV_PROFILE=true. */
+    @Benchmark
+    public long tokenizeIntoColumnBatches() throws IOException {
+        CsvTokenizer tokenizer = new CsvTokenizer((byte) ',', 1024 * 1024);
+        ColumnStatistics statistics = new ColumnStatistics(schema, 12);
+        ColumnBatcher batcher = new ColumnBatcher(schema, schema.hasHeader(), statistics, 8192, 4 * 1024 * 1024);
+        tokenizer.tokenize(direct.duplicate(), batcher);
+        batcher.flush();
+        return statistics.rows();
+    }
+}
@@ -0,0 +1,71 @@
+package com.s3fileprocesslambdalayer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Derivatives per second from {@link DerivativePipeline}: one decode of the source plus the scale and
+ * encode of each of the default three specs, with uploads replaced by a byte counter. With threads=1 the
+ * score is derivatives/sec per vCPU; higher thread counts show how the parallel encodes scale.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class DerivativeBenchmark {
+    private static final int SPECS = 3;
+
+    @Param({"png", "jpg"})
+    public String format;
+
+    @Param({"1920x1080", "4000x3000"})
+    public String resolution;
+
+    @Param({"1", "4"})
+    public int threads;
+
+    private Path source;
+    private DerivativePipeline pipeline;
+    private final AtomicLong bytesOut = new AtomicLong();
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        String[] size = resolution.split("x");
+        source = Files.createTempFile("derivative-bench", "." + format);
+        Files.write(source, SyntheticData.image(format, Integer.parseInt(size[0]), Integer.parseInt(size[1]), 3));
+        pipeline = new DerivativePipeline(DerivativePipeline.Spec.parseAll(DerivativePipeline.DEFAULT_SPECS),
+                "derived/", threads, 0.85f);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(source);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SPECS)
+    public int derive() throws IOException {
+        return pipeline.derive(source, "bench/source." + format,
+                (key, content, contentType) -> bytesOut.addAndGet(content.length)).size();
+    }
+}
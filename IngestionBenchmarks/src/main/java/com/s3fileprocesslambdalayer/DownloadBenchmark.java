@@ -0,0 +1,102 @@
+package com.s3fileprocesslambdalayer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Compares the shared layer's download paths against the in-process S3 stand-in, by object size.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DownloadBenchmark {
+    private static final String BUCKET = "bench-bucket";
+    private static final String KEY = "incoming/object.bin";
+
+    @Param({"1", "16", "128"})
+    public int objectSizeMb;
+
+    private LocalS3Server server;
+    private S3Client s3;
+    private Path tempDir;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        tempDir = Files.createTempDirectory("download-bench");
+        System.setProperty("TEMP_DIR", tempDir.toString());
+        // Every iteration downloads the same key, which the object cache would turn into a hit after the first
+        System.setProperty("OBJECT_CACHE_ENABLED", "false");
+        server = LocalS3Server.start();
+        s3 = server.client();
+        byte[] content = new byte[objectSizeMb * 1024 * 1024];
+        new Random(42).nextBytes(content);
+        server.put(BUCKET, KEY, content);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        s3.close();
+        server.close();
+        try (Stream<Path> walk = Files.walk(tempDir)) {
+            for (Path path : walk.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    @Benchmark
+    public long downloadFile() {
+        File file = SharedLambdaLayer.downloadFile(s3, BUCKET, KEY);
+        long length = file.length();
+        SharedLambdaLayer.cleanUpFile(file.toPath());
+        return length;
+    }
+
+    @Benchmark
+    public long downloadFileAsPath() throws IOException {
+        Path path = SharedLambdaLayer.downloadFileAsPath(s3, BUCKET, KEY);
+        long length = Files.size(path);
+        SharedLambdaLayer.cleanUpFile(path);
+        return length;
+    }
+
+    @Benchmark
+    public long openObjectStream() throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        long total = 0;
+        try (ResponseInputStream<GetObjectResponse> in = SharedLambdaLayer.openObjectStream(s3, BUCKET, KEY)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                total += read;
+            }
+        }
+        return total;
+    }
+}
@@ -0,0 +1,52 @@
+package com.s3fileprocesslambdalayer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Full ImageIO.read decode, as ImageFileProcessor runs it, by format and resolution.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class ImageDecodeBenchmark {
+
+    @Param({"png", "jpg", "gif"})
+    public String format;
+
+    @Param({"640x480", "1920x1080", "4000x3000"})
+    public String resolution;
+
+    private byte[] encoded;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        String[] size = resolution.split("x");
+        encoded = SyntheticData.image(format, Integer.parseInt(size[0]), Integer.parseInt(size[1]), 3);
+    }
+
+    @Benchmark
+    public int imageIoRead() throws IOException {
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(encoded));
+        return image.getWidth() * image.getHeight();
+    }
+}
@@ -0,0 +1,89 @@
+package com.s3fileprocesslambdalayer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.imageio.ImageIO;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Full ImageIO.read decode against the header-only probe and the subsampled and region decodes of
+ * {@link ImageProbe}, reading from a local file as ImageFileProcessor does. Run with {@code -prof gc}: the
+ * {@code gc.alloc.rate.norm} column is the heap each strategy allocates per image, dominated by the raster.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class ImageProbeBenchmark {
+
+    @Param({"png", "jpg", "gif"})
+    public String format;
+
+    @Param({"1920x1080", "4000x3000"})
+    public String resolution;
+
+    @Param({"512"})
+    public int maxDim;
+
+    private Path file;
+    private int subsampling;
+    private Rectangle centre;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        String[] size = resolution.split("x");
+        int width = Integer.parseInt(size[0]);
+        int height = Integer.parseInt(size[1]);
+        file = Files.createTempFile("image-probe-bench", "." + format);
+        Files.write(file, SyntheticData.image(format, width, height, 3));
+        subsampling = ImageProbe.subsamplingFor(width, height, maxDim, maxDim);
+        centre = new Rectangle((width - maxDim) / 2, (height - maxDim) / 2, maxDim, maxDim);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public long fullDecode() throws IOException {
+        BufferedImage image = ImageIO.read(file.toFile());
+        return (long) image.getWidth() * image.getHeight();
+    }
+
+    @Benchmark
+    public long headerProbe() throws IOException {
+        return ImageProbe.probe(file).pixels();
+    }
+
+    @Benchmark
+    public long subsampledDecode() throws IOException {
+        BufferedImage image = ImageProbe.decode(file, subsampling, null);
+        return (long) image.getWidth() * image.getHeight();
+    }
+
+    @Benchmark
+    public long regionDecode() throws IOException {
+        BufferedImage image = ImageProbe.decode(file, 1, centre);
+        return (long) image.getWidth() * image.getHeight();
+    }
+}
@@ -0,0 +1,38 @@
+package com.s3fileprocesslambdalayer;
+
+import java.util.Arrays;
+
+/**
+ * Collects raw latency samples for one stage and reports percentiles. Harness-side only.
+ */
+public class LatencyRecorder {
+    private long[] samples = new long[1024];
+    private int count;
+
+    public synchronized void record(long nanos) {
+        if (count == samples.length) {
+            samples = Arrays.copyOf(samples, count * 2);
+        }
+        samples[count++] = nanos;
+    }
+
+    public synchronized int count() {
+        return count;
+    }
+
+    /** Percentile in milliseconds, e.g. {@code percentileMillis(99.9)}. */
+    public synchronized double percentileMillis(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100.0 * count) - 1;
+        return sorted[Math.max(0, Math.min(count - 1, index))] / 1e6;
+    }
+
+    public String summary() {
+        return String.format("n=%d p50=%.2fms p99=%.2fms p999=%.2fms", count(), percentileMillis(50),
+                percentileMillis(99), percentileMillis(99.9));
+    }
+}
@@ -0,0 +1,490 @@
+package com.s3fileprocesslambdalayer;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+import com.amazonaws.services.lambda.runtime.events.S3Event;
+import com.amazonaws.services.lambda.runtime.events.SQSBatchResponse;
+import com.amazonaws.services.lambda.runtime.events.SQSEvent;
+import com.amazonaws.services.lambda.runtime.events.models.s3.S3EventNotification.S3EventNotificationRecord;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.BiFunction;
+
+/**
+ * Replays synthetic S3Event batches through the real processor handlers, backed by {@link LocalS3Server},
+ * and reports files/sec, MB/sec and latency percentiles per handler and stage.
+ *
+ * <pre>
+ * java -cp benchmarks.jar com.s3fileprocesslambdalayer.LoadHarness \
+ *     --batches=50 --records=10 --mix=csv:5,pdf:3,image:2 --keys=zipf --key-space=500 \
+ *     --csv-kb=1024 --pdf-pages=20 --image=1920x1080 --timeout-ms=60000
+ * </pre>
+ *
+ * <p>--cold-starts=N additionally launches N fresh JVMs per handler ({@link ColdStartProbe}) and reports
+ * the startup phases; --prime runs the startup primers first and --cds=path starts them with an AppCDS archive.
+ *
+ * <p>--queue=N replays the SQS-buffered mode instead: each notification goes to a {@link LocalSqsQueue} per
+ * type, and the queues are drained in batches of up to N messages through the handlers' handleSqsEvent.
+ *
+ * <p>Records a handler continues in a new invocation ({@link Continuations}) are replayed right after the
+ * invocation that continued them, as a one-record event or a queued message. --checkpoint-mb=N checkpoints
+ * objects from N MB, and a short --timeout-ms makes large objects stop and resume part way.
+ * --csv-compression=gzip|zstd uploads the CSV payload compressed, under a .csv.gz or .csv.zst key.
+ * --csv-query='col0,col2 WHERE col1 >= 5000' applies a {@link CsvQuery} to every CSV; the stand-in refuses
+ * S3 Select, so this measures the local filter. --pdf-index=true turns on PDF_INDEX, so PDF records also pay for
+ * indexing their text and uploading the segment.
+ */
+public class LoadHarness {
+    private static final String BUCKET = "file-processor-s3-bkt";
+
+    private final Map<String, String> options;
+    private final Random random;
+    private final Map<String, FileType> types = new LinkedHashMap<>();
+    private final Map<String, LatencyRecorder> stages = new LinkedHashMap<>();
+    // Per-record stage histograms reported by the handlers through InvocationMetrics, summed over invocations
+    private final Map<String, InvocationMetrics.Histogram> handlerStages = new LinkedHashMap<>();
+    private final double[] zipfCumulative;
+    private long sequentialKey;
+    private long redeliveries;
+    // Records continued by the last invocation, which may schedule them from several record threads
+    private final List<S3EventNotificationRecord> continued = Collections.synchronizedList(new ArrayList<>());
+
+    /** One input type: its handler, generated payload and the totals accumulated for it. */
+    private static final class FileType {
+        final String name;
+        String extension;
+        final int weight;
+        byte[] payload;
+        RequestHandler<S3Event, String> handler;
+        BiFunction<SQSEvent, Context, SQSBatchResponse> sqsHandler;
+        LocalSqsQueue queue;
+        long files;
+        long bytes;
+        long invokeNanos;
+        final long[] counters = new long[InvocationMetrics.Counter.values().length];
+
+        FileType(String name, String extension, int weight) {
+            this.name = name;
+            this.extension = extension;
+            this.weight = weight;
+        }
+    }
+
+    LoadHarness(Map<String, String> options) {
+        this.options = options;
+        this.random = new Random(Long.parseLong(option("seed", "42")));
+        for (String entry : option("mix", "csv:1,pdf:1,image:1").split(",")) {
+            String[] parts = entry.split(":");
+            String name = parts[0].trim();
+            String extension = name.equals("image") ? "png" : name;
+            types.put(name, new FileType(name, extension, parts.length > 1 ? Integer.parseInt(parts[1].trim()) : 1));
+        }
+        int keySpace = Integer.parseInt(option("key-space", "1000"));
+        zipfCumulative = new double[keySpace];
+        double total = 0;
+        for (int i = 0; i < keySpace; i++) {
+            total += 1.0 / Math.pow(i + 1, 1.1);
+            zipfCumulative[i] = total;
+        }
+        for (int i = 0; i < keySpace; i++) {
+            zipfCumulative[i] /= total;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (arg.startsWith("--") && arg.contains("=")) {
+                options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+            }
+        }
+        new LoadHarness(options).run();
+    }
+
+    void run() throws IOException {
+        Path tempDir = Files.createTempDirectory("load-harness");
+        try (LocalS3Server server = LocalS3Server.start()) {
+            configureEnvironment(server, tempDir);
+            generatePayloads();
+            createHandlers();
+
+            int batches = Integer.parseInt(option("batches", "20"));
+            int recordsPerBatch = Integer.parseInt(option("records", "10"));
+            long timeoutMillis = Long.parseLong(option("timeout-ms", "60000"));
+            int memoryMb = Integer.parseInt(option("memory-mb", "512"));
+            double duplicates = Double.parseDouble(option("duplicates", "0"));
+            int queueBatchSize = Integer.parseInt(option("queue", "0"));
+            S3EventFactory events = new S3EventFactory("us-east-1");
+            Continuations.useScheduler((record, entry) -> continued.add(record));
+            Map<FileType, List<S3EventNotificationRecord>> delivered = new HashMap<>();
+
+            long start = System.nanoTime();
+            for (int batch = 0; batch < batches; batch++) {
+                Map<FileType, List<S3EventNotificationRecord>> byType = new LinkedHashMap<>();
+                for (int r = 0; r < recordsPerBatch; r++) {
+                    FileType type = pickType();
+                    List<S3EventNotificationRecord> history = delivered.computeIfAbsent(type, t -> new ArrayList<>());
+                    if (!history.isEmpty() && random.nextDouble() < duplicates) {
+                        // At-least-once delivery: the exact same notification, sequencer included, arrives again
+                        byType.computeIfAbsent(type, t -> new ArrayList<>()).add(history.get(random.nextInt(history.size())));
+                        redeliveries++;
+                        continue;
+                    }
+                    String key = nextKey(type);
+                    long putStart = System.nanoTime();
+                    // A repeated key is a redelivery of the stored version unless --overwrite asks for a new version
+                    LocalS3Server.StoredObject stored = server.get(BUCKET, key);
+                    if (stored == null || Boolean.parseBoolean(option("overwrite", "false"))) {
+                        stored = server.put(BUCKET, key, type.payload);
+                    }
+                    stage("put").record(System.nanoTime() - putStart);
+                    S3EventNotificationRecord record = events.objectCreated(BUCKET, key, type.payload.length, stored.eTag(), stored.versionId());
+                    history.add(record);
+                    byType.computeIfAbsent(type, t -> new ArrayList<>()).add(record);
+                }
+                // S3 routes each suffix to its own function, so each type gets its own event
+                for (Map.Entry<FileType, List<S3EventNotificationRecord>> entry : byType.entrySet()) {
+                    if (queueBatchSize > 0) {
+                        // S3 sends one message per notification; the queue batches them
+                        for (S3EventNotificationRecord record : entry.getValue()) {
+                            entry.getKey().queue.send(S3NotificationMessages.toJson(List.of(record)));
+                        }
+                        drainQueue(entry.getKey(), queueBatchSize, timeoutMillis, memoryMb);
+                    } else {
+                        invoke(entry.getKey(), events.event(entry.getValue()), timeoutMillis, memoryMb);
+                        // Each continuation is its own asynchronous invocation, as the self-invoke would be
+                        while (!continued.isEmpty()) {
+                            invoke(entry.getKey(), events.event(List.of(continued.remove(0))), timeoutMillis, memoryMb);
+                        }
+                    }
+                }
+            }
+            long wallNanos = System.nanoTime() - start;
+            measureColdStarts(server);
+            report(wallNanos, server);
+        } finally {
+            SharedLambdaLayer.cleanUpTempDirectory();
+            Files.deleteIfExists(tempDir);
+        }
+    }
+
+    private void invoke(FileType type, S3Event event, long timeoutMillis, int memoryMb) {
+        FakeContext context = new FakeContext(type.name + "-processor", memoryMb, timeoutMillis);
+        long invokeStart = System.nanoTime();
+        String summary = type.handler.handleRequest(event, context);
+        long elapsed = System.nanoTime() - invokeStart;
+        stage(type.name + ".invoke").record(elapsed);
+        stage(type.name + ".record").record(elapsed / event.getRecords().size());
+        if (context.getRemainingTimeInMillis() == 0) {
+            System.err.println("Invocation exceeded the " + timeoutMillis + " ms timeout: " + summary);
+        }
+        collect(type, elapsed, event.getRecords().size());
+    }
+
+    /** Invokes the type's SQS entry point until its queue has no visible messages left. */
+    private void drainQueue(FileType type, int batchSize, long timeoutMillis, int memoryMb) {
+        while (type.queue.hasVisibleMessages()) {
+            SQSEvent batch = type.queue.receive(batchSize);
+            FakeContext context = new FakeContext(type.name + "-processor", memoryMb, timeoutMillis);
+            long invokeStart = System.nanoTime();
+            SQSBatchResponse response = type.sqsHandler.apply(batch, context);
+            long elapsed = System.nanoTime() - invokeStart;
+            type.queue.acknowledge(batch, response);
+            // Continuations of queued records arrive as messages, so they are drained with the rest
+            for (S3EventNotificationRecord record : continued) {
+                type.queue.send(S3NotificationMessages.toJson(List.of(record)));
+            }
+            continued.clear();
+            stage(type.name + ".batch").record(elapsed);
+            stage(type.name + ".record").record(elapsed / batch.getRecords().size());
+            if (context.getRemainingTimeInMillis() == 0) {
+                System.err.println("Batch exceeded the " + timeoutMillis + " ms timeout");
+            }
+            collect(type, elapsed, batch.getRecords().size());
+        }
+    }
+
+    /** Adds one invocation's handler metrics and totals to the type. */
+    private void collect(FileType type, long elapsed, int records) {
+        for (InvocationMetrics.Stage stage : InvocationMetrics.Stage.values()) {
+            InvocationMetrics.histogram(stage).addTo(
+                    handlerStages.computeIfAbsent(type.name + "." + stage.metricName(), n -> new InvocationMetrics.Histogram()));
+        }
+        for (InvocationMetrics.Counter counter : InvocationMetrics.Counter.values()) {
+            type.counters[counter.ordinal()] += InvocationMetrics.counter(counter);
+        }
+        type.invokeNanos += elapsed;
+        // A continued file is invoked again, but counts once; its continuation is replayed within the run
+        long files = records - InvocationMetrics.counter(InvocationMetrics.Counter.CONTINUATIONS);
+        type.files += files;
+        type.bytes += files * type.payload.length;
+    }
+
+    /**
+     * Runs --cold-starts fresh JVMs per type against one stored object and records each reported phase as
+     * a "type.cold.phase" stage. Dedup and the object cache are off so both invocations do the full work.
+     */
+    private void measureColdStarts(LocalS3Server server) throws IOException {
+        int coldStarts = Integer.parseInt(option("cold-starts", "0"));
+        if (coldStarts <= 0) {
+            return;
+        }
+        for (FileType type : types.values()) {
+            String key = "incoming/cold-start/" + type.name + "." + type.extension;
+            LocalS3Server.StoredObject stored = server.put(BUCKET, key, type.payload);
+            for (int i = 0; i < coldStarts; i++) {
+                List<String> command = new ArrayList<>();
+                command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+                if (options.containsKey("cds")) {
+                    command.add("-XX:SharedArchiveFile=" + options.get("cds"));
+                }
+                for (String property : new String[]{"S3_ENDPOINT_URL", "BUCKET_NAME", "TEMP_DIR", "aws.region",
+                        "aws.accessKeyId", "aws.secretAccessKey"}) {
+                    command.add("-D" + property + "=" + System.getProperty(property));
+                }
+                command.add("-DDEDUP_ENABLED=false");
+                command.add("-DOBJECT_CACHE_ENABLED=false");
+                command.add("-cp");
+                command.add(System.getProperty("java.class.path"));
+                command.add(ColdStartProbe.class.getName());
+                command.add(handlerClassFor(type));
+                command.add(key);
+                command.add(String.valueOf(type.payload.length));
+                command.add(stored.eTag());
+                command.add(stored.versionId());
+                command.add(option("prime", "false"));
+                runColdStart(type, command);
+            }
+        }
+    }
+
+    private void runColdStart(FileType type, List<String> command) throws IOException {
+        Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.DISCARD).start();
+        String result = null;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                if (line.startsWith(ColdStartProbe.PREFIX)) {
+                    result = line.substring(ColdStartProbe.PREFIX.length());
+                }
+            }
+        }
+        try {
+            process.waitFor();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for a cold start", e);
+        }
+        if (result == null) {
+            System.err.println("Cold start of " + type.name + " reported nothing (exit " + process.exitValue() + ")");
+            return;
+        }
+        for (String pair : result.split(" ")) {
+            int eq = pair.indexOf('=');
+            stage(type.name + ".cold." + pair.substring(0, eq)).record(Long.parseLong(pair.substring(eq + 1)));
+        }
+    }
+
+    private String handlerClassFor(FileType type) {
+        if (Boolean.parseBoolean(option("router", "false"))) {
+            return FileRouter.class.getName();
+        }
+        switch (type.name) {
+            case "csv":
+                return CSVFileProcessor.class.getName();
+            case "pdf":
+                return PDFFileProcessor.class.getName();
+            default:
+                return ImageFileProcessor.class.getName();
+        }
+    }
+
+    private void configureEnvironment(LocalS3Server server, Path tempDir) {
+        System.setProperty("S3_ENDPOINT_URL", server.endpoint().toString());
+        System.setProperty("BUCKET_NAME", BUCKET);
+        System.setProperty("TEMP_DIR", tempDir.toString());
+        System.setProperty("aws.region", "us-east-1");
+        System.setProperty("aws.accessKeyId", "local");
+        System.setProperty("aws.secretAccessKey", "local");
+        if (options.containsKey("parallelism")) {
+            System.setProperty("RECORD_PARALLELISM", options.get("parallelism"));
+        }
+        if (options.containsKey("prefetch")) {
+            System.setProperty("ASYNC_PREFETCH", "true");
+            System.setProperty("PREFETCH_DEPTH", options.get("prefetch"));
+        }
+        if (options.containsKey("checkpoint-mb")) {
+            System.setProperty("CHECKPOINT_MIN_MB", options.get("checkpoint-mb"));
+        }
+        if (options.containsKey("csv-query")) {
+            // An empty prefix matches every key
+            System.setProperty("CSV_QUERIES", "=" + options.get("csv-query"));
+        }
+        if (Boolean.parseBoolean(option("pdf-index", "false"))) {
+            System.setProperty("PDF_INDEX", "true");
+        }
+        if (options.containsKey("csv-shards")) {
+            // Synthetic objects are small, so let every megabyte count as a shard
+            System.setProperty("CSV_SHARDS", options.get("csv-shards"));
+            System.setProperty("CSV_SHARD_MIN_MB", "1");
+        }
+    }
+
+    private void generatePayloads() {
+        String[] image = option("image", "1920x1080").split("x");
+        for (FileType type : types.values()) {
+            switch (type.name) {
+                case "csv":
+                    type.payload = SyntheticData.csv(Long.parseLong(option("csv-kb", "1024")) * 1024, Integer.parseInt(option("csv-columns", "8")), 1);
+                    if (options.containsKey("csv-compression")) {
+                        // Keys get the codec's suffix; throughput is reported in compressed MB/s, DecompressedBytes gives the logical size
+                        CompressedInput.Codec codec = CompressedInput.Codec.valueOf(options.get("csv-compression").toUpperCase(Locale.ROOT));
+                        type.payload = SyntheticData.compress(type.payload, codec, 4);
+                        type.extension = "csv" + codec.suffix();
+                    }
+                    break;
+                case "pdf":
+                    type.payload = SyntheticData.pdf(Integer.parseInt(option("pdf-pages", "10")), 50, 2);
+                    break;
+                case "image":
+                    type.payload = SyntheticData.image("png", Integer.parseInt(image[0]), Integer.parseInt(image[1]), 3);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown type in --mix: " + type.name);
+            }
+        }
+    }
+
+    /**
+     * Handlers are created after the environment is configured, as their static S3 clients read it.
+     * With --router every type goes through one {@link FileRouter}, as one warm container would serve them.
+     */
+    private void createHandlers() {
+        if (Boolean.parseBoolean(option("router", "false"))) {
+            long initStart = System.nanoTime();
+            FileRouter router = new FileRouter();
+            stage("router.init").record(System.nanoTime() - initStart);
+            for (FileType type : types.values()) {
+                type.handler = router;
+                type.sqsHandler = router::handleSqsEvent;
+                type.queue = new LocalSqsQueue(type.name + "-ingest", 3);
+            }
+            return;
+        }
+        for (FileType type : types.values()) {
+            long initStart = System.nanoTime();
+            switch (type.name) {
+                case "csv":
+                    CSVFileProcessor csv = new CSVFileProcessor();
+                    type.handler = csv;
+                    type.sqsHandler = csv::handleSqsEvent;
+                    break;
+                case "pdf":
+                    PDFFileProcessor pdf = new PDFFileProcessor();
+                    type.handler = pdf;
+                    type.sqsHandler = pdf::handleSqsEvent;
+                    break;
+                default:
+                    ImageFileProcessor image = new ImageFileProcessor();
+                    type.handler = image;
+                    type.sqsHandler = image::handleSqsEvent;
+            }
+            // Batches stay per type in both modes, so per-type throughput remains comparable
+            type.queue = new LocalSqsQueue(type.name + "-ingest", 3);
+            stage(type.name + ".init").record(System.nanoTime() - initStart);
+        }
+    }
+
+    private FileType pickType() {
+        int total = types.values().stream().mapToInt(t -> t.weight).sum();
+        int pick = random.nextInt(total);
+        for (FileType type : types.values()) {
+            pick -= type.weight;
+            if (pick < 0) {
+                return type;
+            }
+        }
+        throw new IllegalStateException("Empty --mix");
+    }
+
+    /** Keys are spread over --prefixes prefixes; --keys picks uniform, zipf (hot keys repeat) or sequential (all unique). */
+    private String nextKey(FileType type) {
+        long n;
+        switch (option("keys", "uniform")) {
+            case "zipf":
+                double u = random.nextDouble();
+                int index = Arrays.binarySearch(zipfCumulative, u);
+                n = index >= 0 ? index : Math.min(-index - 1, zipfCumulative.length - 1);
+                break;
+            case "sequential":
+                n = sequentialKey++;
+                break;
+            default:
+                n = random.nextInt(zipfCumulative.length);
+        }
+        int prefixes = Integer.parseInt(option("prefixes", "16"));
+        // Without extensions only the router's content sniffing can tell the types apart
+        String extension = Boolean.parseBoolean(option("no-extensions", "false")) ? "" : "." + type.extension;
+        return "incoming/p" + (n % prefixes) + "/file " + n + extension;
+    }
+
+    private LatencyRecorder stage(String name) {
+        return stages.computeIfAbsent(name, n -> new LatencyRecorder());
+    }
+
+    private void report(long totalNanos, LocalS3Server server) {
+        System.out.println();
+        System.out.println("=== Load harness results ===");
+        for (FileType type : types.values()) {
+            if (type.files == 0) {
+                continue;
+            }
+            double seconds = type.invokeNanos / 1e9;
+            System.out.printf("%-6s files=%d  %.1f files/s  %.1f MB/s", type.name, type.files,
+                    type.files / seconds, type.bytes / 1_048_576.0 / seconds);
+            long decompressed = type.counters[InvocationMetrics.Counter.DECOMPRESSED_BYTES.ordinal()];
+            if (decompressed > 0) {
+                System.out.printf("  (%.1f MB/s decompressed)", decompressed / 1_048_576.0 / seconds);
+            }
+            for (InvocationMetrics.Counter counter : InvocationMetrics.Counter.values()) {
+                if (type.counters[counter.ordinal()] != 0) {
+                    System.out.printf("  %s=%d", counter.metricName(), type.counters[counter.ordinal()]);
+                }
+            }
+            System.out.println();
+            if (options.containsKey("queue")) {
+                System.out.println("       queue " + type.queue.summary());
+            }
+        }
+        for (Map.Entry<String, LatencyRecorder> stage : stages.entrySet()) {
+            System.out.printf("%-20s %s%n", stage.getKey(), stage.getValue().summary());
+        }
+        for (Map.Entry<String, InvocationMetrics.Histogram> stage : handlerStages.entrySet()) {
+            InvocationMetrics.Histogram histogram = stage.getValue();
+            if (histogram.count() > 0) {
+                System.out.printf("%-20s n=%d p50=%.2fms p99=%.2fms p999=%.2fms%n", stage.getKey(), histogram.count(),
+                        histogram.quantile(0.5) / 1e6, histogram.quantile(0.99) / 1e6, histogram.quantile(0.999) / 1e6);
+            }
+        }
+        System.out.printf("wall=%.1fs  s3Requests=%d  s3BytesServed=%d  s3SelectsRefused=%d  redeliveries=%d%n", totalNanos / 1e9,
+                server.requestCount(), server.bytesServed(), server.selectRequests(), redeliveries);
+        System.out.println("objectCache " + ObjectCache.shared().stats());
+    }
+
+    private String option(String name, String defaultValue) {
+        return options.getOrDefault(name, defaultValue);
+    }
+}
@@ -0,0 +1,57 @@
+package com.s3fileprocesslambdalayer;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.text.PDFTextStripper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * PDFTextStripper extraction over a generated corpus, by page count, as PDFFileProcessor runs it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PdfExtractionBenchmark {
+
+    @Param({"1", "10", "100"})
+    public int pages;
+
+    private Path corpusFile;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        corpusFile = Files.createTempFile("pdf-bench", ".pdf");
+        Files.write(corpusFile, SyntheticData.pdf(pages, 50, 11));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(corpusFile);
+    }
+
+    @Benchmark
+    public int extractText() throws IOException {
+        try (PDDocument document = PDDocument.load(corpusFile.toFile())) {
+            return new PDFTextStripper().getText(document).length();
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.s3fileprocesslambdalayer;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scaling of {@link PdfTextExtractor} by page count and worker threads; threads=1 is the single-threaded
+ * baseline. Page text goes to a sink that only counts characters.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PdfParallelExtractionBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int pages;
+
+    @Param({"1", "2", "4", "8"})
+    public int threads;
+
+    private Path corpusFile;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        corpusFile = Files.createTempFile("pdf-parallel-bench", ".pdf");
+        Files.write(corpusFile, SyntheticData.pdf(pages, 50, 11));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(corpusFile);
+    }
+
+    @Benchmark
+    public long extractText() throws IOException {
+        long[] characters = new long[1];
+        new PdfTextExtractor(threads, 8, file -> PDDocument.load(file.toFile()))
+                .extract(corpusFile, (pageNumber, text) -> characters[0] += text.length());
+        return characters[0];
+    }
+}
@@ -0,0 +1,154 @@
+package com.s3fileprocesslambdalayer;
+
+import io.airlift.compress.zstd.ZstdOutputStream;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Deterministic generators for the CSV, PDF and image inputs used by the benchmarks and the load harness.
+ */
+public final class SyntheticData {
+    private static final String[] WORDS = {
+            "invoice", "shipment", "customer", "region", "quarterly", "revenue", "pipeline", "storage",
+            "lambda", "layer", "bucket", "object", "report", "summary", "payload", "archive"
+    };
+
+    private SyntheticData() {
+    }
+
+    /**
+     * A CSV of roughly {@code targetBytes} with a header and {@code columns} columns cycling through
+     * integer, decimal, plain text and quoted text (with embedded delimiters, quotes and, in every eighth row,
+     * a newline) values.
+     */
+    public static byte[] csv(long targetBytes, int columns, long seed) {
+        Random random = new Random(seed);
+        StringBuilder sb = new StringBuilder((int) Math.min(Integer.MAX_VALUE - 16, targetBytes + 1024));
+        for (int c = 0; c < columns; c++) {
+            sb.append(c == 0 ? "" : ",").append("col").append(c);
+        }
+        sb.append('\n');
+        long row = 0;
+        while (sb.length() < targetBytes) {
+            for (int c = 0; c < columns; c++) {
+                if (c > 0) {
+                    sb.append(',');
+                }
+                switch (c % 4) {
+                    case 0:
+                        sb.append(row);
+                        break;
+                    case 1:
+                        sb.append(random.nextInt(1_000_000) / 100.0);
+                        break;
+                    case 2:
+                        sb.append(WORDS[random.nextInt(WORDS.length)]);
+                        break;
+                    default:
+                        // Every eighth row's quoted text spans two lines
+                        sb.append("\"").append(WORDS[random.nextInt(WORDS.length)]).append(row % 8 == 7 ? ",\n\"\"" : ", \"\"")
+                                .append(WORDS[random.nextInt(WORDS.length)]).append("\"\"\"");
+                }
+            }
+            sb.append('\n');
+            row++;
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * {@code content} compressed with gzip as {@code members} concatenated members of about equal size, as
+     * parallel compressors write it, or with zstd (a single frame) when {@code codec} is ZSTD.
+     */
+    public static byte[] compress(byte[] content, CompressedInput.Codec codec, int members) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(content.length / 4);
+        try {
+            if (codec == CompressedInput.Codec.ZSTD) {
+                try (ZstdOutputStream zstd = new ZstdOutputStream(out)) {
+                    zstd.write(content);
+                }
+                return out.toByteArray();
+            }
+            int count = Math.max(1, members);
+            for (int i = 0; i < count; i++) {
+                int from = (int) ((long) content.length * i / count);
+                int to = (int) ((long) content.length * (i + 1) / count);
+                try (GZIPOutputStream gzip = new GZIPOutputStream(out) {
+                    @Override
+                    public void close() throws IOException {
+                        // Ends the member without closing the shared output
+                        finish();
+                    }
+                }) {
+                    gzip.write(content, from, to - from);
+                }
+            }
+            return out.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /** A text-only PDF with {@code pages} pages of {@code linesPerPage} lines each. */
+    public static byte[] pdf(int pages, int linesPerPage, long seed) {
+        Random random = new Random(seed);
+        try (PDDocument document = new PDDocument(); ByteArrayOutputStream out = new ByteArrayOutputStream()) {
+            for (int p = 0; p < pages; p++) {
+                PDPage page = new PDPage();
+                document.addPage(page);
+                try (PDPageContentStream content = new PDPageContentStream(document, page)) {
+                    content.beginText();
+                    content.setFont(PDType1Font.HELVETICA, 10);
+                    content.setLeading(12);
+                    content.newLineAtOffset(40, 750);
+                    for (int line = 0; line < linesPerPage; line++) {
+                        StringBuilder text = new StringBuilder("p").append(p + 1).append(' ');
+                        for (int w = 0; w < 12; w++) {
+                            text.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+                        }
+                        content.showText(text.toString());
+                        content.newLine();
+                    }
+                    content.endText();
+                }
+            }
+            document.save(out);
+            return out.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /** A noisy gradient image encoded in {@code format} (any ImageIO writer name, e.g. png, jpg, gif). */
+    public static byte[] image(String format, int width, int height, long seed) {
+        Random random = new Random(seed);
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int r = (x * 255 / Math.max(1, width - 1)) ^ (random.nextInt(16));
+                int g = (y * 255 / Math.max(1, height - 1)) ^ (random.nextInt(16));
+                int b = ((x + y) & 0xFF);
+                image.setRGB(x, y, (r & 0xFF) << 16 | (g & 0xFF) << 8 | b);
+            }
+        }
+        try (ByteArrayOutputStream out = new ByteArrayOutputStream()) {
+            if (!ImageIO.write(image, format, out)) {
+                throw new IllegalArgumentException("No ImageIO writer for format " + format);
+            }
+            return out.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
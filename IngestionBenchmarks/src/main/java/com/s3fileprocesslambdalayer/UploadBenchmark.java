@@ -0,0 +1,75 @@
+package com.s3fileprocesslambdalayer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import software.amazon.awssdk.services.s3.S3Client;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streams generated output of a given size to the in-process S3 stand-in through
+ * {@link S3MultipartOutputStream}, by parts in flight. Run with {@code -prof gc}: allocation per upload stays
+ * bounded by the part buffers (and near zero once they are pooled), independent of the output size.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UploadBenchmark {
+    private static final String BUCKET = "bench-bucket";
+    private static final String KEY = "derived/output.bin";
+    private static final int PART_SIZE = S3MultipartOutputStream.MIN_PART_SIZE;
+
+    @Param({"1", "32", "128"})
+    public int outputSizeMb;
+
+    @Param({"1", "4"})
+    public int partsInFlight;
+
+    private LocalS3Server server;
+    private S3Client s3;
+    private byte[] chunk;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        server = LocalS3Server.start();
+        s3 = server.client();
+        // Written repeatedly in 64 KB writes, like a producer emitting output as it goes
+        chunk = new byte[64 * 1024];
+        new Random(42).nextBytes(chunk);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        s3.close();
+        server.close();
+    }
+
+    @Benchmark
+    public long streamingUpload() throws IOException {
+        long remaining = (long) outputSizeMb * 1024 * 1024;
+        try (S3MultipartOutputStream out = new S3MultipartOutputStream(s3, BUCKET, KEY, "application/octet-stream", PART_SIZE, partsInFlight)) {
+            while (remaining > 0) {
+                int length = (int) Math.min(chunk.length, remaining);
+                out.write(chunk, 0, length);
+                remaining -= length;
+            }
+            return out.bytesWritten();
+        }
+    }
+}
@@ -0,0 +1,426 @@
+package com.s3fileprocesslambdalayer;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
+import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+import software.amazon.awssdk.http.urlconnection.UrlConnectionHttpClient;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.s3.S3Client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * In-process, in-memory stand-in for the subset of the S3 REST API the layer uses: path-style
+ * PUT (with If-Match and If-None-Match), GET (with Range, If-Match and versionId), HEAD, DELETE and multipart uploads (initiate, upload part,
+ * complete, abort). Objects get an MD5 ETag and a new versionId on every PUT, like a versioned bucket.
+ * SelectObjectContent is answered with 501 NotImplemented, as by an account without S3 Select, so callers
+ * take their local fallback. Part uploads can be made to fail with {@link #failPart}. Not a general-purpose
+ * emulator.
+ */
+public class LocalS3Server implements AutoCloseable {
+    private static final Logger logger = Logger.getLogger(LocalS3Server.class.getName());
+
+    /** One stored object version. */
+    public static final class StoredObject {
+        final byte[] content;
+        final String eTag;
+        final String versionId;
+        final String lastModified;
+
+        StoredObject(byte[] content, String eTag, String versionId) {
+            this.content = content;
+            this.eTag = eTag;
+            this.versionId = versionId;
+            this.lastModified = DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now(ZoneOffset.UTC));
+        }
+
+        public byte[] content() {
+            return content;
+        }
+
+        public String eTag() {
+            return eTag;
+        }
+
+        public String versionId() {
+            return versionId;
+        }
+    }
+
+    private final Map<String, StoredObject> objects = new ConcurrentHashMap<>();
+    private final Map<String, Map<Integer, byte[]>> uploads = new ConcurrentHashMap<>();
+    private final AtomicLong versions = new AtomicLong();
+    private final AtomicLong uploadIds = new AtomicLong();
+    private final Set<Integer> failingParts = ConcurrentHashMap.newKeySet();
+    private final LongAdder abortedUploads = new LongAdder();
+    private final LongAdder selectRequests = new LongAdder();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder bytesServed = new LongAdder();
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    private LocalS3Server(HttpServer server) {
+        this.server = server;
+        this.executor = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "local-s3");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+    }
+
+    /** Starts a server on an ephemeral loopback port. */
+    public static LocalS3Server start() throws IOException {
+        LocalS3Server s3 = new LocalS3Server(HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0));
+        s3.server.start();
+        logger.info("Local S3 stand-in listening on " + s3.endpoint());
+        return s3;
+    }
+
+    public URI endpoint() {
+        return URI.create("http://127.0.0.1:" + server.getAddress().getPort());
+    }
+
+    /** A path-style client with dummy credentials pointed at this server. */
+    public S3Client client() {
+        return S3Client.builder()
+                .endpointOverride(endpoint())
+                .forcePathStyle(true)
+                .region(Region.US_EAST_1)
+                .credentialsProvider(StaticCredentialsProvider.create(AwsBasicCredentials.create("local", "local")))
+                .httpClientBuilder(UrlConnectionHttpClient.builder())
+                .build();
+    }
+
+    /** Stores an object directly, bypassing HTTP. */
+    public StoredObject put(String bucket, String key, byte[] content) {
+        StoredObject stored = new StoredObject(content, "\"" + md5Hex(content) + "\"", "v" + versions.incrementAndGet());
+        objects.put(bucket + "/" + key, stored);
+        return stored;
+    }
+
+    public StoredObject get(String bucket, String key) {
+        return objects.get(bucket + "/" + key);
+    }
+
+    public long requestCount() {
+        return requests.sum();
+    }
+
+    public long bytesServed() {
+        return bytesServed.sum();
+    }
+
+    /** Multipart uploads initiated but neither completed nor aborted. */
+    public int openUploads() {
+        return uploads.size();
+    }
+
+    public long abortedUploads() {
+        return abortedUploads.sum();
+    }
+
+    /** Answers every upload of part {@code partNumber}, in any multipart upload, with a 500 InternalError. */
+    public void failPart(int partNumber) {
+        failingParts.add(partNumber);
+    }
+
+    /** SelectObjectContent requests refused. */
+    public long selectRequests() {
+        return selectRequests.sum();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        requests.increment();
+        try {
+            String path = exchange.getRequestURI().getPath();
+            int slash = path.indexOf('/', 1);
+            if (slash < 0) {
+                error(exchange, 400, "InvalidRequest", "Only path-style object requests are supported");
+                return;
+            }
+            String bucket = path.substring(1, slash);
+            String key = path.substring(slash + 1);
+            Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+
+            switch (exchange.getRequestMethod()) {
+                case "POST":
+                    if (query.containsKey("uploads")) {
+                        initiateUpload(exchange, bucket, key);
+                    } else if (query.containsKey("uploadId")) {
+                        completeUpload(exchange, bucket, key, query.get("uploadId"));
+                    } else if (query.containsKey("select")) {
+                        selectRequests.increment();
+                        readBody(exchange);
+                        error(exchange, 501, "NotImplemented", "SelectObjectContent is not supported");
+                    } else {
+                        error(exchange, 400, "InvalidRequest", "Unsupported POST");
+                    }
+                    break;
+                case "PUT":
+                    if (query.containsKey("uploadId")) {
+                        uploadPart(exchange, query.get("uploadId"), Integer.parseInt(query.get("partNumber")));
+                        break;
+                    }
+                    StoredObject stored = conditionalPut(exchange, bucket, key, readBody(exchange));
+                    if (stored == null) {
+                        error(exchange, 412, "PreconditionFailed", "At least one of the pre-conditions you specified did not hold");
+                        break;
+                    }
+                    exchange.getResponseHeaders().set("ETag", stored.eTag);
+                    exchange.getResponseHeaders().set("x-amz-version-id", stored.versionId);
+                    exchange.sendResponseHeaders(200, -1);
+                    break;
+                case "DELETE":
+                    if (query.containsKey("uploadId")) {
+                        if (uploads.remove(query.get("uploadId")) != null) {
+                            abortedUploads.increment();
+                        }
+                        exchange.sendResponseHeaders(204, -1);
+                        break;
+                    }
+                    objects.remove(bucket + "/" + key);
+                    exchange.sendResponseHeaders(204, -1);
+                    break;
+                case "HEAD":
+                case "GET":
+                    serveObject(exchange, bucket, key, query);
+                    break;
+                default:
+                    error(exchange, 405, "MethodNotAllowed", exchange.getRequestMethod() + " is not supported");
+            }
+        } catch (RuntimeException e) {
+            logger.warning("Local S3 request failed: " + e);
+            error(exchange, 500, "InternalError", String.valueOf(e.getMessage()));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /** Stores the object unless an If-Match or If-None-Match header does not hold, which returns null. */
+    private synchronized StoredObject conditionalPut(HttpExchange exchange, String bucket, String key, byte[] content) {
+        StoredObject current = objects.get(bucket + "/" + key);
+        String ifMatch = exchange.getRequestHeaders().getFirst("If-Match");
+        String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+        if ((ifMatch != null && (current == null || !ifMatch.equals(current.eTag)))
+                || ("*".equals(ifNoneMatch) && current != null)) {
+            return null;
+        }
+        return put(bucket, key, content);
+    }
+
+    private void initiateUpload(HttpExchange exchange, String bucket, String key) throws IOException {
+        String uploadId = "upload-" + uploadIds.incrementAndGet();
+        uploads.put(uploadId, new ConcurrentHashMap<>());
+        xml(exchange, "<InitiateMultipartUploadResult><Bucket>" + bucket + "</Bucket><Key>" + escape(key)
+                + "</Key><UploadId>" + uploadId + "</UploadId></InitiateMultipartUploadResult>");
+    }
+
+    private void uploadPart(HttpExchange exchange, String uploadId, int partNumber) throws IOException {
+        Map<Integer, byte[]> parts = uploads.get(uploadId);
+        if (parts == null) {
+            error(exchange, 404, "NoSuchUpload", "The specified upload does not exist.");
+            return;
+        }
+        byte[] content = readBody(exchange);
+        if (failingParts.contains(partNumber)) {
+            error(exchange, 500, "InternalError", "Injected failure of part " + partNumber);
+            return;
+        }
+        parts.put(partNumber, content);
+        exchange.getResponseHeaders().set("ETag", "\"" + md5Hex(content) + "\"");
+        exchange.sendResponseHeaders(200, -1);
+    }
+
+    /** Joins the uploaded parts in part-number order; the part list in the request body is not checked. */
+    private void completeUpload(HttpExchange exchange, String bucket, String key, String uploadId) throws IOException {
+        readBody(exchange);
+        Map<Integer, byte[]> parts = uploads.remove(uploadId);
+        if (parts == null) {
+            error(exchange, 404, "NoSuchUpload", "The specified upload does not exist.");
+            return;
+        }
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        for (byte[] part : new TreeMap<>(parts).values()) {
+            content.write(part);
+        }
+        StoredObject stored = put(bucket, key, content.toByteArray());
+        exchange.getResponseHeaders().set("x-amz-version-id", stored.versionId);
+        xml(exchange, "<CompleteMultipartUploadResult><Bucket>" + bucket + "</Bucket><Key>" + escape(key)
+                + "</Key><ETag>" + escape(stored.eTag) + "</ETag></CompleteMultipartUploadResult>");
+    }
+
+    private void serveObject(HttpExchange exchange, String bucket, String key, Map<String, String> query) throws IOException {
+        boolean head = "HEAD".equals(exchange.getRequestMethod());
+        StoredObject stored = objects.get(bucket + "/" + key);
+        String versionId = query.get("versionId");
+        if (stored == null || (versionId != null && !versionId.equals(stored.versionId))) {
+            if (head) {
+                exchange.sendResponseHeaders(404, -1);
+            } else {
+                error(exchange, 404, versionId != null ? "NoSuchVersion" : "NoSuchKey", "The specified key does not exist.");
+            }
+            return;
+        }
+        String ifMatch = exchange.getRequestHeaders().getFirst("If-Match");
+        if (ifMatch != null && !ifMatch.equals(stored.eTag)) {
+            error(exchange, 412, "PreconditionFailed", "At least one of the pre-conditions you specified did not hold");
+            return;
+        }
+
+        long size = stored.content.length;
+        long start = 0;
+        long end = size - 1;
+        int status = 200;
+        Headers headers = exchange.getResponseHeaders();
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        if (range != null && range.startsWith("bytes=")) {
+            String[] bounds = range.substring(6).split("-", 2);
+            start = Long.parseLong(bounds[0]);
+            end = bounds.length > 1 && !bounds[1].isEmpty() ? Math.min(Long.parseLong(bounds[1]), size - 1) : size - 1;
+            if (start >= size) {
+                error(exchange, 416, "InvalidRange", "The requested range is not satisfiable");
+                return;
+            }
+            status = 206;
+            headers.set("Content-Range", "bytes " + start + "-" + end + "/" + size);
+        }
+        long length = end - start + 1;
+        headers.set("ETag", stored.eTag);
+        headers.set("x-amz-version-id", stored.versionId);
+        headers.set("Last-Modified", stored.lastModified);
+        headers.set("Accept-Ranges", "bytes");
+        headers.set("Content-Type", "application/octet-stream");
+        if (head) {
+            headers.set("Content-Length", Long.toString(length));
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        exchange.sendResponseHeaders(status, length == 0 ? -1 : length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(stored.content, (int) start, (int) length);
+        }
+        bytesServed.add(length);
+    }
+
+    /**
+     * Reads a request body, decoding SigV4 streaming ({@code aws-chunked}) payloads.
+     */
+    private static byte[] readBody(HttpExchange exchange) throws IOException {
+        byte[] raw;
+        try (InputStream in = exchange.getRequestBody()) {
+            raw = in.readAllBytes();
+        }
+        String sha = exchange.getRequestHeaders().getFirst("x-amz-content-sha256");
+        String encoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+        boolean chunked = (sha != null && sha.startsWith("STREAMING-")) || (encoding != null && encoding.contains("aws-chunked"));
+        return chunked ? decodeAwsChunked(raw) : raw;
+    }
+
+    private static byte[] decodeAwsChunked(byte[] raw) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length);
+        int p = 0;
+        while (p < raw.length) {
+            int lineEnd = indexOfCrlf(raw, p);
+            String header = new String(raw, p, lineEnd - p, StandardCharsets.US_ASCII);
+            int semicolon = header.indexOf(';');
+            int size = Integer.parseInt(semicolon < 0 ? header.trim() : header.substring(0, semicolon).trim(), 16);
+            p = lineEnd + 2;
+            if (size == 0) {
+                break; // trailers, if any, are ignored
+            }
+            out.write(raw, p, size);
+            p += size + 2;
+        }
+        return out.toByteArray();
+    }
+
+    private static int indexOfCrlf(byte[] raw, int from) {
+        for (int i = from; i + 1 < raw.length; i++) {
+            if (raw[i] == '\r' && raw[i + 1] == '\n') {
+                return i;
+            }
+        }
+        return raw.length;
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) {
+        Map<String, String> query = new ConcurrentHashMap<>();
+        if (rawQuery == null || rawQuery.isEmpty()) {
+            return query;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int eq = pair.indexOf('=');
+            String name = URLDecoder.decode(eq < 0 ? pair : pair.substring(0, eq), StandardCharsets.UTF_8);
+            String value = eq < 0 ? "" : URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8);
+            query.put(name, value);
+        }
+        return query;
+    }
+
+    private static void xml(HttpExchange exchange, String element) throws IOException {
+        byte[] body = ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>" + element).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/xml");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static String escape(String text) {
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    }
+
+    private static void error(HttpExchange exchange, int status, String code, String message) throws IOException {
+        byte[] body = ("<?xml version=\"1.0\" encoding=\"UTF-8\"?><Error><Code>" + code + "</Code><Message>" + message
+                + "</Message><RequestId>local</RequestId></Error>").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/xml");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static String md5Hex(byte[] content) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(content);
+            StringBuilder hex = new StringBuilder(32);
+            for (byte b : digest) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 not available", e);
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.s3fileprocesslambdalayer;
+
+import com.amazonaws.services.lambda.runtime.events.SQSBatchResponse;
+import com.amazonaws.services.lambda.runtime.events.SQSEvent;
+import com.amazonaws.services.lambda.runtime.events.SQSEvent.SQSMessage;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * In-memory stand-in for an SQS queue feeding a Lambda event source mapping: messages are received in
+ * batches, deleted when the handler's {@link SQSBatchResponse} does not list them, and made visible again
+ * when it does. A message received {@code maxReceiveCount} times without success moves to the dead-letter
+ * list, like a redrive policy. Failed messages are visible again immediately, i.e. a zero visibility
+ * timeout, so a harness run never waits. Not thread-safe; the harness drives it from one thread.
+ */
+public class LocalSqsQueue {
+    private final String arn;
+    private final int maxReceiveCount;
+    private final ArrayDeque<Message> visible = new ArrayDeque<>();
+    private final Map<String, Message> inFlight = new HashMap<>();
+    private final List<String> deadLetters = new ArrayList<>();
+    private long sequence;
+    private long sent;
+    private long received;
+    private long redelivered;
+
+    private static final class Message {
+        final String id;
+        final String body;
+        int receiveCount;
+
+        Message(String id, String body) {
+            this.id = id;
+            this.body = body;
+        }
+    }
+
+    public LocalSqsQueue(String name, int maxReceiveCount) {
+        this.arn = "arn:aws:sqs:us-east-1:000000000000:" + name;
+        this.maxReceiveCount = maxReceiveCount;
+    }
+
+    public void send(String body) {
+        visible.add(new Message(arn.substring(arn.lastIndexOf(':') + 1) + "-" + (++sequence), body));
+        sent++;
+    }
+
+    public boolean hasVisibleMessages() {
+        return !visible.isEmpty();
+    }
+
+    /** Receives up to {@code maxMessages} visible messages as the event Lambda would be invoked with. */
+    public SQSEvent receive(int maxMessages) {
+        List<SQSMessage> batch = new ArrayList<>();
+        while (batch.size() < maxMessages && !visible.isEmpty()) {
+            Message message = visible.poll();
+            message.receiveCount++;
+            received++;
+            inFlight.put(message.id, message);
+            SQSMessage sqsMessage = new SQSMessage();
+            sqsMessage.setMessageId(message.id);
+            sqsMessage.setBody(message.body);
+            sqsMessage.setEventSourceArn(arn);
+            Map<String, String> attributes = new LinkedHashMap<>();
+            attributes.put("ApproximateReceiveCount", Integer.toString(message.receiveCount));
+            sqsMessage.setAttributes(attributes);
+            batch.add(sqsMessage);
+        }
+        SQSEvent event = new SQSEvent();
+        event.setRecords(batch);
+        return event;
+    }
+
+    /**
+     * Applies a handler's response to a received batch. A null response, like a thrown exception, fails
+     * the whole batch.
+     */
+    public void acknowledge(SQSEvent batch, SQSBatchResponse response) {
+        Set<String> failed = new HashSet<>();
+        if (response == null) {
+            batch.getRecords().forEach(message -> failed.add(message.getMessageId()));
+        } else if (response.getBatchItemFailures() != null) {
+            response.getBatchItemFailures().forEach(failure -> failed.add(failure.getItemIdentifier()));
+        }
+        for (SQSMessage sqsMessage : batch.getRecords()) {
+            Message message = inFlight.remove(sqsMessage.getMessageId());
+            if (message == null || !failed.contains(message.id)) {
+                continue;
+            }
+            if (message.receiveCount >= maxReceiveCount) {
+                deadLetters.add(message.id);
+            } else {
+                visible.add(message);
+                redelivered++;
+            }
+        }
+    }
+
+    /** Failed messages made visible again. */
+    public long redelivered() {
+        return redelivered;
+    }
+
+    /** Ids of the messages moved to the dead-letter list, in the order they were moved. */
+    public List<String> deadLetters() {
+        return deadLetters;
+    }
+
+    public String summary() {
+        return String.format("sent=%d received=%d redelivered=%d deadLetters=%d", sent, received, redelivered, deadLetters.size());
+    }
+}
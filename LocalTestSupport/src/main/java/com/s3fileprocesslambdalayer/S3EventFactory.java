@@ -0,0 +1,48 @@
+package com.s3fileprocesslambdalayer;
+
+import com.amazonaws.services.lambda.runtime.events.S3Event;
+import com.amazonaws.services.lambda.runtime.events.models.s3.S3EventNotification.RequestParametersEntity;
+import com.amazonaws.services.lambda.runtime.events.models.s3.S3EventNotification.ResponseElementsEntity;
+import com.amazonaws.services.lambda.runtime.events.models.s3.S3EventNotification.S3BucketEntity;
+import com.amazonaws.services.lambda.runtime.events.models.s3.S3EventNotification.S3Entity;
+import com.amazonaws.services.lambda.runtime.events.models.s3.S3EventNotification.S3EventNotificationRecord;
+import com.amazonaws.services.lambda.runtime.events.models.s3.S3EventNotification.S3ObjectEntity;
+import com.amazonaws.services.lambda.runtime.events.models.s3.S3EventNotification.UserIdentityEntity;
+
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Builds S3Event payloads shaped like the ObjectCreated notifications S3NotificationConfigurator sets up:
+ * URL-encoded keys, size, ETag, versionId and a monotonically increasing sequencer per factory.
+ */
+public class S3EventFactory {
+    private final String region;
+    private final AtomicLong sequencer = new AtomicLong(0x5F0000000000L);
+
+    public S3EventFactory(String region) {
+        this.region = region;
+    }
+
+    public S3EventNotificationRecord objectCreated(String bucket, String key, long size, String eTag, String versionId) {
+        UserIdentityEntity principal = new UserIdentityEntity("AWS:LOCALHARNESS");
+        S3ObjectEntity object = new S3ObjectEntity(encodeKey(key), size, eTag.replace("\"", ""), versionId,
+                String.format("%016X", sequencer.incrementAndGet()));
+        S3BucketEntity bucketEntity = new S3BucketEntity(bucket, principal, "arn:aws:s3:::" + bucket);
+        S3Entity s3 = new S3Entity("local-harness", bucketEntity, object, "1.0");
+        return new S3EventNotificationRecord(region, "ObjectCreated:Put", "aws:s3", Instant.now().toString(), "2.1",
+                new RequestParametersEntity("127.0.0.1"), new ResponseElementsEntity("local", "local"), s3, principal);
+    }
+
+    public S3Event event(List<S3EventNotificationRecord> records) {
+        return new S3Event(records);
+    }
+
+    /** S3 notifications form-encode keys (spaces become '+') but leave '/' as is. */
+    static String encodeKey(String key) {
+        return URLEncoder.encode(key, StandardCharsets.UTF_8).replace("%2F", "/");
+    }
+}
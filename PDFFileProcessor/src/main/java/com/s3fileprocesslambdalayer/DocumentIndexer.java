@@ -0,0 +1,201 @@
+package com.s3fileprocesslambdalayer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds the index segment of one document from its page text, as the pages are extracted. Text is split
+ * into terms at every character that is not a letter or digit, and terms are lower-cased; a term's position
+ * is its word number on the page, counting from 0. Terms longer than {@value #MAX_TERM_CHARS} characters are
+ * not indexed but still take a position.
+ *
+ * <p>Each term's pages and positions are encoded as soon as the term moves on to a later page, so only the
+ * compact postings are held, never the text. Pages must arrive in ascending order. Not thread-safe.
+ */
+final class DocumentIndexer {
+    static final int MAX_TERM_CHARS = 64;
+
+    private final Map<String, TermPostings> terms = new HashMap<>();
+    private int pages;
+    private long busyNanos;
+
+    /** Indexes the text of page {@code pageNumber}. */
+    void page(int pageNumber, String text) {
+        long start = System.nanoTime();
+        int[] position = {0};
+        forEachTerm(text, term -> {
+            if (term != null) {
+                terms.computeIfAbsent(term, TermPostings::new).add(pageNumber, position[0]);
+            }
+            position[0]++;
+        });
+        pages = Math.max(pages, pageNumber);
+        busyNanos += System.nanoTime() - start;
+    }
+
+    /**
+     * Starts from the pages before {@code nextPage} already indexed for {@code key} in {@code segment}, such as
+     * the partial segment an earlier invocation uploaded before it was continued. Later pages in the segment,
+     * uploaded by an invocation that failed before saving its checkpoint, are left to be indexed again.
+     *
+     * @throws IOException if the segment does not hold the document
+     */
+    static DocumentIndexer resume(TextIndexSegment segment, String key, int nextPage) throws IOException {
+        int document = -1;
+        for (int i = 0; i < segment.documentCount(); i++) {
+            if (segment.documentKey(i).equals(key)) {
+                document = i;
+            }
+        }
+        if (document < 0) {
+            throw new IOException("Text index segment " + segment.path() + " does not hold " + key);
+        }
+        DocumentIndexer indexer = new DocumentIndexer();
+        TextIndexSegment.Terms dictionary = segment.terms();
+        while (dictionary.next()) {
+            TextIndexSegment.Postings postings = dictionary.postings();
+            if (!postings.advance(document) || postings.document() != document) {
+                continue;
+            }
+            TermPostings term = null;
+            while (postings.nextPage() && postings.page() < nextPage) {
+                if (term == null) {
+                    term = indexer.terms.computeIfAbsent(dictionary.term(), TermPostings::new);
+                }
+                int[] at = postings.positions();
+                for (int i = 0; i < postings.positionCount(); i++) {
+                    term.add(postings.page(), at[i]);
+                }
+            }
+        }
+        indexer.pages = Math.min(segment.documentPages(document), nextPage - 1);
+        return indexer;
+    }
+
+    /** Pages indexed so far: the highest page number seen. */
+    int pages() {
+        return pages;
+    }
+
+    int termCount() {
+        return terms.size();
+    }
+
+    /** Time spent tokenizing and encoding, in nanoseconds. */
+    long busyNanos() {
+        return busyNanos;
+    }
+
+    /**
+     * Writes the document as a one-document segment to {@code out}, which is closed, and returns the bytes
+     * written.
+     */
+    long writeTo(OutputStream out, String key, long indexedAt) throws IOException {
+        long start = System.nanoTime();
+        List<TermPostings> sorted = new ArrayList<>(terms.values());
+        sorted.sort((a, b) -> Arrays.compareUnsigned(a.bytes, b.bytes));
+        TextIndexWriter writer = new TextIndexWriter(out);
+        TextIndexWriter.Buffer postings = new TextIndexWriter.Buffer(256);
+        for (TermPostings term : sorted) {
+            term.flushPage();
+            postings.reset();
+            postings.writeVarLong(0);
+            postings.writeVarLong(term.pageCount);
+            postings.writeVarLong(term.data.size());
+            postings.write(term.data.bytes(), 0, term.data.size());
+            writer.addTerm(term.bytes, term.bytes.length, 1, postings);
+        }
+        writer.addDocument(key, pages, indexedAt);
+        writer.close();
+        busyNanos += System.nanoTime() - start;
+        return writer.bytesWritten();
+    }
+
+    /** Receives the terms of a text in order; null stands for a word too long to index. */
+    @FunctionalInterface
+    interface TermConsumer {
+        void term(String term);
+    }
+
+    /** Splits {@code text} into normalized terms, the same way for indexing and for queries. */
+    static void forEachTerm(CharSequence text, TermConsumer consumer) {
+        StringBuilder term = new StringBuilder(MAX_TERM_CHARS);
+        int length = text.length();
+        int i = 0;
+        while (i <= length) {
+            int codePoint = i < length ? Character.codePointAt(text, i) : ' ';
+            if (Character.isLetterOrDigit(codePoint)) {
+                term.appendCodePoint(Character.toLowerCase(codePoint));
+            } else if (term.length() > 0) {
+                consumer.term(term.length() <= MAX_TERM_CHARS ? term.toString() : null);
+                term.setLength(0);
+            }
+            i += Character.charCount(codePoint);
+        }
+    }
+
+    /** The normalized terms of {@code text}, in order, without the ones too long to index. */
+    static List<String> terms(CharSequence text) {
+        List<String> terms = new ArrayList<>();
+        forEachTerm(text, term -> {
+            if (term != null) {
+                terms.add(term);
+            }
+        });
+        return terms;
+    }
+
+    /**
+     * One term's pages, encoded as page delta, position count, positions length and position deltas. The
+     * current page's positions are held as ints until the term is seen on a later page.
+     */
+    private static final class TermPostings {
+        private final byte[] bytes;
+        private final TextIndexWriter.Buffer data = new TextIndexWriter.Buffer(16);
+        private int[] current = new int[4];
+        private int currentCount;
+        private int currentPage;
+        private int lastPage;
+        private int pageCount;
+
+        TermPostings(String term) {
+            this.bytes = term.getBytes(StandardCharsets.UTF_8);
+        }
+
+        void add(int page, int position) {
+            if (page != currentPage) {
+                flushPage();
+                currentPage = page;
+            }
+            if (currentCount == current.length) {
+                current = Arrays.copyOf(current, currentCount * 2);
+            }
+            current[currentCount++] = position;
+        }
+
+        void flushPage() {
+            if (currentCount == 0) {
+                return;
+            }
+            int length = 0;
+            for (int i = 0, previous = 0; i < currentCount; previous = current[i], i++) {
+                length += TextIndexWriter.Buffer.varLongSize(current[i] - previous);
+            }
+            data.writeVarLong(currentPage - lastPage);
+            data.writeVarLong(currentCount);
+            data.writeVarLong(length);
+            for (int i = 0, previous = 0; i < currentCount; previous = current[i], i++) {
+                data.writeVarLong(current[i] - previous);
+            }
+            lastPage = currentPage;
+            pageCount++;
+            currentCount = 0;
+        }
+    }
+}
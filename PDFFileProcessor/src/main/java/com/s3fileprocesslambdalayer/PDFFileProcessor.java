@@ -3,33 +3,54 @@ package com.s3fileprocesslambdalayer;
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
 import com.amazonaws.services.lambda.runtime.events.S3Event;
+import com.amazonaws.services.lambda.runtime.events.SQSBatchResponse;
+import com.amazonaws.services.lambda.runtime.events.SQSEvent;
 import com.amazonaws.services.lambda.runtime.events.models.s3.S3EventNotification.S3EventNotificationRecord;
 
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
 import software.amazon.awssdk.services.s3.S3Client;
 import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
 import software.amazon.awssdk.services.s3.model.S3Exception;
 
-import org.apache.pdfbox.pdmodel.PDDocument;
-import org.apache.pdfbox.text.PDFTextStripper;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.net.URLDecoder;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.ArrayList;
+import java.nio.file.Paths;
 import java.util.List;
+import java.util.function.BooleanSupplier;
 import java.util.logging.Logger;
 
-public class PDFFileProcessor implements RequestHandler<S3Event, String> {
+public class PDFFileProcessor implements RequestHandler<S3Event, String>, FileTypeProcessor {
 
     private static final Logger logger = Logger.getLogger(PDFFileProcessor.class.getName());
-    private static final S3Client s3Client = S3Client.builder().build();
+    private static final S3Client s3Client = SharedLambdaLayer.sharedS3Client();
+    private static final PdfDocumentLoader documentLoader = PdfDocumentLoader.fromEnvironment();
+    private static final int PREVIEW_CHARS = 200;
+
+    // Checkpoint values: the first page not extracted yet, the characters before it, and the text upload
+    private static final String CHECKPOINT_NEXT_PAGE = "pdf.nextPage";
+    private static final String CHECKPOINT_CHARACTERS = "pdf.characters";
+    private static final String CHECKPOINT_OUTPUT = "pdf.text";
+    // Set once a partial index segment covering the pages before pdf.nextPage was uploaded
+    private static final String CHECKPOINT_INDEX = "pdf.index";
+
+    static {
+        StartupPriming.register("pdf", PDFFileProcessor::prime);
+    }
 
     private final String bucketName;
 
     public PDFFileProcessor() {
-        this.bucketName = System.getenv("BUCKET_NAME");
+        this.bucketName = LayerConfig.get("BUCKET_NAME", null);
         if (this.bucketName == null || this.bucketName.isEmpty()) {
             logger.severe("BUCKET_NAME environment variable is not set. This function may not operate correctly.");
         }
@@ -40,102 +61,320 @@ public class PDFFileProcessor implements RequestHandler<S3Event, String> {
     public String handleRequest(S3Event event, Context context) {
         logger.info("Received S3 event for PDF processing. Request ID: " + context.getAwsRequestId());
         long startTime = System.currentTimeMillis();
+        InvocationMetrics.begin(context.getFunctionName());
+        InvocationDeadline.begin(context);
+        try {
+            if (event == null || event.getRecords() == null || event.getRecords().isEmpty()) {
+                logger.warning("No records found in the S3 event.");
+                return "No records to process.";
+            }
 
-        if (event == null || event.getRecords() == null || event.getRecords().isEmpty()) {
-            logger.warning("No records found in the S3 event.");
-            return "No records to process.";
-        }
+            List<RecordBatchRunner.Outcome> outcomes;
+            try (ObjectPrefetcher prefetcher = ObjectPrefetcher.start(event.getRecords())) {
+                outcomes = RecordBatchRunner.run(event.getRecords(),
+                        prefetcher.releasingUnclaimed(EventDeduplicator.skippingDuplicates(
+                                Continuations.resumable(this::processRecord, Continuations.Entry.S3_EVENT), EventDeduplicator::identityOf)),
+                        SharedLambdaLayer::objectKeyOf);
+            }
+            List<String> failedFiles = RecordBatchRunner.keysWith(outcomes, RecordBatchRunner.Status.FAILED);
+            List<String> skippedFiles = RecordBatchRunner.keysWith(outcomes, RecordBatchRunner.Status.SKIPPED);
+            List<String> continuedFiles = RecordBatchRunner.keysWith(outcomes, RecordBatchRunner.Status.CONTINUED);
 
-        List<String> failedFiles = new ArrayList<>();
-        List<String> skippedFiles = new ArrayList<>();
+            long endTime = System.currentTimeMillis();
+            logger.info(String.format("PDF processing completed in %d ms", (endTime - startTime)));
+            logger.info("Object cache: " + ObjectCache.shared().stats());
 
-        for (S3EventNotificationRecord record : event.getRecords()) {
-            String rawKey = record.getS3().getObject().getKey();
-            String s3Bucket = record.getS3().getBucket().getName();
-            String s3Key = null;
+            StringBuilder result = new StringBuilder("Processing Summary: ");
+            if (failedFiles.isEmpty()) {
+                result.append("All files processed successfully.");
+            } else {
+                result.append("Failed to process ").append(failedFiles.size()).append(" file(s): ").append(String.join(", ", failedFiles));
+            }
+            if (!skippedFiles.isEmpty()) {
+                result.append(". Skipped ").append(skippedFiles.size()).append(" file(s): ").append(String.join(", ", skippedFiles));
+            }
+            if (!continuedFiles.isEmpty()) {
+                result.append(". Continued ").append(continuedFiles.size()).append(" file(s) in a new invocation: ").append(String.join(", ", continuedFiles));
+            }
 
-            try {
-                s3Key = URLDecoder.decode(rawKey, StandardCharsets.UTF_8);
-                logger.info(String.format("Processing record for S3 object: s3://%s/%s (decoded: %s)", s3Bucket, rawKey, s3Key));
+            return result.toString();
+        } finally {
+            InvocationMetrics.emit();
+        }
+    }
 
-                if (!s3Bucket.equals(this.bucketName)) {
-                    logger.warning(String.format("Event bucket '%s' doesn't match expected bucket '%s'. Skipping: %s", s3Bucket, bucketName, s3Key));
-                    skippedFiles.add(s3Key);
-                    continue;
-                }
+    /**
+     * Entry point for SQS-buffered ingestion: S3 notifications queued in SQS arrive here in batches.
+     * Returns the messages whose records failed, so SQS redelivers only those.
+     */
+    public SQSBatchResponse handleSqsEvent(SQSEvent event, Context context) {
+        logger.info("Received SQS batch for PDF. Request ID: " + context.getAwsRequestId());
+        long startTime = System.currentTimeMillis();
+        InvocationMetrics.begin(context.getFunctionName());
+        InvocationDeadline.begin(context);
+        try {
+            SQSBatchResponse response = SqsBatchProcessor.process(event,
+                    EventDeduplicator.skippingDuplicates(
+                            Continuations.resumable(this::processRecord, Continuations.Entry.SQS), EventDeduplicator::identityOf));
+            logger.info(String.format("SQS batch completed in %d ms", System.currentTimeMillis() - startTime));
+            return response;
+        } finally {
+            InvocationMetrics.emit();
+        }
+    }
 
-                if (!s3Key.toLowerCase().endsWith(".pdf")) {
-                    logger.warning("Skipped non-PDF file: " + s3Key);
-                    skippedFiles.add(s3Key);
-                    continue;
-                }
+    /**
+     * Processes one S3 event record. Safe to call concurrently for different records.
+     */
+    private RecordBatchRunner.Outcome processRecord(S3EventNotificationRecord record) {
+        String rawKey = record.getS3().getObject().getKey();
+        String s3Bucket = record.getS3().getBucket().getName();
+        String s3Key = null;
 
-                Path localFilePath = null;
-
-                try {
-                    localFilePath = SharedLambdaLayer.downloadFileAsPath(s3Client, s3Bucket, s3Key);
-                    // ✅ Log files in /tmp after download
-                    File tmpDir = new File("/tmp");
-                    String[] tmpFiles = tmpDir.list();
-                    if (tmpFiles != null && tmpFiles.length > 0) {
-                        logger.info("Files present in /tmp:");
-                        for (String file : tmpFiles) {
-                            logger.info(" - " + file);
-                        }
-                    } else {
-                        logger.info("No files present in /tmp.");
-                    }
-                    processPdfFile(localFilePath);
-                } catch (NoSuchKeyException e) {
-                    logger.severe(String.format("File not found on S3: %s/%s - %s", s3Bucket, s3Key, e.getMessage()));
-                    failedFiles.add(s3Key);
-                } catch (S3Exception e) {
-                    logger.severe(String.format("S3 error while downloading: %s - %s", s3Key, e.getMessage()));
-                    failedFiles.add(s3Key);
-                } catch (IOException e) {
-                    logger.severe(String.format("I/O error while processing PDF: %s - %s", s3Key, e.getMessage()));
-                    failedFiles.add(s3Key);
-                } finally {
-                    if (localFilePath != null) {
-                        SharedLambdaLayer.cleanUpFile(localFilePath);
-                    }
-                }
+        try {
+            long decodeStart = System.nanoTime();
+            s3Key = SharedLambdaLayer.objectKeyOf(record);
+            InvocationMetrics.record(InvocationMetrics.Stage.KEY_DECODE, decodeStart);
+            logger.info(String.format("Processing record for S3 object: s3://%s/%s (decoded: %s)", s3Bucket, rawKey, s3Key));
 
-            } catch (Exception e) {
-                logger.severe(String.format("Unhandled exception for key %s: %s", rawKey, e.getMessage()));
-                failedFiles.add(s3Key != null ? s3Key : rawKey + " (decode_failed)");
+            if (!s3Bucket.equals(this.bucketName)) {
+                logger.warning(String.format("Event bucket '%s' doesn't match expected bucket '%s'. Skipping: %s", s3Bucket, bucketName, s3Key));
+                return RecordBatchRunner.Outcome.skipped(s3Key);
             }
-        }
 
-        long endTime = System.currentTimeMillis();
-        logger.info(String.format("PDF processing completed in %d ms", (endTime - startTime)));
+            if (!s3Key.toLowerCase().endsWith(".pdf")) {
+                logger.warning("Skipped non-PDF file: " + s3Key);
+                return RecordBatchRunner.Outcome.skipped(s3Key);
+            }
+
+            return processObject(s3Bucket, s3Key);
 
-        StringBuilder result = new StringBuilder("Processing Summary: ");
-        if (failedFiles.isEmpty()) {
-            result.append("All files processed successfully.");
-        } else {
-            result.append("Failed to process ").append(failedFiles.size()).append(" file(s): ").append(String.join(", ", failedFiles));
+        } catch (Exception e) {
+            logger.severe(String.format("Unhandled exception for key %s: %s", rawKey, e.getMessage()));
+            return RecordBatchRunner.Outcome.failed(s3Key != null ? s3Key : rawKey + " (decode_failed)");
         }
-        if (!skippedFiles.isEmpty()) {
-            result.append(". Skipped ").append(skippedFiles.size()).append(" file(s): ").append(String.join(", ", skippedFiles));
+    }
+
+    @Override
+    public String type() {
+        return "pdf";
+    }
+
+    @Override
+    public boolean handles(String mediaType) {
+        return ContentSniffer.PDF.equals(mediaType);
+    }
+
+    /**
+     * Downloads one PDF object and extracts its text, or only its metadata with PDF_PROCESSING_MODE=metadata.
+     */
+    @Override
+    public RecordBatchRunner.Outcome processObject(String s3Bucket, String s3Key) {
+        // Index segments are output; routed by content they are not PDFs, but skip them without a download
+        if (s3Key.endsWith(TextIndexSegment.SUFFIX)) {
+            return RecordBatchRunner.Outcome.skipped(s3Key);
         }
+        Path localFilePath = null;
 
-        return result.toString();
+        try {
+            localFilePath = SharedLambdaLayer.downloadFileAsPath(s3Client, s3Bucket, s3Key);
+            // ✅ Log files in /tmp after download
+            File tmpDir = new File("/tmp");
+            String[] tmpFiles = tmpDir.list();
+            if (tmpFiles != null && tmpFiles.length > 0) {
+                logger.info("Files present in /tmp:");
+                for (String file : tmpFiles) {
+                    logger.info(" - " + file);
+                }
+            } else {
+                logger.info("No files present in /tmp.");
+            }
+            if ("metadata".equalsIgnoreCase(LayerConfig.get("PDF_PROCESSING_MODE", "text"))) {
+                processPdfMetadata(localFilePath);
+            } else if (!processPdfFile(localFilePath, s3Bucket, s3Key)) {
+                return RecordBatchRunner.Outcome.continued(s3Key);
+            }
+            return RecordBatchRunner.Outcome.processed(s3Key);
+        } catch (NoSuchKeyException e) {
+            logger.severe(String.format("File not found on S3: %s/%s - %s", s3Bucket, s3Key, e.getMessage()));
+            return RecordBatchRunner.Outcome.failed(s3Key);
+        } catch (S3Exception e) {
+            logger.severe(String.format("S3 error while downloading: %s - %s", s3Key, e.getMessage()));
+            return RecordBatchRunner.Outcome.failed(s3Key);
+        } catch (IOException e) {
+            logger.severe(String.format("I/O error while processing PDF: %s - %s", s3Key, e.getMessage()));
+            return RecordBatchRunner.Outcome.failed(s3Key);
+        } finally {
+            if (localFilePath != null) {
+                SharedLambdaLayer.cleanUpFile(localFilePath);
+            }
+        }
     }
 
-    private void processPdfFile(Path filePath) {
+    /**
+     * Extracts the text page by page, in parallel, and logs the first 200 chars. The text is streamed
+     * in page order and never held in memory as a whole. If PDF_TEXT_OUTPUT_PREFIX is set, the text is
+     * also written to that prefix + the source key + ".txt" as it is extracted, through a multipart upload.
+     * With PDF_INDEX=true the text is also indexed by page, and the {@link TextIndexSegment} is uploaded to
+     * PDF_INDEX_OUTPUT_PREFIX (default: next to the source) + the source key + ".tidx".
+     *
+     * <p>A document large enough to checkpoint stops starting pages once the invocation nears its deadline;
+     * the checkpoint then holds the next page and the suspended upload, and this returns false. The index of
+     * the pages so far is then uploaded as the document's segment, and the continuation resumes from it.
+     * Without an upload or an index, progress is also saved periodically; an upload in progress can only be
+     * saved by suspending it, and an index only once it is uploaded.
+     *
+     * @return true when the document is done, false when it was checkpointed to continue later
+     */
+    private boolean processPdfFile(Path filePath, String s3Bucket, String s3Key) throws IOException {
         logger.info("Starting PDF content extraction: " + filePath.toString());
+        long start = System.nanoTime();
+        CheckpointStore checkpoints = CheckpointStore.shared();
+        // Only documents large enough to checkpoint pay for the HEAD that identifies their version
+        Checkpoint checkpoint = checkpoints.covers(Files.size(filePath))
+                ? checkpoints.load(s3Bucket, s3Key, SharedLambdaLayer.headObject(s3Client, s3Bucket, s3Key).eTag()) : null;
+        int firstPage = checkpoint != null ? (int) checkpoint.getLong(CHECKPOINT_NEXT_PAGE, 1) : 1;
+        StringBuilder preview = new StringBuilder(PREVIEW_CHARS);
+        long[] characters = {checkpoint != null ? checkpoint.getLong(CHECKPOINT_CHARACTERS, 0) : 0};
+        int[] nextPage = {firstPage};
+        String outputPrefix = LayerConfig.get("PDF_TEXT_OUTPUT_PREFIX", "");
+        String outputKey = outputPrefix + s3Key + ".txt";
+        S3MultipartOutputStream output = outputPrefix.isEmpty() ? null
+                : checkpoint != null ? S3MultipartOutputStream.resume(s3Client, checkpoints, checkpoint, CHECKPOINT_OUTPUT,
+                        s3Bucket, outputKey, "text/plain; charset=utf-8")
+                : SharedLambdaLayer.openUploadStream(s3Client, s3Bucket, outputKey, "text/plain; charset=utf-8");
+        Writer textOut = output != null ? new OutputStreamWriter(output, StandardCharsets.UTF_8) : null;
+        String indexKey = LayerConfig.get("PDF_INDEX_OUTPUT_PREFIX", "") + s3Key + TextIndexSegment.SUFFIX;
+        DocumentIndexer indexer = !LayerConfig.getBoolean("PDF_INDEX", false) ? null
+                : checkpoint != null && checkpoint.get(CHECKPOINT_INDEX) != null ? resumeIndex(s3Bucket, indexKey, s3Key, firstPage)
+                : new DocumentIndexer();
+        BooleanSupplier stop = checkpoint != null ? InvocationDeadline::shouldYield : () -> false;
 
-        try (PDDocument document = PDDocument.load(filePath.toFile())) {
-            PDFTextStripper stripper = new PDFTextStripper();
-            String text = stripper.getText(document);
+        try {
+            int pages = PdfTextExtractor.fromEnvironment(documentLoader::load).extract(filePath, firstPage, stop, (pageNumber, text) -> {
+                // In a real-world scenario this is where page text is indexed or forwarded downstream
+                characters[0] += text.length();
+                nextPage[0] = pageNumber + 1;
+                if (preview.length() < PREVIEW_CHARS) {
+                    preview.append(text, 0, Math.min(text.length(), PREVIEW_CHARS - preview.length()));
+                }
+                if (indexer != null) {
+                    indexer.page(pageNumber, text);
+                }
+                if (textOut != null) {
+                    textOut.write(text);
+                } else if (indexer == null && checkpoint != null && checkpoints.isDue(checkpoint)) {
+                    checkpoint.set(CHECKPOINT_NEXT_PAGE, nextPage[0]);
+                    checkpoint.set(CHECKPOINT_CHARACTERS, characters[0]);
+                    checkpoints.save(checkpoint);
+                }
+            });
+            InvocationMetrics.record(InvocationMetrics.Stage.PARSE, start);
+            InvocationMetrics.add(InvocationMetrics.Counter.PAGES, nextPage[0] - firstPage);
+            logger.info("Extracted text (first 200 chars): " + preview + "...");
+            logger.info(String.format("Extracted %d chars from pages %d-%d of %d in %d ms", characters[0], firstPage,
+                    nextPage[0] - 1, pages, (System.nanoTime() - start) / 1_000_000));
 
-            logger.info("Extracted text (first 200 chars): " + text.substring(0, Math.min(text.length(), 200)) + "...");
-        } catch (IOException e) {
+            // Only a checkpointed document stops early; without one every page was extracted
+            if (checkpoint != null && nextPage[0] <= pages) {
+                if (textOut != null) {
+                    textOut.flush();
+                    output.suspend(checkpoints, checkpoint, CHECKPOINT_OUTPUT);
+                }
+                if (indexer != null) {
+                    uploadIndex(indexer, s3Bucket, indexKey, s3Key);
+                    checkpoint.set(CHECKPOINT_INDEX, indexer.pages());
+                }
+                checkpoint.set(CHECKPOINT_NEXT_PAGE, nextPage[0]);
+                checkpoint.set(CHECKPOINT_CHARACTERS, characters[0]);
+                checkpoints.suspend(checkpoint);
+                logger.info(String.format("Stopped %s before page %d of %d for a continuation", s3Key, nextPage[0], pages));
+                return false;
+            }
+            if (textOut != null) {
+                // Completes the upload; a failure aborts it
+                textOut.close();
+            }
+            if (indexer != null) {
+                uploadIndex(indexer, s3Bucket, indexKey, s3Key);
+            }
+            if (checkpoint != null && (checkpoint.isResumed() || checkpoint.get(CHECKPOINT_NEXT_PAGE) != null)) {
+                checkpoints.delete(checkpoint);
+            }
+        } catch (IOException | RuntimeException e) {
+            // PDFBox and the upload also fail with unchecked exceptions, which must not leave the upload open
+            if (output != null) {
+                output.abort();
+            }
             logger.severe("Failed to parse PDF: " + e.getMessage());
             throw new RuntimeException("PDF parsing failed", e);
         }
 
         logger.info("Finished PDF content processing for: " + filePath);
+        return true;
+    }
+
+    /** Uploads the document's index segment, replacing any earlier one for the same key. */
+    private static void uploadIndex(DocumentIndexer indexer, String s3Bucket, String indexKey, String s3Key) throws IOException {
+        S3MultipartOutputStream out = SharedLambdaLayer.openUploadStream(s3Client, s3Bucket, indexKey, TextIndexSegment.CONTENT_TYPE);
+        long bytes;
+        try {
+            bytes = indexer.writeTo(new BufferedOutputStream(out, 64 * 1024), s3Key, System.currentTimeMillis());
+        } catch (IOException | RuntimeException e) {
+            out.abort();
+            throw e;
+        }
+        InvocationMetrics.recordDuration(InvocationMetrics.Stage.INDEX, indexer.busyNanos());
+        InvocationMetrics.add(InvocationMetrics.Counter.INDEX_BYTES, bytes);
+        logger.info(String.format("Indexed %d pages of %s: %d terms, %d bytes to s3://%s/%s", indexer.pages(), s3Key,
+                indexer.termCount(), bytes, s3Bucket, indexKey));
+    }
+
+    /** Picks the index of the pages before {@code firstPage} up from the partial segment uploaded for this document. */
+    private static DocumentIndexer resumeIndex(String s3Bucket, String indexKey, String s3Key, int firstPage) throws IOException {
+        Path segmentFile = SharedLambdaLayer.downloadFileAsPath(s3Client, s3Bucket, indexKey);
+        try {
+            return DocumentIndexer.resume(TextIndexSegment.open(segmentFile), s3Key, firstPage);
+        } finally {
+            SharedLambdaLayer.cleanUpFile(segmentFile);
+        }
+    }
+
+    /**
+     * Logs page count and document info without parsing any page content, for PDF_PROCESSING_MODE=metadata.
+     */
+    private void processPdfMetadata(Path filePath) throws IOException {
+        long start = System.nanoTime();
+        PdfDocumentLoader.Metadata metadata = documentLoader.readMetadata(filePath);
+        InvocationMetrics.record(InvocationMetrics.Stage.PARSE, start);
+        InvocationMetrics.add(InvocationMetrics.Counter.PAGES, metadata.pages());
+        logger.info("PDF metadata for " + filePath + ": " + metadata);
+    }
+
+    /**
+     * Writes a one-page PDF and runs it through metadata and text extraction, so PDFBox's parser, standard
+     * fonts and text stripper are loaded before the first real document.
+     */
+    private static void prime() throws IOException {
+        Path sample = Files.createTempFile(Paths.get(SharedLambdaLayer.getTempDir()), "prime-", ".pdf");
+        try {
+            try (PDDocument document = new PDDocument()) {
+                PDPage page = new PDPage();
+                document.addPage(page);
+                try (PDPageContentStream content = new PDPageContentStream(document, page)) {
+                    content.beginText();
+                    content.setFont(PDType1Font.HELVETICA, 12);
+                    content.newLineAtOffset(72, 720);
+                    content.showText("Priming sample");
+                    content.endText();
+                }
+                document.save(sample.toFile());
+            }
+            documentLoader.readMetadata(sample);
+            new PdfTextExtractor(1, 1, documentLoader::load).extract(sample, (pageNumber, text) -> {
+            });
+        } finally {
+            Files.deleteIfExists(sample);
+        }
     }
 }
@@ -0,0 +1,119 @@
+package com.s3fileprocesslambdalayer;
+
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDDocumentInformation;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Calendar;
+import java.util.logging.Logger;
+
+/**
+ * Opens PDFs under a heap budget. In the default "governed" mode PDFBox keeps at most the budget of
+ * parsed data in main memory and spills the rest to scratch files in the shared layer's temp dir, so
+ * documents much larger than the heap can be processed without raising the function's memory.
+ *
+ * <p>The budget is PDF_MAIN_MEMORY_MB if set, otherwise PDF_MEMORY_FRACTION (default 0.25) of the
+ * configured function memory (AWS_LAMBDA_FUNCTION_MEMORY_SIZE), shared by every document that can be
+ * open at once: RECORD_PARALLELISM records times PDF_EXTRACT_THREADS workers each. PDF_MEMORY_MODE=main
+ * restores PDFBox's unbounded main-memory default.
+ */
+public class PdfDocumentLoader {
+    private static final Logger logger = Logger.getLogger(PdfDocumentLoader.class.getName());
+
+    /** Document-level facts read without parsing any page content stream. */
+    public static final class Metadata {
+        private final int pages;
+        private final float version;
+        private final boolean encrypted;
+        private final String title;
+        private final String author;
+        private final String producer;
+        private final Calendar creationDate;
+
+        Metadata(int pages, float version, boolean encrypted, PDDocumentInformation info) {
+            this.pages = pages;
+            this.version = version;
+            this.encrypted = encrypted;
+            this.title = info != null ? info.getTitle() : null;
+            this.author = info != null ? info.getAuthor() : null;
+            this.producer = info != null ? info.getProducer() : null;
+            this.creationDate = info != null ? info.getCreationDate() : null;
+        }
+
+        public int pages() {
+            return pages;
+        }
+
+        public String title() {
+            return title;
+        }
+
+        public String author() {
+            return author;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("pages=%d, version=%.1f, encrypted=%s, title=%s, author=%s, producer=%s, created=%s",
+                    pages, version, encrypted, title, author, producer,
+                    creationDate != null ? creationDate.toInstant() : null);
+        }
+    }
+
+    private final boolean governed;
+    private final long maxMainMemoryBytes;
+    private final File scratchDir;
+
+    public PdfDocumentLoader(boolean governed, long maxMainMemoryBytes, File scratchDir) {
+        this.governed = governed;
+        this.maxMainMemoryBytes = maxMainMemoryBytes;
+        this.scratchDir = scratchDir;
+    }
+
+    public static PdfDocumentLoader fromEnvironment() {
+        boolean governed = !"main".equalsIgnoreCase(LayerConfig.get("PDF_MEMORY_MODE", "governed"));
+        long budgetMb = LayerConfig.getLong("PDF_MAIN_MEMORY_MB", -1);
+        if (budgetMb < 0) {
+            long functionMemoryMb = LayerConfig.getLong("AWS_LAMBDA_FUNCTION_MEMORY_SIZE",
+                    Runtime.getRuntime().maxMemory() / (1024 * 1024));
+            double fraction = Double.parseDouble(LayerConfig.get("PDF_MEMORY_FRACTION", "0.25"));
+            long openDocuments = (long) Math.max(1, LayerConfig.getInt("RECORD_PARALLELISM", 1))
+                    * Math.max(1, LayerConfig.getInt("PDF_EXTRACT_THREADS", Runtime.getRuntime().availableProcessors()));
+            budgetMb = Math.max(1, (long) (functionMemoryMb * fraction / openDocuments));
+        }
+        PdfDocumentLoader loader = new PdfDocumentLoader(governed, budgetMb * 1024 * 1024,
+                new File(SharedLambdaLayer.getTempDir()));
+        logger.info(governed
+                ? "PDF loading is memory-governed: " + budgetMb + " MB main memory per document, scratch in " + loader.scratchDir
+                : "PDF loading uses main memory only");
+        return loader;
+    }
+
+    /** Opens the whole document for content processing. */
+    public PDDocument load(Path file) throws IOException {
+        return PDDocument.load(file.toFile(), memoryUsage());
+    }
+
+    /**
+     * Reads the page count and the info dictionary. This is a full {@link PDDocument#load}: PDFBox parses
+     * every object reachable from the trailer, so the time and scratch space grow with the file, although
+     * content streams are never decoded. It is still far cheaper than extracting text, but not a constant-cost
+     * probe of the trailer and page tree.
+     */
+    public Metadata readMetadata(Path file) throws IOException {
+        try (PDDocument document = PDDocument.load(file.toFile(), memoryUsage())) {
+            return new Metadata(document.getNumberOfPages(), document.getVersion(), document.isEncrypted(),
+                    document.getDocumentInformation());
+        }
+    }
+
+    private MemoryUsageSetting memoryUsage() {
+        if (!governed) {
+            return MemoryUsageSetting.setupMainMemoryOnly();
+        }
+        return MemoryUsageSetting.setupMixed(maxMainMemoryBytes).setTempDir(scratchDir);
+    }
+}
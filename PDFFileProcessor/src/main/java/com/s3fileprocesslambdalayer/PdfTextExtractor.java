@@ -0,0 +1,256 @@
+package com.s3fileprocesslambdalayer;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.text.PDFTextStripper;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.logging.Logger;
+
+/**
+ * Extracts PDF text with the page range split across worker threads. PDDocument is not thread-safe, so
+ * every worker opens its own document and runs its own {@link PDFTextStripper} over chunks of pages
+ * ({@code setStartPage}/{@code setEndPage}). Pages reach the {@link PageSink} one at a time, in page order,
+ * and at most a small window of chunks is held in memory, so the whole text is never assembled.
+ *
+ * <p>Tuned by PDF_EXTRACT_THREADS (default: available processors) and PDF_PAGES_PER_CHUNK (default 8).
+ */
+public class PdfTextExtractor {
+    private static final Logger logger = Logger.getLogger(PdfTextExtractor.class.getName());
+
+    /** Receives page text in page order, from one thread at a time. */
+    @FunctionalInterface
+    public interface PageSink {
+        void page(int pageNumber, String text) throws IOException;
+    }
+
+    /** Opens the document a worker extracts from; each call must return a new, independent instance. */
+    @FunctionalInterface
+    public interface DocumentOpener {
+        PDDocument open(Path file) throws IOException;
+    }
+
+    private final int threads;
+    private final int pagesPerChunk;
+    private final DocumentOpener opener;
+
+    public PdfTextExtractor(int threads, int pagesPerChunk, DocumentOpener opener) {
+        this.threads = Math.max(1, threads);
+        this.pagesPerChunk = Math.max(1, pagesPerChunk);
+        this.opener = opener;
+    }
+
+    public static PdfTextExtractor fromEnvironment(DocumentOpener opener) {
+        return new PdfTextExtractor(
+                LayerConfig.getInt("PDF_EXTRACT_THREADS", Runtime.getRuntime().availableProcessors()),
+                LayerConfig.getInt("PDF_PAGES_PER_CHUNK", 8),
+                opener);
+    }
+
+    /**
+     * Streams the text of every page of {@code file} to {@code sink} and returns the page count.
+     */
+    public int extract(Path file, PageSink sink) throws IOException {
+        return extract(file, 1, () -> false, sink);
+    }
+
+    /**
+     * Streams the text of the pages from {@code firstPage} on to {@code sink} and returns the document's page
+     * count. Once {@code stop} returns true no further chunks are started; chunks already started are
+     * finished and emitted, so the pages emitted are always a prefix of the range and the last page the sink
+     * saw is where a later call can carry on. At least one chunk is extracted per call.
+     */
+    public int extract(Path file, int firstPage, BooleanSupplier stop, PageSink sink) throws IOException {
+        try (PDDocument first = opener.open(file)) {
+            int pages = first.getNumberOfPages();
+            int chunks = Math.max(0, (pages - firstPage + pagesPerChunk) / pagesPerChunk);
+            int workers = Math.min(threads, chunks);
+            OrderedSink ordered = new OrderedSink(sink, firstPage, pagesPerChunk, Math.max(2, workers * 2));
+            AtomicInteger nextChunk = new AtomicInteger();
+            logger.info(String.format("Extracting %d pages in %d chunks with %d worker(s)", pages, chunks, workers));
+
+            ExecutorService executor = workers > 1 ? Executors.newFixedThreadPool(workers - 1) : null;
+            try {
+                List<Future<Void>> futures = new ArrayList<>();
+                for (int w = 1; w < workers; w++) {
+                    futures.add(executor.submit(() -> {
+                        try (PDDocument own = opener.open(file)) {
+                            extractChunks(own, pages, firstPage, chunks, nextChunk, stop, ordered);
+                        } catch (IOException | RuntimeException e) {
+                            // Unblocks the other workers, which may be waiting on this worker's chunk
+                            ordered.abort();
+                            throw e;
+                        }
+                        return null;
+                    }));
+                }
+                // The calling thread is worker 0 and reuses the document it already opened
+                try {
+                    extractChunks(first, pages, firstPage, chunks, nextChunk, stop, ordered);
+                } catch (IOException | RuntimeException e) {
+                    ordered.abort();
+                    throw e;
+                }
+                for (Future<Void> future : futures) {
+                    awaitWorker(future, ordered);
+                }
+            } finally {
+                if (executor != null) {
+                    executor.shutdownNow();
+                }
+            }
+            return pages;
+        }
+    }
+
+    private void extractChunks(PDDocument document, int pages, int firstPage, int chunks, AtomicInteger nextChunk,
+                               BooleanSupplier stop, OrderedSink ordered) throws IOException {
+        PageStripper stripper = new PageStripper();
+        while (!ordered.aborted()) {
+            // Take a window slot before claiming a chunk, so the oldest unfinished chunk always has a worker
+            ordered.awaitWindow();
+            if (nextChunk.get() > 0 && stop.getAsBoolean()) {
+                ordered.releaseWindow();
+                return;
+            }
+            int chunk = nextChunk.getAndIncrement();
+            if (chunk >= chunks) {
+                ordered.releaseWindow();
+                return;
+            }
+            int startPage = firstPage + chunk * pagesPerChunk;
+            int endPage = Math.min(pages, startPage + pagesPerChunk - 1);
+            ordered.complete(chunk, stripper.pages(document, startPage, endPage));
+        }
+    }
+
+    private static void awaitWorker(Future<Void> future, OrderedSink ordered) throws IOException {
+        try {
+            future.get();
+        } catch (ExecutionException e) {
+            ordered.abort();
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("PDF extraction worker failed", cause);
+        } catch (InterruptedException e) {
+            ordered.abort();
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while extracting PDF text", e);
+        }
+    }
+
+    /**
+     * Stripper that returns one string per page instead of one for the whole range. PDFBox skips pages without
+     * a content stream, so pages are placed by their page number and a skipped page is left empty.
+     */
+    private static final class PageStripper extends PDFTextStripper {
+        private final StringWriter buffer = new StringWriter();
+        private String[] pages;
+        private int firstPage;
+
+        PageStripper() throws IOException {
+        }
+
+        List<String> pages(PDDocument document, int startPage, int endPage) throws IOException {
+            pages = new String[endPage - startPage + 1];
+            Arrays.fill(pages, "");
+            firstPage = startPage;
+            buffer.getBuffer().setLength(0);
+            setStartPage(startPage);
+            setEndPage(endPage);
+            writeText(document, buffer);
+            return Arrays.asList(pages);
+        }
+
+        @Override
+        protected void startPage(PDPage page) throws IOException {
+            // Drops what was written between pages, such as the document start
+            output.flush();
+            buffer.getBuffer().setLength(0);
+            super.startPage(page);
+        }
+
+        @Override
+        protected void endPage(PDPage page) throws IOException {
+            super.endPage(page);
+            output.flush();
+            pages[getCurrentPageNo() - firstPage] = buffer.toString();
+            buffer.getBuffer().setLength(0);
+        }
+    }
+
+    /**
+     * Reorders completed chunks and hands their pages to the sink in page order. At most {@code window}
+     * chunks are claimed but not yet emitted at any time, which bounds the buffered text.
+     */
+    private static final class OrderedSink {
+        private final PageSink sink;
+        private final int firstPage;
+        private final int pagesPerChunk;
+        private final int window;
+        private final Semaphore slots;
+        private final Map<Integer, List<String>> completed = new HashMap<>();
+        private int nextToEmit;
+        private volatile boolean aborted;
+
+        OrderedSink(PageSink sink, int firstPage, int pagesPerChunk, int window) {
+            this.sink = sink;
+            this.firstPage = firstPage;
+            this.pagesPerChunk = pagesPerChunk;
+            this.window = window;
+            this.slots = new Semaphore(window);
+        }
+
+        void awaitWindow() throws IOException {
+            try {
+                slots.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for an extraction slot", e);
+            }
+        }
+
+        void releaseWindow() {
+            slots.release();
+        }
+
+        synchronized void complete(int chunk, List<String> pages) throws IOException {
+            completed.put(chunk, pages);
+            List<String> ready;
+            while (!aborted && (ready = completed.remove(nextToEmit)) != null) {
+                int chunkStart = firstPage + nextToEmit * pagesPerChunk;
+                for (int i = 0; i < ready.size(); i++) {
+                    sink.page(chunkStart + i, ready.get(i));
+                }
+                nextToEmit++;
+                slots.release();
+            }
+        }
+
+        boolean aborted() {
+            return aborted;
+        }
+
+        /** Stops further work and wakes any worker waiting for a window slot. */
+        void abort() {
+            aborted = true;
+            slots.release(window);
+        }
+    }
+}
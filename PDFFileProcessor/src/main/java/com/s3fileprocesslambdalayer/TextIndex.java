@@ -0,0 +1,293 @@
+package com.s3fileprocesslambdalayer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Keyword search over a set of memory-mapped {@link TextIndexSegment}s, such as the per-document segments
+ * the PDF function uploads and the larger ones {@link TextIndexMerger} compacts them into. A query is a list
+ * of words, all of which a page must contain; words in double quotes must also appear next to each other, in
+ * that order. Words are normalized as they were for indexing, so matching ignores case and punctuation.
+ *
+ * <p>Per segment, the terms' postings are intersected from the rarest term up, skipping whole documents
+ * and pages without decoding their positions; positions are only read for phrases. When a document key is
+ * in several segments, only its most recently indexed copy is searched. Safe for concurrent queries.
+ *
+ * <pre>
+ * java -cp pdf-file-processor-function.jar com.s3fileprocesslambdalayer.TextIndex segments/ '"net revenue" 2024'
+ * </pre>
+ */
+public final class TextIndex implements Closeable {
+
+    private final List<TextIndexSegment> segments;
+    private final BitSet[] superseded;
+
+    private TextIndex(List<TextIndexSegment> segments) {
+        this.segments = segments;
+        this.superseded = new BitSet[segments.size()];
+        Map<String, long[]> newest = new HashMap<>();
+        for (int s = 0; s < segments.size(); s++) {
+            superseded[s] = new BitSet();
+            TextIndexSegment segment = segments.get(s);
+            for (int d = 0; d < segment.documentCount(); d++) {
+                long[] best = newest.get(segment.documentKey(d));
+                if (best == null || segment.indexedAt(d) >= best[2]) {
+                    if (best != null) {
+                        superseded[(int) best[0]].set((int) best[1]);
+                    }
+                    newest.put(segment.documentKey(d), new long[] {s, d, segment.indexedAt(d)});
+                } else {
+                    superseded[s].set(d);
+                }
+            }
+        }
+    }
+
+    /** Opens the segments in {@code paths}, each a segment file or a directory searched for them. */
+    public static TextIndex open(Collection<Path> paths) throws IOException {
+        List<TextIndexSegment> segments = new ArrayList<>();
+        for (Path file : segmentFiles(paths)) {
+            segments.add(TextIndexSegment.open(file));
+        }
+        return new TextIndex(segments);
+    }
+
+    /** Segment files among {@code paths}, with directories walked for files ending in {@link TextIndexSegment#SUFFIX}. */
+    static List<Path> segmentFiles(Collection<Path> paths) throws IOException {
+        List<Path> files = new ArrayList<>();
+        for (Path path : paths) {
+            if (Files.isDirectory(path)) {
+                try (Stream<Path> walk = Files.walk(path)) {
+                    files.addAll(walk.filter(file -> Files.isRegularFile(file) && file.toString().endsWith(TextIndexSegment.SUFFIX))
+                            .sorted()
+                            .collect(Collectors.toList()));
+                }
+            } else {
+                files.add(path);
+            }
+        }
+        return files;
+    }
+
+    public List<TextIndexSegment> segments() {
+        return segments;
+    }
+
+    /** Documents searched: every key once. */
+    public int documentCount() {
+        int documents = 0;
+        for (int s = 0; s < segments.size(); s++) {
+            documents += segments.get(s).documentCount() - superseded[s].cardinality();
+        }
+        return documents;
+    }
+
+    /** A page that matched a query. */
+    public static final class Hit {
+        private final String documentKey;
+        private final int page;
+        private final int occurrences;
+
+        Hit(String documentKey, int page, int occurrences) {
+            this.documentKey = documentKey;
+            this.page = page;
+            this.occurrences = occurrences;
+        }
+
+        /** Source object key of the document. */
+        public String documentKey() {
+            return documentKey;
+        }
+
+        /** Page number, from 1. */
+        public int page() {
+            return page;
+        }
+
+        /** Occurrences of the query's words on the page. */
+        public int occurrences() {
+            return occurrences;
+        }
+
+        @Override
+        public String toString() {
+            return documentKey + " p." + page + " (" + occurrences + ")";
+        }
+    }
+
+    // Most occurrences first, then by key and page
+    private static final Comparator<Hit> RANKING = Comparator.comparingInt(Hit::occurrences).reversed()
+            .thenComparing(Hit::documentKey).thenComparingInt(Hit::page);
+
+    /**
+     * Pages that contain every word of {@code query}, with each quoted phrase in order, ranked by how often
+     * the words occur on them. At most {@code limit} hits are returned.
+     */
+    public List<Hit> search(String query, int limit) {
+        Map<String, Integer> slots = new LinkedHashMap<>();
+        List<int[]> phrases = new ArrayList<>();
+        String[] parts = query.split("\"", -1);
+        for (int i = 0; i < parts.length; i++) {
+            List<String> words = DocumentIndexer.terms(parts[i]);
+            int[] phrase = new int[words.size()];
+            for (int w = 0; w < words.size(); w++) {
+                phrase[w] = slots.computeIfAbsent(words.get(w), word -> slots.size());
+            }
+            // Odd parts were inside quotes
+            if (i % 2 == 1 && phrase.length > 1) {
+                phrases.add(phrase);
+            }
+        }
+        PriorityQueue<Hit> best = new PriorityQueue<>(RANKING.reversed());
+        if (slots.isEmpty() || limit <= 0) {
+            return new ArrayList<>();
+        }
+        String[] terms = slots.keySet().toArray(new String[0]);
+        for (int s = 0; s < segments.size(); s++) {
+            searchSegment(s, terms, phrases, best, limit);
+        }
+        List<Hit> hits = new ArrayList<>(best);
+        hits.sort(RANKING);
+        return hits;
+    }
+
+    private void searchSegment(int s, String[] terms, List<int[]> phrases, PriorityQueue<Hit> best, int limit) {
+        TextIndexSegment segment = segments.get(s);
+        TextIndexSegment.Postings[] postings = new TextIndexSegment.Postings[terms.length];
+        for (int t = 0; t < terms.length; t++) {
+            postings[t] = segment.postings(terms[t]);
+            if (postings[t] == null) {
+                return;
+            }
+        }
+        // Led by the rarest term, the others only skip forward to its documents and pages
+        TextIndexSegment.Postings[] byRarity = postings.clone();
+        Arrays.sort(byRarity, Comparator.comparingInt(TextIndexSegment.Postings::docFrequency));
+        int document = 0;
+        while (byRarity[0].advance(document)) {
+            document = byRarity[0].document();
+            int next = align(byRarity, document, true);
+            if (next == TextIndexSegment.Postings.END) {
+                return;
+            }
+            if (next != document) {
+                document = next;
+                continue;
+            }
+            if (!superseded[s].get(document)) {
+                searchPages(segment.documentKey(document), postings, byRarity, phrases, best, limit);
+            }
+            document++;
+        }
+    }
+
+    private static void searchPages(String key, TextIndexSegment.Postings[] postings, TextIndexSegment.Postings[] byRarity,
+                                    List<int[]> phrases, PriorityQueue<Hit> best, int limit) {
+        int page = 1;
+        while (byRarity[0].advancePage(page)) {
+            page = byRarity[0].page();
+            int next = align(byRarity, page, false);
+            if (next == TextIndexSegment.Postings.END) {
+                return;
+            }
+            if (next != page) {
+                page = next;
+                continue;
+            }
+            if (containsPhrases(postings, phrases)) {
+                int occurrences = 0;
+                for (TextIndexSegment.Postings term : postings) {
+                    occurrences += term.positionCount();
+                }
+                Hit hit = new Hit(key, page, occurrences);
+                if (best.size() < limit) {
+                    best.add(hit);
+                } else if (RANKING.compare(hit, best.peek()) < 0) {
+                    best.poll();
+                    best.add(hit);
+                }
+            }
+            page++;
+        }
+    }
+
+    /**
+     * Moves every cursor but the first to {@code target} or beyond; returns {@code target} when all are on it,
+     * the furthest position reached otherwise, or {@link TextIndexSegment.Postings#END} once one runs out.
+     */
+    private static int align(TextIndexSegment.Postings[] cursors, int target, boolean documents) {
+        for (int i = 1; i < cursors.length; i++) {
+            boolean found = documents ? cursors[i].advance(target) : cursors[i].advancePage(target);
+            if (!found) {
+                return TextIndexSegment.Postings.END;
+            }
+            int at = documents ? cursors[i].document() : cursors[i].page();
+            if (at != target) {
+                return at;
+            }
+        }
+        return target;
+    }
+
+    private static boolean containsPhrases(TextIndexSegment.Postings[] postings, List<int[]> phrases) {
+        for (int[] phrase : phrases) {
+            int[] first = postings[phrase[0]].positions();
+            boolean found = false;
+            for (int p = 0; p < postings[phrase[0]].positionCount() && !found; p++) {
+                found = true;
+                for (int w = 1; w < phrase.length && found; w++) {
+                    TextIndexSegment.Postings word = postings[phrase[w]];
+                    found = Arrays.binarySearch(word.positions(), 0, word.positionCount(), first[p] + w) >= 0;
+                }
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void close() {
+        for (TextIndexSegment segment : segments) {
+            segment.close();
+        }
+    }
+
+    /** {@code TextIndex <segment or directory>... <query>}: prints the top 20 pages and the query time. */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("usage: TextIndex <segment or directory>... <query>");
+            System.exit(2);
+        }
+        List<Path> paths = new ArrayList<>();
+        for (int i = 0; i < args.length - 1; i++) {
+            paths.add(Paths.get(args[i]));
+        }
+        try (TextIndex index = open(paths)) {
+            long start = System.nanoTime();
+            List<Hit> hits = index.search(args[args.length - 1], 20);
+            long micros = (System.nanoTime() - start) / 1000;
+            for (Hit hit : hits) {
+                System.out.println(hit);
+            }
+            System.out.printf("%d hits in %d documents of %d segments, %.2f ms%n", hits.size(), index.documentCount(),
+                    index.segments().size(), micros / 1000.0);
+        }
+    }
+}
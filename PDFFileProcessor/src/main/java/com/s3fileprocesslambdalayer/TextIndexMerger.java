@@ -0,0 +1,203 @@
+package com.s3fileprocesslambdalayer;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.logging.Logger;
+
+/**
+ * Compacts {@link TextIndexSegment}s into one. The dictionaries are merged term by term, and each
+ * document's encoded pages are copied as they are; only the document numbers are rewritten. Of several
+ * copies of a document key, only the most recently indexed is kept. The merged segment is written as a
+ * stream, holding only its dictionary and document table in memory.
+ *
+ * <pre>
+ * aws s3 sync s3://bucket/ segments/ --exclude '*' --include '*.tidx'
+ * java -cp pdf-file-processor-function.jar com.s3fileprocesslambdalayer.TextIndexMerger merged.tidx segments/
+ * </pre>
+ */
+public final class TextIndexMerger {
+    private static final Logger logger = Logger.getLogger(TextIndexMerger.class.getName());
+
+    private TextIndexMerger() {
+    }
+
+    /** What a merge wrote. */
+    public static final class Result {
+        private final int documents;
+        private final int superseded;
+        private final int terms;
+        private final long bytes;
+
+        Result(int documents, int superseded, int terms, long bytes) {
+            this.documents = documents;
+            this.superseded = superseded;
+            this.terms = terms;
+            this.bytes = bytes;
+        }
+
+        public int documents() {
+            return documents;
+        }
+
+        /** Document copies dropped because a more recent copy of the same key was merged. */
+        public int superseded() {
+            return superseded;
+        }
+
+        public int terms() {
+            return terms;
+        }
+
+        public long bytes() {
+            return bytes;
+        }
+
+        @Override
+        public String toString() {
+            return documents + " documents (" + superseded + " superseded), " + terms + " terms, " + bytes + " bytes";
+        }
+    }
+
+    /** Merges {@code segments} into a new segment on {@code out}, which is closed. */
+    public static Result merge(List<TextIndexSegment> segments, OutputStream out) throws IOException {
+        // Number the surviving documents in segment order, so each term's postings stay in document order
+        int[][] renumbered = new int[segments.size()][];
+        Map<String, long[]> newest = new HashMap<>();
+        for (int s = 0; s < segments.size(); s++) {
+            TextIndexSegment segment = segments.get(s);
+            renumbered[s] = new int[segment.documentCount()];
+            for (int d = 0; d < segment.documentCount(); d++) {
+                long[] best = newest.get(segment.documentKey(d));
+                if (best == null || segment.indexedAt(d) >= best[2]) {
+                    newest.put(segment.documentKey(d), new long[] {s, d, segment.indexedAt(d)});
+                }
+            }
+        }
+        TextIndexWriter writer = new TextIndexWriter(out);
+        int superseded = 0;
+        for (int s = 0; s < segments.size(); s++) {
+            TextIndexSegment segment = segments.get(s);
+            for (int d = 0; d < segment.documentCount(); d++) {
+                long[] best = newest.get(segment.documentKey(d));
+                if (best[0] == s && best[1] == d) {
+                    renumbered[s][d] = writer.addDocument(segment.documentKey(d), segment.documentPages(d), segment.indexedAt(d));
+                } else {
+                    renumbered[s][d] = -1;
+                    superseded++;
+                }
+            }
+        }
+
+        PriorityQueue<Source> queue = new PriorityQueue<>();
+        for (int s = 0; s < segments.size(); s++) {
+            Source source = new Source(s, segments.get(s).terms());
+            if (source.terms.next()) {
+                queue.add(source);
+            }
+        }
+        TextIndexWriter.Buffer postings = new TextIndexWriter.Buffer(64 * 1024);
+        List<Source> current = new ArrayList<>();
+        while (!queue.isEmpty()) {
+            current.clear();
+            current.add(queue.poll());
+            while (!queue.isEmpty() && queue.peek().compareTo(current.get(0)) == 0) {
+                current.add(queue.poll());
+            }
+            // Sources of one term, in segment order
+            current.sort((a, b) -> Integer.compare(a.segment, b.segment));
+            postings.reset();
+            int docFrequency = 0;
+            int previous = 0;
+            for (Source source : current) {
+                TextIndexSegment.Postings from = source.terms.postings();
+                while (from.nextDocument()) {
+                    int document = renumbered[source.segment][from.document()];
+                    if (document < 0) {
+                        continue;
+                    }
+                    postings.writeVarLong(document - previous);
+                    postings.writeVarLong(from.pageCount());
+                    postings.writeVarLong(from.documentLength());
+                    postings.write(from.data(), from.documentStart(), from.documentLength());
+                    previous = document;
+                    docFrequency++;
+                }
+            }
+            // Copy the term before advancing the cursors that hold it
+            Source first = current.get(0);
+            byte[] term = Arrays.copyOf(first.terms.termBytes(), first.terms.termLength());
+            for (Source source : current) {
+                if (source.terms.next()) {
+                    queue.add(source);
+                }
+            }
+            if (docFrequency > 0) {
+                writer.addTerm(term, term.length, docFrequency, postings);
+            }
+        }
+        writer.close();
+        return new Result(writer.documentCount(), superseded, writer.termCount(), writer.bytesWritten());
+    }
+
+    /** Merges the segments in files or directories into one file, replacing it if it exists. */
+    public static Result merge(List<Path> inputs, Path output) throws IOException {
+        List<TextIndexSegment> segments = new ArrayList<>();
+        for (Path file : TextIndex.segmentFiles(inputs)) {
+            segments.add(TextIndexSegment.open(file));
+        }
+        // Written aside and moved into place, so the output may also be one of the inputs
+        Path partial = output.resolveSibling(output.getFileName() + ".partial");
+        Result result;
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(partial), 1 << 20)) {
+            result = merge(segments, out);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(partial);
+            throw e;
+        }
+        Files.move(partial, output, StandardCopyOption.REPLACE_EXISTING);
+        return result;
+    }
+
+    /** {@code TextIndexMerger <output.tidx> <segment or directory>...} */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("usage: TextIndexMerger <output" + TextIndexSegment.SUFFIX + "> <segment or directory>...");
+            System.exit(2);
+        }
+        long start = System.nanoTime();
+        List<Path> inputs = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) {
+            inputs.add(Paths.get(args[i]));
+        }
+        Result result = merge(inputs, Paths.get(args[0]));
+        logger.info(String.format("Merged into %s: %s in %d ms", args[0], result, (System.nanoTime() - start) / 1_000_000));
+    }
+
+    /** One input's dictionary cursor, ordered by its current term. */
+    private static final class Source implements Comparable<Source> {
+        private final int segment;
+        private final TextIndexSegment.Terms terms;
+
+        Source(int segment, TextIndexSegment.Terms terms) {
+            this.segment = segment;
+            this.terms = terms;
+        }
+
+        @Override
+        public int compareTo(Source other) {
+            return Arrays.compareUnsigned(terms.termBytes(), 0, terms.termLength(),
+                    other.terms.termBytes(), 0, other.terms.termLength());
+        }
+    }
+}
@@ -0,0 +1,414 @@
+package com.s3fileprocesslambdalayer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * A read-only, memory-mapped TIDX full-text index segment (see {@code docs/text-index-format.md}): the
+ * documents it covers, a front-coded term dictionary with a block index for binary search, and per term
+ * the pages and word positions it occurs at, as delta varints. Nothing but the document table is read
+ * into the heap; lookups touch only the dictionary block and the postings of the terms asked for, so the
+ * page cache does the work for repeated queries.
+ *
+ * <p>All reads are absolute, so one segment can serve concurrent queries; each {@link Postings} and
+ * {@link Terms} cursor is for one thread. The mapping is released once the segment is unreachable.
+ */
+public final class TextIndexSegment implements Closeable {
+
+    /** Suffix of index segments, after the source key. */
+    public static final String SUFFIX = ".tidx";
+    static final String CONTENT_TYPE = "application/octet-stream";
+    static final byte[] MAGIC = {'T', 'I', 'D', 'X'};
+    static final int VERSION = 1;
+    /** Terms per dictionary block; the first term of a block is stored whole. */
+    static final int BLOCK_TERMS = 64;
+    /** Footer: six int32 values and the magic. */
+    static final int FOOTER_BYTES = 6 * 4 + MAGIC.length;
+
+    private final Path path;
+    private final ByteBuffer data;
+    private final String[] keys;
+    private final int[] pages;
+    private final long[] indexedAt;
+    private final int termCount;
+    private final int blockCount;
+    private final int blockIndexOffset;
+
+    private TextIndexSegment(Path path, ByteBuffer data) throws IOException {
+        this.path = path;
+        this.data = data;
+        int size = data.limit();
+        if (size < MAGIC.length + 1 + FOOTER_BYTES || !hasMagic(0) || !hasMagic(size - MAGIC.length)) {
+            throw new IOException("Not a text index segment: " + path);
+        }
+        if (data.get(MAGIC.length) != VERSION) {
+            throw new IOException("Unsupported text index version " + data.get(MAGIC.length) + ": " + path);
+        }
+        int footer = size - FOOTER_BYTES;
+        int documentsOffset = data.getInt(footer);
+        this.blockIndexOffset = data.getInt(footer + 8);
+        int documentCount = data.getInt(footer + 12);
+        this.termCount = data.getInt(footer + 16);
+        this.blockCount = data.getInt(footer + 20);
+
+        this.keys = new String[documentCount];
+        this.pages = new int[documentCount];
+        this.indexedAt = new long[documentCount];
+        int[] position = {documentsOffset};
+        for (int i = 0; i < documentCount; i++) {
+            int length = (int) readVarLong(data, position);
+            byte[] key = new byte[length];
+            data.get(position[0], key);
+            position[0] += length;
+            keys[i] = new String(key, StandardCharsets.UTF_8);
+            pages[i] = (int) readVarLong(data, position);
+            indexedAt[i] = readVarLong(data, position);
+        }
+    }
+
+    /** Maps the segment file; the file must not change while the segment is in use. */
+    public static TextIndexSegment open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Text index segment over 2 GB: " + file);
+            }
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new TextIndexSegment(file, mapped.order(ByteOrder.LITTLE_ENDIAN));
+        }
+    }
+
+    public Path path() {
+        return path;
+    }
+
+    public int documentCount() {
+        return keys.length;
+    }
+
+    /** Source object key of document {@code document}. */
+    public String documentKey(int document) {
+        return keys[document];
+    }
+
+    /** Pages the document had when it was indexed. */
+    public int documentPages(int document) {
+        return pages[document];
+    }
+
+    /** When the document was indexed, in epoch milliseconds; of two copies of a key, the later one counts. */
+    public long indexedAt(int document) {
+        return indexedAt[document];
+    }
+
+    public int termCount() {
+        return termCount;
+    }
+
+    /** Size of the segment file in bytes. */
+    public long sizeBytes() {
+        return data.limit();
+    }
+
+    /** The postings of {@code term}, which must already be normalized like indexed terms, or null when absent. */
+    public Postings postings(String term) {
+        byte[] target = term.getBytes(StandardCharsets.UTF_8);
+        // The last block whose first term is not after the target is the only one that can hold it
+        int low = 0;
+        int high = blockCount - 1;
+        int block = -1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (compareFirstTerm(middle, target) <= 0) {
+                block = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        if (block < 0) {
+            return null;
+        }
+        Terms terms = new Terms(block);
+        int end = Math.min(termCount, (block + 1) * BLOCK_TERMS);
+        for (int i = block * BLOCK_TERMS; i < end && terms.next(); i++) {
+            int comparison = Arrays.compareUnsigned(terms.term, 0, terms.termLength, target, 0, target.length);
+            if (comparison == 0) {
+                return terms.postings();
+            }
+            if (comparison > 0) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /** Walks the whole dictionary in term order, as a merge does. */
+    public Terms terms() {
+        return new Terms(0);
+    }
+
+    private int compareFirstTerm(int block, byte[] target) {
+        int[] position = {data.getInt(blockIndexOffset + block * 8)};
+        readVarLong(data, position);
+        int length = (int) readVarLong(data, position);
+        int common = Math.min(length, target.length);
+        for (int k = 0; k < common; k++) {
+            int difference = (data.get(position[0] + k) & 0xFF) - (target[k] & 0xFF);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return length - target.length;
+    }
+
+    private boolean hasMagic(int offset) {
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (data.get(offset + i) != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void close() {
+        // Nothing to release explicitly: a mapped buffer is unmapped when it is collected
+    }
+
+    @Override
+    public String toString() {
+        return path + " (" + keys.length + " documents, " + termCount + " terms, " + data.limit() + " bytes)";
+    }
+
+    /** Reads an unsigned LEB128 varint at {@code position[0]} and advances it. */
+    static long readVarLong(ByteBuffer buffer, int[] position) {
+        long value = 0;
+        int shift = 0;
+        int p = position[0];
+        byte b;
+        do {
+            b = buffer.get(p++);
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        position[0] = p;
+        return value;
+    }
+
+    /** A cursor over the dictionary, from the start of a block on. */
+    public final class Terms {
+        private byte[] term = new byte[64];
+        private int termLength;
+        private int index;
+        private int docFrequency;
+        private int postingsOffset;
+        private int postingsLength;
+        private final int[] position = new int[1];
+
+        private Terms(int block) {
+            this.index = block * BLOCK_TERMS;
+            if (block < blockCount) {
+                position[0] = data.getInt(blockIndexOffset + block * 8);
+                postingsOffset = data.getInt(blockIndexOffset + block * 8 + 4);
+            }
+        }
+
+        /** Moves to the next term; false once the dictionary is exhausted. */
+        public boolean next() {
+            if (index >= termCount) {
+                return false;
+            }
+            if (index % BLOCK_TERMS == 0) {
+                int block = index / BLOCK_TERMS;
+                position[0] = data.getInt(blockIndexOffset + block * 8);
+                postingsOffset = data.getInt(blockIndexOffset + block * 8 + 4);
+            } else {
+                postingsOffset += postingsLength;
+            }
+            int shared = (int) readVarLong(data, position);
+            int suffix = (int) readVarLong(data, position);
+            if (shared + suffix > term.length) {
+                term = Arrays.copyOf(term, Math.max(term.length * 2, shared + suffix));
+            }
+            data.get(position[0], term, shared, suffix);
+            position[0] += suffix;
+            termLength = shared + suffix;
+            docFrequency = (int) readVarLong(data, position);
+            postingsLength = (int) readVarLong(data, position);
+            index++;
+            return true;
+        }
+
+        public String term() {
+            return new String(term, 0, termLength, StandardCharsets.UTF_8);
+        }
+
+        /** The current term's UTF-8 bytes, valid until the next call to {@link #next()}. */
+        byte[] termBytes() {
+            return term;
+        }
+
+        int termLength() {
+            return termLength;
+        }
+
+        /** Documents the current term occurs in. */
+        public int docFrequency() {
+            return docFrequency;
+        }
+
+        public Postings postings() {
+            return new Postings(postingsOffset, postingsOffset + postingsLength, docFrequency);
+        }
+    }
+
+    /**
+     * A cursor over one term's postings: its documents in order, within each document its pages in order,
+     * and on each page its word positions. Pages and positions of a document are only decoded when asked
+     * for, so skipping documents or pages costs a varint or two each.
+     */
+    public final class Postings {
+        /** Returned by {@link #document()} and {@link #page()} once exhausted. */
+        public static final int END = Integer.MAX_VALUE;
+
+        private final int end;
+        private final int docFrequency;
+        private final int[] position = new int[1];
+        private int document = -1;
+        private int documentStart;
+        private int documentEnd;
+        private int pageCount;
+        private int pagesLeft;
+        private int page;
+        private int positionCount;
+        private int positionsStart;
+        private int positionsEnd;
+        private int[] positions = new int[16];
+
+        private Postings(int start, int end, int docFrequency) {
+            this.end = end;
+            this.docFrequency = docFrequency;
+            this.position[0] = start;
+            this.documentEnd = start;
+        }
+
+        public int docFrequency() {
+            return docFrequency;
+        }
+
+        /** The segment this cursor reads. */
+        public TextIndexSegment segment() {
+            return TextIndexSegment.this;
+        }
+
+        /** Moves to the next document; false once there is none. */
+        public boolean nextDocument() {
+            position[0] = documentEnd;
+            if (position[0] >= end) {
+                document = END;
+                return false;
+            }
+            document = (document < 0 ? 0 : document) + (int) readVarLong(data, position);
+            pageCount = (int) readVarLong(data, position);
+            pagesLeft = pageCount;
+            int length = (int) readVarLong(data, position);
+            documentStart = position[0];
+            documentEnd = documentStart + length;
+            page = 0;
+            positionsEnd = position[0];
+            return true;
+        }
+
+        /** Moves to the first document at or after {@code target}; false once there is none. */
+        public boolean advance(int target) {
+            while (document < target) {
+                if (!nextDocument()) {
+                    return false;
+                }
+            }
+            return document != END;
+        }
+
+        public int document() {
+            return document;
+        }
+
+        /** Moves to the next page of the current document; false once there is none. */
+        public boolean nextPage() {
+            if (pagesLeft == 0) {
+                page = END;
+                return false;
+            }
+            position[0] = positionsEnd;
+            page += (int) readVarLong(data, position);
+            positionCount = (int) readVarLong(data, position);
+            int length = (int) readVarLong(data, position);
+            positionsStart = position[0];
+            positionsEnd = positionsStart + length;
+            pagesLeft--;
+            return true;
+        }
+
+        /** Moves to the first page of the current document at or after {@code target}; false once there is none. */
+        public boolean advancePage(int target) {
+            // Pages are numbered from 1, so page 0 is before the first
+            while (page < target) {
+                if (!nextPage()) {
+                    return false;
+                }
+            }
+            return page != END;
+        }
+
+        public int page() {
+            return page;
+        }
+
+        /** Occurrences of the term on the current page. */
+        public int positionCount() {
+            return positionCount;
+        }
+
+        /** Word positions of the term on the current page, ascending, in the first {@link #positionCount()} entries. */
+        public int[] positions() {
+            if (positions.length < positionCount) {
+                positions = new int[Math.max(positions.length * 2, positionCount)];
+            }
+            int[] at = {positionsStart};
+            int value = 0;
+            for (int i = 0; i < positionCount; i++) {
+                value += (int) readVarLong(data, at);
+                positions[i] = value;
+            }
+            return positions;
+        }
+
+        /** Pages of the current document the term occurs on. */
+        public int pageCount() {
+            return pageCount;
+        }
+
+        /** Offset of the current document's encoded pages, which a merge copies as they are. */
+        int documentStart() {
+            return documentStart;
+        }
+
+        /** Length of the current document's encoded pages. */
+        int documentLength() {
+            return documentEnd - documentStart;
+        }
+
+        /** The mapped segment, for copying encoded pages. */
+        ByteBuffer data() {
+            return data;
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package com.s3fileprocesslambdalayer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Writes a {@link TextIndexSegment} to a stream. Terms are added in ascending UTF-8 byte order, each with
+ * its encoded postings, which go straight to the stream; the documents, the dictionary and its block index
+ * are kept until {@link #close()} writes them after the postings, followed by the footer. Not thread-safe.
+ */
+final class TextIndexWriter implements Closeable {
+    private final OutputStream out;
+    private final Buffer documents = new Buffer(256);
+    private final Buffer dictionary = new Buffer(4096);
+    private final Buffer blockIndex = new Buffer(256);
+    private final Buffer scratch = new Buffer(64);
+    private byte[] previousTerm = new byte[0];
+    private int previousLength = -1;
+    private long position;
+    private int documentCount;
+    private int termCount;
+    private boolean closed;
+
+    TextIndexWriter(OutputStream out) throws IOException {
+        this.out = out;
+        write(TextIndexSegment.MAGIC, 0, TextIndexSegment.MAGIC.length);
+        out.write(TextIndexSegment.VERSION);
+        position++;
+    }
+
+    /** Adds the next document and returns its number; the postings refer to documents by these numbers. */
+    int addDocument(String key, int pages, long indexedAt) {
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        documents.writeVarLong(bytes.length);
+        documents.write(bytes, 0, bytes.length);
+        documents.writeVarLong(pages);
+        documents.writeVarLong(indexedAt);
+        return documentCount++;
+    }
+
+    /**
+     * Writes the next term and its encoded postings, which must sort after the previous term.
+     *
+     * @throws IllegalStateException if the term does not sort after the previous one
+     */
+    void addTerm(byte[] term, int termLength, int docFrequency, Buffer postings) throws IOException {
+        if (previousLength >= 0 && Arrays.compareUnsigned(previousTerm, 0, previousLength, term, 0, termLength) >= 0) {
+            throw new IllegalStateException("Terms out of order: " + new String(term, 0, termLength, StandardCharsets.UTF_8));
+        }
+        int shared = 0;
+        if (termCount % TextIndexSegment.BLOCK_TERMS == 0) {
+            blockIndex.writeIntLE(dictionary.size());
+            blockIndex.writeIntLE(checkedPosition());
+        } else {
+            int common = Math.min(previousLength, termLength);
+            while (shared < common && previousTerm[shared] == term[shared]) {
+                shared++;
+            }
+        }
+        dictionary.writeVarLong(shared);
+        dictionary.writeVarLong(termLength - shared);
+        dictionary.write(term, shared, termLength - shared);
+        dictionary.writeVarLong(docFrequency);
+        dictionary.writeVarLong(postings.size());
+        write(postings.bytes(), 0, postings.size());
+
+        if (previousTerm.length < termLength) {
+            previousTerm = new byte[Math.max(termLength, previousTerm.length * 2)];
+        }
+        System.arraycopy(term, 0, previousTerm, 0, termLength);
+        previousLength = termLength;
+        termCount++;
+    }
+
+    int documentCount() {
+        return documentCount;
+    }
+
+    int termCount() {
+        return termCount;
+    }
+
+    /** Bytes written to the stream so far; the whole segment once closed. */
+    long bytesWritten() {
+        return position;
+    }
+
+    /** Writes the documents, dictionary, block index and footer, and closes the stream. */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            int documentsOffset = checkedPosition();
+            write(documents.bytes(), 0, documents.size());
+            int dictionaryOffset = checkedPosition();
+            write(dictionary.bytes(), 0, dictionary.size());
+            int blockIndexOffset = checkedPosition();
+            // Block offsets were recorded relative to the dictionary
+            ByteBuffer blocks = ByteBuffer.wrap(blockIndex.bytes(), 0, blockIndex.size()).order(ByteOrder.LITTLE_ENDIAN);
+            for (int i = 0; i < blockIndex.size(); i += 8) {
+                blocks.putInt(i, blocks.getInt(i) + dictionaryOffset);
+            }
+            write(blockIndex.bytes(), 0, blockIndex.size());
+            scratch.reset();
+            scratch.writeIntLE(documentsOffset);
+            scratch.writeIntLE(dictionaryOffset);
+            scratch.writeIntLE(blockIndexOffset);
+            scratch.writeIntLE(documentCount);
+            scratch.writeIntLE(termCount);
+            scratch.writeIntLE(blockIndex.size() / 8);
+            scratch.write(TextIndexSegment.MAGIC, 0, TextIndexSegment.MAGIC.length);
+            write(scratch.bytes(), 0, scratch.size());
+            checkedPosition();
+        } finally {
+            out.close();
+        }
+    }
+
+    private void write(byte[] bytes, int offset, int length) throws IOException {
+        out.write(bytes, offset, length);
+        position += length;
+    }
+
+    private int checkedPosition() throws IOException {
+        if (position > Integer.MAX_VALUE) {
+            throw new IOException("Text index segment would exceed 2 GB; merge into several smaller segments");
+        }
+        return (int) position;
+    }
+
+    /** A growable byte array with the varint and little-endian writes the format uses. */
+    static final class Buffer extends OutputStream {
+        private byte[] bytes;
+        private int size;
+
+        Buffer(int initialCapacity) {
+            this.bytes = new byte[Math.max(16, initialCapacity)];
+        }
+
+        private void ensure(int extra) {
+            if (size + extra > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + extra));
+            }
+        }
+
+        @Override
+        public void write(int b) {
+            ensure(1);
+            bytes[size++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] source, int offset, int length) {
+            ensure(length);
+            System.arraycopy(source, offset, bytes, size, length);
+            size += length;
+        }
+
+        /** Copies {@code length} bytes of {@code source} from the absolute {@code offset}. */
+        void write(ByteBuffer source, int offset, int length) {
+            ensure(length);
+            source.get(offset, bytes, size, length);
+            size += length;
+        }
+
+        /** Unsigned LEB128: seven bits per byte, low bits first, high bit set on all but the last byte. */
+        void writeVarLong(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                bytes[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            bytes[size++] = (byte) value;
+        }
+
+        void writeIntLE(int value) {
+            ensure(4);
+            for (int i = 0; i < 4; i++) {
+                bytes[size++] = (byte) (value >>> (8 * i));
+            }
+        }
+
+        static int varLongSize(long value) {
+            int size = 1;
+            while ((value & ~0x7FL) != 0) {
+                value >>>= 7;
+                size++;
+            }
+            return size;
+        }
+
+        byte[] bytes() {
+            return bytes;
+        }
+
+        int size() {
+            return size;
+        }
+
+        void reset() {
+            size = 0;
+        }
+    }
+}
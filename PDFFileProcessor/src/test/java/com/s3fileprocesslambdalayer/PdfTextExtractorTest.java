@@ -0,0 +1,84 @@
+package com.s3fileprocesslambdalayer;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class PdfTextExtractorTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void blankPagesKeepTheirPageNumbers() throws IOException {
+        // PDFBox does not visit pages without a content stream
+        Path file = pdf("blank-first.pdf", null, "page two", "page three");
+
+        List<String> pages = new ArrayList<>();
+        int count = new PdfTextExtractor(1, 8, this::open).extract(file, (pageNumber, text) -> {
+            assertEquals(pages.size() + 1, pageNumber);
+            pages.add(text.trim());
+        });
+
+        assertEquals(3, count);
+        assertEquals(List.of("", "page two", "page three"), pages);
+    }
+
+    @Test
+    void blankPagesAcrossChunksAndWorkers() throws IOException {
+        String[] texts = new String[23];
+        for (int i = 0; i < texts.length; i++) {
+            texts[i] = i % 4 == 0 ? null : "page " + (i + 1);
+        }
+        Path file = pdf("scattered.pdf", texts);
+
+        List<String> pages = new ArrayList<>();
+        new PdfTextExtractor(3, 2, this::open).extract(file, 4, () -> false, (pageNumber, text) -> {
+            assertEquals(pages.size() + 4, pageNumber);
+            pages.add(text.trim());
+        });
+
+        assertEquals(texts.length - 3, pages.size());
+        for (int page = 4; page <= texts.length; page++) {
+            String expected = texts[page - 1] == null ? "" : texts[page - 1];
+            assertEquals(expected, pages.get(page - 4), "page " + page);
+        }
+    }
+
+    private PDDocument open(Path file) throws IOException {
+        return PDDocument.load(file.toFile());
+    }
+
+    /** A PDF with one page per text; a null text is a page without a content stream. */
+    private Path pdf(String name, String... texts) throws IOException {
+        Path file = dir.resolve(name);
+        try (PDDocument document = new PDDocument()) {
+            for (String text : texts) {
+                PDPage page = new PDPage();
+                document.addPage(page);
+                if (text == null) {
+                    continue;
+                }
+                try (PDPageContentStream content = new PDPageContentStream(document, page)) {
+                    content.beginText();
+                    content.setFont(PDType1Font.HELVETICA, 12);
+                    content.newLineAtOffset(72, 700);
+                    content.showText(text);
+                    content.endText();
+                }
+            }
+            document.save(file.toFile());
+        }
+        return file;
+    }
+}
@@ -0,0 +1,202 @@
+package com.s3fileprocesslambdalayer;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class TextIndexTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void segmentReadsBackEveryTermPageAndPosition() throws IOException {
+        String[] pages = {
+                "Net revenue grew. Revenue, net of returns!",
+                "",
+                "Costs fell; net REVENUE rose " + "x".repeat(65) + " revenue",
+        };
+        Path file = write("report.pdf", pages, 1_700_000_000_000L);
+
+        try (TextIndexSegment segment = TextIndexSegment.open(file)) {
+            assertEquals(1, segment.documentCount());
+            assertEquals("report.pdf", segment.documentKey(0));
+            assertEquals(3, segment.documentPages(0));
+            assertEquals(1_700_000_000_000L, segment.indexedAt(0));
+            assertEquals(expected(pages), readAll(segment));
+            assertNull(segment.postings("missing"));
+            assertNull(segment.postings("x".repeat(65)));
+        }
+    }
+
+    @Test
+    void dictionaryLookupsWorkAcrossManyBlocks() throws IOException {
+        // Well over one dictionary block of terms, with shared prefixes for the front coding
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            text.append("term").append(i).append(' ');
+        }
+        Path file = write("terms.pdf", new String[] {text.toString()}, 1);
+
+        try (TextIndexSegment segment = TextIndexSegment.open(file)) {
+            assertEquals(1000, segment.termCount());
+            for (int i = 0; i < 1000; i++) {
+                TextIndexSegment.Postings postings = segment.postings("term" + i);
+                postings.nextDocument();
+                postings.nextPage();
+                assertEquals(1, postings.page());
+                assertEquals(i, postings.positions()[0]);
+            }
+            assertNull(segment.postings("term1000"));
+            assertNull(segment.postings("a"));
+            assertNull(segment.postings("zzz"));
+        }
+    }
+
+    @Test
+    void searchFindsWordsAndPhrasesOnTheSamePage() throws IOException {
+        write("a.pdf", new String[] {"net revenue rose", "revenue was net of costs"}, 1);
+        write("b.pdf", new String[] {"Net revenue, net revenue and more net revenue"}, 1);
+
+        try (TextIndex index = TextIndex.open(List.of(dir))) {
+            assertEquals(List.of("b.pdf p.1 (6)", "a.pdf p.1 (2)", "a.pdf p.2 (2)"), hits(index, "revenue NET"));
+            assertEquals(List.of("b.pdf p.1 (6)", "a.pdf p.1 (2)"), hits(index, "\"net revenue\""));
+            assertEquals(List.of("a.pdf p.2 (3)"), hits(index, "\"was net\" costs"));
+            assertEquals(List.of(), hits(index, "revenue missing"));
+        }
+    }
+
+    @Test
+    void mergeKeepsTheLatestCopyOfADocument() throws IOException {
+        write("old.pdf", new String[] {"alpha beta"}, 1);
+        write("kept.pdf", new String[] {"beta gamma", "alpha"}, 2);
+        Path newer = dir.resolve("newer");
+        Files.createDirectories(newer);
+        writeTo(newer.resolve("old.pdf.tidx"), "old.pdf", new String[] {"delta"}, 3);
+        Path merged = dir.resolve("merged").resolve("all.tidx");
+        Files.createDirectories(merged.getParent());
+
+        TextIndexMerger.Result result = TextIndexMerger.merge(List.of(dir), merged);
+
+        assertEquals(2, result.documents());
+        assertEquals(1, result.superseded());
+        try (TextIndexSegment segment = TextIndexSegment.open(merged); TextIndex index = TextIndex.open(List.of(merged))) {
+            Map<String, Map<String, List<Integer>>> terms = readAll(segment);
+            assertEquals(List.of("alpha", "beta", "delta", "gamma"), new ArrayList<>(terms.keySet()));
+            assertEquals(List.of("old.pdf p.1 (1)"), hits(index, "delta"));
+            assertEquals(List.of("kept.pdf p.2 (1)"), hits(index, "alpha"));
+        }
+    }
+
+    @Test
+    void resumedIndexerKeepsTheEarlierPagesOnly() throws IOException {
+        String[] pages = {"one two", "two three", "three four"};
+        Path partial = write("doc.pdf", pages, 5);
+
+        DocumentIndexer resumed;
+        try (TextIndexSegment segment = TextIndexSegment.open(partial)) {
+            resumed = DocumentIndexer.resume(segment, "doc.pdf", 3);
+            assertThrows(IOException.class, () -> DocumentIndexer.resume(segment, "other.pdf", 1));
+        }
+        resumed.page(3, "three five");
+        Path file = dir.resolve("resumed.tidx");
+        try (OutputStream out = Files.newOutputStream(file)) {
+            resumed.writeTo(out, "doc.pdf", 6);
+        }
+
+        try (TextIndexSegment segment = TextIndexSegment.open(file)) {
+            assertEquals(expected(new String[] {"one two", "two three", "three five"}), readAll(segment));
+            assertEquals(3, segment.documentPages(0));
+        }
+    }
+
+    @Test
+    void rejectsFilesThatAreNotSegments() throws IOException {
+        Path file = dir.resolve("bad.tidx");
+        Files.write(file, new byte[64]);
+
+        assertThrows(IOException.class, () -> TextIndexSegment.open(file));
+    }
+
+    private Path write(String key, String[] pages, long indexedAt) throws IOException {
+        return writeTo(dir.resolve(key + TextIndexSegment.SUFFIX), key, pages, indexedAt);
+    }
+
+    private static Path writeTo(Path file, String key, String[] pages, long indexedAt) throws IOException {
+        DocumentIndexer indexer = new DocumentIndexer();
+        for (int i = 0; i < pages.length; i++) {
+            indexer.page(i + 1, pages[i]);
+        }
+        try (OutputStream out = Files.newOutputStream(file)) {
+            indexer.writeTo(out, key, indexedAt);
+        }
+        return file;
+    }
+
+    /** Each term's word positions by page, as the pages are split into terms for indexing. */
+    private static Map<String, Map<String, List<Integer>>> expected(String[] pages) {
+        Map<String, Map<String, List<Integer>>> terms = new TreeMap<>();
+        for (int p = 0; p < pages.length; p++) {
+            int page = p + 1;
+            int[] position = {0};
+            DocumentIndexer.forEachTerm(pages[p], term -> {
+                if (term != null) {
+                    terms.computeIfAbsent(term, t -> new TreeMap<>())
+                            .computeIfAbsent("p" + page, k -> new ArrayList<>()).add(position[0]);
+                }
+                position[0]++;
+            });
+        }
+        return terms;
+    }
+
+    /** Every term's pages and positions in the first document, walked through the dictionary and looked up. */
+    private static Map<String, Map<String, List<Integer>>> readAll(TextIndexSegment segment) {
+        Map<String, Map<String, List<Integer>>> terms = new TreeMap<>();
+        TextIndexSegment.Terms dictionary = segment.terms();
+        String previous = null;
+        while (dictionary.next()) {
+            String term = dictionary.term();
+            if (previous != null) {
+                assertEquals(-1, Integer.signum(previous.compareTo(term)), "dictionary order");
+            }
+            previous = term;
+            Map<String, List<Integer>> walked = pages(dictionary.postings());
+            assertEquals(walked, pages(segment.postings(term)));
+            terms.put(term, walked);
+        }
+        return terms;
+    }
+
+    private static Map<String, List<Integer>> pages(TextIndexSegment.Postings postings) {
+        Map<String, List<Integer>> pages = new TreeMap<>();
+        while (postings.nextDocument()) {
+            while (postings.nextPage()) {
+                int[] positions = postings.positions();
+                List<Integer> list = new ArrayList<>();
+                for (int i = 0; i < postings.positionCount(); i++) {
+                    list.add(positions[i]);
+                }
+                pages.put("p" + postings.page(), list);
+            }
+        }
+        return pages;
+    }
+
+    private static List<String> hits(TextIndex index, String query) {
+        return index.search(query, 10).stream().map(TextIndex.Hit::toString).collect(Collectors.toList());
+    }
+}
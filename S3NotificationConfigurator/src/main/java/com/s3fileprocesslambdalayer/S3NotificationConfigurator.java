@@ -52,23 +52,49 @@ public class S3NotificationConfigurator implements RequestHandler<Map<String, Ob
             String csvProcessorArn = (String) resourceProps.get("CSVProcessorArn");
             String pdfProcessorArn = (String) resourceProps.get("PDFProcessorArn");
             String imageProcessorArn = (String) resourceProps.get("ImageProcessorArn");
+            String routerArn = safeString(resourceProps.get("RouterArn"));
+            String routingMode = safeString(resourceProps.get("RoutingMode"));
+            String ingestionMode = safeString(resourceProps.get("IngestionMode"));
+            String routerQueueArn = safeString(resourceProps.get("RouterQueueArn"));
+            String csvQueueArn = safeString(resourceProps.get("CSVQueueArn"));
+            String pdfQueueArn = safeString(resourceProps.get("PDFQueueArn"));
+            String imageQueueArn = safeString(resourceProps.get("ImageQueueArn"));
 
             logger.info("✅ EVENT: " + event);
             logger.info("✅ Resource Properties: " + resourceProps);
             logger.info("CSV ARN: " + csvProcessorArn);
             logger.info("PDF ARN: " + pdfProcessorArn);
             logger.info("Image ARN: " + imageProcessorArn);
+            logger.info("Router ARN: " + routerArn + " (routing mode: " + routingMode + ")");
+            logger.info("Ingestion mode: " + ingestionMode);
             logger.info("Bucket: " + bucketName);
 
             List<LambdaFunctionConfiguration> lambdaConfigs = new ArrayList<>();
+            List<QueueConfiguration> queueConfigs = new ArrayList<>();
+            boolean router = "router".equalsIgnoreCase(routingMode) && !routerArn.isEmpty();
+
+            if ("sqs".equalsIgnoreCase(ingestionMode)) {
+                // Notifications are buffered in SQS; the functions poll their queue in batches
+                if (router) {
+                    queueConfigs.addAll(queueSetup(routerQueueArn, "router"));
+                } else {
+                    queueConfigs.addAll(queueSetup(csvQueueArn, "csv", ".csv", ".csv.gz", ".csv.zst"));
+                    queueConfigs.addAll(queueSetup(pdfQueueArn, "pdf", ".pdf"));
+                    queueConfigs.addAll(queueSetup(imageQueueArn, "image", ".jpg", ".jpeg", ".png"));
+                }
+            } else if (router) {
+                // One function sniffs every new object's content, so no suffix filter at all
+                lambdaConfigs.addAll(setup(bucketName, routerArn, "router"));
+            } else {
+                lambdaConfigs.addAll(setup(bucketName, csvProcessorArn, "csv", ".csv", ".csv.gz", ".csv.zst"));
+                lambdaConfigs.addAll(setup(bucketName, pdfProcessorArn, "pdf", ".pdf"));
+                lambdaConfigs.addAll(setup(bucketName, imageProcessorArn, "image", ".jpg", ".jpeg", ".png"));
+            }
 
-            lambdaConfigs.addAll(setup(bucketName, csvProcessorArn, "csv", ".csv"));
-            lambdaConfigs.addAll(setup(bucketName, pdfProcessorArn, "pdf", ".pdf"));
-            lambdaConfigs.addAll(setup(bucketName, imageProcessorArn, "image", ".jpg", ".jpeg", ".png"));
-
-            if (!lambdaConfigs.isEmpty()) {
+            if (!lambdaConfigs.isEmpty() || !queueConfigs.isEmpty()) {
                 NotificationConfiguration notificationConfiguration = NotificationConfiguration.builder()
                         .lambdaFunctionConfigurations(lambdaConfigs)
+                        .queueConfigurations(queueConfigs)
                         .build();
 
                 s3Client.putBucketNotificationConfiguration(
@@ -80,7 +106,7 @@ public class S3NotificationConfigurator implements RequestHandler<Map<String, Ob
 
                 logger.info("✅ Successfully applied S3 notification configuration.");
             } else {
-                logger.info("ℹ️ No valid Lambda ARNs provided — skipping notification config.");
+                logger.info("ℹ️ No valid Lambda or queue ARNs provided — skipping notification config.");
             }
 
             if (System.currentTimeMillis() - startTimeMillis >= maxExecutionMillis) {
@@ -109,6 +135,9 @@ public class S3NotificationConfigurator implements RequestHandler<Map<String, Ob
 
         addLambdaPermission(bucket, arn, tag);
 
+        if (suffixes.length == 0) {
+            configs.add(createLambdaConfig(arn, null));
+        }
         for (String suffix : suffixes) {
             configs.add(createLambdaConfig(arn, suffix));
         }
@@ -116,6 +145,32 @@ public class S3NotificationConfigurator implements RequestHandler<Map<String, Ob
         return configs;
     }
 
+    /**
+     * Queue notifications for one processor. The queue's own policy must let S3 send to it; no Lambda
+     * permission is needed, as the function reads the queue through an event source mapping.
+     */
+    private List<QueueConfiguration> queueSetup(String queueArn, String tag, String... suffixes) {
+        List<QueueConfiguration> configs = new ArrayList<>();
+        if (queueArn.isEmpty()) {
+            logger.warning("⚠️ Skipping queue setup for: " + tag + " (queue ARN is empty)");
+            return configs;
+        }
+        if (suffixes.length == 0) {
+            configs.add(QueueConfiguration.builder()
+                    .queueArn(queueArn)
+                    .eventsWithStrings("s3:ObjectCreated:*")
+                    .build());
+        }
+        for (String suffix : suffixes) {
+            configs.add(QueueConfiguration.builder()
+                    .queueArn(queueArn)
+                    .eventsWithStrings("s3:ObjectCreated:*")
+                    .filter(suffixFilter(suffix))
+                    .build());
+        }
+        return configs;
+    }
+
     private void addLambdaPermission(String bucket, String lambdaArn, String tag) {
         String statementId = "AllowS3Invoke-" + tag;
         try {
@@ -134,16 +189,25 @@ public class S3NotificationConfigurator implements RequestHandler<Map<String, Ob
         }
     }
 
+    /**
+     * Notification for every created object, or only for keys ending in {@code suffix} when it is not null.
+     */
     private LambdaFunctionConfiguration createLambdaConfig(String functionArn, String suffix) {
-        return LambdaFunctionConfiguration.builder()
+        LambdaFunctionConfiguration.Builder config = LambdaFunctionConfiguration.builder()
                 .lambdaFunctionArn(functionArn)
-                .eventsWithStrings("s3:ObjectCreated:*")
-                .filter(NotificationConfigurationFilter.builder()
-                        .key(S3KeyFilter.builder()
-                                .filterRules(FilterRule.builder()
-                                        .name(FilterRuleName.SUFFIX)
-                                        .value(suffix)
-                                        .build())
+                .eventsWithStrings("s3:ObjectCreated:*");
+        if (suffix != null) {
+            config.filter(suffixFilter(suffix));
+        }
+        return config.build();
+    }
+
+    private NotificationConfigurationFilter suffixFilter(String suffix) {
+        return NotificationConfigurationFilter.builder()
+                .key(S3KeyFilter.builder()
+                        .filterRules(FilterRule.builder()
+                                .name(FilterRuleName.SUFFIX)
+                                .value(suffix)
                                 .build())
                         .build())
                 .build();
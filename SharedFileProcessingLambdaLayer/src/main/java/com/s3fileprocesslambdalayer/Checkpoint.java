@@ -0,0 +1,88 @@
+package com.s3fileprocesslambdalayer;
+
+import java.util.Properties;
+
+/**
+ * Progress of one object, saved by {@link CheckpointStore} so a later invocation can resume where an
+ * earlier one stopped. It belongs to one object version, identified by its ETag; what the progress means
+ * (a byte offset, a page number) is up to the processor, which stores it as named values.
+ */
+public final class Checkpoint {
+    private static final String ETAG = "checkpoint.eTag";
+    private static final String CONTINUATIONS = "checkpoint.continuations";
+
+    private final String bucketName;
+    private final String key;
+    private final Properties values;
+    private final boolean resumed;
+    private long savedAtNanos = System.nanoTime();
+
+    Checkpoint(String bucketName, String key, Properties values, boolean resumed) {
+        this.bucketName = bucketName;
+        this.key = key;
+        this.values = values;
+        this.resumed = resumed;
+    }
+
+    /** A checkpoint for an object version nothing was done for yet. */
+    static Checkpoint fresh(String bucketName, String key, String eTag) {
+        Properties values = new Properties();
+        values.setProperty(ETAG, eTag);
+        return new Checkpoint(bucketName, key, values, false);
+    }
+
+    public String bucketName() {
+        return bucketName;
+    }
+
+    public String key() {
+        return key;
+    }
+
+    public String eTag() {
+        return values.getProperty(ETAG);
+    }
+
+    /** True when this was loaded from a saved checkpoint, i.e. an earlier invocation made progress. */
+    public boolean isResumed() {
+        return resumed;
+    }
+
+    /** How many times processing of this object was handed to a new invocation so far. */
+    public int continuations() {
+        return (int) getLong(CONTINUATIONS, 0);
+    }
+
+    void countContinuation() {
+        set(CONTINUATIONS, continuations() + 1);
+    }
+
+    public String get(String name) {
+        return values.getProperty(name);
+    }
+
+    public long getLong(String name, long defaultValue) {
+        String value = values.getProperty(name);
+        return value != null ? Long.parseLong(value) : defaultValue;
+    }
+
+    public void set(String name, Object value) {
+        if (value == null) {
+            values.remove(name);
+        } else {
+            values.setProperty(name, value.toString());
+        }
+    }
+
+    Properties values() {
+        return values;
+    }
+
+    long savedAtNanos() {
+        return savedAtNanos;
+    }
+
+    void saved() {
+        savedAtNanos = System.nanoTime();
+    }
+}
@@ -0,0 +1,174 @@
+package com.s3fileprocesslambdalayer;
+
+import software.amazon.awssdk.core.ResponseBytes;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+/**
+ * Keeps {@link Checkpoint}s as small objects under CHECKPOINT_PREFIX (default {@code .checkpoints/}) in the
+ * bucket of the object they belong to, named after a hash of its key. A checkpoint may have a binary tail,
+ * such as output buffered but not yet uploaded, stored next to it.
+ *
+ * <p>Only objects of at least CHECKPOINT_MIN_MB (default 8) are checkpointed; smaller ones finish well within
+ * an invocation, and skipping them avoids a lookup per object. Processors also save periodically, every
+ * CHECKPOINT_INTERVAL_SECONDS (default 20; 0 saves only when yielding), so an invocation that dies without
+ * yielding, for example on memory, is retried from its last save rather than from the start. A checkpoint
+ * whose ETag no longer matches the object is discarded: the object was replaced and is processed afresh.
+ */
+public final class CheckpointStore {
+    private static final Logger logger = Logger.getLogger(CheckpointStore.class.getName());
+    private static volatile CheckpointStore shared;
+
+    private final S3Client s3;
+    private final String prefix;
+    private final long minBytes;
+    private final long intervalNanos;
+
+    CheckpointStore(S3Client s3, String prefix, long minBytes, long intervalNanos) {
+        this.s3 = s3;
+        this.prefix = prefix;
+        this.minBytes = minBytes;
+        this.intervalNanos = intervalNanos;
+    }
+
+    /** The container-wide store, on the shared S3 client. */
+    public static CheckpointStore shared() {
+        if (shared == null) {
+            synchronized (CheckpointStore.class) {
+                if (shared == null) {
+                    shared = new CheckpointStore(SharedLambdaLayer.sharedS3Client(), prefix(),
+                            LayerConfig.getLong("CHECKPOINT_MIN_MB", 8) * 1024 * 1024,
+                            LayerConfig.getLong("CHECKPOINT_INTERVAL_SECONDS", 20) * 1_000_000_000L);
+                }
+            }
+        }
+        return shared;
+    }
+
+    /** True for the store's own objects, which are not input and must not be processed. */
+    public static boolean isCheckpointKey(String key) {
+        return key.startsWith(prefix());
+    }
+
+    static String prefix() {
+        return LayerConfig.get("CHECKPOINT_PREFIX", ".checkpoints/");
+    }
+
+    /** Whether an object of this size is checkpointed, and so may yield part way. */
+    public boolean covers(long objectSize) {
+        return LayerConfig.getBoolean("CHECKPOINTS_ENABLED", true) && objectSize >= minBytes;
+    }
+
+    /**
+     * The saved checkpoint of the object version with {@code eTag}, or a fresh one if there is none or it
+     * belongs to another version.
+     */
+    public Checkpoint load(String bucketName, String key, String eTag) throws IOException {
+        String text;
+        try {
+            ResponseBytes<GetObjectResponse> bytes = s3.getObjectAsBytes(GetObjectRequest.builder()
+                    .bucket(bucketName).key(nameOf(key, ".properties")).build());
+            text = bytes.asUtf8String();
+        } catch (NoSuchKeyException e) {
+            return Checkpoint.fresh(bucketName, key, eTag);
+        }
+        Properties values = new Properties();
+        values.load(new StringReader(text));
+        Checkpoint checkpoint = new Checkpoint(bucketName, key, values, true);
+        if (!eTag.equals(checkpoint.eTag())) {
+            logger.info("Discarding checkpoint of " + key + ": it belongs to version " + checkpoint.eTag() + ", not " + eTag);
+            delete(checkpoint);
+            return Checkpoint.fresh(bucketName, key, eTag);
+        }
+        logger.info("Resuming " + key + " from checkpoint: " + values);
+        return checkpoint;
+    }
+
+    public void save(Checkpoint checkpoint) throws IOException {
+        StringWriter text = new StringWriter();
+        checkpoint.values().store(text, "Checkpoint of s3://" + checkpoint.bucketName() + "/" + checkpoint.key());
+        s3.putObject(PutObjectRequest.builder().bucket(checkpoint.bucketName())
+                        .key(nameOf(checkpoint.key(), ".properties")).contentType("text/plain; charset=utf-8").build(),
+                RequestBody.fromString(text.toString(), StandardCharsets.UTF_8));
+        checkpoint.saved();
+        InvocationMetrics.add(InvocationMetrics.Counter.CHECKPOINTS, 1);
+        logger.fine("Saved checkpoint of " + checkpoint.key() + ": " + checkpoint.values());
+    }
+
+    /**
+     * Saves the checkpoint of an object whose processing stops here, to continue in a new invocation.
+     *
+     * @throws IOException if the object already took CHECKPOINT_MAX_CONTINUATIONS (default 50) continuations;
+     *                     the checkpoint is removed, as the object is evidently not making progress
+     */
+    public void suspend(Checkpoint checkpoint) throws IOException {
+        checkpoint.countContinuation();
+        int maxContinuations = LayerConfig.getInt("CHECKPOINT_MAX_CONTINUATIONS", 50);
+        if (checkpoint.continuations() > maxContinuations) {
+            delete(checkpoint);
+            throw new IOException("Giving up on " + checkpoint.key() + " after " + maxContinuations + " continuations");
+        }
+        save(checkpoint);
+    }
+
+    /** True when the periodic save interval has passed since the checkpoint was last saved or loaded. */
+    public boolean isDue(Checkpoint checkpoint) {
+        return intervalNanos > 0 && System.nanoTime() - checkpoint.savedAtNanos() >= intervalNanos;
+    }
+
+    public void saveTail(Checkpoint checkpoint, byte[] tail, int length) {
+        s3.putObject(PutObjectRequest.builder().bucket(checkpoint.bucketName())
+                        .key(nameOf(checkpoint.key(), ".tail")).contentType("application/octet-stream").build(),
+                RequestBody.fromBytes(length == tail.length ? tail : Arrays.copyOf(tail, length)));
+    }
+
+    /** The tail saved with the checkpoint, or an empty array. */
+    public byte[] loadTail(Checkpoint checkpoint) {
+        try {
+            return s3.getObjectAsBytes(GetObjectRequest.builder().bucket(checkpoint.bucketName())
+                    .key(nameOf(checkpoint.key(), ".tail")).build()).asByteArray();
+        } catch (NoSuchKeyException e) {
+            return new byte[0];
+        }
+    }
+
+    /** Removes the checkpoint once the object is done, or when it is stale. */
+    public void delete(Checkpoint checkpoint) {
+        for (String suffix : new String[] {".properties", ".tail"}) {
+            try {
+                s3.deleteObject(DeleteObjectRequest.builder().bucket(checkpoint.bucketName())
+                        .key(nameOf(checkpoint.key(), suffix)).build());
+            } catch (RuntimeException e) {
+                logger.warning("Could not delete checkpoint of " + checkpoint.key() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private String nameOf(String key, String suffix) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder name = new StringBuilder(prefix);
+            for (int i = 0; i < 16; i++) {
+                name.append(String.format("%02x", digest[i]));
+            }
+            return name.append(suffix).toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
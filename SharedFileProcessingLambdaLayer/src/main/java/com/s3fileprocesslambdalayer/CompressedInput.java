@@ -0,0 +1,363 @@
+package com.s3fileprocesslambdalayer;
+
+import io.airlift.compress.zstd.ZstdInputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Streaming decompression of gzip and zstd input, so compressed objects are parsed as they arrive with no
+ * decompressed copy in memory or in /tmp. The codec is recognised by its magic number, not the key suffix.
+ *
+ * <p>gzip files may hold several members back to back (as {@code cat a.gz b.gz}, or pigz and bgzip output);
+ * all of them are read. {@link java.util.zip.GZIPInputStream} on Java 17 can stop after the first member
+ * of a network stream, so members are decoded here with an {@link Inflater} and their CRCs checked. zstd
+ * frames are decoded by aircompressor's pure-Java decoder, which needs no native library in the layer.
+ * Decompressed bytes are counted as {@link InvocationMetrics.Counter#DECOMPRESSED_BYTES}.
+ */
+public final class CompressedInput {
+    /** Bytes needed to recognise every codec. */
+    public static final int MAGIC_BYTES = 4;
+
+    private static final byte[] GZIP_MAGIC = {0x1F, (byte) 0x8B};
+    private static final byte[] ZSTD_MAGIC = {0x28, (byte) 0xB5, 0x2F, (byte) 0xFD};
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    public enum Codec {
+        NONE(""), GZIP(".gz"), ZSTD(".zst");
+
+        private final String suffix;
+
+        Codec(String suffix) {
+            this.suffix = suffix;
+        }
+
+        public String suffix() {
+            return suffix;
+        }
+    }
+
+    private CompressedInput() {
+    }
+
+    /** Codec named by the key's suffix ({@code .gz} or {@code .zst}), or NONE. */
+    public static Codec forKey(String key) {
+        String lower = key.toLowerCase(Locale.ROOT);
+        for (Codec codec : Codec.values()) {
+            if (codec != Codec.NONE && lower.endsWith(codec.suffix)) {
+                return codec;
+            }
+        }
+        return Codec.NONE;
+    }
+
+    /** The key without its compression suffix, e.g. {@code data.csv} for {@code data.csv.gz}. */
+    public static String stripSuffix(String key) {
+        Codec codec = forKey(key);
+        return key.substring(0, key.length() - codec.suffix.length());
+    }
+
+    /** Codec of content starting with {@code head[0..length)}. */
+    public static Codec detect(byte[] head, int length) {
+        if (startsWith(head, length, GZIP_MAGIC)) {
+            return Codec.GZIP;
+        }
+        if (startsWith(head, length, ZSTD_MAGIC)) {
+            return Codec.ZSTD;
+        }
+        return Codec.NONE;
+    }
+
+    /** Reads the codec from the first bytes of {@code in} and pushes them back. */
+    public static Codec sniff(PushbackInputStream in) throws IOException {
+        byte[] head = new byte[MAGIC_BYTES];
+        int length = in.readNBytes(head, 0, head.length);
+        in.unread(head, 0, length);
+        return detect(head, length);
+    }
+
+    /** The decompressed content of {@code in}, or {@code in} itself for NONE. Closing it closes {@code in}. */
+    public static InputStream decompress(InputStream in, Codec codec) throws IOException {
+        switch (codec) {
+            case GZIP:
+                return new CountingStream(new GzipMembersInputStream(in));
+            case ZSTD:
+                return new CountingStream(new ZstdInputStream(in));
+            default:
+                return in;
+        }
+    }
+
+    /** Sniffs and decompresses {@code in}, which is returned as is when it is not compressed. */
+    public static InputStream open(InputStream in) throws IOException {
+        PushbackInputStream peekable = new PushbackInputStream(in, MAGIC_BYTES);
+        return decompress(peekable, sniff(peekable));
+    }
+
+    /**
+     * Decompresses as much of a truncated compressed head, such as a sniffed prefix, as it can, up to
+     * {@code limit} bytes. Returns an empty array when nothing can be decoded yet.
+     */
+    public static byte[] decompressHead(byte[] head, int length, int limit) {
+        Codec codec = detect(head, length);
+        byte[] plain = new byte[limit];
+        int read = 0;
+        try (InputStream in = decompress(new ByteArrayInputStream(head, 0, length), codec)) {
+            int n;
+            while (read < limit && (n = in.read(plain, read, limit - read)) != -1) {
+                read += n;
+            }
+        } catch (IOException | RuntimeException e) {
+            // The head ends mid-stream; what was decoded before that is still valid
+        }
+        return Arrays.copyOf(plain, read);
+    }
+
+    private static boolean startsWith(byte[] head, int length, byte[] magic) {
+        if (length < magic.length) {
+            return false;
+        }
+        for (int i = 0; i < magic.length; i++) {
+            if (head[i] != magic[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Counts the decompressed bytes into the invocation metrics on close, and reports bytes as available
+     * until the end so channel adapters fill whole buffers rather than one small read at a time.
+     */
+    private static final class CountingStream extends FilterInputStream {
+        private long count;
+        private boolean eof;
+
+        CountingStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b == -1) {
+                eof = true;
+            } else {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n == -1) {
+                eof = true;
+            } else {
+                count += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(n);
+            count += skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return eof ? 0 : 1;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (count > 0) {
+                InvocationMetrics.add(InvocationMetrics.Counter.DECOMPRESSED_BYTES, count);
+                count = 0;
+            }
+            super.close();
+        }
+    }
+
+    /** Decodes every gzip member of a stream in turn, checking each member's CRC-32 and length. */
+    private static final class GzipMembersInputStream extends InputStream {
+        private static final int FHCRC = 2;
+        private static final int FEXTRA = 4;
+        private static final int FNAME = 8;
+        private static final int FCOMMENT = 16;
+
+        private final InputStream in;
+        private final Inflater inflater = new Inflater(true);
+        private final CRC32 crc = new CRC32();
+        private final byte[] input = new byte[BUFFER_SIZE];
+        private int position;
+        private int limit;
+        private long memberSize;
+        private boolean eof;
+
+        GzipMembersInputStream(InputStream in) throws IOException {
+            this.in = in;
+            readHeader();
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (!eof) {
+                int n;
+                try {
+                    n = inflater.inflate(b, off, len);
+                } catch (DataFormatException e) {
+                    throw new ZipException("Invalid gzip data: " + e.getMessage());
+                }
+                if (n > 0) {
+                    crc.update(b, off, n);
+                    memberSize += n;
+                    return n;
+                }
+                if (inflater.finished()) {
+                    // Whatever the inflater did not use belongs to the trailer and the next member
+                    position = limit - inflater.getRemaining();
+                    readTrailer();
+                    if (!hasNextMember()) {
+                        eof = true;
+                        return -1;
+                    }
+                    inflater.reset();
+                    crc.reset();
+                    memberSize = 0;
+                    readHeader();
+                } else if (inflater.needsDictionary()) {
+                    throw new ZipException("gzip member needs a preset dictionary");
+                } else if (inflater.needsInput()) {
+                    if (position == limit && !fill()) {
+                        throw new EOFException("Unexpected end of gzip stream");
+                    }
+                    inflater.setInput(input, position, limit - position);
+                    position = limit;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        public int available() {
+            return eof ? 0 : 1;
+        }
+
+        @Override
+        public void close() throws IOException {
+            inflater.end();
+            in.close();
+        }
+
+        private void readHeader() throws IOException {
+            if (readByte() != (GZIP_MAGIC[0] & 0xFF) || readByte() != (GZIP_MAGIC[1] & 0xFF)) {
+                throw new ZipException("Not in gzip format");
+            }
+            if (readByte() != 8) {
+                throw new ZipException("Unsupported gzip compression method");
+            }
+            int flags = readByte();
+            skipBytes(6); // MTIME, XFL, OS
+            if ((flags & FEXTRA) != 0) {
+                skipBytes(readByte() | readByte() << 8);
+            }
+            if ((flags & FNAME) != 0) {
+                skipZeroTerminated();
+            }
+            if ((flags & FCOMMENT) != 0) {
+                skipZeroTerminated();
+            }
+            if ((flags & FHCRC) != 0) {
+                skipBytes(2);
+            }
+        }
+
+        private void readTrailer() throws IOException {
+            long expectedCrc = readIntLE();
+            long expectedSize = readIntLE();
+            if (expectedCrc != crc.getValue()) {
+                throw new ZipException("Corrupt gzip member: CRC mismatch");
+            }
+            if (expectedSize != (memberSize & 0xFFFFFFFFL)) {
+                throw new ZipException("Corrupt gzip member: size mismatch");
+            }
+        }
+
+        /** True when another member follows; anything else after a member, such as zero padding, ends the stream. */
+        private boolean hasNextMember() throws IOException {
+            if (position == limit && !fill()) {
+                return false;
+            }
+            if ((input[position] & 0xFF) != (GZIP_MAGIC[0] & 0xFF)) {
+                return false;
+            }
+            if (position + 1 == limit) {
+                // Keep the first magic byte while the buffer is refilled
+                input[0] = input[position];
+                position = 0;
+                limit = 1;
+                int n = in.read(input, 1, input.length - 1);
+                if (n == -1) {
+                    return false;
+                }
+                limit += n;
+            }
+            return input[position + 1] == GZIP_MAGIC[1];
+        }
+
+        private boolean fill() throws IOException {
+            int n = in.read(input, 0, input.length);
+            if (n == -1) {
+                return false;
+            }
+            position = 0;
+            limit = n;
+            return true;
+        }
+
+        private int readByte() throws IOException {
+            if (position == limit && !fill()) {
+                throw new EOFException("Unexpected end of gzip stream");
+            }
+            return input[position++] & 0xFF;
+        }
+
+        private long readIntLE() throws IOException {
+            return readByte() | (long) readByte() << 8 | (long) readByte() << 16 | (long) readByte() << 24;
+        }
+
+        private void skipBytes(int count) throws IOException {
+            for (int i = 0; i < count; i++) {
+                readByte();
+            }
+        }
+
+        private void skipZeroTerminated() throws IOException {
+            while (readByte() != 0) {
+                // skip
+            }
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package com.s3fileprocesslambdalayer;
+
+import software.amazon.awssdk.core.ResponseBytes;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+
+import java.util.Locale;
+import java.util.logging.Logger;
+
+/**
+ * Identifies an object's type from its first bytes rather than its key suffix, so mislabelled and
+ * extensionless objects are still routed. Binary formats are recognised by their magic numbers; text that
+ * looks like delimited rows is CSV, also when gzip or zstd compressed. Only the first SNIFF_BYTES (default 4096)
+ * are fetched, with a ranged GET.
+ */
+public final class ContentSniffer {
+    private static final Logger logger = Logger.getLogger(ContentSniffer.class.getName());
+
+    public static final String CSV = "text/csv";
+    public static final String PDF = "application/pdf";
+    public static final String PNG = "image/png";
+    public static final String JPEG = "image/jpeg";
+    public static final String GIF = "image/gif";
+
+    private static final byte[] PDF_MAGIC = {'%', 'P', 'D', 'F', '-'};
+    private static final byte[] PNG_MAGIC = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+    private static final byte[] JPEG_MAGIC = {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF};
+    private static final byte[] GIF87_MAGIC = {'G', 'I', 'F', '8', '7', 'a'};
+    private static final byte[] GIF89_MAGIC = {'G', 'I', 'F', '8', '9', 'a'};
+
+    private ContentSniffer() {
+    }
+
+    /**
+     * Fetches the head of the object and returns its media type, or null if it is empty or not a type we
+     * know. The request is recorded as the SNIFF stage.
+     */
+    public static String sniff(S3Client s3, String bucketName, String key) throws S3Exception {
+        int bytes = Math.max(16, LayerConfig.getInt("SNIFF_BYTES", 4096));
+        GetObjectRequest request = GetObjectRequest.builder()
+                .bucket(bucketName)
+                .key(key)
+                .range("bytes=0-" + (bytes - 1))
+                .build();
+
+        long start = System.nanoTime();
+        byte[] head;
+        try {
+            ResponseBytes<GetObjectResponse> response = s3.getObjectAsBytes(request);
+            head = response.asByteArray();
+        } catch (S3Exception e) {
+            if (e.statusCode() != 416) {
+                throw e;
+            }
+            // An empty object has no satisfiable range
+            head = new byte[0];
+        } finally {
+            InvocationMetrics.record(InvocationMetrics.Stage.SNIFF, start);
+        }
+        String mediaType = detect(head, head.length, key);
+        logger.info("Sniffed s3://" + bucketName + "/" + key + " as " + mediaType + " from " + head.length + " bytes");
+        return mediaType;
+    }
+
+    /**
+     * Media type of content starting with {@code head[0..length)}. The key is only a tie-breaker for text
+     * that has no delimiter in its first line, such as a single-column CSV.
+     */
+    public static String detect(byte[] head, int length, String key) {
+        if (startsWith(head, length, PDF_MAGIC)) {
+            return PDF;
+        }
+        if (startsWith(head, length, PNG_MAGIC)) {
+            return PNG;
+        }
+        if (startsWith(head, length, JPEG_MAGIC)) {
+            return JPEG;
+        }
+        if (startsWith(head, length, GIF87_MAGIC) || startsWith(head, length, GIF89_MAGIC)) {
+            return GIF;
+        }
+        if (CompressedInput.detect(head, length) != CompressedInput.Codec.NONE) {
+            // Only CSV is read compressed; what the head decompresses to decides, the key when it is too short
+            byte[] plain = CompressedInput.decompressHead(head, length, length);
+            String stripped = CompressedInput.stripSuffix(key);
+            if (plain.length == 0) {
+                return stripped.toLowerCase(Locale.ROOT).endsWith(".csv") ? CSV : null;
+            }
+            return CSV.equals(detect(plain, plain.length, stripped)) ? CSV : null;
+        }
+        if (length > 0 && isText(head, length)
+                && (hasDelimitedFirstLine(head, length) || key.toLowerCase(Locale.ROOT).endsWith(".csv"))) {
+            return CSV;
+        }
+        return null;
+    }
+
+    private static boolean startsWith(byte[] head, int length, byte[] magic) {
+        if (length < magic.length) {
+            return false;
+        }
+        for (int i = 0; i < magic.length; i++) {
+            if (head[i] != magic[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** No NUL bytes and at most 1% other control characters; UTF-8 multi-byte sequences count as text. */
+    private static boolean isText(byte[] head, int length) {
+        int control = 0;
+        for (int i = 0; i < length; i++) {
+            int b = head[i] & 0xFF;
+            if (b == 0) {
+                return false;
+            }
+            if (b < 0x20 && b != '\t' && b != '\n' && b != '\r' && b != '\f') {
+                control++;
+            }
+        }
+        return control * 100 <= length;
+    }
+
+    private static boolean hasDelimitedFirstLine(byte[] head, int length) {
+        for (int i = 0; i < length; i++) {
+            byte b = head[i];
+            if (b == '\n' || b == '\r') {
+                return false;
+            }
+            if (b == ',' || b == ';' || b == '\t' || b == '|') {
+                return true;
+            }
+        }
+        return false;
+    }
+}
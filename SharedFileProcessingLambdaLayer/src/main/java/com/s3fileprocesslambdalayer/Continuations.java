@@ -0,0 +1,121 @@
+package com.s3fileprocesslambdalayer;
+
+import com.amazonaws.services.lambda.runtime.events.SQSEvent;
+import com.amazonaws.services.lambda.runtime.events.models.s3.S3EventNotification.S3EventNotificationRecord;
+import software.amazon.awssdk.core.SdkBytes;
+import software.amazon.awssdk.http.urlconnection.UrlConnectionHttpClient;
+import software.amazon.awssdk.services.lambda.LambdaClient;
+import software.amazon.awssdk.services.lambda.model.InvocationType;
+import software.amazon.awssdk.services.lambda.model.InvokeRequest;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+/**
+ * Hands records the current invocation cannot finish to a new invocation of the same function. A record
+ * still waiting when {@link InvocationDeadline#shouldYield()} turns true is not started; a record whose
+ * processor stopped part way returns {@link RecordBatchRunner.Status#CONTINUED} after saving a
+ * {@link Checkpoint}. Either way its original notification is sent again, asynchronously, to the invoked
+ * function, which resumes from the checkpoint. A continued record is not recorded as processed, so
+ * deduplication lets the continuation through, and not reported as failed, so SQS does not redeliver it.
+ * If the continuation cannot be sent, the record fails instead and is retried as before. A continuation
+ * that fails is retried by Lambda like any asynchronous invocation, and then goes to the function's
+ * on-failure destination; see {@link SqsBatchProcessor} for continuations of queued records.
+ */
+public final class Continuations {
+    private static final Logger logger = Logger.getLogger(Continuations.class.getName());
+
+    /** The event shape the function's handler takes, which the continuation payload must match. */
+    public enum Entry { S3_EVENT, SQS }
+
+    /** Sends a record to a new invocation. */
+    @FunctionalInterface
+    public interface Scheduler {
+        void schedule(S3EventNotificationRecord record, Entry entry) throws Exception;
+    }
+
+    private static final String MESSAGE_ID_PREFIX = "continuation-";
+
+    private static volatile Scheduler scheduler = Continuations::invokeSelf;
+    private static volatile LambdaClient lambdaClient;
+
+    private Continuations() {
+    }
+
+    /** Replaces the asynchronous self-invocation, e.g. by a local loop in the load harness. */
+    public static void useScheduler(Scheduler replacement) {
+        scheduler = replacement;
+    }
+
+    /** Wraps a record task so records are continued in a new invocation when the deadline is near. */
+    public static RecordBatchRunner.RecordTask<S3EventNotificationRecord> resumable(
+            RecordBatchRunner.RecordTask<S3EventNotificationRecord> task, Entry entry) {
+        return record -> {
+            if (InvocationDeadline.shouldYield()) {
+                return schedule(record, entry, RecordBatchRunner.Outcome.continued(SharedLambdaLayer.objectKeyOf(record)));
+            }
+            RecordBatchRunner.Outcome outcome = task.process(record);
+            if (outcome != null && outcome.status() == RecordBatchRunner.Status.CONTINUED) {
+                return schedule(record, entry, outcome);
+            }
+            return outcome;
+        };
+    }
+
+    private static RecordBatchRunner.Outcome schedule(S3EventNotificationRecord record, Entry entry, RecordBatchRunner.Outcome outcome) {
+        try {
+            scheduler.schedule(record, entry);
+            InvocationMetrics.add(InvocationMetrics.Counter.CONTINUATIONS, 1);
+            logger.info("Continuing " + outcome.key() + " in a new invocation");
+            return outcome;
+        } catch (Exception e) {
+            logger.severe("Could not schedule a continuation for " + outcome.key() + ": " + e.getMessage());
+            return RecordBatchRunner.Outcome.failed(outcome.key());
+        }
+    }
+
+    private static void invokeSelf(S3EventNotificationRecord record, Entry entry) {
+        String functionArn = InvocationDeadline.functionArn();
+        if (functionArn == null) {
+            throw new IllegalStateException("No invocation to continue from");
+        }
+        String payload = payload(record, entry);
+        lambda().invoke(InvokeRequest.builder()
+                .functionName(functionArn)
+                .invocationType(InvocationType.EVENT)
+                .payload(SdkBytes.fromUtf8String(payload))
+                .build());
+    }
+
+    /** The record as the event the function's handler takes: an S3 event, or an SQS batch carrying it. */
+    static String payload(S3EventNotificationRecord record, Entry entry) {
+        String notification = S3NotificationMessages.toJson(List.of(record));
+        if (entry == Entry.S3_EVENT) {
+            return notification;
+        }
+        return "{\"Records\":[{\"messageId\":" + S3NotificationMessages.quote(MESSAGE_ID_PREFIX + UUID.randomUUID())
+                + ",\"receiptHandle\":\"\",\"body\":" + S3NotificationMessages.quote(notification)
+                + ",\"attributes\":{\"ApproximateReceiveCount\":\"1\"},\"messageAttributes\":{},\"eventSource\":\"aws:sqs\"}]}";
+    }
+
+    /** Whether an SQS message is a continuation this class sent, rather than one a queue delivered. */
+    static boolean isContinuation(SQSEvent.SQSMessage message) {
+        return message.getMessageId() != null && message.getMessageId().startsWith(MESSAGE_ID_PREFIX)
+                && (message.getReceiptHandle() == null || message.getReceiptHandle().isEmpty());
+    }
+
+    private static LambdaClient lambda() {
+        LambdaClient client = lambdaClient;
+        if (client == null) {
+            synchronized (Continuations.class) {
+                client = lambdaClient;
+                if (client == null) {
+                    client = LambdaClient.builder().httpClientBuilder(UrlConnectionHttpClient.builder()).build();
+                    lambdaClient = client;
+                }
+            }
+        }
+        return client;
+    }
+}
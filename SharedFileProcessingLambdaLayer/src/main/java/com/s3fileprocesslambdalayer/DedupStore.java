@@ -0,0 +1,38 @@
+package com.s3fileprocesslambdalayer;
+
+import java.io.IOException;
+
+/**
+ * Durable record of the latest processed S3 event per object, consulted by {@link EventDeduplicator}
+ * to find duplicates. Implementations must be safe for concurrent use.
+ */
+public interface DedupStore {
+
+    /** The last processed event of one object. */
+    final class ProcessedEvent {
+        private final String sequencer;
+        private final String versionId;
+
+        public ProcessedEvent(String sequencer, String versionId) {
+            this.sequencer = sequencer;
+            this.versionId = versionId;
+        }
+
+        public String sequencer() {
+            return sequencer;
+        }
+
+        public String versionId() {
+            return versionId;
+        }
+    }
+
+    /** The latest processed event for {@code objectId} (bucket/key), or null if none was recorded. */
+    ProcessedEvent latest(String objectId) throws IOException;
+
+    /**
+     * Records {@code event} as processed unless a later event is already recorded for the object.
+     * Returns whether it was recorded.
+     */
+    boolean record(String objectId, ProcessedEvent event) throws IOException;
+}
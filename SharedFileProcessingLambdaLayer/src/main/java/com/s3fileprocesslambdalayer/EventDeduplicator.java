@@ -0,0 +1,217 @@
+package com.s3fileprocesslambdalayer;
+
+import com.amazonaws.services.lambda.runtime.events.models.s3.S3EventNotification.S3EventNotificationRecord;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+/**
+ * Drops S3 notifications that were already processed. S3 delivers events at least once and not
+ * necessarily in order; within one object key, the event {@code sequencer} orders them.
+ *
+ * <p>An event is a duplicate if its object already has a processed event with the same sequencer
+ * (or, for events without one, the same versionId), and stale if the processed event is later.
+ * Events are recorded in the {@link DedupStore} only after they were processed successfully, so
+ * failures are retried on redelivery.
+ *
+ * <p>DEDUP_ENABLED=false turns deduplication off. DEDUP_STORE picks the store: {@code file} (default), a
+ * {@link FileDedupStore} at DEDUP_STORE_FILE (TEMP_DIR/s3-event-dedup.log) holding at most DEDUP_MAX_OBJECTS
+ * (default 100000) objects, which deduplicates within a warm container; or {@code s3}, an
+ * {@link S3DedupStore} shared by every container.
+ */
+public final class EventDeduplicator {
+    private static final Logger logger = Logger.getLogger(EventDeduplicator.class.getName());
+    private static volatile EventDeduplicator shared;
+
+    public enum Verdict {
+        NEW(null),
+        DUPLICATE("duplicate"),
+        STALE("stale");
+
+        private final String label;
+
+        Verdict(String label) {
+            this.label = label;
+        }
+
+        /** Label appended to the key in handler summaries, e.g. "(duplicate)". */
+        public String label() {
+            return label;
+        }
+    }
+
+    /** What identifies one S3 event for deduplication. */
+    public static final class Identity {
+        private final String bucket;
+        private final String key;
+        private final String versionId;
+        private final String sequencer;
+
+        public Identity(String bucket, String key, String versionId, String sequencer) {
+            this.bucket = bucket;
+            this.key = key;
+            this.versionId = versionId;
+            this.sequencer = sequencer;
+        }
+
+        public String key() {
+            return key;
+        }
+
+        String objectId() {
+            return bucket + "/" + key;
+        }
+
+        String eventId() {
+            return objectId() + "?versionId=" + versionId + "&sequencer=" + sequencer;
+        }
+
+        DedupStore.ProcessedEvent asProcessed() {
+            return new DedupStore.ProcessedEvent(sequencer, versionId);
+        }
+    }
+
+    /** Identity of an S3 notification record, with the key URL-decoded as the handlers report it. */
+    public static Identity identityOf(S3EventNotificationRecord record) {
+        return new Identity(record.getS3().getBucket().getName(),
+                SharedLambdaLayer.objectKeyOf(record),
+                record.getS3().getObject().getVersionId(), record.getS3().getObject().getSequencer());
+    }
+
+    private final DedupStore store;
+    // Events currently being processed in this container, so concurrent copies in one batch run once
+    private final Set<String> inFlight = ConcurrentHashMap.newKeySet();
+
+    public EventDeduplicator(DedupStore store) {
+        this.store = store;
+    }
+
+    /** The container-wide deduplicator, or null when DEDUP_ENABLED is false or the store cannot be opened. */
+    public static EventDeduplicator shared() {
+        if (shared == null && LayerConfig.getBoolean("DEDUP_ENABLED", true)) {
+            synchronized (EventDeduplicator.class) {
+                if (shared == null) {
+                    try {
+                        shared = new EventDeduplicator(openStore());
+                    } catch (IOException e) {
+                        logger.severe("Event deduplication disabled, cannot open its store: " + e.getMessage());
+                        return null;
+                    }
+                }
+            }
+        }
+        return shared;
+    }
+
+    private static DedupStore openStore() throws IOException {
+        String type = LayerConfig.get("DEDUP_STORE", "file");
+        switch (type) {
+            case "s3":
+                return S3DedupStore.fromEnvironment();
+            case "file":
+                String file = LayerConfig.get("DEDUP_STORE_FILE",
+                        Paths.get(SharedLambdaLayer.getTempDir(), "s3-event-dedup.log").toString());
+                return new FileDedupStore(Paths.get(file), LayerConfig.getInt("DEDUP_MAX_OBJECTS", 100_000));
+            default:
+                throw new IOException("Unknown DEDUP_STORE '" + type + "', expected file or s3");
+        }
+    }
+
+    /**
+     * Wraps a record task so duplicate and stale records are skipped, labelled with their verdict, and
+     * successfully processed records are recorded. Without a deduplicator the task is returned as is.
+     */
+    public static <T> RecordBatchRunner.RecordTask<T> skippingDuplicates(RecordBatchRunner.RecordTask<T> task,
+                                                                       Function<T, Identity> identity) {
+        EventDeduplicator deduplicator = shared();
+        if (deduplicator == null) {
+            return task;
+        }
+        return record -> {
+            Identity id = identity.apply(record);
+            Verdict verdict = deduplicator.claim(id);
+            if (verdict != Verdict.NEW) {
+                logger.info("Skipping " + verdict.label() + " event: " + id.eventId());
+                return RecordBatchRunner.Outcome.skipped(id.key() + " (" + verdict.label() + ")");
+            }
+            RecordBatchRunner.Outcome outcome = null;
+            try {
+                outcome = task.process(record);
+                return outcome;
+            } finally {
+                deduplicator.complete(id, outcome != null && outcome.status() == RecordBatchRunner.Status.PROCESSED);
+            }
+        };
+    }
+
+    /**
+     * Classifies the event and, if it is new, claims it until {@link #complete} is called. Store errors
+     * fail open: the event is processed rather than risk dropping it.
+     */
+    public Verdict claim(Identity id) {
+        if (!inFlight.add(id.eventId())) {
+            return Verdict.DUPLICATE;
+        }
+        Verdict verdict;
+        try {
+            verdict = classify(id.asProcessed(), store.latest(id.objectId()));
+        } catch (IOException e) {
+            logger.warning("Dedup store lookup failed for " + id.eventId() + ", processing anyway: " + e.getMessage());
+            verdict = Verdict.NEW;
+        }
+        if (verdict != Verdict.NEW) {
+            inFlight.remove(id.eventId());
+        }
+        return verdict;
+    }
+
+    /** Releases a claimed event, recording it as processed if it succeeded. */
+    public void complete(Identity id, boolean processed) {
+        try {
+            if (processed) {
+                store.record(id.objectId(), id.asProcessed());
+            }
+        } catch (IOException e) {
+            logger.warning("Could not record processed event " + id.eventId() + ": " + e.getMessage());
+        } finally {
+            inFlight.remove(id.eventId());
+        }
+    }
+
+    static Verdict classify(DedupStore.ProcessedEvent event, DedupStore.ProcessedEvent latest) {
+        if (latest == null) {
+            return Verdict.NEW;
+        }
+        if (event.sequencer() != null && latest.sequencer() != null) {
+            int order = compareSequencers(event.sequencer(), latest.sequencer());
+            return order > 0 ? Verdict.NEW : order == 0 ? Verdict.DUPLICATE : Verdict.STALE;
+        }
+        return Objects.equals(event.versionId(), latest.versionId()) ? Verdict.DUPLICATE : Verdict.NEW;
+    }
+
+    /** Whether {@code event} supersedes {@code current} for the same object. */
+    static boolean isLater(DedupStore.ProcessedEvent event, DedupStore.ProcessedEvent current) {
+        return classify(event, current) == Verdict.NEW;
+    }
+
+    /**
+     * Orders two sequencers of the same object key. They are hex strings of possibly different lengths;
+     * as S3 documents, the shorter one is right-padded with zeros before comparing.
+     */
+    static int compareSequencers(String a, String b) {
+        int length = Math.max(a.length(), b.length());
+        for (int i = 0; i < length; i++) {
+            int ca = i < a.length() ? Character.digit(a.charAt(i), 16) : 0;
+            int cb = i < b.length() ? Character.digit(b.charAt(i), 16) : 0;
+            if (ca != cb) {
+                return Integer.compare(ca, cb);
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,162 @@
+package com.s3fileprocesslambdalayer;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * {@link DedupStore} backed by an append-only, tab-separated log file, replayed into memory on open. Tabs,
+ * line breaks and backslashes in the fields are escaped with a backslash, so any key can be stored.
+ * It only survives as long as the file does (e.g. /tmp of a warm container), which makes it suitable
+ * for tests, local runs and single-container deduplication; use {@link S3DedupStore} for fleet-wide guarantees.
+ *
+ * <p>At most {@code maxObjects} objects are kept; the ones recorded longest ago are forgotten first. Once the
+ * log has twice that many lines it is compacted to one line per object kept, so it stays bounded too.
+ */
+public class FileDedupStore implements DedupStore {
+    private final Path file;
+    private final int maxObjects;
+    // Insertion order, and an object is re-inserted when recorded, so the eldest entry is the least recent
+    private final Map<String, ProcessedEvent> latest;
+    private BufferedWriter writer;
+    private int lines;
+
+    public FileDedupStore(Path file) throws IOException {
+        this(file, 100_000);
+    }
+
+    public FileDedupStore(Path file, int maxObjects) throws IOException {
+        this.file = file;
+        this.maxObjects = Math.max(1, maxObjects);
+        this.latest = new LinkedHashMap<>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, ProcessedEvent> eldest) {
+                return size() > FileDedupStore.this.maxObjects;
+            }
+        };
+        if (Files.exists(file)) {
+            try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = fields(line);
+                    if (fields != null) {
+                        lines++;
+                        put(fields[0], new ProcessedEvent(emptyToNull(fields[1]), emptyToNull(fields[2])));
+                    }
+                }
+            }
+        }
+        this.writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        if (lines >= 2 * this.maxObjects) {
+            compact();
+        }
+    }
+
+    public Path file() {
+        return file;
+    }
+
+    @Override
+    public synchronized ProcessedEvent latest(String objectId) {
+        return latest.get(objectId);
+    }
+
+    @Override
+    public synchronized boolean record(String objectId, ProcessedEvent event) throws IOException {
+        if (!put(objectId, event)) {
+            return false;
+        }
+        writer.write(line(objectId, event));
+        writer.newLine();
+        writer.flush();
+        if (++lines >= 2 * maxObjects) {
+            compact();
+        }
+        return true;
+    }
+
+    private boolean put(String objectId, ProcessedEvent event) {
+        ProcessedEvent current = latest.get(objectId);
+        if (current != null && !EventDeduplicator.isLater(event, current)) {
+            return false;
+        }
+        latest.remove(objectId);
+        latest.put(objectId, event);
+        return true;
+    }
+
+    /** Rewrites the log with one line per object still kept and swaps it in. */
+    private void compact() throws IOException {
+        writer.close();
+        Path compacted = file.resolveSibling(file.getFileName() + ".compact");
+        try (BufferedWriter out = Files.newBufferedWriter(compacted, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, ProcessedEvent> entry : latest.entrySet()) {
+                out.write(line(entry.getKey(), entry.getValue()));
+                out.newLine();
+            }
+        }
+        Files.move(compacted, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        lines = latest.size();
+        writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    private static String line(String objectId, ProcessedEvent event) {
+        return escape(objectId) + "\t" + escape(event.sequencer()) + "\t" + escape(event.versionId());
+    }
+
+    private static String escape(String value) {
+        if (value == null) {
+            return "";
+        }
+        StringBuilder escaped = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\': escaped.append("\\\\"); break;
+                case '\t': escaped.append("\\t"); break;
+                case '\n': escaped.append("\\n"); break;
+                case '\r': escaped.append("\\r"); break;
+                default: escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
+    /** The three unescaped fields of a log line, or null for a malformed (e.g. torn) line. */
+    private static String[] fields(String line) {
+        String[] fields = new String[3];
+        int count = 0;
+        StringBuilder field = new StringBuilder();
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '\t') {
+                if (count == 2) {
+                    return null;
+                }
+                fields[count++] = field.toString();
+                field.setLength(0);
+            } else if (c == '\\' && i + 1 < line.length()) {
+                char escaped = line.charAt(++i);
+                field.append(escaped == 't' ? '\t' : escaped == 'n' ? '\n' : escaped == 'r' ? '\r' : escaped);
+            } else {
+                field.append(c);
+            }
+        }
+        if (count != 2) {
+            return null;
+        }
+        fields[2] = field.toString();
+        return fields;
+    }
+
+    private static String emptyToNull(String value) {
+        return value.isEmpty() ? null : value;
+    }
+}
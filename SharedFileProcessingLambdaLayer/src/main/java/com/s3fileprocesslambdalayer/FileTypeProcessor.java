@@ -0,0 +1,21 @@
+package com.s3fileprocesslambdalayer;
+
+/**
+ * Processing logic for one file type, callable in-process by the router handler. Implementations are
+ * discovered with {@link java.util.ServiceLoader}: each processor module lists its class in
+ * META-INF/services/com.s3fileprocesslambdalayer.FileTypeProcessor and keeps a public no-arg constructor.
+ */
+public interface FileTypeProcessor {
+
+    /** Short type name for logs and summaries, e.g. "csv". */
+    String type();
+
+    /** Whether this processor handles content of the given {@link ContentSniffer} media type. */
+    boolean handles(String mediaType);
+
+    /**
+     * Downloads or streams the object and processes it. The key is already URL-decoded and the content
+     * type already established, so no suffix check is made. Safe to call concurrently for different objects.
+     */
+    RecordBatchRunner.Outcome processObject(String bucket, String key);
+}
@@ -0,0 +1,51 @@
+package com.s3fileprocesslambdalayer;
+
+import com.amazonaws.services.lambda.runtime.Context;
+
+/**
+ * The current invocation's deadline, taken from {@link Context#getRemainingTimeInMillis()} when the handler
+ * starts. Long-running work polls {@link #shouldYield()} and, once it returns true, stops at the next point
+ * it can resume from, saves a {@link Checkpoint} and hands the rest to a continuation. The reserve,
+ * CHECKPOINT_RESERVE_MS (default 10000, at most half the time left), must cover saving the checkpoint,
+ * finishing in-flight uploads and scheduling the continuation.
+ *
+ * <p>A container runs one invocation at a time, so the deadline is container-wide. Before the first
+ * {@link #begin(Context)}, or with CHECKPOINTS_ENABLED=false, there is no deadline and work never yields.
+ */
+public final class InvocationDeadline {
+    private static volatile long deadlineNanos = Long.MAX_VALUE;
+    private static volatile String functionArn;
+
+    private InvocationDeadline() {
+    }
+
+    /** Starts the clock for an invocation. */
+    public static void begin(Context context) {
+        functionArn = context.getInvokedFunctionArn();
+        if (!LayerConfig.getBoolean("CHECKPOINTS_ENABLED", true)) {
+            deadlineNanos = Long.MAX_VALUE;
+            return;
+        }
+        long remainingMillis = context.getRemainingTimeInMillis();
+        // Capped at half the time, so even a short timeout leaves room for progress before yielding
+        long reserveMillis = Math.min(LayerConfig.getLong("CHECKPOINT_RESERVE_MS", 10_000), remainingMillis / 2);
+        deadlineNanos = System.nanoTime() + (remainingMillis - reserveMillis) * 1_000_000L;
+    }
+
+    /** True once the invocation is within the reserve of its timeout. */
+    public static boolean shouldYield() {
+        long deadline = deadlineNanos;
+        return deadline != Long.MAX_VALUE && System.nanoTime() - deadline >= 0;
+    }
+
+    /** Milliseconds left before work should yield, or Long.MAX_VALUE without a deadline. */
+    public static long remainingMillis() {
+        long deadline = deadlineNanos;
+        return deadline == Long.MAX_VALUE ? Long.MAX_VALUE : Math.max(0, (deadline - System.nanoTime()) / 1_000_000L);
+    }
+
+    /** ARN the current invocation was invoked with, i.e. where a continuation is sent. */
+    static String functionArn() {
+        return functionArn;
+    }
+}
@@ -0,0 +1,350 @@
+package com.s3fileprocesslambdalayer;
+
+import java.io.PrintStream;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Per-invocation metrics: a nanosecond histogram per record stage plus throughput counters, emitted once
+ * per invocation as a CloudWatch Embedded Metric Format (EMF) log line.
+ *
+ * <p>There is one instance per container, since Lambda runs one invocation at a time per container.
+ * Recording only touches preallocated atomic arrays, so it is allocation-free and safe from the
+ * concurrent record workers; only {@link #emit()} builds strings.
+ *
+ * <pre>
+ * InvocationMetrics.begin(context.getFunctionName());
+ * long start = System.nanoTime();
+ * ...
+ * InvocationMetrics.record(InvocationMetrics.Stage.PARSE, start);
+ * InvocationMetrics.add(InvocationMetrics.Counter.ROWS, rows);
+ * ...
+ * InvocationMetrics.emit();
+ * </pre>
+ */
+public final class InvocationMetrics {
+
+    /** Per-record stages, timed in nanoseconds. */
+    public enum Stage {
+        KEY_DECODE("KeyDecodeTime"),
+        SNIFF("SniffTime"),
+        HEAD("HeadTime"),
+        DOWNLOAD("DownloadTime"),
+        PARSE("ParseTime"),
+        UPLOAD("UploadTime"),
+        CLEANUP("CleanupTime"),
+        COLUMNAR_WRITE("ColumnarWriteTime"),
+        INDEX("IndexTime");
+
+        private final String metricName;
+
+        Stage(String metricName) {
+            this.metricName = metricName;
+        }
+
+        public String metricName() {
+            return metricName;
+        }
+    }
+
+    /** Per-invocation totals. */
+    public enum Counter {
+        BYTES_IN("BytesIn", "Bytes"),
+        BYTES_OUT("BytesOut", "Bytes"),
+        ROWS("Rows", "Count"),
+        PAGES("Pages", "Count"),
+        PIXELS("Pixels", "Count"),
+        DERIVATIVES("Derivatives", "Count"),
+        CACHE_HITS("CacheHits", "Count"),
+        CACHE_MISSES("CacheMisses", "Count"),
+        CACHE_BYTES_SAVED("CacheBytesSaved", "Bytes"),
+        CACHE_EVICTIONS("CacheEvictions", "Count"),
+        PREFETCHED("Prefetched", "Count"),
+        SHARDS("Shards", "Count"),
+        CHECKPOINTS("Checkpoints", "Count"),
+        CONTINUATIONS("Continuations", "Count"),
+        DECOMPRESSED_BYTES("DecompressedBytes", "Bytes"),
+        COLUMNAR_BYTES("ColumnarBytes", "Bytes"),
+        SELECTED_ROWS("SelectedRows", "Count"),
+        INDEX_BYTES("IndexBytes", "Bytes");
+
+        private final String metricName;
+        private final String unit;
+
+        Counter(String metricName, String unit) {
+            this.metricName = metricName;
+            this.unit = unit;
+        }
+
+        public String metricName() {
+            return metricName;
+        }
+
+        public String unit() {
+            return unit;
+        }
+    }
+
+    /**
+     * Log-linear histogram of non-negative longs: each power of two is split into {@value #SUB_BUCKETS}
+     * linear sub-buckets, so any recorded value is reported within 12.5% of its true value.
+     */
+    public static final class Histogram {
+        private static final int SUB_BITS = 2;
+        private static final int SUB_BUCKETS = 1 << SUB_BITS;
+        static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_BUCKETS;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        // count, sum, max
+        private final AtomicLongArray totals = new AtomicLongArray(3);
+
+        public void record(long value) {
+            long v = Math.max(0, value);
+            buckets.incrementAndGet(bucketOf(v));
+            totals.incrementAndGet(0);
+            totals.addAndGet(1, v);
+            long max;
+            while (v > (max = totals.get(2)) && !totals.compareAndSet(2, max, v)) {
+                // retry until this value is no longer the max or the CAS wins
+            }
+        }
+
+        public long count() {
+            return totals.get(0);
+        }
+
+        public long sum() {
+            return totals.get(1);
+        }
+
+        public long max() {
+            return totals.get(2);
+        }
+
+        /** Value at quantile {@code q} (0..1), reported as the midpoint of its bucket and capped at the max. */
+        public long quantile(double q) {
+            long count = count();
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(q * count));
+            long seen = 0;
+            for (int b = 0; b < BUCKETS; b++) {
+                seen += buckets.get(b);
+                if (seen >= rank) {
+                    return Math.min(max(), midpointOf(b));
+                }
+            }
+            return max();
+        }
+
+        /**
+         * Fills {@code values} with the midpoints of the non-empty buckets, capped at the max, and {@code counts}
+         * with their sample counts, in ascending order; returns how many were filled. Both arrays must have
+         * room for every bucket.
+         */
+        int buckets(long[] values, long[] counts) {
+            int n = 0;
+            for (int b = 0; b < BUCKETS; b++) {
+                long samples = buckets.get(b);
+                if (samples != 0) {
+                    values[n] = Math.min(max(), midpointOf(b));
+                    counts[n++] = samples;
+                }
+            }
+            return n;
+        }
+
+        /** Adds this histogram's samples to {@code target}, e.g. to aggregate invocations in a load test. */
+        public void addTo(Histogram target) {
+            for (int b = 0; b < BUCKETS; b++) {
+                long n = buckets.get(b);
+                if (n != 0) {
+                    target.buckets.addAndGet(b, n);
+                }
+            }
+            target.totals.addAndGet(0, count());
+            target.totals.addAndGet(1, sum());
+            long max;
+            while (max() > (max = target.totals.get(2)) && !target.totals.compareAndSet(2, max, max())) {
+                // retry until the target max is at least ours
+            }
+        }
+
+        public void reset() {
+            for (int b = 0; b < BUCKETS; b++) {
+                buckets.set(b, 0);
+            }
+            for (int i = 0; i < 3; i++) {
+                totals.set(i, 0);
+            }
+        }
+
+        private static int bucketOf(long v) {
+            if (v < SUB_BUCKETS) {
+                return (int) v;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(v);
+            int sub = (int) (v >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+            return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+        }
+
+        private static long midpointOf(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+            long width = 1L << (exponent - SUB_BITS);
+            long lower = (1L << exponent) + (bucket % SUB_BUCKETS) * width;
+            return lower + width / 2;
+        }
+    }
+
+    // CloudWatch accepts at most 100 values per metric in one EMF document
+    private static final int MAX_EMF_VALUES = 100;
+
+    private static final AtomicBoolean COLD = new AtomicBoolean(true);
+    private static final Histogram[] STAGES = new Histogram[Stage.values().length];
+    private static final AtomicLongArray COUNTERS = new AtomicLongArray(Counter.values().length);
+    // 1 for each counter added to this invocation, so untouched ones are left out of the EMF line
+    private static final AtomicLongArray TOUCHED = new AtomicLongArray(Counter.values().length);
+    private static volatile String functionName = LayerConfig.get("AWS_LAMBDA_FUNCTION_NAME", "local");
+    private static volatile boolean coldStart;
+
+    static {
+        for (int i = 0; i < STAGES.length; i++) {
+            STAGES[i] = new Histogram();
+        }
+    }
+
+    private InvocationMetrics() {
+    }
+
+    /** Resets all metrics at the start of an invocation; the first call in a container marks a cold start. */
+    public static void begin(String function) {
+        if (function != null) {
+            functionName = function;
+        }
+        coldStart = COLD.getAndSet(false);
+        for (Histogram histogram : STAGES) {
+            histogram.reset();
+        }
+        for (int i = 0; i < COUNTERS.length(); i++) {
+            COUNTERS.set(i, 0);
+            TOUCHED.set(i, 0);
+        }
+    }
+
+    /** Records the time elapsed since {@code startNanos}, a {@link System#nanoTime()} reading. */
+    public static void record(Stage stage, long startNanos) {
+        recordDuration(stage, System.nanoTime() - startNanos);
+    }
+
+    /** Records a duration measured by the caller, e.g. summed over the busy spells of a streaming writer. */
+    public static void recordDuration(Stage stage, long nanos) {
+        STAGES[stage.ordinal()].record(nanos);
+    }
+
+    public static void add(Counter counter, long delta) {
+        int i = counter.ordinal();
+        COUNTERS.addAndGet(i, delta);
+        if (TOUCHED.get(i) == 0) {
+            TOUCHED.set(i, 1);
+        }
+    }
+
+    public static Histogram histogram(Stage stage) {
+        return STAGES[stage.ordinal()];
+    }
+
+    public static long counter(Counter counter) {
+        return COUNTERS.get(counter.ordinal());
+    }
+
+    public static boolean isColdStart() {
+        return coldStart;
+    }
+
+    /** Writes the invocation's metrics to stdout as one EMF line, unless METRICS_ENABLED is false. */
+    public static void emit() {
+        if (LayerConfig.getBoolean("METRICS_ENABLED", true)) {
+            emit(System.out);
+        }
+    }
+
+    static void emit(PrintStream out) {
+        out.println(toEmf(System.currentTimeMillis()));
+    }
+
+    /**
+     * Builds the EMF document. Each stage is reported as its non-empty histogram buckets, as Values with
+     * matching Counts, so CloudWatch keeps the true sample count and close to the true sum. Only the counters
+     * this invocation added to are included, so a function does not publish zero series for work it never does.
+     */
+    static String toEmf(long timestampMillis) {
+        String namespace = LayerConfig.get("METRICS_NAMESPACE", "S3FileProcessor");
+        StringBuilder definitions = new StringBuilder();
+        StringBuilder values = new StringBuilder();
+
+        for (Stage stage : Stage.values()) {
+            Histogram histogram = STAGES[stage.ordinal()];
+            if (histogram.count() == 0) {
+                continue;
+            }
+            metricDefinition(definitions, stage.metricName(), "Milliseconds");
+            appendDistribution(values, stage.metricName(), histogram);
+        }
+        for (Counter counter : Counter.values()) {
+            if (TOUCHED.get(counter.ordinal()) == 0) {
+                continue;
+            }
+            metricDefinition(definitions, counter.metricName(), counter.unit());
+            values.append(",\"").append(counter.metricName()).append("\":").append(COUNTERS.get(counter.ordinal()));
+        }
+        long columnarNanos = STAGES[Stage.COLUMNAR_WRITE.ordinal()].sum();
+        if (columnarNanos > 0) {
+            metricDefinition(definitions, "ColumnarWriteThroughput", "Bytes/Second");
+            values.append(",\"ColumnarWriteThroughput\":")
+                    .append((long) (COUNTERS.get(Counter.COLUMNAR_BYTES.ordinal()) / (columnarNanos / 1e9)));
+        }
+        metricDefinition(definitions, "ColdStart", "Count");
+        values.append(",\"ColdStart\":").append(coldStart ? 1 : 0);
+
+        return "{\"_aws\":{\"Timestamp\":" + timestampMillis
+                + ",\"CloudWatchMetrics\":[{\"Namespace\":\"" + namespace + "\",\"Dimensions\":[[\"FunctionName\"]],\"Metrics\":["
+                + definitions + "]}]},\"FunctionName\":\"" + functionName + "\"" + values + "}";
+    }
+
+    private static void appendDistribution(StringBuilder values, String name, Histogram histogram) {
+        long[] bucketValues = new long[Histogram.BUCKETS];
+        long[] bucketCounts = new long[Histogram.BUCKETS];
+        int n = histogram.buckets(bucketValues, bucketCounts);
+        // Past the limit, neighbouring buckets are folded together at their weighted mean
+        int group = (n + MAX_EMF_VALUES - 1) / MAX_EMF_VALUES;
+        StringBuilder counts = new StringBuilder();
+        values.append(",\"").append(name).append("\":{\"Values\":[");
+        for (int i = 0; i < n; i += group) {
+            long samples = 0;
+            double total = 0;
+            for (int k = i; k < Math.min(n, i + group); k++) {
+                samples += bucketCounts[k];
+                total += (double) bucketValues[k] * bucketCounts[k];
+            }
+            values.append(i == 0 ? "" : ",").append(millis((long) (total / samples)));
+            counts.append(i == 0 ? "" : ",").append(samples);
+        }
+        values.append("],\"Counts\":[").append(counts).append("]}");
+    }
+
+    private static void metricDefinition(StringBuilder definitions, String name, String unit) {
+        if (definitions.length() > 0) {
+            definitions.append(',');
+        }
+        definitions.append("{\"Name\":\"").append(name).append("\",\"Unit\":\"").append(unit).append("\"}");
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+    }
+}
@@ -0,0 +1,44 @@
+package com.s3fileprocesslambdalayer;
+
+import java.util.logging.Logger;
+
+/**
+ * Reads tuning knobs for the shared layer. Values come from the Lambda environment first and
+ * fall back to JVM system properties of the same name, so local tooling can set them in-process.
+ */
+public final class LayerConfig {
+    private static final Logger logger = Logger.getLogger(LayerConfig.class.getName());
+
+    private LayerConfig() {
+    }
+
+    public static String get(String name, String defaultValue) {
+        String value = System.getenv(name);
+        if (value == null || value.isEmpty()) {
+            value = System.getProperty(name);
+        }
+        return value == null || value.isEmpty() ? defaultValue : value.trim();
+    }
+
+    public static int getInt(String name, int defaultValue) {
+        return (int) getLong(name, defaultValue);
+    }
+
+    public static long getLong(String name, long defaultValue) {
+        String value = get(name, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            logger.warning("Ignoring non-numeric value for " + name + ": " + value);
+            return defaultValue;
+        }
+    }
+
+    public static boolean getBoolean(String name, boolean defaultValue) {
+        String value = get(name, null);
+        return value == null ? defaultValue : Boolean.parseBoolean(value);
+    }
+}
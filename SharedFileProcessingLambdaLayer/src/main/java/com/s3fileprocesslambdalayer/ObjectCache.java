@@ -0,0 +1,202 @@
+package com.s3fileprocesslambdalayer;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Keeps downloaded objects in /tmp across invocations of a warm container, so a redelivered event or a
+ * reprocessing request for the same object version is served locally instead of with another GET.
+ *
+ * <p>Entries are keyed by bucket, key, versionId and ETag, so a new version of a key is never served
+ * from a stale copy. Files are evicted least-recently-used first once the byte budget is exceeded; a
+ * file handed out to a caller is pinned until {@link SharedLambdaLayer#cleanUpFile(Path)} releases it,
+ * and pinned files are never evicted.
+ *
+ * <p>A file is only admitted while the temp file store keeps OBJECT_CACHE_RESERVE_MB (default 256) usable
+ * after it, so the cache never takes the space the next download or a processor's scratch files need; LRU
+ * entries are evicted to get back above the reserve. OBJECT_CACHE_MAX_MB additionally caps the cached bytes.
+ * OBJECT_CACHE_ENABLED=false turns caching off.
+ */
+public final class ObjectCache {
+    private static final Logger logger = Logger.getLogger(ObjectCache.class.getName());
+    private static final ObjectCache SHARED = fromEnvironment();
+
+    private static final class Entry {
+        final String cacheKey;
+        final Path path;
+        final long size;
+        int pins;
+
+        Entry(String cacheKey, Path path, long size) {
+            this.cacheKey = cacheKey;
+            this.path = path;
+            this.size = size;
+        }
+    }
+
+    private final boolean enabled;
+    private final long budgetBytes;
+    private final Path directory;
+    private final long reserveBytes;
+    // Access-ordered: iteration starts at the least recently used entry
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<Path, Entry> byPath = new HashMap<>();
+    private long cachedBytes;
+    private long hits;
+    private long misses;
+    private long bytesSaved;
+    private long evictions;
+
+    ObjectCache(boolean enabled, long budgetBytes, Path directory, long reserveBytes) {
+        this.enabled = enabled && budgetBytes > 0;
+        this.budgetBytes = budgetBytes;
+        this.directory = directory;
+        this.reserveBytes = reserveBytes;
+    }
+
+    /** The container-wide cache used by the shared layer's download methods. */
+    public static ObjectCache shared() {
+        return SHARED;
+    }
+
+    static ObjectCache fromEnvironment() {
+        boolean enabled = LayerConfig.getBoolean("OBJECT_CACHE_ENABLED", true);
+        long budget = LayerConfig.getLong("OBJECT_CACHE_MAX_MB", -1) * 1024 * 1024;
+        long reserve = LayerConfig.getLong("OBJECT_CACHE_RESERVE_MB", 256) * 1024 * 1024;
+        logger.info("Object cache " + (!enabled || budget == 0 ? "disabled"
+                : "enabled, keeping " + reserve / (1024 * 1024) + " MB of /tmp free"
+                        + (budget > 0 ? ", at most " + budget / (1024 * 1024) + " MB" : "")));
+        return new ObjectCache(enabled, budget < 0 ? Long.MAX_VALUE : budget, Paths.get(SharedLambdaLayer.getTempDir()), reserve);
+    }
+
+    /** False when caching is off, so callers can skip the lookups that only serve the cache. */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /** Cache key for one immutable object version; a missing versionId (unversioned bucket) is keyed as "null". */
+    public static String keyOf(String bucket, String key, String versionId, String eTag) {
+        return bucket + "/" + key + "?versionId=" + versionId + "&etag=" + eTag;
+    }
+
+    /**
+     * Returns the cached file for {@code cacheKey}, pinned for the caller, or null on a miss.
+     * A hit whose file has disappeared from disk is dropped and reported as a miss.
+     */
+    public synchronized Path acquire(String cacheKey) {
+        if (!enabled) {
+            return null;
+        }
+        Entry entry = entries.get(cacheKey);
+        if (entry != null && !Files.exists(entry.path)) {
+            remove(entry);
+            entry = null;
+        }
+        if (entry == null) {
+            misses++;
+            InvocationMetrics.add(InvocationMetrics.Counter.CACHE_MISSES, 1);
+            return null;
+        }
+        entry.pins++;
+        hits++;
+        bytesSaved += entry.size;
+        InvocationMetrics.add(InvocationMetrics.Counter.CACHE_HITS, 1);
+        InvocationMetrics.add(InvocationMetrics.Counter.CACHE_BYTES_SAVED, entry.size);
+        logger.info("Object cache hit: " + cacheKey + " -> " + entry.path);
+        return entry.path;
+    }
+
+    /**
+     * Offers a freshly downloaded file to the cache and returns true if it was admitted (and pinned for the
+     * caller). Least recently used unpinned entries are evicted to make room; a file that cannot fit, or a
+     * version another record cached concurrently, is not admitted and stays owned by the caller.
+     */
+    public synchronized boolean admit(String cacheKey, Path path, long size) {
+        if (!enabled || size > budgetBytes || entries.containsKey(cacheKey)) {
+            return false;
+        }
+        Iterator<Entry> lru = entries.values().iterator();
+        while (!fits(size) && lru.hasNext()) {
+            Entry candidate = lru.next();
+            if (candidate.pins == 0) {
+                lru.remove();
+                byPath.remove(candidate.path);
+                cachedBytes -= candidate.size;
+                evictions++;
+                InvocationMetrics.add(InvocationMetrics.Counter.CACHE_EVICTIONS, 1);
+                deleteQuietly(candidate.path);
+                logger.fine("Evicted from object cache: " + candidate.cacheKey);
+            }
+        }
+        if (!fits(size)) {
+            return false;
+        }
+        Entry entry = new Entry(cacheKey, path, size);
+        entry.pins = 1;
+        entries.put(cacheKey, entry);
+        byPath.put(path, entry);
+        cachedBytes += size;
+        return true;
+    }
+
+    /**
+     * Unpins a file handed out by {@link #acquire} or {@link #admit}. Returns false if the file is not
+     * cached, in which case the caller still owns it and should delete it.
+     */
+    public synchronized boolean release(Path path) {
+        Entry entry = byPath.get(path);
+        if (entry == null) {
+            return false;
+        }
+        entry.pins = Math.max(0, entry.pins - 1);
+        return true;
+    }
+
+    /** Forgets all entries, e.g. after the temp directory has been emptied. */
+    public synchronized void clear() {
+        entries.clear();
+        byPath.clear();
+        cachedBytes = 0;
+    }
+
+    public synchronized String stats() {
+        long lookups = hits + misses;
+        return String.format("entries=%d bytes=%d hits=%d misses=%d hitRate=%.1f%% bytesSaved=%d evictions=%d",
+                entries.size(), cachedBytes, hits, misses, lookups == 0 ? 0.0 : 100.0 * hits / lookups,
+                bytesSaved, evictions);
+    }
+
+    /** Whether a file of {@code size}, already on disk, can be kept within the budget and above the reserve. */
+    private boolean fits(long size) {
+        if (cachedBytes + size > budgetBytes) {
+            return false;
+        }
+        try {
+            return Files.getFileStore(directory).getUsableSpace() >= reserveBytes;
+        } catch (IOException e) {
+            logger.warning("Cannot read the free space of " + directory + ", not caching: " + e.getMessage());
+            return false;
+        }
+    }
+
+    private void remove(Entry entry) {
+        entries.remove(entry.cacheKey);
+        byPath.remove(entry.path);
+        cachedBytes -= entry.size;
+    }
+
+    private static void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            logger.warning("Failed to delete evicted cache file " + path + ": " + e.getMessage());
+        }
+    }
+}
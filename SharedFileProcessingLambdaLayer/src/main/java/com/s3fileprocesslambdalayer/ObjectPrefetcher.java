@@ -0,0 +1,369 @@
+package com.s3fileprocesslambdalayer;
+
+import com.amazonaws.services.lambda.runtime.events.models.s3.S3EventNotification.S3EventNotificationRecord;
+
+import software.amazon.awssdk.core.async.AsyncResponseTransformer;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.logging.Logger;
+
+/**
+ * Downloads the objects of an event ahead of the records that need them, on the {@link S3AsyncClient}, so
+ * the network works on record N+1..N+K while record N is parsed. Opt in with ASYNC_PREFETCH=true; otherwise
+ * {@link #start} returns an inactive prefetcher and every download stays synchronous.
+ *
+ * <p>At most PREFETCH_DEPTH (default 2) objects are fetched ahead of the records being processed, and the
+ * objects fetched but not yet cleaned up may total at most PREFETCH_MAX_MB (default: a quarter of the
+ * function's memory). Downloads start in event order and wait while the budget is spent, so a slow consumer
+ * holds the network back instead of filling /tmp. An object larger than the whole budget is not prefetched.
+ *
+ * <p>{@link SharedLambdaLayer#downloadFileAsPath} claims the prefetched file for its key, and
+ * {@link SharedLambdaLayer#cleanUpFile} returns its bytes to the budget. A record that never downloads its
+ * object, because it was a duplicate, was skipped or read the object another way, gives its prefetch back
+ * when it is done, so processors need no changes beyond opening the prefetcher around their record loop:
+ *
+ * <pre>
+ * try (ObjectPrefetcher prefetcher = ObjectPrefetcher.start(event.getRecords())) {
+ *     outcomes = RecordBatchRunner.run(records, prefetcher.releasingUnclaimed(task), ...);
+ * }
+ * </pre>
+ */
+public final class ObjectPrefetcher implements AutoCloseable {
+    private static final Logger logger = Logger.getLogger(ObjectPrefetcher.class.getName());
+    private static final ObjectPrefetcher INACTIVE = new ObjectPrefetcher(null, Collections.emptyList(), 0, 0);
+    // A Lambda container runs one invocation at a time, so one prefetcher serves the whole container
+    private static volatile ObjectPrefetcher active;
+
+    private enum State { PENDING, FETCHING, CLAIMED, SYNCHRONOUS, DISCARDED }
+
+    /** One object of the event, in event order. */
+    private static final class Entry {
+        final String bucket;
+        final String key;
+        final long size;
+        State state = State.PENDING;
+        CompletableFuture<Fetched> future;
+
+        Entry(String bucket, String key, long size) {
+            this.bucket = bucket;
+            this.key = key;
+            this.size = size;
+        }
+    }
+
+    /** A finished prefetch; {@code cached} means the file is pinned in the {@link ObjectCache}. */
+    private static final class Fetched {
+        final Path path;
+        final String cacheKey;
+        final long contentLength;
+        final String eTag;
+        final boolean cached;
+
+        Fetched(Path path, String cacheKey, long contentLength, String eTag, boolean cached) {
+            this.path = path;
+            this.cacheKey = cacheKey;
+            this.contentLength = contentLength;
+            this.eTag = eTag;
+            this.cached = cached;
+        }
+    }
+
+    private final S3AsyncClient s3;
+    private final List<Entry> entries;
+    private final Map<String, ArrayDeque<Entry>> unclaimed = new HashMap<>();
+    // Records of each object not done yet, which may still claim a prefetch
+    private final Map<String, Integer> unfinished = new HashMap<>();
+    private final Map<Path, Entry> claimed = new HashMap<>();
+    private final Map<Entry, Boolean> reserved = new IdentityHashMap<>();
+    private final int depth;
+    private final long budgetBytes;
+    private int next;
+    private int ahead;
+    private long reservedBytes;
+
+    private ObjectPrefetcher(S3AsyncClient s3, List<Entry> entries, int depth, long budgetBytes) {
+        this.s3 = s3;
+        this.entries = entries;
+        this.depth = depth;
+        this.budgetBytes = budgetBytes;
+        for (Entry entry : entries) {
+            unclaimed.computeIfAbsent(entry.bucket + "/" + entry.key, k -> new ArrayDeque<>()).add(entry);
+            unfinished.merge(entry.bucket + "/" + entry.key, 1, Integer::sum);
+        }
+    }
+
+    /**
+     * Starts prefetching the objects of {@code records} if ASYNC_PREFETCH is true, and makes the prefetcher
+     * visible to the shared download helpers until it is closed.
+     */
+    public static ObjectPrefetcher start(List<S3EventNotificationRecord> records) {
+        if (!LayerConfig.getBoolean("ASYNC_PREFETCH", false) || records == null || records.isEmpty()) {
+            return INACTIVE;
+        }
+        List<Entry> entries = new ArrayList<>(records.size());
+        for (S3EventNotificationRecord record : records) {
+            entries.add(new Entry(record.getS3().getBucket().getName(), SharedLambdaLayer.objectKeyOf(record),
+                    record.getS3().getObject().getSizeAsLong() != null ? record.getS3().getObject().getSizeAsLong() : 0));
+        }
+        int depth = Math.max(1, LayerConfig.getInt("PREFETCH_DEPTH", 2));
+        long budgetMb = LayerConfig.getLong("PREFETCH_MAX_MB", LayerConfig.getLong("AWS_LAMBDA_FUNCTION_MEMORY_SIZE", 512) / 4);
+        ObjectPrefetcher prefetcher = new ObjectPrefetcher(SharedLambdaLayer.sharedS3AsyncClient(), entries, depth,
+                Math.max(1, budgetMb) * 1024 * 1024);
+        active = prefetcher;
+        prefetcher.fill();
+        return prefetcher;
+    }
+
+    /**
+     * Wraps a record task so that, once a record is done, a prefetch of its object that no remaining record
+     * of the event can claim is discarded and its slot and bytes go to the objects after it. Without this, a
+     * record that never downloads its object would hold its slot until the prefetcher is closed.
+     */
+    public RecordBatchRunner.RecordTask<S3EventNotificationRecord> releasingUnclaimed(
+            RecordBatchRunner.RecordTask<S3EventNotificationRecord> task) {
+        if (this == INACTIVE) {
+            return task;
+        }
+        return record -> {
+            try {
+                return task.process(record);
+            } finally {
+                finished(record.getS3().getBucket().getName(), SharedLambdaLayer.objectKeyOf(record));
+            }
+        };
+    }
+
+    /**
+     * Whether the next record for this object has a prefetch under way, i.e. reading it from a local file
+     * is cheaper than streaming it again.
+     */
+    public static boolean isPrefetching(String bucket, String key) {
+        ObjectPrefetcher prefetcher = active;
+        if (prefetcher == null) {
+            return false;
+        }
+        synchronized (prefetcher) {
+            ArrayDeque<Entry> queue = prefetcher.unclaimed.get(bucket + "/" + key);
+            return queue != null && !queue.isEmpty() && queue.peek().state == State.FETCHING;
+        }
+    }
+
+    /**
+     * Hands the prefetched file for this object to the caller, waiting for the download if it is still
+     * running, or returns null when the caller should download it itself (not part of the event, not
+     * started yet, over budget, or the prefetch failed). The wait is recorded as the download stage.
+     */
+    static SharedLambdaLayer.DownloadedObject claim(String bucket, String key) {
+        ObjectPrefetcher prefetcher = active;
+        return prefetcher != null ? prefetcher.claimEntry(bucket, key) : null;
+    }
+
+    /** Returns a claimed file's bytes to the budget; called when the file is cleaned up. */
+    static void released(Path path) {
+        ObjectPrefetcher prefetcher = active;
+        if (prefetcher != null) {
+            prefetcher.release(path);
+        }
+    }
+
+    private SharedLambdaLayer.DownloadedObject claimEntry(String bucket, String key) {
+        Entry entry;
+        synchronized (this) {
+            ArrayDeque<Entry> queue = unclaimed.get(bucket + "/" + key);
+            entry = queue != null ? queue.poll() : null;
+            if (entry == null) {
+                return null;
+            }
+            if (entry.state != State.FETCHING) {
+                // Not started in time: the caller downloads it, and the window moves past it
+                entry.state = State.SYNCHRONOUS;
+                fill();
+                return null;
+            }
+            entry.state = State.CLAIMED;
+            ahead--;
+            fill();
+        }
+
+        long start = System.nanoTime();
+        Fetched fetched;
+        try {
+            fetched = entry.future.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause() != null ? e.getCause() : e;
+            logger.warning("Prefetch of s3://" + bucket + "/" + key + " failed, downloading it again: " + cause.getMessage());
+            unreserve(entry);
+            return null;
+        }
+        InvocationMetrics.record(InvocationMetrics.Stage.DOWNLOAD, start);
+        InvocationMetrics.add(InvocationMetrics.Counter.PREFETCHED, 1);
+        if (!fetched.cached) {
+            InvocationMetrics.add(InvocationMetrics.Counter.BYTES_IN, fetched.contentLength);
+            ObjectCache.shared().admit(fetched.cacheKey, fetched.path, fetched.contentLength);
+        }
+        synchronized (this) {
+            claimed.put(fetched.path, entry);
+        }
+        logger.info(String.format("Prefetched s3://%s/%s ready after waiting %d ms", bucket, key, (System.nanoTime() - start) / 1_000_000));
+        return new SharedLambdaLayer.DownloadedObject(fetched.path, fetched.eTag);
+    }
+
+    /** Discards the prefetches of this object beyond what its unfinished records can still claim. */
+    private synchronized void finished(String bucket, String key) {
+        String id = bucket + "/" + key;
+        int remaining = unfinished.merge(id, -1, Integer::sum);
+        ArrayDeque<Entry> queue = unclaimed.get(id);
+        if (queue == null) {
+            return;
+        }
+        // The earliest entries are the furthest along, so the ones given up come from the back
+        while (queue.size() > Math.max(0, remaining)) {
+            Entry entry = queue.pollLast();
+            if (entry.state == State.FETCHING) {
+                ahead--;
+                logger.info("Discarding the unclaimed prefetch of s3://" + bucket + "/" + key);
+                discardWhenDone(entry);
+            }
+            entry.state = State.DISCARDED;
+        }
+        fill();
+    }
+
+    private synchronized void release(Path path) {
+        Entry entry = claimed.remove(path);
+        if (entry != null) {
+            unreserve(entry);
+        }
+    }
+
+    private synchronized void unreserve(Entry entry) {
+        if (reserved.remove(entry) != null) {
+            reservedBytes -= entry.size;
+            fill();
+        }
+    }
+
+    /** Starts downloads in event order while the depth and byte budget allow. */
+    private synchronized void fill() {
+        while (next < entries.size() && ahead < depth && this == active) {
+            Entry entry = entries.get(next);
+            if (entry.state != State.PENDING) {
+                next++;
+                continue;
+            }
+            if (entry.size > budgetBytes) {
+                logger.info("Not prefetching s3://" + entry.bucket + "/" + entry.key + ": " + entry.size + " bytes exceed the prefetch budget");
+                entry.state = State.SYNCHRONOUS;
+                next++;
+                continue;
+            }
+            if (reservedBytes + entry.size > budgetBytes) {
+                return;
+            }
+            reserved.put(entry, Boolean.TRUE);
+            reservedBytes += entry.size;
+            entry.state = State.FETCHING;
+            entry.future = fetch(entry);
+            ahead++;
+            next++;
+        }
+    }
+
+    /**
+     * HEADs the object to learn its exact version, serves it from the {@link ObjectCache} if that version is
+     * there, and otherwise GETs that version into a fresh /tmp file.
+     */
+    private CompletableFuture<Fetched> fetch(Entry entry) {
+        long headStart = System.nanoTime();
+        return s3.headObject(HeadObjectRequest.builder().bucket(entry.bucket).key(entry.key).build())
+                .thenCompose(head -> {
+                    InvocationMetrics.record(InvocationMetrics.Stage.HEAD, headStart);
+                    String cacheKey = ObjectCache.keyOf(entry.bucket, entry.key, head.versionId(), head.eTag());
+                    Path cached = ObjectCache.shared().acquire(cacheKey);
+                    if (cached != null) {
+                        return CompletableFuture.completedFuture(new Fetched(cached, cacheKey, head.contentLength(), head.eTag(), true));
+                    }
+                    Path localPath = SharedLambdaLayer.localPathFor(entry.key);
+                    GetObjectRequest request = GetObjectRequest.builder()
+                            .bucket(entry.bucket)
+                            .key(entry.key)
+                            .versionId(head.versionId())
+                            .build();
+                    return s3.getObject(request, AsyncResponseTransformer.toFile(localPath))
+                            .thenApply(response -> new Fetched(localPath, cacheKey, head.contentLength(), head.eTag(), false))
+                            .whenComplete((fetched, error) -> {
+                                if (error != null) {
+                                    deleteQuietly(localPath);
+                                }
+                            });
+                });
+    }
+
+    /**
+     * Stops prefetching. Downloads nobody claimed are discarded once they finish; claimed files stay with
+     * the records that claimed them.
+     */
+    @Override
+    public void close() {
+        if (this == INACTIVE) {
+            return;
+        }
+        List<Entry> orphans = new ArrayList<>();
+        synchronized (this) {
+            if (active == this) {
+                active = null;
+            }
+            for (ArrayDeque<Entry> queue : unclaimed.values()) {
+                for (Entry entry : queue) {
+                    if (entry.state == State.FETCHING) {
+                        orphans.add(entry);
+                    }
+                }
+            }
+            unclaimed.clear();
+            claimed.clear();
+        }
+        for (Entry entry : orphans) {
+            discardWhenDone(entry);
+        }
+        if (!orphans.isEmpty()) {
+            logger.info("Discarding " + orphans.size() + " unclaimed prefetch(es)");
+        }
+    }
+
+    /** Drops an entry's download once it finishes, and returns its bytes to the budget. */
+    private void discardWhenDone(Entry entry) {
+        entry.future.whenComplete((fetched, error) -> {
+            if (fetched != null) {
+                if (fetched.cached) {
+                    ObjectCache.shared().release(fetched.path);
+                } else {
+                    deleteQuietly(fetched.path);
+                }
+            }
+            unreserve(entry);
+        });
+    }
+
+    private static void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            logger.warning("Could not delete prefetched file " + path + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package com.s3fileprocesslambdalayer;
+
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+/**
+ * Downloads large objects as concurrent byte-range GETs written into one preallocated file.
+ * Every part is pinned to the ETag (and version, when present) returned by the HEAD, so a
+ * concurrent overwrite fails the download instead of producing a mixed file.
+ */
+public class RangedDownloader {
+    private static final Logger logger = Logger.getLogger(RangedDownloader.class.getName());
+
+    private static final long MB = 1024L * 1024L;
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+    private static final int PRECONDITION_FAILED = 412;
+
+    private final S3Client s3;
+    private final long partSize;
+    private final long threshold;
+    private final int concurrency;
+    private final int maxAttempts;
+
+    public RangedDownloader(S3Client s3, long partSize, long threshold, int concurrency, int maxAttempts) {
+        if (partSize <= 0 || concurrency <= 0 || maxAttempts <= 0) {
+            throw new IllegalArgumentException("partSize, concurrency and maxAttempts must be positive");
+        }
+        this.s3 = s3;
+        this.partSize = partSize;
+        this.threshold = threshold;
+        this.concurrency = concurrency;
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * Builds a downloader from DOWNLOAD_PART_SIZE_MB, DOWNLOAD_RANGED_THRESHOLD_MB,
+     * DOWNLOAD_CONCURRENCY and DOWNLOAD_PART_ATTEMPTS.
+     */
+    public static RangedDownloader fromEnvironment(S3Client s3) {
+        return new RangedDownloader(s3,
+                LayerConfig.getLong("DOWNLOAD_PART_SIZE_MB", 16) * MB,
+                LayerConfig.getLong("DOWNLOAD_RANGED_THRESHOLD_MB", 64) * MB,
+                LayerConfig.getInt("DOWNLOAD_CONCURRENCY", 8),
+                LayerConfig.getInt("DOWNLOAD_PART_ATTEMPTS", 3));
+    }
+
+    /**
+     * True when an object of this size should be fetched with ranged GETs.
+     */
+    public boolean shouldUseRanges(long contentLength) {
+        return contentLength >= threshold && contentLength > partSize;
+    }
+
+    /**
+     * Fetches the object described by {@code head} into {@code target}. The file is removed on failure.
+     */
+    public void download(String bucketName, String key, HeadObjectResponse head, Path target) throws IOException {
+        long size = head.contentLength();
+        int parts = (int) ((size + partSize - 1) / partSize);
+        int threads = Math.min(concurrency, parts);
+        logger.info(String.format("Ranged download of s3://%s/%s: %d bytes in %d parts over %d threads",
+                bucketName, key, size, parts, threads));
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        boolean completed = false;
+        try (RandomAccessFile file = new RandomAccessFile(target.toFile(), "rw")) {
+            file.setLength(size);
+            FileChannel channel = file.getChannel();
+
+            List<Future<?>> futures = new ArrayList<>(parts);
+            for (int part = 0; part < parts; part++) {
+                long start = part * partSize;
+                long end = Math.min(start + partSize, size) - 1;
+                futures.add(pool.submit(() -> {
+                    fetchPart(bucketName, key, head, channel, start, end);
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            completed = true;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException("Ranged download failed for " + key, cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Ranged download interrupted for " + key, e);
+        } finally {
+            pool.shutdownNow();
+            if (!completed) {
+                Files.deleteIfExists(target);
+            }
+        }
+    }
+
+    private void fetchPart(String bucketName, String key, HeadObjectResponse head, FileChannel channel,
+                           long start, long end) throws IOException {
+        GetObjectRequest.Builder request = GetObjectRequest.builder()
+                .bucket(bucketName)
+                .key(key)
+                .range("bytes=" + start + "-" + end)
+                .ifMatch(head.eTag());
+        if (head.versionId() != null) {
+            request.versionId(head.versionId());
+        }
+        GetObjectRequest partRequest = request.build();
+
+        for (int attempt = 1; ; attempt++) {
+            try (ResponseInputStream<GetObjectResponse> in = s3.getObject(partRequest)) {
+                long written = copyAt(in, channel, start);
+                if (written != end - start + 1) {
+                    throw new IOException(String.format("Short read for bytes %d-%d: got %d bytes", start, end, written));
+                }
+                return;
+            } catch (S3Exception e) {
+                if (e.statusCode() == PRECONDITION_FAILED) {
+                    throw new IOException("Object " + key + " changed during download (ETag " + head.eTag() + " no longer matches)", e);
+                }
+                retryOrThrow(key, start, end, attempt, e);
+            } catch (SdkException | IOException e) {
+                retryOrThrow(key, start, end, attempt, e);
+            }
+        }
+    }
+
+    private void retryOrThrow(String key, long start, long end, int attempt, Exception e) throws IOException {
+        if (attempt >= maxAttempts) {
+            throw new IOException(String.format("Giving up on bytes %d-%d of %s after %d attempts", start, end, key, attempt), e);
+        }
+        logger.warning(String.format("Retrying bytes %d-%d of %s (attempt %d): %s", start, end, key, attempt, e.getMessage()));
+        try {
+            Thread.sleep(100L << attempt);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while retrying part of " + key, ie);
+        }
+    }
+
+    private static long copyAt(InputStream in, FileChannel channel, long position) throws IOException {
+        byte[] chunk = new byte[COPY_BUFFER_SIZE];
+        ByteBuffer buffer = ByteBuffer.wrap(chunk);
+        long offset = position;
+        int read;
+        while ((read = in.read(chunk)) != -1) {
+            buffer.clear().limit(read);
+            while (buffer.hasRemaining()) {
+                offset += channel.write(buffer, offset);
+            }
+        }
+        return offset - position;
+    }
+}
@@ -0,0 +1,155 @@
+package com.s3fileprocesslambdalayer;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the per-record work of a handler, optionally several records at a time.
+ * Each record is isolated: an exception fails that record only. Outcomes are returned in
+ * record order, so handler summaries are exact and deterministic whatever the parallelism.
+ */
+public class RecordBatchRunner {
+    private static final Logger logger = Logger.getLogger(RecordBatchRunner.class.getName());
+
+    /** CONTINUED: the record was handed to a later invocation before the deadline; see {@link Continuations}. */
+    public enum Status { PROCESSED, SKIPPED, FAILED, CONTINUED }
+
+    /**
+     * Result of one record; {@code key} is the label that goes into the handler summary.
+     */
+    public static final class Outcome {
+        private final Status status;
+        private final String key;
+
+        private Outcome(Status status, String key) {
+            this.status = status;
+            this.key = key;
+        }
+
+        public static Outcome processed(String key) {
+            return new Outcome(Status.PROCESSED, key);
+        }
+
+        public static Outcome skipped(String key) {
+            return new Outcome(Status.SKIPPED, key);
+        }
+
+        public static Outcome failed(String key) {
+            return new Outcome(Status.FAILED, key);
+        }
+
+        public static Outcome continued(String key) {
+            return new Outcome(Status.CONTINUED, key);
+        }
+
+        public Status status() {
+            return status;
+        }
+
+        public String key() {
+            return key;
+        }
+    }
+
+    @FunctionalInterface
+    public interface RecordTask<T> {
+        Outcome process(T record) throws Exception;
+    }
+
+    private RecordBatchRunner() {
+    }
+
+    /**
+     * Processes the records with at most RECORD_PARALLELISM (default 1, i.e. sequential) in flight.
+     * {@code describe} labels a record whose task threw instead of returning an outcome.
+     */
+    public static <T> List<Outcome> run(List<T> records, RecordTask<T> task, Function<T, String> describe) {
+        int parallelism = Math.min(Math.max(1, LayerConfig.getInt("RECORD_PARALLELISM", 1)), records.size());
+        if (parallelism <= 1) {
+            List<Outcome> outcomes = new ArrayList<>(records.size());
+            for (T record : records) {
+                outcomes.add(runIsolated(record, task, describe));
+            }
+            return outcomes;
+        }
+
+        logger.info("Processing " + records.size() + " records with parallelism " + parallelism);
+        Semaphore permits = new Semaphore(parallelism);
+        ExecutorService executor = newExecutor(parallelism);
+        try {
+            List<Future<Outcome>> futures = new ArrayList<>(records.size());
+            for (T record : records) {
+                futures.add(executor.submit(() -> {
+                    permits.acquire();
+                    try {
+                        return runIsolated(record, task, describe);
+                    } finally {
+                        permits.release();
+                    }
+                }));
+            }
+
+            List<Outcome> outcomes = new ArrayList<>(records.size());
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    outcomes.add(futures.get(i).get());
+                } catch (ExecutionException e) {
+                    // Only an Error gets past runIsolated; without this it would fail the record without a trace
+                    logger.log(Level.SEVERE, "Record task failed for " + describe.apply(records.get(i)) + ": " + e.getCause(), e.getCause());
+                    outcomes.add(Outcome.failed(describe.apply(records.get(i))));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    outcomes.add(Outcome.failed(describe.apply(records.get(i))));
+                }
+            }
+            return outcomes;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Keys of the outcomes with the given status, in record order.
+     */
+    public static List<String> keysWith(List<Outcome> outcomes, Status status) {
+        List<String> keys = new ArrayList<>();
+        for (Outcome outcome : outcomes) {
+            if (outcome.status() == status) {
+                keys.add(outcome.key());
+            }
+        }
+        return keys;
+    }
+
+    private static <T> Outcome runIsolated(T record, RecordTask<T> task, Function<T, String> describe) {
+        try {
+            Outcome outcome = task.process(record);
+            return outcome != null ? outcome : Outcome.failed(describe.apply(record));
+        } catch (Exception e) {
+            logger.severe("Record task failed for " + describe.apply(record) + ": " + e.getMessage());
+            return Outcome.failed(describe.apply(record));
+        }
+    }
+
+    /**
+     * Virtual threads when the runtime has them (Java 21+), otherwise a fixed platform pool.
+     * The layer is compiled for Java 17, hence the reflective lookup.
+     */
+    private static ExecutorService newExecutor(int parallelism) {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newFixedThreadPool(parallelism);
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package com.s3fileprocesslambdalayer;
+
+import software.amazon.awssdk.core.ResponseBytes;
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+
+/**
+ * {@link DedupStore} shared by every container: one small marker object per processed object, in the object's
+ * own bucket under {@code <CHECKPOINT_PREFIX>dedup/}, named after a hash of the object id. Living with the
+ * checkpoints, markers are never taken for input and expire with them.
+ *
+ * <p>A marker is only replaced with a conditional PUT (If-Match on the ETag it was read with, If-None-Match
+ * for a new one), so two containers recording the same object at once cannot put an earlier event over a
+ * later one; the loser re-reads and tries again.
+ */
+public class S3DedupStore implements DedupStore {
+    private static final int MAX_ATTEMPTS = 5;
+    private static final String SEQUENCER = "sequencer";
+    private static final String VERSION_ID = "versionId";
+
+    private final S3Client s3;
+    private final String prefix;
+
+    public S3DedupStore(S3Client s3, String prefix) {
+        this.s3 = s3;
+        this.prefix = prefix;
+    }
+
+    /** A store under the checkpoint prefix, on the shared S3 client. */
+    public static S3DedupStore fromEnvironment() {
+        return new S3DedupStore(SharedLambdaLayer.sharedS3Client(), CheckpointStore.prefix() + "dedup/");
+    }
+
+    @Override
+    public ProcessedEvent latest(String objectId) throws IOException {
+        Marker marker = read(objectId);
+        return marker != null ? marker.event : null;
+    }
+
+    @Override
+    public boolean record(String objectId, ProcessedEvent event) throws IOException {
+        for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+            Marker current = read(objectId);
+            if (current != null && !EventDeduplicator.isLater(event, current.event)) {
+                return false;
+            }
+            try {
+                write(objectId, event, current != null ? current.eTag : null);
+                return true;
+            } catch (S3Exception e) {
+                // 412: the marker changed since it was read; 409: a concurrent conditional write won
+                if (e.statusCode() != 412 && e.statusCode() != 409) {
+                    throw new IOException("Could not record " + objectId + ": " + e.getMessage(), e);
+                }
+            } catch (SdkException e) {
+                throw new IOException("Could not record " + objectId + ": " + e.getMessage(), e);
+            }
+        }
+        throw new IOException("Gave up recording " + objectId + " after " + MAX_ATTEMPTS + " concurrent updates");
+    }
+
+    private static final class Marker {
+        final ProcessedEvent event;
+        final String eTag;
+
+        Marker(ProcessedEvent event, String eTag) {
+            this.event = event;
+            this.eTag = eTag;
+        }
+    }
+
+    private Marker read(String objectId) throws IOException {
+        ResponseBytes<GetObjectResponse> bytes;
+        try {
+            bytes = s3.getObjectAsBytes(GetObjectRequest.builder().bucket(bucketOf(objectId)).key(markerKey(objectId)).build());
+        } catch (NoSuchKeyException e) {
+            return null;
+        } catch (SdkException e) {
+            throw new IOException("Could not read the dedup marker of " + objectId + ": " + e.getMessage(), e);
+        }
+        Properties values = new Properties();
+        values.load(new StringReader(bytes.asUtf8String()));
+        return new Marker(new ProcessedEvent(values.getProperty(SEQUENCER), values.getProperty(VERSION_ID)), bytes.response().eTag());
+    }
+
+    private void write(String objectId, ProcessedEvent event, String eTag) throws IOException {
+        Properties values = new Properties();
+        if (event.sequencer() != null) {
+            values.setProperty(SEQUENCER, event.sequencer());
+        }
+        if (event.versionId() != null) {
+            values.setProperty(VERSION_ID, event.versionId());
+        }
+        StringWriter text = new StringWriter();
+        values.store(text, objectId);
+        s3.putObject(PutObjectRequest.builder().bucket(bucketOf(objectId)).key(markerKey(objectId))
+                        .contentType("text/plain; charset=utf-8")
+                        .overrideConfiguration(o -> o.putHeader(eTag != null ? "If-Match" : "If-None-Match", eTag != null ? eTag : "*"))
+                        .build(),
+                RequestBody.fromString(text.toString(), StandardCharsets.UTF_8));
+    }
+
+    private static String bucketOf(String objectId) {
+        return objectId.substring(0, objectId.indexOf('/'));
+    }
+
+    private String markerKey(String objectId) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(objectId.getBytes(StandardCharsets.UTF_8));
+            StringBuilder name = new StringBuilder(prefix);
+            for (int i = 0; i < 16; i++) {
+                name.append(String.format("%02x", digest[i]));
+            }
+            return name.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
@@ -0,0 +1,355 @@
+package com.s3fileprocesslambdalayer;
+
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompletedMultipartUpload;
+import software.amazon.awssdk.services.s3.model.CompletedPart;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.UploadPartRequest;
+import software.amazon.awssdk.services.s3.model.UploadPartResponse;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.logging.Logger;
+
+/**
+ * Writes an object of unknown length to S3 as it is produced. Bytes fill a fixed-size part buffer; each full
+ * buffer is uploaded as one multipart part on a background thread while the next one fills. Output that never
+ * fills a part is sent with a single PUT on {@link #close()}, which is also what completes a multipart upload.
+ *
+ * <p>At most {@code partsInFlight} parts upload at once, and a writer that gets ahead of them blocks until a
+ * buffer is free, so memory stays at (partsInFlight + 1) x partSize however large the object is. Buffers are
+ * pooled across streams of the same part size. If a part or the completion fails, or {@link #abort()} is
+ * called, the multipart upload is aborted so no orphaned parts are left behind (and billed).
+ *
+ * <p>A stream can also be suspended into a {@link Checkpoint} and resumed by a later invocation, which adds
+ * parts to the same multipart upload.
+ */
+public class S3MultipartOutputStream extends OutputStream {
+    private static final Logger logger = Logger.getLogger(S3MultipartOutputStream.class.getName());
+
+    /** S3's minimum size for every part but the last. */
+    public static final int MIN_PART_SIZE = 5 * 1024 * 1024;
+
+    private static final ConcurrentLinkedQueue<byte[]> idleBuffers = new ConcurrentLinkedQueue<>();
+    private static final int MAX_IDLE_BUFFERS = 8;
+
+    private final S3Client s3;
+    private final String bucketName;
+    private final String key;
+    private final String contentType;
+    private final int partSize;
+    private final int partsInFlight;
+    private final Semaphore buffers;
+    private final List<Future<CompletedPart>> parts = new ArrayList<>();
+    private ExecutorService uploader;
+    private byte[] buffer;
+    private int position;
+    private String uploadId;
+    private long bytesWritten;
+    private boolean closed;
+
+    public S3MultipartOutputStream(S3Client s3, String bucketName, String key, String contentType, int partSize, int partsInFlight) {
+        if (partSize < MIN_PART_SIZE) {
+            throw new IllegalArgumentException("Part size must be at least " + MIN_PART_SIZE + " bytes: " + partSize);
+        }
+        this.s3 = s3;
+        this.bucketName = bucketName;
+        this.key = key;
+        this.contentType = contentType;
+        this.partSize = partSize;
+        this.partsInFlight = Math.max(1, partsInFlight);
+        // One buffer filling plus one per part in flight
+        this.buffers = new Semaphore(this.partsInFlight + 1);
+    }
+
+    /**
+     * A stream with UPLOAD_PART_MB (default 8, at least 5) parts and UPLOAD_PARTS_IN_FLIGHT (default 4)
+     * concurrent part uploads.
+     */
+    public static S3MultipartOutputStream fromEnvironment(S3Client s3, String bucketName, String key, String contentType) {
+        int partSize = (int) Math.max(MIN_PART_SIZE, LayerConfig.getLong("UPLOAD_PART_MB", 8) * 1024 * 1024);
+        return new S3MultipartOutputStream(s3, bucketName, key, contentType, partSize,
+                LayerConfig.getInt("UPLOAD_PARTS_IN_FLIGHT", 4));
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureBuffer();
+        buffer[position++] = (byte) b;
+        bytesWritten++;
+        if (position == partSize) {
+            sendPart();
+        }
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        while (length > 0) {
+            ensureBuffer();
+            int chunk = Math.min(length, partSize - position);
+            System.arraycopy(bytes, offset, buffer, position, chunk);
+            position += chunk;
+            offset += chunk;
+            length -= chunk;
+            bytesWritten += chunk;
+            if (position == partSize) {
+                sendPart();
+            }
+        }
+    }
+
+    /**
+     * Uploads what is buffered and completes the object: a single PUT if no part was sent yet, otherwise
+     * the last part and the multipart completion. On failure the upload is aborted and the cause rethrown.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            if (uploadId == null) {
+                putSingle();
+            } else {
+                // A buffer is only held once bytes follow a full part
+                if (buffer != null && position > 0) {
+                    sendPart();
+                }
+                completeUpload();
+            }
+            closed = true;
+        } catch (IOException | RuntimeException e) {
+            abort();
+            throw e;
+        } finally {
+            releaseBuffer();
+            if (uploader != null) {
+                uploader.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Discards the output: aborts the multipart upload if one was started and makes {@link #close()} a no-op.
+     * Call it when the producer fails, so a partial object is never completed.
+     */
+    public void abort() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (Future<CompletedPart> part : parts) {
+            part.cancel(true);
+        }
+        if (uploadId != null) {
+            try {
+                s3.abortMultipartUpload(AbortMultipartUploadRequest.builder()
+                        .bucket(bucketName).key(key).uploadId(uploadId).build());
+                logger.warning("Aborted multipart upload of s3://" + bucketName + "/" + key);
+            } catch (RuntimeException e) {
+                // A bucket lifecycle rule for incomplete uploads is the backstop for this case
+                logger.severe("Could not abort multipart upload " + uploadId + " of " + key + ": " + e.getMessage());
+            }
+        }
+        releaseBuffer();
+        if (uploader != null) {
+            uploader.shutdownNow();
+        }
+    }
+
+    /**
+     * Stops writing without completing the object, so a later invocation can carry on with
+     * {@link #resume}: waits for the parts in flight, then records the upload and its parts in
+     * {@code checkpoint} under {@code name} and stores the buffered bytes that do not fill a part yet as the
+     * checkpoint's tail. The caller saves the checkpoint. On failure the upload is aborted.
+     */
+    public void suspend(CheckpointStore checkpoints, Checkpoint checkpoint, String name) throws IOException {
+        if (closed) {
+            throw new IOException("Stream to s3://" + bucketName + "/" + key + " is closed");
+        }
+        try {
+            StringBuilder completed = new StringBuilder();
+            for (Future<CompletedPart> part : parts) {
+                CompletedPart done = awaitPart(part);
+                completed.append(completed.length() > 0 ? "," : "").append(done.partNumber()).append(':').append(done.eTag());
+            }
+            checkpoint.set(name + ".uploadId", uploadId);
+            checkpoint.set(name + ".parts", completed.length() > 0 ? completed.toString() : null);
+            checkpoint.set(name + ".bytes", bytesWritten);
+            checkpoints.saveTail(checkpoint, buffer != null ? buffer : new byte[0], buffer != null ? position : 0);
+            closed = true;
+            logger.info(String.format("Suspended upload of s3://%s/%s after %d bytes in %d parts", bucketName, key, bytesWritten, parts.size()));
+        } catch (IOException | RuntimeException e) {
+            abort();
+            throw e;
+        } finally {
+            releaseBuffer();
+            if (uploader != null) {
+                uploader.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Carries on with an upload suspended under {@code name} in {@code checkpoint}, or starts a new one if
+     * there is none, with the same part settings as {@link #fromEnvironment}.
+     */
+    public static S3MultipartOutputStream resume(S3Client s3, CheckpointStore checkpoints, Checkpoint checkpoint, String name,
+                                                 String bucketName, String key, String contentType) throws IOException {
+        S3MultipartOutputStream stream = fromEnvironment(s3, bucketName, key, contentType);
+        if (checkpoint.get(name + ".bytes") == null) {
+            return stream;
+        }
+        stream.uploadId = checkpoint.get(name + ".uploadId");
+        String completed = checkpoint.get(name + ".parts");
+        if (completed != null) {
+            for (String part : completed.split(",")) {
+                int separator = part.indexOf(':');
+                stream.parts.add(CompletableFuture.completedFuture(CompletedPart.builder()
+                        .partNumber(Integer.parseInt(part.substring(0, separator))).eTag(part.substring(separator + 1)).build()));
+            }
+        }
+        byte[] tail = checkpoints.loadTail(checkpoint);
+        stream.write(tail, 0, tail.length);
+        stream.bytesWritten = checkpoint.getLong(name + ".bytes", 0);
+        logger.info(String.format("Resumed upload of s3://%s/%s at %d bytes", bucketName, key, stream.bytesWritten));
+        return stream;
+    }
+
+    /** Total bytes written so far. */
+    public long bytesWritten() {
+        return bytesWritten;
+    }
+
+    private void ensureBuffer() throws IOException {
+        if (closed) {
+            throw new IOException("Stream to s3://" + bucketName + "/" + key + " is closed");
+        }
+        if (buffer != null) {
+            return;
+        }
+        try {
+            buffers.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for a free part buffer");
+        }
+        byte[] pooled = idleBuffers.poll();
+        buffer = pooled != null && pooled.length == partSize ? pooled : new byte[partSize];
+        position = 0;
+    }
+
+    private void releaseBuffer() {
+        if (buffer != null) {
+            recycle(buffer);
+            buffer = null;
+        }
+    }
+
+    private void recycle(byte[] used) {
+        if (idleBuffers.size() < MAX_IDLE_BUFFERS) {
+            idleBuffers.offer(used);
+        }
+        buffers.release();
+    }
+
+    /** Hands the full (or final) buffer to the uploader; fails fast if an earlier part already failed. */
+    private void sendPart() throws IOException {
+        try {
+            checkFailedParts();
+        } catch (IOException e) {
+            abort();
+            throw e;
+        }
+        if (uploadId == null) {
+            uploadId = s3.createMultipartUpload(CreateMultipartUploadRequest.builder()
+                    .bucket(bucketName).key(key).contentType(contentType).build()).uploadId();
+            logger.info("Started multipart upload of s3://" + bucketName + "/" + key);
+        }
+        if (uploader == null) {
+            // A resumed upload has an upload ID but no uploader yet
+            uploader = Executors.newFixedThreadPool(partsInFlight, runnable -> {
+                Thread thread = new Thread(runnable, "s3-part-upload");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        byte[] part = buffer;
+        int length = position;
+        int partNumber = parts.size() + 1;
+        buffer = null;
+        position = 0;
+        parts.add(uploader.submit(() -> {
+            try {
+                long start = System.nanoTime();
+                UploadPartResponse response = s3.uploadPart(UploadPartRequest.builder()
+                                .bucket(bucketName).key(key).uploadId(uploadId)
+                                .partNumber(partNumber).contentLength((long) length).build(),
+                        RequestBody.fromContentProvider(() -> new ByteArrayInputStream(part, 0, length), length, contentType));
+                InvocationMetrics.record(InvocationMetrics.Stage.UPLOAD, start);
+                InvocationMetrics.add(InvocationMetrics.Counter.BYTES_OUT, length);
+                return CompletedPart.builder().partNumber(partNumber).eTag(response.eTag()).build();
+            } finally {
+                recycle(part);
+            }
+        }));
+    }
+
+    private void checkFailedParts() throws IOException {
+        for (Future<CompletedPart> part : parts) {
+            if (part.isDone()) {
+                awaitPart(part);
+            }
+        }
+    }
+
+    private CompletedPart awaitPart(Future<CompletedPart> part) throws IOException {
+        try {
+            return part.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for a part upload");
+        } catch (ExecutionException e) {
+            throw new IOException("Part upload to s3://" + bucketName + "/" + key + " failed: " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    private void completeUpload() throws IOException {
+        List<CompletedPart> completed = new ArrayList<>(parts.size());
+        for (Future<CompletedPart> part : parts) {
+            completed.add(awaitPart(part));
+        }
+        s3.completeMultipartUpload(CompleteMultipartUploadRequest.builder()
+                .bucket(bucketName).key(key).uploadId(uploadId)
+                .multipartUpload(CompletedMultipartUpload.builder().parts(completed).build())
+                .build());
+        logger.info(String.format("Uploaded s3://%s/%s (%d bytes in %d parts)", bucketName, key, bytesWritten, completed.size()));
+    }
+
+    private void putSingle() {
+        byte[] content = buffer;
+        int length = position;
+        long start = System.nanoTime();
+        s3.putObject(PutObjectRequest.builder().bucket(bucketName).key(key).contentType(contentType).build(),
+                length == 0 ? RequestBody.empty()
+                        : RequestBody.fromContentProvider(() -> new ByteArrayInputStream(content, 0, length), length, contentType));
+        InvocationMetrics.record(InvocationMetrics.Stage.UPLOAD, start);
+        InvocationMetrics.add(InvocationMetrics.Counter.BYTES_OUT, length);
+        logger.info("Uploaded s3://" + bucketName + "/" + key + " (" + length + " bytes)");
+    }
+}
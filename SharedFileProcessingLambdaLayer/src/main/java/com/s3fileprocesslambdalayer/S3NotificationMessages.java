@@ -0,0 +1,329 @@
+package com.s3fileprocesslambdalayer;
+
+import com.amazonaws.services.lambda.runtime.events.models.s3.S3EventNotification.RequestParametersEntity;
+import com.amazonaws.services.lambda.runtime.events.models.s3.S3EventNotification.ResponseElementsEntity;
+import com.amazonaws.services.lambda.runtime.events.models.s3.S3EventNotification.S3BucketEntity;
+import com.amazonaws.services.lambda.runtime.events.models.s3.S3EventNotification.S3Entity;
+import com.amazonaws.services.lambda.runtime.events.models.s3.S3EventNotification.S3EventNotificationRecord;
+import com.amazonaws.services.lambda.runtime.events.models.s3.S3EventNotification.S3ObjectEntity;
+import com.amazonaws.services.lambda.runtime.events.models.s3.S3EventNotification.UserIdentityEntity;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Turns the body of an SQS message carrying an S3 event notification back into the records a direct S3
+ * invocation would have delivered. Accepts the notification itself or one wrapped in an SNS envelope; the
+ * s3:TestEvent S3 sends when a queue is configured has no records. Keys stay URL-encoded, as in an S3Event.
+ * The layer has no JSON library, so a small parser for the notification's plain JSON is included, and
+ * {@link #toJson(List)} writes records back out in the same form.
+ */
+public final class S3NotificationMessages {
+
+    private S3NotificationMessages() {
+    }
+
+    /**
+     * The records of one message body, possibly none.
+     *
+     * @throws IllegalArgumentException if the body is not a JSON object
+     */
+    public static List<S3EventNotificationRecord> parse(String body) {
+        Map<String, Object> message = asObject(new JsonReader(body).readDocument());
+        if ("Notification".equals(message.get("Type")) && message.get("Message") instanceof String) {
+            // S3 -> SNS -> SQS: the notification is the SNS message text
+            return parse((String) message.get("Message"));
+        }
+        Object records = message.get("Records");
+        if (!(records instanceof List)) {
+            return Collections.emptyList();
+        }
+        List<S3EventNotificationRecord> parsed = new ArrayList<>();
+        for (Object record : (List<?>) records) {
+            parsed.add(toRecord(asObject(record)));
+        }
+        return parsed;
+    }
+
+    /**
+     * The notification JSON for these records, as S3 would send it and as {@link #parse(String)} reads it.
+     * Only the fields the handlers use are written.
+     */
+    public static String toJson(List<S3EventNotificationRecord> records) {
+        StringBuilder json = new StringBuilder("{\"Records\":[");
+        for (int i = 0; i < records.size(); i++) {
+            S3EventNotificationRecord record = records.get(i);
+            S3ObjectEntity object = record.getS3().getObject();
+            String bucket = record.getS3().getBucket().getName();
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("{\"eventVersion\":\"2.1\",\"eventSource\":\"aws:s3\",\"awsRegion\":").append(quote(record.getAwsRegion()))
+                    .append(",\"eventName\":").append(quote(record.getEventName()))
+                    .append(",\"s3\":{\"s3SchemaVersion\":\"1.0\"")
+                    .append(",\"bucket\":{\"name\":").append(quote(bucket))
+                    .append(",\"arn\":").append(quote("arn:aws:s3:::" + bucket)).append('}')
+                    .append(",\"object\":{\"key\":").append(quote(object.getKey()))
+                    .append(",\"size\":").append(object.getSizeAsLong())
+                    .append(",\"eTag\":").append(quote(object.geteTag()))
+                    .append(",\"versionId\":").append(quote(object.getVersionId()))
+                    .append(",\"sequencer\":").append(quote(object.getSequencer())).append("}}}");
+        }
+        return json.append("]}").toString();
+    }
+
+    /** A JSON string literal, or null. */
+    public static String quote(String value) {
+        if (value == null) {
+            return "null";
+        }
+        StringBuilder quoted = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < 0x20) {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    private static S3EventNotificationRecord toRecord(Map<String, Object> record) {
+        Map<String, Object> s3 = asObject(record.get("s3"));
+        Map<String, Object> bucket = asObject(s3.get("bucket"));
+        Map<String, Object> object = asObject(s3.get("object"));
+        Object size = object.get("size");
+        S3ObjectEntity objectEntity = new S3ObjectEntity(string(object, "key"),
+                size instanceof Number ? ((Number) size).longValue() : null,
+                string(object, "eTag"), string(object, "versionId"), string(object, "sequencer"));
+        UserIdentityEntity owner = new UserIdentityEntity(string(asObject(bucket.get("ownerIdentity")), "principalId"));
+        S3BucketEntity bucketEntity = new S3BucketEntity(string(bucket, "name"), owner, string(bucket, "arn"));
+        S3Entity s3Entity = new S3Entity(string(s3, "configurationId"), bucketEntity, objectEntity, string(s3, "s3SchemaVersion"));
+        Map<String, Object> response = asObject(record.get("responseElements"));
+        return new S3EventNotificationRecord(string(record, "awsRegion"), string(record, "eventName"),
+                string(record, "eventSource"), string(record, "eventTime"), string(record, "eventVersion"),
+                new RequestParametersEntity(string(asObject(record.get("requestParameters")), "sourceIPAddress")),
+                new ResponseElementsEntity(string(response, "x-amz-id-2"), string(response, "x-amz-request-id")),
+                s3Entity, new UserIdentityEntity(string(asObject(record.get("userIdentity")), "principalId")));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> asObject(Object value) {
+        if (value == null) {
+            return Collections.emptyMap();
+        }
+        if (!(value instanceof Map)) {
+            throw new IllegalArgumentException("Expected a JSON object but found " + value.getClass().getSimpleName());
+        }
+        return (Map<String, Object>) value;
+    }
+
+    private static String string(Map<String, Object> object, String name) {
+        Object value = object.get(name);
+        return value != null ? value.toString() : null;
+    }
+
+    /** Recursive-descent reader for RFC 8259 JSON; numbers become Long or Double. */
+    private static final class JsonReader {
+        private final String text;
+        private int pos;
+
+        JsonReader(String text) {
+            if (text == null) {
+                throw new IllegalArgumentException("Empty message body");
+            }
+            this.text = text;
+        }
+
+        Object readDocument() {
+            Object value = readValue();
+            skipWhitespace();
+            if (pos != text.length()) {
+                throw error("Unexpected trailing content");
+            }
+            return value;
+        }
+
+        private Object readValue() {
+            skipWhitespace();
+            if (pos >= text.length()) {
+                throw error("Unexpected end of input");
+            }
+            char c = text.charAt(pos);
+            switch (c) {
+                case '{':
+                    return readObject();
+                case '[':
+                    return readArray();
+                case '"':
+                    return readString();
+                case 't':
+                    return readLiteral("true", Boolean.TRUE);
+                case 'f':
+                    return readLiteral("false", Boolean.FALSE);
+                case 'n':
+                    return readLiteral("null", null);
+                default:
+                    if (c == '-' || (c >= '0' && c <= '9')) {
+                        return readNumber();
+                    }
+                    throw error("Unexpected character '" + c + "'");
+            }
+        }
+
+        private Map<String, Object> readObject() {
+            Map<String, Object> object = new LinkedHashMap<>();
+            pos++;
+            skipWhitespace();
+            if (peek() == '}') {
+                pos++;
+                return object;
+            }
+            while (true) {
+                skipWhitespace();
+                if (peek() != '"') {
+                    throw error("Expected a member name");
+                }
+                String name = readString();
+                skipWhitespace();
+                expect(':');
+                object.put(name, readValue());
+                skipWhitespace();
+                char c = next();
+                if (c == '}') {
+                    return object;
+                }
+                if (c != ',') {
+                    throw error("Expected ',' or '}'");
+                }
+            }
+        }
+
+        private List<Object> readArray() {
+            List<Object> array = new ArrayList<>();
+            pos++;
+            skipWhitespace();
+            if (peek() == ']') {
+                pos++;
+                return array;
+            }
+            while (true) {
+                array.add(readValue());
+                skipWhitespace();
+                char c = next();
+                if (c == ']') {
+                    return array;
+                }
+                if (c != ',') {
+                    throw error("Expected ',' or ']'");
+                }
+            }
+        }
+
+        private String readString() {
+            pos++;
+            StringBuilder value = new StringBuilder();
+            while (true) {
+                char c = next();
+                if (c == '"') {
+                    return value.toString();
+                }
+                if (c != '\\') {
+                    value.append(c);
+                    continue;
+                }
+                char escape = next();
+                switch (escape) {
+                    case 'b':
+                        value.append('\b');
+                        break;
+                    case 'f':
+                        value.append('\f');
+                        break;
+                    case 'n':
+                        value.append('\n');
+                        break;
+                    case 'r':
+                        value.append('\r');
+                        break;
+                    case 't':
+                        value.append('\t');
+                        break;
+                    case 'u':
+                        if (pos + 4 > text.length()) {
+                            throw error("Truncated \\u escape");
+                        }
+                        value.append((char) Integer.parseInt(text.substring(pos, pos + 4), 16));
+                        pos += 4;
+                        break;
+                    default:
+                        // \" \\ \/
+                        value.append(escape);
+                }
+            }
+        }
+
+        private Object readNumber() {
+            int start = pos;
+            boolean integral = true;
+            while (pos < text.length()) {
+                char c = text.charAt(pos);
+                if (c == '.' || c == 'e' || c == 'E') {
+                    integral = false;
+                } else if (!(c == '-' || c == '+' || (c >= '0' && c <= '9'))) {
+                    break;
+                }
+                pos++;
+            }
+            String number = text.substring(start, pos);
+            try {
+                return integral ? (Object) Long.parseLong(number) : (Object) Double.parseDouble(number);
+            } catch (NumberFormatException e) {
+                throw error("Malformed number " + number);
+            }
+        }
+
+        private Object readLiteral(String literal, Object value) {
+            if (!text.startsWith(literal, pos)) {
+                throw error("Unexpected token");
+            }
+            pos += literal.length();
+            return value;
+        }
+
+        private void skipWhitespace() {
+            while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+                pos++;
+            }
+        }
+
+        private char peek() {
+            if (pos >= text.length()) {
+                throw error("Unexpected end of input");
+            }
+            return text.charAt(pos);
+        }
+
+        private char next() {
+            char c = peek();
+            pos++;
+            return c;
+        }
+
+        private void expect(char expected) {
+            if (next() != expected) {
+                throw error("Expected '" + expected + "'");
+            }
+        }
+
+        private IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(message + " at offset " + pos + " of the message body");
+        }
+    }
+}
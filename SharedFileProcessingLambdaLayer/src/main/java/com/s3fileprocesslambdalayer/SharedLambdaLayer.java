@@ -1,31 +1,118 @@
 package com.s3fileprocesslambdalayer;
 
+import com.amazonaws.services.lambda.runtime.events.models.s3.S3EventNotification.S3EventNotificationRecord;
 import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.http.nio.netty.NettyNioAsyncHttpClient;
+import software.amazon.awssdk.http.urlconnection.UrlConnectionHttpClient;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.S3AsyncClientBuilder;
 import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.S3ClientBuilder;
 import software.amazon.awssdk.services.s3.model.GetObjectRequest;
 import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.HeadBucketRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
 import software.amazon.awssdk.services.s3.model.S3Exception;
 
 import java.io.File;
 import java.io.IOException;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 import java.util.stream.Stream;
 
 public class SharedLambdaLayer {
     private static final Logger logger = Logger.getLogger(SharedLambdaLayer.class.getName());
+    private static final AtomicLong DOWNLOAD_SEQUENCE = new AtomicLong();
+    private static volatile S3Client sharedClient;
+    private static volatile S3AsyncClient sharedAsyncClient;
+
+    /**
+     * The container-wide S3 client, built on first use. Building it also registers a {@link StartupPriming}
+     * primer that sends one HEAD Bucket for BUCKET_NAME, so request marshalling, signing and the HTTP stack
+     * are loaded before the first record (PRIME_S3_REQUEST=false skips the request).
+     */
+    public static S3Client sharedS3Client() {
+        S3Client client = sharedClient;
+        if (client == null) {
+            synchronized (SharedLambdaLayer.class) {
+                client = sharedClient;
+                if (client == null) {
+                    client = buildS3Client();
+                    sharedClient = client;
+                    S3Client primed = client;
+                    StartupPriming.register("s3", () -> {
+                        String bucket = LayerConfig.get("BUCKET_NAME", null);
+                        if (bucket != null && LayerConfig.getBoolean("PRIME_S3_REQUEST", true)) {
+                            primed.headBucket(HeadBucketRequest.builder().bucket(bucket).build());
+                        }
+                    });
+                }
+            }
+        }
+        return client;
+    }
+
+    /**
+     * Builds an S3 client. It uses the lightweight URLConnection HTTP client explicitly, rather than
+     * letting the SDK scan the class path for an implementation, which is slower to initialise. Setting
+     * S3_ENDPOINT_URL points it, path-style, at an S3-compatible endpoint such as the local stand-in used
+     * by the load harness.
+     */
+    public static S3Client buildS3Client() {
+        S3ClientBuilder builder = S3Client.builder()
+                .httpClientBuilder(UrlConnectionHttpClient.builder());
+        String endpoint = LayerConfig.get("S3_ENDPOINT_URL", null);
+        if (endpoint != null) {
+            logger.info("Using S3 endpoint override: " + endpoint);
+            builder.endpointOverride(URI.create(endpoint)).forcePathStyle(true);
+        }
+        return builder.build();
+    }
+
+    /**
+     * The container-wide asynchronous S3 client used by {@link ObjectPrefetcher}, built on first use so
+     * functions that never opt in to prefetching don't load the Netty HTTP stack. It honours
+     * S3_ENDPOINT_URL like {@link #buildS3Client()}.
+     */
+    public static S3AsyncClient sharedS3AsyncClient() {
+        S3AsyncClient client = sharedAsyncClient;
+        if (client == null) {
+            synchronized (SharedLambdaLayer.class) {
+                client = sharedAsyncClient;
+                if (client == null) {
+                    S3AsyncClientBuilder builder = S3AsyncClient.builder()
+                            .httpClientBuilder(NettyNioAsyncHttpClient.builder()
+                                    .maxConcurrency(Math.max(4, 2 * LayerConfig.getInt("PREFETCH_DEPTH", 2))));
+                    String endpoint = LayerConfig.get("S3_ENDPOINT_URL", null);
+                    if (endpoint != null) {
+                        builder.endpointOverride(URI.create(endpoint)).forcePathStyle(true);
+                    }
+                    client = builder.build();
+                    sharedAsyncClient = client;
+                }
+            }
+        }
+        return client;
+    }
 
     /**
      * Downloads a file from S3 to the /tmp directory and returns its local File reference.
+     * Objects above the ranged-download threshold are fetched as parallel byte ranges, and
+     * versions already in the {@link ObjectCache} are not downloaded again.
      */
     public static File downloadFile(S3Client s3, String bucketName, String key) {
         try {
-            String filePath = getTempDir() + "/" + Paths.get(key).getFileName();
-            File localFile = new File(filePath);
-            s3.getObject(GetObjectRequest.builder().bucket(bucketName).key(key).build(), localFile.toPath());
-            logger.info("Downloaded to: " + filePath);
+            File localFile = downloadFileAsPath(s3, bucketName, key).toFile();
+            logger.info("Downloaded to: " + localFile.getPath());
             return localFile;
         } catch (Exception e) {
             logger.severe("Error downloading file: " + e.getMessage());
@@ -35,33 +122,214 @@ public class SharedLambdaLayer {
 
     /**
      * Downloads a file using stream and returns its Path. Useful for larger files.
+     * Objects above the ranged-download threshold are fetched as parallel byte ranges.
+     * With the {@link ObjectCache} on, a HEAD identifies the exact version, so a version already in the
+     * cache is returned without a GET; with it off there is no HEAD. A file an active {@link ObjectPrefetcher}
+     * already fetched is handed over instead. Either way, pass the path to {@link #cleanUpFile(Path)} when done.
      */
     public static Path downloadFileAsPath(S3Client s3, String bucketName, String key) throws IOException, S3Exception {
-        Path localPath = Paths.get(getTempDir(), Paths.get(key).getFileName().toString());
-        logger.info("Downloading via stream to: " + localPath);
+        return downloadObject(s3, bucketName, key).path();
+    }
+
+    /** A downloaded object: the local file and the ETag of the version it holds. */
+    public static final class DownloadedObject {
+        private final Path path;
+        private final String eTag;
+
+        DownloadedObject(Path path, String eTag) {
+            this.path = path;
+            this.eTag = eTag;
+        }
+
+        public Path path() {
+            return path;
+        }
+
+        public String eTag() {
+            return eTag;
+        }
+    }
+
+    /**
+     * Downloads like {@link #downloadFileAsPath} and also returns the ETag of the version on disk, taken
+     * from the response the download already had, so callers that need it do not send their own HEAD.
+     */
+    public static DownloadedObject downloadObject(S3Client s3, String bucketName, String key) throws IOException, S3Exception {
+        DownloadedObject prefetched = ObjectPrefetcher.claim(bucketName, key);
+        if (prefetched != null) {
+            return prefetched;
+        }
+        if (!ObjectCache.shared().isEnabled()) {
+            return downloadUncached(s3, bucketName, key);
+        }
+        HeadObjectResponse head = headObject(s3, bucketName, key);
+        String cacheKey = ObjectCache.keyOf(bucketName, key, head.versionId(), head.eTag());
+        Path cached = ObjectCache.shared().acquire(cacheKey);
+        if (cached != null) {
+            return new DownloadedObject(cached, head.eTag());
+        }
+
+        Path localPath = localPathFor(key);
+        long start = System.nanoTime();
+        RangedDownloader ranged = RangedDownloader.fromEnvironment(s3);
+        if (ranged.shouldUseRanges(head.contentLength())) {
+            ranged.download(bucketName, key, head, localPath);
+        } else {
+            logger.info("Downloading via stream to: " + localPath);
+
+            // Pin the GET to the version the HEAD saw, so the cache key matches the bytes on disk
+            GetObjectRequest request = GetObjectRequest.builder()
+                    .bucket(bucketName)
+                    .key(key)
+                    .versionId(head.versionId())
+                    .build();
+
+            try (ResponseInputStream<GetObjectResponse> s3Object = s3.getObject(request)) {
+                Files.copy(s3Object, localPath);
+            }
+        }
+        InvocationMetrics.record(InvocationMetrics.Stage.DOWNLOAD, start);
+        InvocationMetrics.add(InvocationMetrics.Counter.BYTES_IN, head.contentLength());
+        ObjectCache.shared().admit(cacheKey, localPath, head.contentLength());
+        return new DownloadedObject(localPath, head.eTag());
+    }
+
+    /**
+     * Downloads without a HEAD: the GET's own response says how large the object is, and one above the
+     * ranged-download threshold is abandoned after its headers and fetched as byte ranges of that version.
+     */
+    private static DownloadedObject downloadUncached(S3Client s3, String bucketName, String key) throws IOException {
+        Path localPath = localPathFor(key);
+        long start = System.nanoTime();
+        RangedDownloader ranged = RangedDownloader.fromEnvironment(s3);
+        long size;
+        String eTag;
+        try (ResponseInputStream<GetObjectResponse> s3Object = s3.getObject(GetObjectRequest.builder()
+                .bucket(bucketName).key(key).build())) {
+            GetObjectResponse response = s3Object.response();
+            size = response.contentLength();
+            eTag = response.eTag();
+            if (ranged.shouldUseRanges(size)) {
+                s3Object.abort();
+                ranged.download(bucketName, key, HeadObjectResponse.builder()
+                        .contentLength(size).eTag(response.eTag()).versionId(response.versionId()).build(), localPath);
+            } else {
+                logger.info("Downloading via stream to: " + localPath);
+                Files.copy(s3Object, localPath);
+            }
+        }
+        InvocationMetrics.record(InvocationMetrics.Stage.DOWNLOAD, start);
+        InvocationMetrics.add(InvocationMetrics.Counter.BYTES_IN, size);
+        return new DownloadedObject(localPath, eTag);
+    }
 
+    /**
+     * Opens the object as a stream straight from S3, without staging it in /tmp.
+     * The caller owns the returned stream and must close it. Use this whenever the
+     * processor reads the content sequentially; only use the download methods when
+     * random access to a local file is really needed. Only the time to the response
+     * headers is recorded as the download stage; the caller counts the bytes it reads.
+     */
+    public static ResponseInputStream<GetObjectResponse> openObjectStream(S3Client s3, String bucketName, String key) throws S3Exception {
         GetObjectRequest request = GetObjectRequest.builder()
                 .bucket(bucketName)
                 .key(key)
                 .build();
 
-        try (ResponseInputStream<GetObjectResponse> s3Object = s3.getObject(request)) {
-            Files.copy(s3Object, localPath);
-            return localPath;
+        long start = System.nanoTime();
+        ResponseInputStream<GetObjectResponse> s3Object = s3.getObject(request);
+        InvocationMetrics.record(InvocationMetrics.Stage.DOWNLOAD, start);
+        logger.info("Streaming s3://" + bucketName + "/" + key + " (" + s3Object.response().contentLength() + " bytes)");
+        return s3Object;
+    }
+
+    /**
+     * Opens bytes [start, end) of the object version described by {@code head} as a stream. The GET is pinned
+     * to the HEAD's ETag (and version), so an object overwritten between ranged reads fails with a 412
+     * instead of mixing two versions. The caller owns the stream; abort it to stop reading early.
+     */
+    public static ResponseInputStream<GetObjectResponse> openObjectRange(S3Client s3, String bucketName, String key,
+                                                                         HeadObjectResponse head, long start, long end) throws S3Exception {
+        GetObjectRequest.Builder request = GetObjectRequest.builder()
+                .bucket(bucketName)
+                .key(key)
+                .range("bytes=" + start + "-" + (end - 1))
+                .ifMatch(head.eTag());
+        if (head.versionId() != null) {
+            request.versionId(head.versionId());
         }
+
+        long begin = System.nanoTime();
+        ResponseInputStream<GetObjectResponse> s3Object = s3.getObject(request.build());
+        InvocationMetrics.record(InvocationMetrics.Stage.DOWNLOAD, begin);
+        return s3Object;
     }
 
     /**
-     * Deletes a single file in /tmp.
+     * Uploads an in-memory object, such as a generated derivative, and counts it as bytes out.
+     */
+    public static void uploadBytes(S3Client s3, String bucketName, String key, byte[] content, String contentType) throws S3Exception {
+        PutObjectRequest request = PutObjectRequest.builder()
+                .bucket(bucketName)
+                .key(key)
+                .contentType(contentType)
+                .build();
+
+        long start = System.nanoTime();
+        s3.putObject(request, RequestBody.fromBytes(content));
+        InvocationMetrics.record(InvocationMetrics.Stage.UPLOAD, start);
+        InvocationMetrics.add(InvocationMetrics.Counter.BYTES_OUT, content.length);
+        logger.info("Uploaded s3://" + bucketName + "/" + key + " (" + content.length + " bytes)");
+    }
+
+    /**
+     * Opens a streaming upload for output of unknown size, such as extracted text. It is buffered in
+     * UPLOAD_PART_MB parts and sent as a multipart upload, or as one PUT if it stays below one part; closing
+     * the stream completes the object. Call {@link S3MultipartOutputStream#abort()} instead of closing it
+     * when the output is incomplete.
+     */
+    public static S3MultipartOutputStream openUploadStream(S3Client s3, String bucketName, String key, String contentType) {
+        return S3MultipartOutputStream.fromEnvironment(s3, bucketName, key, contentType);
+    }
+
+    /**
+     * Returns the peak resident set size of this process in KB (VmHWM), or -1 when it is not available.
+     */
+    public static long peakRssKb() {
+        Path status = Paths.get("/proc/self/status");
+        if (!Files.isReadable(status)) {
+            return -1;
+        }
+        try (Stream<String> lines = Files.lines(status, StandardCharsets.US_ASCII)) {
+            return lines.filter(line -> line.startsWith("VmHWM:"))
+                    .map(line -> line.replaceAll("[^0-9]", ""))
+                    .mapToLong(Long::parseLong)
+                    .findFirst()
+                    .orElse(-1);
+        } catch (IOException | NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Deletes a single file in /tmp, or just releases it if the {@link ObjectCache} holds it.
      */
     public static void cleanUpFile(Path localPath) {
+        long start = System.nanoTime();
+        ObjectPrefetcher.released(localPath);
         try {
+            if (ObjectCache.shared().release(localPath)) {
+                logger.fine("Released cached file: " + localPath);
+                return;
+            }
             boolean deleted = Files.deleteIfExists(localPath);
             if (deleted) {
                 logger.info("Deleted: " + localPath);
             }
         } catch (IOException e) {
             logger.warning("Cleanup failed for: " + localPath + ", reason: " + e.getMessage());
+        } finally {
+            InvocationMetrics.record(InvocationMetrics.Stage.CLEANUP, start);
         }
     }
 
@@ -81,10 +349,39 @@ public class SharedLambdaLayer {
         } catch (IOException e) {
             logger.severe("Error cleaning up /tmp: " + e.getMessage());
         }
+        ObjectCache.shared().clear();
+
+    }
 
+    /** The record's object key, URL-decoded: S3 notifications encode it, e.g. a space as {@code +}. */
+    public static String objectKeyOf(S3EventNotificationRecord record) {
+        return URLDecoder.decode(record.getS3().getObject().getKey(), StandardCharsets.UTF_8);
     }
 
-    private static String getTempDir() {
-        return System.getenv("TEMP_DIR") != null ? System.getenv("TEMP_DIR") : "/tmp";
+    /**
+     * HEADs the object, recorded as the head stage. Pass the response to
+     * {@link #openObjectRange(S3Client, String, String, HeadObjectResponse, long, long)} to pin ranged reads to it.
+     */
+    public static HeadObjectResponse headObject(S3Client s3, String bucketName, String key) {
+        long start = System.nanoTime();
+        HeadObjectResponse head = s3.headObject(HeadObjectRequest.builder().bucket(bucketName).key(key).build());
+        InvocationMetrics.record(InvocationMetrics.Stage.HEAD, start);
+        return head;
+    }
+
+    /**
+     * Unique /tmp path for a download. The file name keeps the key's basename for readability but is
+     * prefixed with a per-container sequence number, so keys sharing a basename in different prefixes
+     * (or the same key delivered twice) never collide when records are processed concurrently.
+     */
+    static Path localPathFor(String key) {
+        return Paths.get(getTempDir(), DOWNLOAD_SEQUENCE.incrementAndGet() + "-" + Paths.get(key).getFileName());
+    }
+
+    /**
+     * The directory downloads and scratch files go to: TEMP_DIR, or /tmp.
+     */
+    public static String getTempDir() {
+        return LayerConfig.get("TEMP_DIR", "/tmp");
     }
 }
\ No newline at end of file
@@ -0,0 +1,79 @@
+package com.s3fileprocesslambdalayer;
+
+import com.amazonaws.services.lambda.runtime.events.SQSBatchResponse;
+import com.amazonaws.services.lambda.runtime.events.SQSEvent;
+import com.amazonaws.services.lambda.runtime.events.SQSEvent.SQSMessage;
+import com.amazonaws.services.lambda.runtime.events.models.s3.S3EventNotification.S3EventNotificationRecord;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * Runs the S3 records carried by an SQS batch through a handler's per-record task and reports partial batch
+ * failures. The records of all messages are processed together, with the usual RECORD_PARALLELISM and
+ * prefetching. A message is reported as failed, and so redelivered by SQS, only if one of its records
+ * failed or its body could not be parsed; skipped records (duplicates, stale events, unknown types) count
+ * as done, and so do continued ones, which a new invocation finishes. The event source mapping must enable
+ * ReportBatchItemFailures, or SQS retries the whole batch.
+ *
+ * <p>A continuation arrives as an asynchronous invocation carrying a batch that no queue delivered, so a
+ * failure report would reach nobody. If one of its records fails, the invocation throws instead, and
+ * Lambda retries it and finally sends it to the function's on-failure destination.
+ */
+public final class SqsBatchProcessor {
+    private static final Logger logger = Logger.getLogger(SqsBatchProcessor.class.getName());
+
+    private SqsBatchProcessor() {
+    }
+
+    public static SQSBatchResponse process(SQSEvent event, RecordBatchRunner.RecordTask<S3EventNotificationRecord> task) {
+        List<SQSBatchResponse.BatchItemFailure> failures = new ArrayList<>();
+        if (event == null || event.getRecords() == null || event.getRecords().isEmpty()) {
+            logger.warning("No messages found in the SQS event.");
+            return new SQSBatchResponse(failures);
+        }
+
+        List<S3EventNotificationRecord> records = new ArrayList<>();
+        List<String> messageOf = new ArrayList<>();
+        Set<String> failedMessages = new LinkedHashSet<>();
+        for (SQSMessage message : event.getRecords()) {
+            try {
+                for (S3EventNotificationRecord record : S3NotificationMessages.parse(message.getBody())) {
+                    records.add(record);
+                    messageOf.add(message.getMessageId());
+                }
+            } catch (IllegalArgumentException e) {
+                // Redelivery won't fix it, but reporting it lets the redrive policy move it to the dead-letter queue
+                logger.severe("Unreadable S3 notification in message " + message.getMessageId() + ": " + e.getMessage());
+                failedMessages.add(message.getMessageId());
+            }
+        }
+
+        List<RecordBatchRunner.Outcome> outcomes;
+        try (ObjectPrefetcher prefetcher = ObjectPrefetcher.start(records)) {
+            outcomes = RecordBatchRunner.run(records, prefetcher.releasingUnclaimed(task), SharedLambdaLayer::objectKeyOf);
+        }
+        for (int i = 0; i < outcomes.size(); i++) {
+            if (outcomes.get(i).status() == RecordBatchRunner.Status.FAILED) {
+                failedMessages.add(messageOf.get(i));
+            }
+        }
+
+        for (SQSMessage message : event.getRecords()) {
+            if (failedMessages.contains(message.getMessageId()) && Continuations.isContinuation(message)) {
+                throw new IllegalStateException("Continuation message " + message.getMessageId() + " failed, failing the invocation so it is retried");
+            }
+        }
+        for (String messageId : failedMessages) {
+            failures.add(new SQSBatchResponse.BatchItemFailure(messageId));
+        }
+        logger.info(String.format("SQS batch: %d message(s), %d record(s), %d failed record(s), %d continued record(s), %d message(s) returned for retry",
+                event.getRecords().size(), records.size(),
+                RecordBatchRunner.keysWith(outcomes, RecordBatchRunner.Status.FAILED).size(),
+                RecordBatchRunner.keysWith(outcomes, RecordBatchRunner.Status.CONTINUED).size(), failures.size()));
+        return new SQSBatchResponse(failures);
+    }
+}
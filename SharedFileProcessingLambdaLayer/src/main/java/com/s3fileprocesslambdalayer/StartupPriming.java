@@ -0,0 +1,91 @@
+package com.s3fileprocesslambdalayer;
+
+import org.crac.Context;
+import org.crac.Core;
+import org.crac.Resource;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * Moves one-time setup out of the first request. Components register a {@link Primer} that exercises their
+ * expensive first use (S3 client request path, PDFBox fonts, ImageIO plugin registry) on a tiny sample.
+ *
+ * <p>Primers run before a CRaC checkpoint, which is how Lambda SnapStart snapshots the initialised
+ * function, so the work is captured in the snapshot. With PRIME_ON_INIT=true they also run as soon as they
+ * are registered, i.e. during the init phase, for functions without SnapStart. A failing primer is logged
+ * and ignored; it only means the first request pays for that setup as before.
+ */
+public final class StartupPriming {
+    private static final Logger logger = Logger.getLogger(StartupPriming.class.getName());
+
+    /** Exercises one component's first-use path. */
+    @FunctionalInterface
+    public interface Primer {
+        void prime() throws Exception;
+    }
+
+    private static final Map<String, Primer> primers = new LinkedHashMap<>();
+    private static final Set<String> primed = new HashSet<>();
+    // CRaC holds resources weakly, so the hook must stay strongly reachable from here
+    private static final Object checkpointHook = registerCheckpointHook();
+
+    private StartupPriming() {
+    }
+
+    /**
+     * Registers a primer under {@code name}; the first registration of a name wins. Runs it right away
+     * when PRIME_ON_INIT is true.
+     */
+    public static synchronized void register(String name, Primer primer) {
+        primers.putIfAbsent(name, primer);
+        if (LayerConfig.getBoolean("PRIME_ON_INIT", false)) {
+            run(name, primers.get(name));
+        }
+    }
+
+    /** Runs every registered primer that has not run yet. */
+    public static synchronized void primeAll() {
+        for (Map.Entry<String, Primer> entry : primers.entrySet()) {
+            run(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private static void run(String name, Primer primer) {
+        if (!primed.add(name)) {
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            primer.prime();
+            logger.info(String.format("Primed %s in %d ms", name, (System.nanoTime() - start) / 1_000_000));
+        } catch (Exception e) {
+            logger.warning("Priming " + name + " failed, its first use stays cold: " + e.getMessage());
+        }
+    }
+
+    private static Object registerCheckpointHook() {
+        try {
+            Resource hook = new Resource() {
+                @Override
+                public void beforeCheckpoint(Context<? extends Resource> context) {
+                    primeAll();
+                }
+
+                @Override
+                public void afterRestore(Context<? extends Resource> context) {
+                    logger.info("Restored from checkpoint with " + primed.size() + " primed component(s)");
+                }
+            };
+            Core.getGlobalContext().register(hook);
+            return hook;
+        } catch (LinkageError e) {
+            // org.crac is not on the class path; PRIME_ON_INIT still works
+            logger.fine("CRaC API not available, checkpoint priming disabled: " + e);
+            return null;
+        }
+    }
+}
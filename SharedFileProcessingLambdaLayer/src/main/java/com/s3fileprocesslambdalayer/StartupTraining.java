@@ -0,0 +1,28 @@
+package com.s3fileprocesslambdalayer;
+
+import java.util.logging.Logger;
+
+/**
+ * Training run for an AppCDS archive: loads and constructs each handler class named on the command line and
+ * runs every registered primer, so the JVM started with -XX:ArchiveClassesAtExit records the classes a cold
+ * start actually needs. Run it on the same class path the archive is later used with, such as the load
+ * harness's for --cds; no S3 request is made unless BUCKET_NAME is set.
+ */
+public final class StartupTraining {
+    private static final Logger logger = Logger.getLogger(StartupTraining.class.getName());
+
+    private StartupTraining() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            throw new IllegalArgumentException("Usage: StartupTraining <handler class>...");
+        }
+        for (String handlerClass : args) {
+            long start = System.nanoTime();
+            Class.forName(handlerClass).getDeclaredConstructor().newInstance();
+            logger.info(String.format("Loaded %s in %d ms", handlerClass, (System.nanoTime() - start) / 1_000_000));
+        }
+        StartupPriming.primeAll();
+    }
+}
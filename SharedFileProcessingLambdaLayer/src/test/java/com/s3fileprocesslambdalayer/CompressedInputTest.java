@@ -0,0 +1,136 @@
+package com.s3fileprocesslambdalayer;
+
+import io.airlift.compress.zstd.ZstdOutputStream;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipException;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class CompressedInputTest {
+
+    // The size of the buffer the gzip reader fills from its input
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    @Test
+    void everyGzipMemberIsRead() throws IOException {
+        byte[] content = concat(gzip(ascii("id,name\n")), gzip(ascii("1,a\n")), gzip(ascii("2,b\n")));
+
+        assertEquals("id,name\n1,a\n2,b\n", new String(readAll(content), StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    void nextMemberStartingOnTheLastByteOfTheBufferIsRead() throws IOException {
+        assertMemberBoundaryAt(BUFFER_SIZE - 1);
+    }
+
+    @Test
+    void nextMemberStartingOnABufferBoundaryIsRead() throws IOException {
+        assertMemberBoundaryAt(0);
+    }
+
+    @Test
+    void crcMismatchIsRejected() throws IOException {
+        byte[] member = gzip(ascii("1,a\n2,b\n"));
+        // The CRC-32 is the first word of the 8-byte trailer
+        member[member.length - 8] ^= 1;
+
+        ZipException e = assertThrows(ZipException.class, () -> readAll(member));
+        assertEquals("Corrupt gzip member: CRC mismatch", e.getMessage());
+    }
+
+    @Test
+    void trailingZeroPaddingEndsTheStream() throws IOException {
+        byte[] content = concat(gzip(ascii("1,a\n")), gzip(ascii("2,b\n")), new byte[512]);
+
+        assertEquals("1,a\n2,b\n", new String(readAll(content), StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    void zstdRoundTrips() throws IOException {
+        byte[] plain = randomBytes(200_000, 7);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (OutputStream out = new ZstdOutputStream(compressed)) {
+            out.write(plain);
+        }
+
+        assertEquals(CompressedInput.Codec.ZSTD, CompressedInput.detect(compressed.toByteArray(), CompressedInput.MAGIC_BYTES));
+        assertArrayEquals(plain, readAll(compressed.toByteArray()));
+    }
+
+    /** Reads a large member whose compressed size leaves the next member at {@code offset} into a buffer fill. */
+    private static void assertMemberBoundaryAt(int offset) throws IOException {
+        int size = 70_000;
+        byte[] first = storedGzip(randomBytes(size, 1));
+        while (first.length % BUFFER_SIZE != offset) {
+            // Stored blocks grow byte for byte with the content, so stepping by the distance converges
+            int distance = Math.floorMod(offset - first.length, BUFFER_SIZE);
+            size += distance > BUFFER_SIZE / 2 ? distance - BUFFER_SIZE : distance;
+            first = storedGzip(randomBytes(size, 1));
+        }
+        byte[] second = ascii("after the boundary\n");
+
+        byte[] read = readAll(concat(first, gzip(second)));
+
+        assertEquals(size + second.length, read.length);
+        assertArrayEquals(randomBytes(size, 1), Arrays.copyOf(read, size));
+        assertArrayEquals(second, Arrays.copyOfRange(read, size, read.length));
+    }
+
+    private static byte[] readAll(byte[] content) throws IOException {
+        try (InputStream in = CompressedInput.open(new ByteArrayInputStream(content))) {
+            return in.readAllBytes();
+        }
+    }
+
+    private static byte[] gzip(byte[] plain) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(plain);
+        }
+        return out.toByteArray();
+    }
+
+    /** A gzip member of uncompressed deflate blocks, whose size follows the content's exactly. */
+    private static byte[] storedGzip(byte[] plain) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out) {
+            {
+                def.setLevel(Deflater.NO_COMPRESSION);
+            }
+        }) {
+            gzip.write(plain);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] randomBytes(int size, long seed) {
+        byte[] bytes = new byte[size];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.writeBytes(part);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,127 @@
+package com.s3fileprocesslambdalayer;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class EventDeduplicatorTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void laterSequencerIsNewSameIsDuplicateEarlierIsStale() throws IOException {
+        EventDeduplicator deduplicator = new EventDeduplicator(new FileDedupStore(dir.resolve("dedup.log")));
+
+        process(deduplicator, event("0055AED6DCD90281E5"));
+
+        assertEquals(EventDeduplicator.Verdict.DUPLICATE, deduplicator.claim(event("0055AED6DCD90281E5")));
+        assertEquals(EventDeduplicator.Verdict.STALE, deduplicator.claim(event("0055AED6DCD90281E4")));
+        assertEquals(EventDeduplicator.Verdict.NEW, deduplicator.claim(event("0055AED6DCD90281E6")));
+    }
+
+    @Test
+    void staleEventArrivingAfterALaterOneIsNotRecorded() throws IOException {
+        FileDedupStore store = new FileDedupStore(dir.resolve("dedup.log"));
+        EventDeduplicator deduplicator = new EventDeduplicator(store);
+
+        process(deduplicator, event("0B"));
+        // Delivered out of order: the earlier write's notification comes second
+        assertEquals(EventDeduplicator.Verdict.STALE, deduplicator.claim(event("0A")));
+        assertEquals(false, store.record("bucket/data.csv", new DedupStore.ProcessedEvent("0A", null)));
+
+        assertEquals("0B", store.latest("bucket/data.csv").sequencer());
+    }
+
+    @Test
+    void sequencersOfDifferentLengthsComparePaddedWithZeros() {
+        assertEquals(0, EventDeduplicator.compareSequencers("0A", "0A00"));
+        assertTrue(EventDeduplicator.compareSequencers("0A01", "0A") > 0);
+        assertTrue(EventDeduplicator.compareSequencers("09FF", "0A") < 0);
+    }
+
+    @Test
+    void concurrentCopyIsDuplicateUntilTheClaimIsReleased() throws IOException {
+        EventDeduplicator deduplicator = new EventDeduplicator(new FileDedupStore(dir.resolve("dedup.log")));
+
+        assertEquals(EventDeduplicator.Verdict.NEW, deduplicator.claim(event("0A")));
+        assertEquals(EventDeduplicator.Verdict.DUPLICATE, deduplicator.claim(event("0A")));
+
+        // A failure is not recorded, so the redelivery is processed again
+        deduplicator.complete(event("0A"), false);
+        assertEquals(EventDeduplicator.Verdict.NEW, deduplicator.claim(event("0A")));
+    }
+
+    @Test
+    void eventsWithoutSequencerFallBackToVersionId() throws IOException {
+        EventDeduplicator deduplicator = new EventDeduplicator(new FileDedupStore(dir.resolve("dedup.log")));
+        EventDeduplicator.Identity first = new EventDeduplicator.Identity("bucket", "data.csv", "v1", null);
+
+        process(deduplicator, first);
+
+        assertEquals(EventDeduplicator.Verdict.DUPLICATE,
+                deduplicator.claim(new EventDeduplicator.Identity("bucket", "data.csv", "v1", null)));
+        assertEquals(EventDeduplicator.Verdict.NEW,
+                deduplicator.claim(new EventDeduplicator.Identity("bucket", "data.csv", "v2", null)));
+    }
+
+    @Test
+    void reopenedStoreKeepsTheLatestEvent() throws IOException {
+        Path file = dir.resolve("dedup.log");
+        EventDeduplicator deduplicator = new EventDeduplicator(new FileDedupStore(file));
+        process(deduplicator, event("0A"));
+        process(deduplicator, event("0C"));
+
+        EventDeduplicator reopened = new EventDeduplicator(new FileDedupStore(file));
+
+        assertEquals(EventDeduplicator.Verdict.DUPLICATE, reopened.claim(event("0C")));
+        assertEquals(EventDeduplicator.Verdict.STALE, reopened.claim(event("0B")));
+        assertEquals(EventDeduplicator.Verdict.NEW, reopened.claim(new EventDeduplicator.Identity("bucket", "other.csv", null, "01")));
+    }
+
+    @Test
+    void keysWithTabsAndLineBreaksSurviveTheLog() throws IOException {
+        Path file = dir.resolve("dedup.log");
+        String key = "odd\tname\nwith\\breaks\r.csv";
+        EventDeduplicator deduplicator = new EventDeduplicator(new FileDedupStore(file));
+        process(deduplicator, new EventDeduplicator.Identity("bucket", key, null, "0A"));
+
+        FileDedupStore reopened = new FileDedupStore(file);
+
+        assertEquals("0A", reopened.latest("bucket/" + key).sequencer());
+        assertEquals(1, Files.readAllLines(file).size());
+    }
+
+    @Test
+    void logIsCompactedToTheObjectsKept() throws IOException {
+        Path file = dir.resolve("dedup.log");
+        FileDedupStore store = new FileDedupStore(file, 10);
+        for (int i = 0; i < 100; i++) {
+            store.record("bucket/" + i + ".csv", new DedupStore.ProcessedEvent("0A", null));
+            // The same object again, with a later event
+            store.record("bucket/" + i + ".csv", new DedupStore.ProcessedEvent("0B", null));
+        }
+
+        assertTrue(Files.readAllLines(file).size() < 20);
+        FileDedupStore reopened = new FileDedupStore(file, 10);
+        assertNull(reopened.latest("bucket/0.csv"));
+        assertEquals("0B", reopened.latest("bucket/99.csv").sequencer());
+        assertEquals("0B", reopened.latest("bucket/90.csv").sequencer());
+    }
+
+    private static EventDeduplicator.Identity event(String sequencer) {
+        return new EventDeduplicator.Identity("bucket", "data.csv", null, sequencer);
+    }
+
+    private static void process(EventDeduplicator deduplicator, EventDeduplicator.Identity id) {
+        assertEquals(EventDeduplicator.Verdict.NEW, deduplicator.claim(id));
+        deduplicator.complete(id, true);
+    }
+}
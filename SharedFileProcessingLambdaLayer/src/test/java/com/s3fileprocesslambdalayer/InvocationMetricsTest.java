@@ -0,0 +1,44 @@
+package com.s3fileprocesslambdalayer;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class InvocationMetricsTest {
+
+    @Test
+    void onlyTouchedCountersAreEmitted() {
+        InvocationMetrics.begin("test");
+        InvocationMetrics.add(InvocationMetrics.Counter.ROWS, 3);
+        InvocationMetrics.add(InvocationMetrics.Counter.SHARDS, 0);
+
+        String emf = InvocationMetrics.toEmf(0);
+
+        assertTrue(emf.contains("\"Rows\":3"), emf);
+        assertTrue(emf.contains("\"Shards\":0"), emf);
+        assertFalse(emf.contains("\"Pages\""), emf);
+        assertFalse(emf.contains("\"BytesIn\""), emf);
+    }
+
+    @Test
+    void countersAreForgottenByTheNextInvocation() {
+        InvocationMetrics.begin("test");
+        InvocationMetrics.add(InvocationMetrics.Counter.PAGES, 2);
+        InvocationMetrics.begin("test");
+
+        assertFalse(InvocationMetrics.toEmf(0).contains("\"Pages\""));
+    }
+
+    @Test
+    void quantilesAreWithinAnEighthOfTheRecordedValue() {
+        for (long value = 1; value < 10_000_000; value = value * 3 + 1) {
+            InvocationMetrics.Histogram histogram = new InvocationMetrics.Histogram();
+            histogram.record(value);
+            histogram.record(Long.MAX_VALUE / 2);
+
+            long reported = histogram.quantile(0.5);
+            assertTrue(Math.abs(reported - value) <= value / 8.0, value + " reported as " + reported);
+        }
+    }
+}
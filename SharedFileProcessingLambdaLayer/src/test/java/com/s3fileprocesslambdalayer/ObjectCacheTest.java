@@ -0,0 +1,57 @@
+package com.s3fileprocesslambdalayer;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ObjectCacheTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void nothingIsAdmittedBelowTheReserve() throws IOException {
+        long usable = Files.getFileStore(dir).getUsableSpace();
+        ObjectCache cache = new ObjectCache(true, Long.MAX_VALUE, dir, usable + 1024L * 1024 * 1024);
+        Path file = file("a", 100);
+
+        assertFalse(cache.admit("a", file, 100));
+        assertNull(cache.acquire("a"));
+        assertTrue(Files.exists(file), "a file that was not admitted stays with the caller");
+    }
+
+    @Test
+    void maxBytesEvictsTheLeastRecentlyUsedUnpinnedEntry() throws IOException {
+        ObjectCache cache = new ObjectCache(true, 250, dir, 0);
+        assertTrue(cache.admit("a", file("a", 100), 100));
+        assertTrue(cache.admit("b", file("b", 100), 100));
+        cache.release(dir.resolve("a"));
+
+        assertTrue(cache.admit("c", file("c", 100), 100));
+
+        assertNull(cache.acquire("a"));
+        assertFalse(Files.exists(dir.resolve("a")));
+        assertEquals(dir.resolve("b"), cache.acquire("b"));
+    }
+
+    @Test
+    void pinnedEntriesAreNotEvicted() throws IOException {
+        ObjectCache cache = new ObjectCache(true, 150, dir, 0);
+        assertTrue(cache.admit("a", file("a", 100), 100));
+
+        assertFalse(cache.admit("b", file("b", 100), 100));
+        assertEquals(dir.resolve("a"), cache.acquire("a"));
+    }
+
+    private Path file(String name, int size) throws IOException {
+        return Files.write(dir.resolve(name), new byte[size]);
+    }
+}
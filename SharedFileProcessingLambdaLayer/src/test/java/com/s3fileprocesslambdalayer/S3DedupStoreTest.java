@@ -0,0 +1,57 @@
+package com.s3fileprocesslambdalayer;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.services.s3.S3Client;
+
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class S3DedupStoreTest {
+    private static LocalS3Server server;
+    private static S3Client s3;
+
+    @BeforeAll
+    static void startServer() throws IOException {
+        server = LocalS3Server.start();
+        s3 = server.client();
+    }
+
+    @AfterAll
+    static void stopServer() {
+        s3.close();
+        server.close();
+    }
+
+    @Test
+    void containersShareTheLatestEvent() throws IOException {
+        S3DedupStore first = new S3DedupStore(s3, ".checkpoints/dedup/");
+        S3DedupStore second = new S3DedupStore(s3, ".checkpoints/dedup/");
+        EventDeduplicator deduplicator = new EventDeduplicator(first);
+        EventDeduplicator.Identity id = new EventDeduplicator.Identity("bucket", "shared\tkey.csv", "v1", "0A");
+
+        assertNull(first.latest("bucket/shared\tkey.csv"));
+        assertEquals(EventDeduplicator.Verdict.NEW, deduplicator.claim(id));
+        deduplicator.complete(id, true);
+
+        assertEquals(EventDeduplicator.Verdict.DUPLICATE, new EventDeduplicator(second).claim(id));
+        assertEquals("v1", second.latest("bucket/shared\tkey.csv").versionId());
+    }
+
+    @Test
+    void laterEventReplacesTheMarkerAndEarlierOneDoesNot() throws IOException {
+        S3DedupStore first = new S3DedupStore(s3, ".checkpoints/dedup/");
+        S3DedupStore second = new S3DedupStore(s3, ".checkpoints/dedup/");
+
+        assertTrue(first.record("bucket/data.csv", new DedupStore.ProcessedEvent("0B", null)));
+        assertTrue(second.record("bucket/data.csv", new DedupStore.ProcessedEvent("0C", null)));
+        assertFalse(first.record("bucket/data.csv", new DedupStore.ProcessedEvent("0A", null)));
+
+        assertEquals("0C", first.latest("bucket/data.csv").sequencer());
+    }
+}
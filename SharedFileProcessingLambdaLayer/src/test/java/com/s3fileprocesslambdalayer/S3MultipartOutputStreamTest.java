@@ -0,0 +1,115 @@
+package com.s3fileprocesslambdalayer;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.services.s3.S3Client;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class S3MultipartOutputStreamTest {
+    private static final String BUCKET = "output";
+    private static final int PART = S3MultipartOutputStream.MIN_PART_SIZE;
+
+    private static LocalS3Server server;
+    private static S3Client s3;
+
+    @BeforeAll
+    static void startServer() throws IOException {
+        server = LocalS3Server.start();
+        s3 = server.client();
+    }
+
+    @AfterAll
+    static void stopServer() {
+        s3.close();
+        server.close();
+    }
+
+    @Test
+    void outputBelowOnePartIsASinglePut() throws IOException {
+        byte[] content = bytes(1000, 1);
+        long requests = server.requestCount();
+
+        try (S3MultipartOutputStream out = new S3MultipartOutputStream(s3, BUCKET, "small.bin", "application/octet-stream", PART, 2)) {
+            out.write(content);
+        }
+
+        assertArrayEquals(content, server.get(BUCKET, "small.bin").content());
+        assertEquals(1, server.requestCount() - requests);
+    }
+
+    @Test
+    void outputOfWholePartsSendsNoEmptyLastPart() throws IOException {
+        byte[] content = bytes(2 * PART, 2);
+        long aborted = server.abortedUploads();
+
+        try (S3MultipartOutputStream out = new S3MultipartOutputStream(s3, BUCKET, "whole.bin", "application/octet-stream", PART, 2)) {
+            out.write(content, 0, PART);
+            // The second part is filled a byte at a time
+            for (int i = PART; i < content.length; i++) {
+                out.write(content[i]);
+            }
+            assertEquals(content.length, out.bytesWritten());
+        }
+
+        assertArrayEquals(content, server.get(BUCKET, "whole.bin").content());
+        assertEquals(0, server.openUploads());
+        assertEquals(aborted, server.abortedUploads());
+    }
+
+    @Test
+    void failedPartAbortsTheUpload() throws IOException {
+        // A server of its own: the abort interrupts a part in flight, and its connection is not reused
+        try (LocalS3Server failing = LocalS3Server.start(); S3Client client = failing.client()) {
+            failing.failPart(3);
+
+            assertThrows(IOException.class, () -> {
+                try (S3MultipartOutputStream out = new S3MultipartOutputStream(client, BUCKET, "failed.bin", "application/octet-stream", PART, 1)) {
+                    out.write(bytes(4 * PART + 10, 3));
+                }
+            });
+
+            assertNull(failing.get(BUCKET, "failed.bin"));
+            assertEquals(0, failing.openUploads());
+            assertEquals(1, failing.abortedUploads());
+        }
+    }
+
+    @Test
+    void suspendedUploadResumesIntoTheSameObject() throws IOException {
+        CheckpointStore checkpoints = new CheckpointStore(s3, ".checkpoints/", 0, 0);
+        Checkpoint checkpoint = Checkpoint.fresh(BUCKET, "input.csv", "\"etag\"");
+        byte[] content = bytes(10 * 1024 * 1024, 4);
+        int split = 8 * 1024 * 1024 + 100;
+
+        S3MultipartOutputStream first = S3MultipartOutputStream.resume(s3, checkpoints, checkpoint, "out",
+                BUCKET, "resumed.bin", "application/octet-stream");
+        first.write(content, 0, split);
+        first.suspend(checkpoints, checkpoint, "out");
+        assertNull(server.get(BUCKET, "resumed.bin"));
+        assertEquals(1, server.openUploads());
+
+        try (S3MultipartOutputStream second = S3MultipartOutputStream.resume(s3, checkpoints, checkpoint, "out",
+                BUCKET, "resumed.bin", "application/octet-stream")) {
+            assertEquals(split, second.bytesWritten());
+            second.write(content, split, content.length - split);
+        }
+
+        assertArrayEquals(content, server.get(BUCKET, "resumed.bin").content());
+        assertEquals(0, server.openUploads());
+    }
+
+    private static byte[] bytes(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,96 @@
+package com.s3fileprocesslambdalayer;
+
+import com.amazonaws.services.lambda.runtime.events.SQSBatchResponse;
+import com.amazonaws.services.lambda.runtime.events.SQSEvent;
+import com.amazonaws.services.lambda.runtime.events.models.s3.S3EventNotification.S3EventNotificationRecord;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class SqsBatchProcessorTest {
+    private final S3EventFactory events = new S3EventFactory("us-east-1");
+
+    // Fails keys containing "bad", continues keys containing "large" and skips keys containing "seen"
+    private static final RecordBatchRunner.RecordTask<S3EventNotificationRecord> TASK = record -> {
+        String key = record.getS3().getObject().getKey();
+        if (key.contains("bad")) {
+            throw new IllegalStateException("cannot process " + key);
+        }
+        return key.contains("large") ? RecordBatchRunner.Outcome.continued(key)
+                : key.contains("seen") ? RecordBatchRunner.Outcome.skipped(key)
+                : RecordBatchRunner.Outcome.processed(key);
+    };
+
+    @Test
+    void onlyMessagesWithAFailedRecordAreReturned() {
+        LocalSqsQueue queue = new LocalSqsQueue("ingest", 3);
+        queue.send(body("a.csv"));
+        queue.send(body("b.csv", "bad.csv"));
+        queue.send(body("large.csv", "seen.csv"));
+        SQSEvent batch = queue.receive(10);
+
+        SQSBatchResponse response = SqsBatchProcessor.process(batch, TASK);
+
+        assertEquals(List.of("ingest-2"), failedIds(response));
+        queue.acknowledge(batch, response);
+        assertEquals(1, queue.redelivered());
+        assertEquals(List.of("ingest-2"), queue.receive(10).getRecords().stream()
+                .map(SQSEvent.SQSMessage::getMessageId).collect(Collectors.toList()));
+    }
+
+    @Test
+    void unreadableBodyIsReturnedUntilItIsDeadLettered() {
+        LocalSqsQueue queue = new LocalSqsQueue("ingest", 2);
+        queue.send("{not json");
+        queue.send(body("a.csv"));
+
+        for (int attempt = 0; attempt < 3 && queue.hasVisibleMessages(); attempt++) {
+            SQSEvent batch = queue.receive(10);
+            SQSBatchResponse response = SqsBatchProcessor.process(batch, TASK);
+            assertEquals(List.of("ingest-1"), failedIds(response));
+            queue.acknowledge(batch, response);
+        }
+
+        assertFalse(queue.hasVisibleMessages());
+        assertEquals(List.of("ingest-1"), queue.deadLetters());
+    }
+
+    @Test
+    void failedContinuationFailsTheInvocation() {
+        SQSEvent.SQSMessage message = new SQSEvent.SQSMessage();
+        // Continuations invoke the function with message ids of this form
+        message.setMessageId("continuation-1");
+        message.setBody(body("bad.csv"));
+        SQSEvent event = new SQSEvent();
+        event.setRecords(List.of(message));
+
+        assertThrows(IllegalStateException.class, () -> SqsBatchProcessor.process(event, TASK));
+    }
+
+    @Test
+    void emptyBatchHasNoFailures() {
+        SQSEvent event = new SQSEvent();
+        event.setRecords(new ArrayList<>());
+
+        assertEquals(List.of(), failedIds(SqsBatchProcessor.process(event, TASK)));
+    }
+
+    private String body(String... keys) {
+        List<S3EventNotificationRecord> records = new ArrayList<>();
+        for (String key : keys) {
+            records.add(events.objectCreated("bucket", key, 10, "etag", null));
+        }
+        return S3NotificationMessages.toJson(records);
+    }
+
+    private static List<String> failedIds(SQSBatchResponse response) {
+        return response.getBatchItemFailures().stream()
+                .map(SQSBatchResponse.BatchItemFailure::getItemIdentifier).collect(Collectors.toList());
+    }
+}